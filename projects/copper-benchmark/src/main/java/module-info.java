@@ -0,0 +1,6 @@
+module org.copperengine.benchmark {
+    requires org.copperengine.core;
+
+    requires org.slf4j;
+    requires jmh.core;
+}
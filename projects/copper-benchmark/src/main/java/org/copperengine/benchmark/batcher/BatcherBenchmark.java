@@ -0,0 +1,149 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.benchmark.batcher;
+
+import java.sql.Connection;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.copperengine.core.batcher.AbstractBatchCommand;
+import org.copperengine.core.batcher.BatchCommand;
+import org.copperengine.core.batcher.BatchExecutor;
+import org.copperengine.core.batcher.BatchExecutorBase;
+import org.copperengine.core.batcher.BatchRunner;
+import org.copperengine.core.batcher.CommandCallback;
+import org.copperengine.core.batcher.impl.BatcherImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Submit/poll benchmark for the batcher queue. Each invocation submits {@value #COMMANDS} commands to a
+ * {@link BatcherImpl} and waits until the batcher threads have polled and executed all of them with an executor that
+ * does nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatcherBenchmark {
+
+    static final int COMMANDS = 100;
+
+    @Param({ "1", "4" })
+    public int batcherThreads;
+
+    private BatcherImpl batcher;
+    private final NullExecutor executor = new NullExecutor();
+
+    static final class NullExecutor extends BatchExecutor<NullExecutor, Command> {
+        @Override
+        public void doExec(Collection<BatchCommand<NullExecutor, Command>> commands, Connection connection) {
+        }
+
+        @Override
+        public int preferredBatchSize() {
+            return 50;
+        }
+
+        @Override
+        public int maximumBatchSize() {
+            return 100;
+        }
+    }
+
+    static final class Command extends AbstractBatchCommand<NullExecutor, Command> {
+        private final NullExecutor executor;
+
+        Command(NullExecutor executor, CommandCallback<Command> callback) {
+            super(callback, 0);
+            this.executor = executor;
+        }
+
+        @Override
+        public NullExecutor executor() {
+            return executor;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Submitter implements CommandCallback<Command> {
+        private int pending;
+
+        @Override
+        public synchronized void commandCompleted() {
+            if (--pending == 0) {
+                notify();
+            }
+        }
+
+        @Override
+        public void unhandledException(Exception e) {
+            commandCompleted();
+        }
+
+        synchronized void await() throws InterruptedException {
+            while (pending > 0) {
+                wait();
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        batcher = new BatcherImpl(batcherThreads);
+        batcher.setBatchRunner(new BatchRunner<NullExecutor, Command>() {
+            @Override
+            public void run(Collection<BatchCommand<NullExecutor, Command>> commands, BatchExecutorBase<NullExecutor, Command> base) {
+                for (BatchCommand<NullExecutor, Command> cmd : commands) {
+                    cmd.callback().commandCompleted();
+                }
+            }
+        });
+        batcher.startup();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        batcher.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public void submitAndPoll(Submitter submitter) throws InterruptedException {
+        synchronized (submitter) {
+            submitter.pending = COMMANDS;
+        }
+        for (int i = 0; i < COMMANDS; i++) {
+            batcher.submitBatchCommand(new Command(executor, submitter));
+        }
+        submitter.await();
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.benchmark.common;
+
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import org.copperengine.benchmark.tranzient.BenchmarkWorkflow;
+import org.copperengine.core.Workflow;
+import org.copperengine.core.common.WfPriorityQueue;
+import org.copperengine.core.common.WfRunQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Enqueue/poll benchmark for the processor pool run queues. {@link WfPriorityQueue} is not thread safe, so it is
+ * guarded by its own monitor the way the processor pools used it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RunQueueBenchmark {
+
+    private static final int PRIORITIES = 10;
+    private static final int BACKLOG = 1000;
+
+    @Param({ "WfRunQueue", "WfPriorityQueue" })
+    public String queueType;
+
+    private Queue<Workflow<?>> queue;
+    private boolean synchronize;
+
+    @State(Scope.Thread)
+    public static class Workflows {
+        private final Workflow<?>[] workflows = new Workflow<?>[PRIORITIES];
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            for (int i = 0; i < PRIORITIES; i++) {
+                workflows[i] = createWorkflow(i + 1);
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        synchronize = "WfPriorityQueue".equals(queueType);
+        queue = synchronize ? new WfPriorityQueue() : new WfRunQueue();
+        for (int i = 0; i < BACKLOG; i++) {
+            queue.offer(createWorkflow(i % PRIORITIES + 1));
+        }
+    }
+
+    private static Workflow<?> createWorkflow(int priority) {
+        BenchmarkWorkflow wf = new BenchmarkWorkflow();
+        wf.setPriority(priority);
+        return wf;
+    }
+
+    @Benchmark
+    public Workflow<?> offerAndPoll(Workflows workflows) {
+        Workflow<?> wf = workflows.workflows[workflows.next++ % PRIORITIES];
+        if (synchronize) {
+            synchronized (queue) {
+                queue.offer(wf);
+            }
+            synchronized (queue) {
+                return queue.poll();
+            }
+        }
+        queue.offer(wf);
+        return queue.poll();
+    }
+
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.benchmark.persistent;
+
+import org.copperengine.core.Interrupt;
+import org.copperengine.core.instrument.Transformed;
+import org.copperengine.core.persistent.PersistentWorkflow;
+
+/**
+ * Persistent workflow used in serialization benchmarks. It is never executed, so it does not need to be instrumented.
+ */
+@Transformed
+public class BenchmarkPersistentWorkflow extends PersistentWorkflow<String> {
+
+    private static final long serialVersionUID = 1L;
+
+    private String state;
+
+    public void setState(String state) {
+        this.state = state;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    @Override
+    public void main() throws Interrupt {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.benchmark.persistent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.copperengine.benchmark.tranzient.BenchmarkWorkflowRepository;
+import org.copperengine.core.Workflow;
+import org.copperengine.core.persistent.DeflateCompressionCodec;
+import org.copperengine.core.persistent.SerializedWorkflow;
+import org.copperengine.core.persistent.StandardJavaSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round-trip benchmark for {@link StandardJavaSerializer}: serializes a persistent workflow instance and deserializes
+ * it again, as the persistent engine does for each savepoint and dequeue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializerBenchmark {
+
+    /**
+     * Size of the workflow data and state in characters
+     */
+    @Param({ "100", "20000" })
+    public int size;
+
+    @Param({ "text", "binary" })
+    public String format;
+
+    /**
+     * <code>default</code> uses the built-in compressor, <code>deflate</code> a {@link DeflateCompressionCodec} with
+     * {@link Deflater#BEST_SPEED}
+     */
+    @Param({ "default", "deflate" })
+    public String compression;
+
+    private StandardJavaSerializer serializer;
+    private BenchmarkPersistentWorkflow workflow;
+    private SerializedWorkflow serialized;
+    private final BenchmarkWorkflowRepository repository = new BenchmarkWorkflowRepository();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        serializer = new StandardJavaSerializer();
+        if ("deflate".equals(compression)) {
+            serializer.setCompressionCodec(new DeflateCompressionCodec(Deflater.BEST_SPEED));
+        }
+        StringBuilder sb = new StringBuilder(size);
+        while (sb.length() < size) {
+            sb.append("orderId=").append(sb.length()).append(';');
+        }
+        sb.setLength(size);
+        workflow = new BenchmarkPersistentWorkflow();
+        workflow.setId("benchmark#1");
+        workflow.setProcessorPoolId("P#DEFAULT");
+        workflow.setData(sb.toString());
+        workflow.setState(sb.toString());
+        serialized = serialize();
+    }
+
+    private SerializedWorkflow serialize() throws Exception {
+        return "binary".equals(format) ? serializer.serializeWorkflowBinary(workflow) : serializer.serializeWorkflow(workflow);
+    }
+
+    @Benchmark
+    public SerializedWorkflow serializeWorkflow() throws Exception {
+        return serialize();
+    }
+
+    @Benchmark
+    public Workflow<?> deserializeWorkflow() throws Exception {
+        return serializer.deserializeWorkflow(serialized, repository);
+    }
+
+    @Benchmark
+    public Workflow<?> roundTrip() throws Exception {
+        return serializer.deserializeWorkflow(serialize(), repository);
+    }
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.benchmark.tranzient;
+
+import org.copperengine.core.Interrupt;
+import org.copperengine.core.Workflow;
+import org.copperengine.core.instrument.Transformed;
+
+/**
+ * Workflow used as callback target in benchmarks. It is never executed, so it does not need to be instrumented.
+ */
+@Transformed
+public class BenchmarkWorkflow extends Workflow<Void> {
+
+    private static final long serialVersionUID = 1L;
+
+    public void consumeResponses(String correlationId) {
+        getAndRemoveResponses(correlationId);
+    }
+
+    @Override
+    public void main() throws Interrupt {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.benchmark.tranzient;
+
+import java.lang.reflect.InvocationTargetException;
+
+import org.copperengine.core.Workflow;
+import org.copperengine.core.WorkflowFactory;
+import org.copperengine.core.WorkflowVersion;
+import org.copperengine.core.common.WorkflowRepository;
+import org.copperengine.core.instrument.ClassInfo;
+
+/**
+ * Workflow repository for benchmarks that do not execute workflows. It loads the workflow classes from the classpath
+ * without instrumenting them.
+ */
+public class BenchmarkWorkflowRepository implements WorkflowRepository {
+
+    private final ThreadLocal<Workflow<?>> lastCreated = new ThreadLocal<Workflow<?>>();
+
+    /**
+     * @return the workflow instance created last by the current thread
+     */
+    public Workflow<?> getLastCreated() {
+        return lastCreated.get();
+    }
+
+    @Override
+    public <E> WorkflowFactory<E> createWorkflowFactory(String wfName) throws ClassNotFoundException {
+        final Class<?> clazz = Class.forName(wfName);
+        return new WorkflowFactory<E>() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public Workflow<E> newInstance() throws InstantiationException, IllegalAccessException {
+                final Workflow<E> wf;
+                try {
+                    wf = (Workflow<E>) clazz.getDeclaredConstructor().newInstance();
+                } catch (InvocationTargetException | NoSuchMethodException e) {
+                    throw new InstantiationException(e.toString());
+                }
+                lastCreated.set(wf);
+                return wf;
+            }
+        };
+    }
+
+    @Override
+    public <E> WorkflowFactory<E> createWorkflowFactory(String wfName, WorkflowVersion version) throws ClassNotFoundException {
+        return createWorkflowFactory(wfName);
+    }
+
+    @Override
+    public WorkflowVersion findLatestMajorVersion(String wfName, long majorVersion) {
+        return null;
+    }
+
+    @Override
+    public WorkflowVersion findLatestMinorVersion(String wfName, long majorVersion, long minorVersion) {
+        return null;
+    }
+
+    @Override
+    public Class<?> resolveClass(String classname) throws ClassNotFoundException {
+        return Class.forName(classname);
+    }
+
+    @Override
+    public ClassInfo getClassInfo(@SuppressWarnings("rawtypes") Class<? extends Workflow> wfClazz) {
+        return null;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.benchmark.tranzient;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the correlation map of the {@link org.copperengine.core.tranzient.TransientScottyEngine} before and after
+ * the switch to a concurrent correlation index, within one build: each thread registers a correlation set for its own
+ * correlation id and then delivers the response for it.
+ * <ul>
+ * <li><code>globalLock</code> - one <code>HashMap</code> guarded by a single monitor, as in the former
+ * <code>registerCallbacks</code> and <code>notify</code></li>
+ * <li><code>concurrent</code> - a <code>ConcurrentHashMap</code> with <code>compute</code> for the early response
+ * check and a per correlation set monitor, as in the current engine</li>
+ * </ul>
+ * Run {@link #main(String[])} to measure both with 1 to 64 notifier threads. The results are written to
+ * <code>build/results/jmh/correlation-map-&lt;threads&gt;.json</code>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CorrelationMapBenchmark {
+
+    /**
+     * Stand-in for the engine's correlation set.
+     */
+    static final class Entry {
+        final String workflowId;
+        boolean completed;
+
+        Entry(String workflowId) {
+            this.workflowId = workflowId;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class GlobalLockMap {
+        final Map<String, Entry> map = new HashMap<String, Entry>(50000);
+    }
+
+    @State(Scope.Benchmark)
+    public static class ConcurrentMap {
+        final ConcurrentHashMap<String, Entry> map = new ConcurrentHashMap<String, Entry>(50000);
+    }
+
+    @State(Scope.Thread)
+    public static class Notifier {
+        final String workflowId = UUID.randomUUID().toString();
+        final String correlationId = workflowId + "#cid";
+    }
+
+    @Benchmark
+    public Object globalLock(GlobalLockMap state, Notifier notifier) {
+        final Map<String, Entry> map = state.map;
+        // registerCallbacks
+        synchronized (map) {
+            map.put(notifier.correlationId, new Entry(notifier.workflowId));
+        }
+        // notify
+        synchronized (map) {
+            final Entry entry = map.get(notifier.correlationId);
+            if (entry == null) {
+                return null;
+            }
+            entry.completed = true;
+            map.remove(notifier.correlationId);
+            return entry.workflowId;
+        }
+    }
+
+    @Benchmark
+    public Object concurrent(ConcurrentMap state, Notifier notifier) {
+        final ConcurrentHashMap<String, Entry> map = state.map;
+        // registerCallbacks
+        final Entry registered = new Entry(notifier.workflowId);
+        synchronized (registered) {
+            map.compute(notifier.correlationId, (cid, existing) -> registered);
+        }
+        // notify
+        Entry entry = map.get(notifier.correlationId);
+        if (entry == null) {
+            entry = map.compute(notifier.correlationId, (cid, existing) -> existing);
+            if (entry == null) {
+                return null;
+            }
+        }
+        synchronized (entry) {
+            if (entry.completed) {
+                return null;
+            }
+            entry.completed = true;
+            map.remove(notifier.correlationId);
+            return entry.workflowId;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new File("build/results/jmh").mkdirs();
+        for (int threads : new int[] { 1, 2, 4, 8, 16, 32, 64 }) {
+            Options options = new OptionsBuilder()
+                    .include(CorrelationMapBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("build/results/jmh/correlation-map-" + threads + ".json")
+                    .build();
+            new Runner(options).run();
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.benchmark.tranzient;
+
+import org.copperengine.core.ProcessingEngine;
+import org.copperengine.core.Workflow;
+import org.copperengine.core.tranzient.TransientProcessorPool;
+
+/**
+ * Processor pool dropping all enqueued workflow instances, so benchmarks measure the engine only.
+ */
+public class NullProcessorPool implements TransientProcessorPool {
+
+    @Override
+    public void enqueue(Workflow<?> wf) {
+    }
+
+    @Override
+    public void setEngine(ProcessingEngine engine) {
+    }
+
+    @Override
+    public String getId() {
+        return DEFAULT_POOL_ID;
+    }
+
+    @Override
+    public void startup() {
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public void suspend() {
+    }
+
+    @Override
+    public void resume() {
+    }
+
+}
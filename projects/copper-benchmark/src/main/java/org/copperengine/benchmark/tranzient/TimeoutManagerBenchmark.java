@@ -0,0 +1,107 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.benchmark.tranzient;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import org.copperengine.core.ProcessingEngine;
+import org.copperengine.core.tranzient.DefaultTimeoutManager;
+import org.copperengine.core.tranzient.TimeoutManager;
+import org.copperengine.core.tranzient.TimingWheelTimeoutManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark for the transient timeout managers. <code>registerAndUnregister</code> is the common case of a response
+ * arriving before its timeout, <code>registerAndExpire</code> registers timeouts that expire within a few
+ * milliseconds, so the expiry thread competes with the registering threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TimeoutManagerBenchmark {
+
+    @Param({ "DefaultTimeoutManager", "TimingWheelTimeoutManager" })
+    public String managerType;
+
+    private TimeoutManager timeoutManager;
+
+    @State(Scope.Thread)
+    public static class CorrelationIds {
+        private String prefix;
+        private long next;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            prefix = Thread.currentThread().getName() + "#";
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        timeoutManager = "DefaultTimeoutManager".equals(managerType) ? new DefaultTimeoutManager() : new TimingWheelTimeoutManager();
+        timeoutManager.setEngine(createEngine());
+        timeoutManager.startup();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        timeoutManager.shutdown();
+    }
+
+    /**
+     * @return an engine that ignores the expired timeouts
+     */
+    private ProcessingEngine createEngine() {
+        return (ProcessingEngine) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ProcessingEngine.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return null;
+            }
+        });
+    }
+
+    @Benchmark
+    public void registerAndUnregister(CorrelationIds ids) {
+        final long timeoutTS = System.currentTimeMillis() + 60000;
+        final String correlationId = ids.prefix + ids.next++;
+        timeoutManager.registerTimeout(timeoutTS, correlationId);
+        timeoutManager.unregisterTimeout(timeoutTS, correlationId);
+    }
+
+    @Benchmark
+    public void registerAndExpire(CorrelationIds ids) {
+        timeoutManager.registerTimeout(System.currentTimeMillis() + 5, ids.prefix + ids.next++);
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.benchmark.tranzient;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.copperengine.core.Acknowledge;
+import org.copperengine.core.Response;
+import org.copperengine.core.WaitMode;
+import org.copperengine.core.WorkflowInstanceDescr;
+import org.copperengine.core.common.DefaultProcessorPoolManager;
+import org.copperengine.core.common.DefaultTicketPoolManager;
+import org.copperengine.core.common.JdkRandomUUIDFactory;
+import org.copperengine.core.common.TicketPool;
+import org.copperengine.core.tranzient.DefaultEarlyResponseContainer;
+import org.copperengine.core.tranzient.DefaultTimeoutManager;
+import org.copperengine.core.tranzient.TransientProcessorPool;
+import org.copperengine.core.tranzient.TransientScottyEngine;
+import org.copperengine.core.util.PojoDependencyInjector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Fan-in benchmark for {@link TransientScottyEngine#notify(Response, Acknowledge)}: each thread registers a callback
+ * for its own workflow instance and notifies the corresponding response.
+ * <p>
+ * Run {@link #main(String[])} to measure 1 to 64 notifier threads, see {@link CorrelationMapBenchmark} for a comparison
+ * with the former global lock correlation map. The results are written to <code>build/results/jmh/notify-&lt;threads&gt;.json</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransientNotifyBenchmark {
+
+    private TransientScottyEngine engine;
+    private final BenchmarkWorkflowRepository repository = new BenchmarkWorkflowRepository();
+    private final Acknowledge ack = new Acknowledge.BestEffortAcknowledge();
+
+    @State(Scope.Thread)
+    public static class Notifier {
+        private BenchmarkWorkflow workflow;
+        private String correlationId;
+
+        @Setup(Level.Trial)
+        public void setup(TransientNotifyBenchmark benchmark) throws Exception {
+            benchmark.engine.run(new WorkflowInstanceDescr<Void>(BenchmarkWorkflow.class.getName()));
+            workflow = (BenchmarkWorkflow) benchmark.repository.getLastCreated();
+            correlationId = workflow.getId() + "#cid";
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        DefaultProcessorPoolManager<TransientProcessorPool> ppm = new DefaultProcessorPoolManager<TransientProcessorPool>();
+        ppm.addProcessorPool(new NullProcessorPool());
+        DefaultTicketPoolManager ticketPoolManager = new DefaultTicketPoolManager();
+        ticketPoolManager.add(new TicketPool(DefaultTicketPoolManager.DEFAULT_POOL_ID, 10000));
+
+        engine = new TransientScottyEngine();
+        engine.setDependencyInjector(new PojoDependencyInjector());
+        engine.setEarlyResponseContainer(new DefaultEarlyResponseContainer());
+        engine.setIdFactory(new JdkRandomUUIDFactory());
+        engine.setPoolManager(ppm);
+        engine.setTicketPoolManager(ticketPoolManager);
+        engine.setTimeoutManager(new DefaultTimeoutManager());
+        engine.setWfRepository(repository);
+        engine.startup();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    @Benchmark
+    public void registerAndNotify(Notifier notifier) {
+        engine.registerCallbacks(notifier.workflow, WaitMode.ALL, 0, notifier.correlationId);
+        engine.notify(new Response<String>(notifier.correlationId, "response", null), ack);
+        notifier.workflow.consumeResponses(notifier.correlationId);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new File("build/results/jmh").mkdirs();
+        for (int threads : new int[] { 1, 2, 4, 8, 16, 32, 64 }) {
+            Options options = new OptionsBuilder()
+                    .include(TransientNotifyBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("build/results/jmh/notify-" + threads + ".json")
+                    .build();
+            new Runner(options).run();
+        }
+    }
+
+}
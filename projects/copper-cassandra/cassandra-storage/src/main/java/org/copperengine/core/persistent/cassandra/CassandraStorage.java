@@ -22,14 +22,15 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang.NullArgumentException;
 import org.copperengine.core.CopperRuntimeException;
@@ -44,6 +45,7 @@ import org.copperengine.management.model.WorkflowInstanceFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.datastax.driver.core.BatchStatement;
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.ConsistencyLevel;
 import com.datastax.driver.core.KeyspaceMetadata;
@@ -52,10 +54,13 @@ import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.policies.DefaultRetryPolicy;
 import com.datastax.driver.core.policies.LoggingRetryPolicy;
 import com.datastax.driver.core.policies.RetryPolicy;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.RateLimiter;
 import com.google.common.util.concurrent.SettableFuture;
 
 /**
@@ -71,12 +76,12 @@ public class CassandraStorage implements Storage {
     private static final String CQL_UPD_WORKFLOW_INSTANCE_NOT_WAITING = "UPDATE COP_WORKFLOW_INSTANCE SET PPOOL_ID=?, PRIO=?, CREATION_TS=?, DATA=?, OBJECT_STATE=?, STATE=?, LAST_MOD_TS=toTimestamp(now()), CLASSNAME=? WHERE ID=?";
     private static final String CQL_UPD_WORKFLOW_INSTANCE_WAITING = "UPDATE COP_WORKFLOW_INSTANCE SET PPOOL_ID=?, PRIO=?, CREATION_TS=?, DATA=?, OBJECT_STATE=?, WAIT_MODE=?, TIMEOUT=?, RESPONSE_MAP_JSON=?, STATE=?, LAST_MOD_TS=toTimestamp(now()), CLASSNAME=? WHERE ID=?";
     private static final String CQL_UPD_WORKFLOW_INSTANCE_STATE = "UPDATE COP_WORKFLOW_INSTANCE SET STATE=?, LAST_MOD_TS=toTimestamp(now()) WHERE ID=?";
-    private static final String CQL_UPD_WORKFLOW_INSTANCE_STATE_AND_RESPONSE_MAP = "UPDATE COP_WORKFLOW_INSTANCE SET STATE=?, RESPONSE_MAP_JSON=?, LAST_MOD_TS=toTimestamp(now()) WHERE ID=?";
     private static final String CQL_DEL_WORKFLOW_INSTANCE_WAITING = "DELETE FROM COP_WORKFLOW_INSTANCE WHERE ID=?";
     private static final String CQL_SEL_WORKFLOW_INSTANCE = "SELECT * FROM COP_WORKFLOW_INSTANCE WHERE ID=?";
     private static final String CQL_INS_EARLY_RESPONSE = "INSERT INTO COP_EARLY_RESPONSE (CORRELATION_ID, RESPONSE) VALUES (?,?) USING TTL ?";
     private static final String CQL_DEL_EARLY_RESPONSE = "DELETE FROM COP_EARLY_RESPONSE WHERE CORRELATION_ID=?";
     private static final String CQL_SEL_EARLY_RESPONSE = "SELECT RESPONSE FROM COP_EARLY_RESPONSE WHERE CORRELATION_ID=?";
+    private static final String CQL_SEL_EARLY_RESPONSE_CID_ALL = "SELECT CORRELATION_ID FROM COP_EARLY_RESPONSE";
     private static final String CQL_INS_WFI_ID = "INSERT INTO COP_WFI_ID (ID) VALUES (?)";
     private static final String CQL_DEL_WFI_ID = "DELETE FROM COP_WFI_ID WHERE ID=?";
     private static final String CQL_SEL_WFI_ID_ALL = "SELECT * FROM COP_WFI_ID";
@@ -92,6 +97,19 @@ public class CassandraStorage implements Storage {
     private int ttlEarlyResponseSeconds = 1 * 24 * 60 * 60; // one day
     private int initializationTimeoutSeconds = 1 * 24 * 60 * 60; // one day
     private boolean createSchemaOnStartup = true;
+    private boolean backgroundInitialization = false;
+    private int initializationThreads = 0;
+    private double initializationRatePerSecond = 0.0;
+    private volatile boolean initialized = false;
+    private volatile boolean shutdown = false;
+    private volatile Thread initializationThread;
+    private volatile ThreadPoolExecutor initializationExecutor;
+    private final AtomicLong numberOfResumedWorkflowInstances = new AtomicLong();
+    private int maxPendingWrites = 1000;
+    private int maxWriteBatchSize = 1;
+    private int maxWriteBatchSizeBytes = 5 * 1024;
+    private int maxConcurrentWriteBatches = 4;
+    private volatile TokenAwareBatchWriter writer;
 
     public CassandraStorage(final CassandraSessionManager sessionManager, final Executor executor, final RuntimeStatisticsCollector runtimeStatisticsCollector) {
         this(sessionManager, executor, runtimeStatisticsCollector, ConsistencyLevel.LOCAL_QUORUM);
@@ -132,10 +150,10 @@ public class CassandraStorage implements Storage {
         prepare(CQL_INS_EARLY_RESPONSE);
         prepare(CQL_DEL_EARLY_RESPONSE);
         prepare(CQL_SEL_EARLY_RESPONSE);
-        prepare(CQL_UPD_WORKFLOW_INSTANCE_STATE_AND_RESPONSE_MAP);
         prepare(CQL_INS_WFI_ID);
         prepare(CQL_DEL_WFI_ID);
         prepare(CQL_SEL_WFI_ID_ALL, DefaultRetryPolicy.INSTANCE);
+        prepare(CQL_SEL_EARLY_RESPONSE_CID_ALL, DefaultRetryPolicy.INSTANCE);
     }
 
     protected void createSchema(Session session, Cluster cluster) throws Exception {
@@ -186,34 +204,156 @@ public class CassandraStorage implements Storage {
         this.initializationTimeoutSeconds = initializationTimeoutSeconds;
     }
 
+    /**
+     * If set to <code>true</code>, {@link #initialize} returns as soon as the schema is ready and the existing workflow
+     * instances are resumed in the background. The engine accepts new workflow instances and responses meanwhile,
+     * responses for workflow instances not yet resumed are kept as early responses until their workflow instance is
+     * resumed. Default is <code>false</code>, i.e. the startup blocks until all workflow instances are resumed.
+     *
+     * @param backgroundInitialization
+     *        <code>true</code> to resume in the background
+     */
+    public void setBackgroundInitialization(boolean backgroundInitialization) {
+        this.backgroundInitialization = backgroundInitialization;
+    }
+
+    /**
+     * Sets the number of threads resuming workflow instances during the initialization. Default is 0, i.e. the number
+     * of threads requested by the {@link HybridDBStorage}.
+     *
+     * @param initializationThreads
+     *        number of threads
+     */
+    public void setInitializationThreads(int initializationThreads) {
+        if (initializationThreads < 0)
+            throw new IllegalArgumentException();
+        this.initializationThreads = initializationThreads;
+    }
+
+    /**
+     * Limits the number of workflow instances resumed per second during the initialization, which limits the load
+     * on the cluster when resuming in the background. Default is 0, i.e. unlimited.
+     *
+     * @param initializationRatePerSecond
+     *        maximum number of workflow instances resumed per second
+     */
+    public void setInitializationRatePerSecond(double initializationRatePerSecond) {
+        if (initializationRatePerSecond < 0.0)
+            throw new IllegalArgumentException();
+        this.initializationRatePerSecond = initializationRatePerSecond;
+    }
+
+    /**
+     * Limits the number of workflow instance writes not yet completed by the cluster. When reached, further writes
+     * block until one completes. Must be set before the initialization. Default is 1000.
+     *
+     * @param maxPendingWrites
+     *        maximum number of pending writes
+     */
+    public void setMaxPendingWrites(int maxPendingWrites) {
+        if (maxPendingWrites <= 0)
+            throw new IllegalArgumentException();
+        this.maxPendingWrites = maxPendingWrites;
+    }
+
+    /**
+     * If greater than one, workflow instance writes for partitions owned by the same replicas are grouped into
+     * unlogged batches of up to this number of writes. A batch is only formed while
+     * {@link #setMaxConcurrentWriteBatches maxConcurrentWriteBatches} requests for these replicas are in flight, so
+     * batching adds no latency at low load. Must be set before the initialization. Default is 1, i.e. no batching.
+     *
+     * @param maxWriteBatchSize
+     *        maximum number of writes per batch
+     */
+    public void setMaxWriteBatchSize(int maxWriteBatchSize) {
+        if (maxWriteBatchSize <= 0)
+            throw new IllegalArgumentException();
+        this.maxWriteBatchSize = maxWriteBatchSize;
+    }
+
+    /**
+     * Limits the size of a write batch, see {@link #setMaxWriteBatchSize}. Default is 5 KB, Cassandra's default
+     * <code>batch_size_warn_threshold_in_kb</code>.
+     *
+     * @param maxWriteBatchSizeBytes
+     *        maximum size of a batch in bytes
+     */
+    public void setMaxWriteBatchSizeBytes(int maxWriteBatchSizeBytes) {
+        if (maxWriteBatchSizeBytes <= 0)
+            throw new IllegalArgumentException();
+        this.maxWriteBatchSizeBytes = maxWriteBatchSizeBytes;
+    }
+
+    /**
+     * Sets the number of write requests in flight per replica set when batching, see {@link #setMaxWriteBatchSize}.
+     * Default is 4.
+     *
+     * @param maxConcurrentWriteBatches
+     *        maximum number of requests in flight per replica set
+     */
+    public void setMaxConcurrentWriteBatches(int maxConcurrentWriteBatches) {
+        if (maxConcurrentWriteBatches <= 0)
+            throw new IllegalArgumentException();
+        this.maxConcurrentWriteBatches = maxConcurrentWriteBatches;
+    }
+
+    /**
+     * @return the number of workflow instance writes not yet completed by the cluster
+     */
+    public int getNumberOfPendingWrites() {
+        final TokenAwareBatchWriter w = writer;
+        return w == null ? 0 : w.getNumberOfPendingWrites();
+    }
+
+    /**
+     * @return <code>true</code>, if all workflow instances existing at the startup have been resumed
+     */
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    public long getNumberOfResumedWorkflowInstances() {
+        return numberOfResumedWorkflowInstances.get();
+    }
+
     @Override
-    public void safeWorkflowInstance(final WorkflowInstance cw, final boolean initialInsert) throws Exception {
+    public ListenableFuture<Void> safeWorkflowInstance(final WorkflowInstance cw, final boolean initialInsert) throws Exception {
         logger.debug("safeWorkflow({})", cw);
-        new CassandraOperation<Void>(logger) {
+        Statement stmt;
+        String mpId;
+        if (cw.cid2ResponseMap == null || cw.cid2ResponseMap.isEmpty()) {
+            final PreparedStatement pstmt = preparedStatements.get(CQL_UPD_WORKFLOW_INSTANCE_NOT_WAITING);
+            stmt = pstmt.bind(cw.ppoolId, cw.prio, cw.creationTS, cw.serializedWorkflow.getData(), cw.serializedWorkflow.getObjectState(), cw.state.name(), cw.classname, cw.id);
+            mpId = "wfi.update.nowait";
+        }
+        else {
+            final PreparedStatement pstmt = preparedStatements.get(CQL_UPD_WORKFLOW_INSTANCE_WAITING);
+            final String responseMapJson = jsonMapper.toJSON(cw.cid2ResponseMap);
+            stmt = pstmt.bind(cw.ppoolId, cw.prio, cw.creationTS, cw.serializedWorkflow.getData(), cw.serializedWorkflow.getObjectState(), cw.waitMode.name(), cw.timeout, responseMapJson, cw.state.name(), cw.classname, cw.id);
+            mpId = "wfi.update.wait";
+        }
+        if (initialInsert) {
+            // COP_WFI_ID and COP_WORKFLOW_INSTANCE share the partition key, so both rows are written with one request
+            final BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+            batch.add(preparedStatements.get(CQL_INS_WFI_ID).bind(cw.id));
+            batch.add(stmt);
+            batch.setConsistencyLevel(consistencyLevel);
+            batch.setRetryPolicy(alwaysRetry);
+            batch.setIdempotent(true);
+            stmt = batch;
+            mpId = "wfi.insert";
+        }
+        final long startTS = System.nanoTime();
+        final ListenableFuture<Void> future = writer.write(stmt);
+        // completed by the driver's I/O thread, so that callers waiting for it never depend on the executor
+        final String _mpId = mpId;
+        future.addListener(new Runnable() {
             @Override
-            protected Void execute() throws Exception {
-                if (initialInsert) {
-                    final PreparedStatement pstmt = preparedStatements.get(CQL_INS_WFI_ID);
-                    final long startTS = System.nanoTime();
-                    session.execute(pstmt.bind(cw.id));
-                    runtimeStatisticsCollector.submit("wfii.ins", 1, System.nanoTime() - startTS, TimeUnit.NANOSECONDS);
-                }
-                if (cw.cid2ResponseMap == null || cw.cid2ResponseMap.isEmpty()) {
-                    final PreparedStatement pstmt = preparedStatements.get(CQL_UPD_WORKFLOW_INSTANCE_NOT_WAITING);
-                    final long startTS = System.nanoTime();
-                    session.execute(pstmt.bind(cw.ppoolId, cw.prio, cw.creationTS, cw.serializedWorkflow.getData(), cw.serializedWorkflow.getObjectState(), cw.state.name(), cw.classname, cw.id));
-                    runtimeStatisticsCollector.submit("wfi.update.nowait", 1, System.nanoTime() - startTS, TimeUnit.NANOSECONDS);
-                }
-                else {
-                    final PreparedStatement pstmt = preparedStatements.get(CQL_UPD_WORKFLOW_INSTANCE_WAITING);
-                    final String responseMapJson = jsonMapper.toJSON(cw.cid2ResponseMap);
-                    final long startTS = System.nanoTime();
-                    session.execute(pstmt.bind(cw.ppoolId, cw.prio, cw.creationTS, cw.serializedWorkflow.getData(), cw.serializedWorkflow.getObjectState(), cw.waitMode.name(), cw.timeout, responseMapJson, cw.state.name(), cw.classname, cw.id));
-                    runtimeStatisticsCollector.submit("wfi.update.wait", 1, System.nanoTime() - startTS, TimeUnit.NANOSECONDS);
-                }
-                return null;
+            public void run() {
+                runtimeStatisticsCollector.submit(_mpId, 1, System.nanoTime() - startTS, TimeUnit.NANOSECONDS);
             }
-        }.run();
+        }, MoreExecutors.directExecutor());
+        return future;
     }
 
     @Override
@@ -302,31 +442,87 @@ public class CassandraStorage implements Storage {
     }
 
     @Override
-    public void initialize(final HybridDBStorageAccessor internalStorageAccessor, int numberOfThreads) throws Exception {
+    public void initialize(final HybridDBStorageAccessor internalStorageAccessor, final int numberOfThreads) throws Exception {
         createSchema(session, cluster);
 
         prepareStatements();
 
-        // TODO instead of blocking the startup until all active workflow instances are read and resumed, it is
-        // sufficient to read just their existing IDs in COP_WFI_ID and resume them in the background while already
-        // starting the engine an accepting new instances.
+        writer = new TokenAwareBatchWriter(session, maxPendingWrites, maxWriteBatchSize, maxWriteBatchSizeBytes, maxConcurrentWriteBatches);
 
+        if (backgroundInitialization) {
+            final Thread thread = new Thread("CassandraStorage.initialize") {
+                @Override
+                public void run() {
+                    try {
+                        registerEarlyResponses(internalStorageAccessor);
+                        resumeAll(internalStorageAccessor, numberOfThreads);
+                    } catch (Exception e) {
+                        if (shutdown) {
+                            logger.info("Background initialization stopped by shutdown");
+                        }
+                        else {
+                            logger.error("Background initialization failed", e);
+                        }
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            initializationThread = thread;
+            thread.start();
+        }
+        else {
+            registerEarlyResponses(internalStorageAccessor);
+            resumeAll(internalStorageAccessor, numberOfThreads);
+        }
+    }
+
+    private void registerEarlyResponses(final HybridDBStorageAccessor internalStorageAccessor) {
+        internalStorageAccessor.registerEarlyResponses(new Iterable<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                final ResultSet rs = session.execute(preparedStatements.get(CQL_SEL_EARLY_RESPONSE_CID_ALL).bind().setFetchSize(500).setConsistencyLevel(ConsistencyLevel.ONE));
+                final Iterator<Row> rows = rs.iterator();
+                return new Iterator<String>() {
+                    @Override
+                    public boolean hasNext() {
+                        return rows.hasNext();
+                    }
+
+                    @Override
+                    public String next() {
+                        return rows.next().getString("CORRELATION_ID");
+                    }
+                };
+            }
+        });
+    }
+
+    private void resumeAll(final HybridDBStorageAccessor internalStorageAccessor, int numberOfThreads) throws Exception {
+        if (initializationThreads > 0)
+            numberOfThreads = initializationThreads;
         if (numberOfThreads <= 0)
             numberOfThreads = 1;
         logger.info("Starting to initialize with {} threads ...", numberOfThreads);
-        final ExecutorService execService = Executors.newFixedThreadPool(numberOfThreads);
+        // a bounded queue, so that the IDs are read as fast as they are resumed
+        final ThreadPoolExecutor execService = new ThreadPoolExecutor(numberOfThreads, numberOfThreads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(10 * numberOfThreads), new ThreadPoolExecutor.CallerRunsPolicy());
+        initializationExecutor = execService;
+        final RateLimiter rateLimiter = initializationRatePerSecond > 0 ? RateLimiter.create(initializationRatePerSecond) : null;
         final long startTS = System.currentTimeMillis();
         final ResultSet rs = session.execute(preparedStatements.get(CQL_SEL_WFI_ID_ALL).bind().setFetchSize(500).setConsistencyLevel(ConsistencyLevel.ONE));
         int counter = 0;
         Row row;
-        while ((row = rs.one()) != null) {
+        while (!shutdown && (row = rs.one()) != null) {
             counter++;
             final String wfId = row.getString("ID");
+            if (rateLimiter != null) {
+                rateLimiter.acquire();
+            }
             execService.execute(new Runnable() {
                 @Override
                 public void run() {
                     try {
                         resume(wfId, internalStorageAccessor);
+                        numberOfResumedWorkflowInstances.incrementAndGet();
                     }
                     catch (Exception e) {
                         logger.error("resume failed", e);
@@ -340,10 +536,36 @@ public class CassandraStorage implements Storage {
         if (timeoutHappened) {
             throw new CopperRuntimeException("initialize timed out!");
         }
+        if (shutdown) {
+            logger.info("Initialization stopped by shutdown after reading {} IDs", counter);
+            return;
+        }
+        initialized = true;
         logger.info("Finished initialization - read {} rows in {} msec", counter, System.currentTimeMillis() - startTS);
         runtimeStatisticsCollector.submit("storage.init", counter, System.currentTimeMillis() - startTS, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * Stops a resume still running in the background and the retries of failed writes. The workflow instances not
+     * resumed by then are resumed at the next startup.
+     */
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        final ThreadPoolExecutor execService = initializationExecutor;
+        if (execService != null) {
+            execService.shutdownNow();
+        }
+        final Thread thread = initializationThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        final TokenAwareBatchWriter writer = this.writer;
+        if (writer != null) {
+            writer.close();
+        }
+    }
+
     private void resume(final String wfId, final HybridDBStorageAccessor internalStorageAccessor) throws Exception {
         logger.trace("resume(wfId={})", wfId);
 
@@ -354,60 +576,7 @@ public class CassandraStorage implements Storage {
             session.executeAsync(preparedStatements.get(CQL_DEL_WFI_ID).bind(wfId));
             return;
         }
-
-        final String ppoolId = row.getString("PPOOL_ID");
-        final int prio = row.getInt("PRIO");
-        final WaitMode waitMode = toWaitMode(row.getString("WAIT_MODE"));
-        final Map<String, String> responseMap = toResponseMap(row.getString("RESPONSE_MAP_JSON"));
-        final ProcessingState state = ProcessingState.valueOf(row.getString("STATE"));
-        final Date timeout = row.getTimestamp("TIMEOUT");
-        final boolean timeoutOccured = timeout != null && timeout.getTime() <= System.currentTimeMillis();
-
-        if (state == ProcessingState.ERROR || state == ProcessingState.INVALID) {
-            return;
-        }
-
-        if (state == ProcessingState.ENQUEUED) {
-            internalStorageAccessor.enqueue(wfId, ppoolId, prio);
-            return;
-        }
-
-        if (responseMap != null) {
-            final List<String> missingResponseCorrelationIds = new ArrayList<String>();
-            int numberOfAvailableResponses = 0;
-            for (Entry<String, String> e : responseMap.entrySet()) {
-                final String correlationId = e.getKey();
-                final String response = e.getValue();
-                internalStorageAccessor.registerCorrelationId(correlationId, wfId);
-                if (response != null) {
-                    numberOfAvailableResponses++;
-                }
-                else {
-                    missingResponseCorrelationIds.add(correlationId);
-                }
-            }
-            boolean modified = false;
-            if (!missingResponseCorrelationIds.isEmpty()) {
-                // check for early responses
-                for (String cid : missingResponseCorrelationIds) {
-                    String earlyResponse = readEarlyResponse(cid);
-                    if (earlyResponse != null) {
-                        responseMap.put(cid, earlyResponse);
-                        numberOfAvailableResponses++;
-                        modified = true;
-                    }
-                }
-            }
-            if (modified || timeoutOccured) {
-                final ProcessingState newState = (timeoutOccured || numberOfAvailableResponses == responseMap.size() || (numberOfAvailableResponses == 1 && waitMode == WaitMode.FIRST)) ? ProcessingState.ENQUEUED : ProcessingState.WAITING;
-                final String responseMapJson = jsonMapper.toJSON(responseMap);
-                session.execute(preparedStatements.get(CQL_UPD_WORKFLOW_INSTANCE_STATE_AND_RESPONSE_MAP).bind(newState.name(), responseMapJson, wfId));
-                if (newState == ProcessingState.ENQUEUED) {
-                    internalStorageAccessor.enqueue(wfId, ppoolId, prio);
-                }
-            }
-
-        }
+        internalStorageAccessor.resume(row2WorkflowInstance(row));
     }
 
     @Override
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.persistent.cassandra;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.QueryExecutionException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Executes write statements asynchronously for the {@link CassandraStorage}.
+ * <p>
+ * The number of pending writes is bounded: {@link #write} blocks while <code>maxPendingWrites</code> writes are not
+ * yet completed, so a slow cluster slows down the callers instead of piling up requests.
+ * <p>
+ * If <code>maxBatchSize</code> is greater than one, writes are grouped by the replicas owning their partition, i.e.
+ * by token range. Up to <code>maxConcurrentBatches</code> requests per replica set are sent immediately, writes
+ * submitted meanwhile are collected and sent as one unlogged batch as soon as a request completes. So the batches
+ * grow with the load, without delaying writes when the load is low, and every batch is coordinated by a replica of
+ * all its partitions.
+ * <p>
+ * Writes failing with a {@link QueryExecutionException} or {@link NoHostAvailableException} are retried, like a
+ * {@link CassandraOperation}. The callers must not submit a write for a partition while another write for that
+ * partition is pending, as the order of the writes is not preserved.
+ */
+class TokenAwareBatchWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(TokenAwareBatchWriter.class);
+
+    private static final class Write {
+        final Statement statement;
+        final int sizeInBytes;
+        final SettableFuture<Void> future = SettableFuture.create();
+        int attempt;
+
+        Write(Statement statement, int sizeInBytes) {
+            this.statement = statement;
+            this.sizeInBytes = sizeInBytes;
+        }
+    }
+
+    private static final class ReplicaGroup {
+        final Set<Host> replicas;
+        final ArrayDeque<Write> pending = new ArrayDeque<>();
+        int batchesInFlight;
+
+        ReplicaGroup(Set<Host> replicas) {
+            this.replicas = replicas;
+        }
+    }
+
+    private final Session session;
+    private final Cluster cluster;
+    private final Semaphore pendingWrites;
+    private final int maxPendingWrites;
+    private final int maxBatchSize;
+    private final int maxBatchSizeBytes;
+    private final int maxConcurrentBatches;
+    private final Map<Set<Host>, ReplicaGroup> groups = new HashMap<>();
+    private final ScheduledExecutorService retryScheduler;
+    private final Set<Write> retrying = ConcurrentHashMap.newKeySet();
+    private final AtomicLong numberOfRequests = new AtomicLong();
+    private final AtomicLong numberOfWrites = new AtomicLong();
+
+    /**
+     * @param session
+     *        session used to execute the statements
+     * @param maxPendingWrites
+     *        maximum number of submitted, but not yet completed writes
+     * @param maxBatchSize
+     *        maximum number of writes per batch, 1 disables batching
+     * @param maxBatchSizeBytes
+     *        maximum size of a batch, a single write exceeding it is sent on its own
+     * @param maxConcurrentBatches
+     *        maximum number of requests in flight per replica set when batching
+     */
+    TokenAwareBatchWriter(Session session, int maxPendingWrites, int maxBatchSize, int maxBatchSizeBytes, int maxConcurrentBatches) {
+        if (session == null)
+            throw new NullPointerException();
+        if (maxPendingWrites <= 0 || maxBatchSize <= 0 || maxBatchSizeBytes <= 0 || maxConcurrentBatches <= 0)
+            throw new IllegalArgumentException();
+        this.session = session;
+        this.cluster = session.getCluster();
+        this.maxPendingWrites = maxPendingWrites;
+        this.pendingWrites = new Semaphore(maxPendingWrites);
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchSizeBytes = maxBatchSizeBytes;
+        this.maxConcurrentBatches = maxConcurrentBatches;
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "TokenAwareBatchWriter.retry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Submits a write, blocking while the maximum number of pending writes is reached.
+     *
+     * @param statement
+     *        the write, may be a batch of statements for one partition
+     * @return a future completed when the write has been executed
+     */
+    ListenableFuture<Void> write(Statement statement) throws InterruptedException {
+        pendingWrites.acquire();
+        final Write write;
+        try {
+            write = new Write(statement, maxBatchSize > 1 ? statement.requestSizeInBytes(protocolVersion(), codecRegistry()) : 0);
+        } catch (RuntimeException e) {
+            pendingWrites.release();
+            throw e;
+        }
+        numberOfWrites.incrementAndGet();
+        submit(write);
+        return write.future;
+    }
+
+    /**
+     * Stops the retries of failed writes. Writes waiting for a retry, and writes failing afterwards, complete with an
+     * exception.
+     */
+    void close() {
+        retryScheduler.shutdownNow();
+        for (Write write : retrying) {
+            if (retrying.remove(write)) {
+                pendingWrites.release();
+                write.future.setException(new IllegalStateException("TokenAwareBatchWriter closed"));
+            }
+        }
+    }
+
+    int getNumberOfPendingWrites() {
+        return maxPendingWrites - pendingWrites.availablePermits();
+    }
+
+    /**
+     * @return number of requests sent to the cluster, each containing one or more writes
+     */
+    long getNumberOfRequests() {
+        return numberOfRequests.get();
+    }
+
+    long getNumberOfWrites() {
+        return numberOfWrites.get();
+    }
+
+    /**
+     * @return the replicas owning the partition of the statement, or <code>null</code> if they are unknown
+     */
+    Set<Host> replicas(Statement statement) {
+        final ByteBuffer routingKey = statement.getRoutingKey(protocolVersion(), codecRegistry());
+        final String keyspace = statement.getKeyspace() != null ? statement.getKeyspace() : session.getLoggedKeyspace();
+        if (routingKey == null || keyspace == null)
+            return null;
+        final Set<Host> replicas = cluster.getMetadata().getReplicas(keyspace, routingKey);
+        return replicas == null || replicas.isEmpty() ? null : replicas;
+    }
+
+    private ProtocolVersion protocolVersion() {
+        final ProtocolVersion protocolVersion = cluster.getConfiguration().getProtocolOptions().getProtocolVersion();
+        return protocolVersion != null ? protocolVersion : ProtocolVersion.NEWEST_SUPPORTED;
+    }
+
+    private CodecRegistry codecRegistry() {
+        return cluster.getConfiguration().getCodecRegistry();
+    }
+
+    private void submit(Write write) {
+        final Set<Host> replicas = maxBatchSize > 1 ? replicas(write.statement) : null;
+        if (replicas == null) {
+            execute(Collections.singletonList(write), null);
+            return;
+        }
+        final List<Write> batch;
+        final ReplicaGroup group;
+        synchronized (groups) {
+            ReplicaGroup g = groups.get(replicas);
+            if (g == null) {
+                g = new ReplicaGroup(replicas);
+                groups.put(replicas, g);
+            }
+            g.pending.add(write);
+            if (g.batchesInFlight >= maxConcurrentBatches)
+                return;
+            g.batchesInFlight++;
+            batch = drain(g);
+            group = g;
+        }
+        execute(batch, group);
+    }
+
+    private List<Write> drain(ReplicaGroup group) {
+        final List<Write> batch = new ArrayList<>(Math.min(maxBatchSize, group.pending.size()));
+        int sizeInBytes = 0;
+        while (!group.pending.isEmpty() && batch.size() < maxBatchSize) {
+            final Write next = group.pending.peek();
+            if (!batch.isEmpty() && sizeInBytes + next.sizeInBytes > maxBatchSizeBytes)
+                break;
+            batch.add(group.pending.poll());
+            sizeInBytes += next.sizeInBytes;
+        }
+        return batch;
+    }
+
+    private void execute(final List<Write> batch, final ReplicaGroup group) {
+        final Statement statement;
+        if (batch.size() == 1) {
+            statement = batch.get(0).statement;
+        }
+        else {
+            final Statement first = batch.get(0).statement;
+            final BatchStatement batchStatement = new BatchStatement(BatchStatement.Type.UNLOGGED);
+            for (Write write : batch) {
+                batchStatement.add(write.statement);
+            }
+            batchStatement.setConsistencyLevel(first.getConsistencyLevel());
+            batchStatement.setRetryPolicy(first.getRetryPolicy());
+            batchStatement.setIdempotent(true);
+            statement = batchStatement;
+        }
+        numberOfRequests.incrementAndGet();
+        final ListenableFuture<ResultSet> future;
+        try {
+            future = session.executeAsync(statement);
+        } catch (RuntimeException e) {
+            onCompletion(batch, group, e);
+            return;
+        }
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet result) {
+                onCompletion(batch, group, null);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                onCompletion(batch, group, t);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void onCompletion(List<Write> batch, ReplicaGroup group, Throwable t) {
+        for (final Write write : batch) {
+            if (t == null) {
+                pendingWrites.release();
+                write.future.set(null);
+            }
+            else if (t instanceof QueryExecutionException || t instanceof NoHostAvailableException) {
+                // retried on its own, the other writes of the batch may belong to other partitions
+                write.attempt++;
+                logger.warn("Cassandra write failed - retrying...", t);
+                retrying.add(write);
+                try {
+                    retryScheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (retrying.remove(write)) {
+                                submit(write);
+                            }
+                        }
+                    }, Math.min(5000, 50 * write.attempt), TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // closed
+                    if (retrying.remove(write)) {
+                        pendingWrites.release();
+                        write.future.setException(t);
+                    }
+                }
+            }
+            else {
+                pendingWrites.release();
+                write.future.setException(t);
+            }
+        }
+        if (group == null)
+            return;
+
+        final List<Write> next;
+        synchronized (groups) {
+            if (group.pending.isEmpty()) {
+                group.batchesInFlight--;
+                if (group.batchesInFlight == 0) {
+                    groups.remove(group.replicas);
+                }
+                return;
+            }
+            next = drain(group);
+        }
+        execute(next, group);
+    }
+
+}
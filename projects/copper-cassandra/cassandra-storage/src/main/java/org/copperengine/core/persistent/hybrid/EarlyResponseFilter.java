@@ -0,0 +1,181 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.persistent.hybrid;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+/**
+ * Memory bounded membership filter for the correlation ids of early responses, used by {@link HybridDBStorage} to
+ * skip {@link Storage#readEarlyResponse(String)} for correlation ids that cannot have an early response.
+ * <p>
+ * The filter is a rotating bloom filter: it consists of several generations, the newest one receives the correlation
+ * ids of new early responses and the oldest one is dropped periodically, so that each correlation id is remembered for
+ * at least the configured time to live. The time to live must not be shorter than the time to live of early responses
+ * in the {@link Storage}, e.g. {@link org.copperengine.core.persistent.cassandra.CassandraStorage#setTtlEarlyResponseSeconds(int)}.
+ * Deleted early responses are not removed from the filter, they age out with their generation.
+ * <p>
+ * The filter never rules out a correlation id that might have an early response. Until the storage reported the
+ * early responses stored before the startup, see {@link HybridDBStorageAccessor#registerEarlyResponses(Iterable)},
+ * or until one time to live has passed since the startup, every correlation id is reported as possibly contained.
+ * The storage may report them after the startup, e.g. while resuming in the background.
+ */
+public final class EarlyResponseFilter {
+
+    public static final int DEFAULT_EXPECTED_EARLY_RESPONSES = 100000;
+    public static final double DEFAULT_FPP = 0.01;
+
+    private static final int NUMBER_OF_GENERATIONS = 4;
+
+    private final int expectedEarlyResponses;
+    private final double fpp;
+    private final long ttlMSec;
+    private final long rotationIntervalMSec;
+    private final AtomicLong numberOfChecks = new AtomicLong();
+    private final AtomicLong numberOfRuledOut = new AtomicLong();
+    // newest generation first, replaced as a whole on rotation
+    private volatile List<BloomFilter<CharSequence>> generations;
+    private volatile long nextRotationTS;
+    private boolean complete = false;
+    private boolean started = false;
+    private volatile long trustedFromTS = Long.MAX_VALUE;
+
+    /**
+     * @param ttl
+     *        minimum time a correlation id is remembered
+     * @param unit
+     *        unit of <code>ttl</code>
+     */
+    public EarlyResponseFilter(long ttl, TimeUnit unit) {
+        this(DEFAULT_EXPECTED_EARLY_RESPONSES, DEFAULT_FPP, ttl, unit);
+    }
+
+    /**
+     * @param expectedEarlyResponses
+     *        expected number of early responses within one time to live
+     * @param fpp
+     *        desired false positive probability, i.e. the share of correlation ids without early response for which
+     *        the storage is read nevertheless
+     * @param ttl
+     *        minimum time a correlation id is remembered
+     * @param unit
+     *        unit of <code>ttl</code>
+     */
+    public EarlyResponseFilter(int expectedEarlyResponses, double fpp, long ttl, TimeUnit unit) {
+        if (expectedEarlyResponses <= 0)
+            throw new IllegalArgumentException("expectedEarlyResponses must be > 0");
+        if (fpp <= 0.0 || fpp >= 1.0)
+            throw new IllegalArgumentException("fpp must be > 0.0 and < 1.0");
+        if (ttl <= 0)
+            throw new IllegalArgumentException("ttl must be > 0");
+        this.expectedEarlyResponses = expectedEarlyResponses;
+        this.fpp = fpp;
+        this.ttlMSec = unit.toMillis(ttl);
+        // an entry survives at least NUMBER_OF_GENERATIONS-1 rotations
+        this.rotationIntervalMSec = Math.max(1, ttlMSec / (NUMBER_OF_GENERATIONS - 1));
+        final List<BloomFilter<CharSequence>> generations = new ArrayList<BloomFilter<CharSequence>>(NUMBER_OF_GENERATIONS);
+        for (int i = 0; i < NUMBER_OF_GENERATIONS; i++) {
+            generations.add(createGeneration());
+        }
+        this.generations = generations;
+        this.nextRotationTS = System.currentTimeMillis() + rotationIntervalMSec;
+    }
+
+    /**
+     * @return <code>false</code>, if there is definitely no early response with the given correlation id
+     */
+    public boolean mightContain(String correlationId) {
+        numberOfChecks.incrementAndGet();
+        final long now = System.currentTimeMillis();
+        if (now < trustedFromTS) {
+            return true;
+        }
+        for (BloomFilter<CharSequence> generation : currentGenerations(now)) {
+            if (generation.mightContain(correlationId)) {
+                return true;
+            }
+        }
+        numberOfRuledOut.incrementAndGet();
+        return false;
+    }
+
+    void put(String correlationId) {
+        currentGenerations(System.currentTimeMillis()).get(0).put(correlationId);
+    }
+
+    /**
+     * Puts the correlation ids of all early responses stored before the startup. The filter is trusted as soon as
+     * this method completed and the startup happened, no matter in which order.
+     */
+    void putExisting(Iterable<String> correlationIds) {
+        for (String correlationId : correlationIds) {
+            put(correlationId);
+        }
+        synchronized (this) {
+            complete = true;
+            if (started) {
+                trustedFromTS = Math.min(trustedFromTS, System.currentTimeMillis());
+            }
+        }
+    }
+
+    synchronized void startup() {
+        started = true;
+        trustedFromTS = complete ? System.currentTimeMillis() : System.currentTimeMillis() + ttlMSec;
+    }
+
+    public long getNumberOfChecks() {
+        return numberOfChecks.get();
+    }
+
+    /**
+     * @return number of checks that ruled out an early response, i.e. the number of saved storage reads
+     */
+    public long getNumberOfRuledOut() {
+        return numberOfRuledOut.get();
+    }
+
+    private List<BloomFilter<CharSequence>> currentGenerations(long now) {
+        if (now >= nextRotationTS) {
+            rotate(now);
+        }
+        return generations;
+    }
+
+    private synchronized void rotate(long now) {
+        if (now < nextRotationTS)
+            return;
+        final long dueRotations = (now - nextRotationTS) / rotationIntervalMSec + 1;
+        final int newCount = (int) Math.min(dueRotations, NUMBER_OF_GENERATIONS);
+        final List<BloomFilter<CharSequence>> newGenerations = new ArrayList<BloomFilter<CharSequence>>(NUMBER_OF_GENERATIONS);
+        for (int i = 0; i < newCount; i++) {
+            newGenerations.add(createGeneration());
+        }
+        newGenerations.addAll(generations.subList(0, NUMBER_OF_GENERATIONS - newCount));
+        generations = newGenerations;
+        nextRotationTS += dueRotations * rotationIntervalMSec;
+    }
+
+    private BloomFilter<CharSequence> createGeneration() {
+        return BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), expectedEarlyResponses, fpp);
+    }
+}
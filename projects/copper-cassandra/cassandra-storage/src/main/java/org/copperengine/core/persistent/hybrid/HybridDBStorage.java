@@ -17,6 +17,8 @@ package org.copperengine.core.persistent.hybrid;
 
 import java.sql.Connection;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -29,6 +31,10 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.copperengine.core.Acknowledge;
 import org.copperengine.core.CopperRuntimeException;
@@ -49,7 +55,10 @@ import org.copperengine.management.model.WorkflowInstanceFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 public class HybridDBStorage implements ScottyDBStorageInterface {
 
@@ -67,6 +76,9 @@ public class HybridDBStorage implements ScottyDBStorageInterface {
     private final Object[] mutexArray = new Object[2003];
     private final Set<String> currentlyProcessingEarlyResponses = new HashSet<>();
     private boolean started = false;
+    private volatile EarlyResponseFilter earlyResponseFilter;
+    private int registerCallbackThreads = Runtime.getRuntime().availableProcessors();
+    private ExecutorService registerCallbackExecutor;
 
     public HybridDBStorage(Serializer serializer, WorkflowRepository wfRepo, Storage storage, TimeoutManager timeoutManager, final Executor executor) {
         this.ppoolId2queueMap = new ConcurrentHashMap<>();
@@ -80,8 +92,49 @@ public class HybridDBStorage implements ScottyDBStorageInterface {
         }
     }
 
+    /**
+     * Sets a filter for the correlation ids of early responses. With a filter, {@link #registerCallback} reads early
+     * responses from the storage only for correlation ids that might have one, which saves a storage read for almost
+     * every correlation id. Must be set before the startup. Default is no filter.
+     *
+     * @param earlyResponseFilter
+     *        the filter
+     */
+    public void setEarlyResponseFilter(EarlyResponseFilter earlyResponseFilter) {
+        this.earlyResponseFilter = earlyResponseFilter;
+    }
+
+    /**
+     * Sets the number of threads completing {@link #registerCallback} after the workflow instance has been written.
+     * They may wait for concurrent early responses to be written, so they are not taken from the executor passed to
+     * the constructor, which completes these writes. Must be set before the startup. Default is the number of
+     * available processors.
+     *
+     * @param registerCallbackThreads
+     *        number of threads
+     */
+    public void setRegisterCallbackThreads(int registerCallbackThreads) {
+        if (registerCallbackThreads <= 0)
+            throw new IllegalArgumentException();
+        this.registerCallbackThreads = registerCallbackThreads;
+    }
+
+    /**
+     * Inserts the workflow instance. If an {@link Acknowledge} is passed, this method returns without waiting for the
+     * storage and the acknowledge is completed when the workflow instance has been written and enqueued.
+     */
     @Override
     public void insert(Workflow<?> wf, Acknowledge ack) throws DuplicateIdException, Exception {
+        final ListenableFuture<Void> future = insertAsync(wf);
+        if (ack == null) {
+            await(future);
+        }
+        else {
+            acknowledge(future, ack, "insert(" + wf.getId() + ")");
+        }
+    }
+
+    private ListenableFuture<Void> insertAsync(final Workflow<?> wf) throws Exception {
         if (wf == null)
             throw new NullPointerException();
 
@@ -98,32 +151,61 @@ public class HybridDBStorage implements ScottyDBStorageInterface {
         cw.state = ProcessingState.ENQUEUED;
         cw.classname = wf.getClass().getName();
 
-        storage.safeWorkflowInstance(cw, true);
-
-        _enqueue(wf.getId(), wf.getProcessorPoolId(), wf.getPriority());
-
-        if (ack != null)
-            ack.onSuccess();
-
+        // the workflow instance is enqueued not before it is written, as the dequeue reads it from the storage
+        return Futures.transform(storage.safeWorkflowInstance(cw, true), new Function<Void, Void>() {
+            @Override
+            public Void apply(Void input) {
+                _enqueue(wf.getId(), wf.getProcessorPoolId(), wf.getPriority());
+                return null;
+            }
+        }, MoreExecutors.directExecutor());
     }
 
     @Override
     public void insert(List<Workflow<?>> wfs, Acknowledge ack) throws DuplicateIdException, Exception {
+        acknowledge(insertAsync(wfs), ack, "insert(List)");
+    }
+
+    private ListenableFuture<List<Void>> insertAsync(List<Workflow<?>> wfs) throws Exception {
+        final List<ListenableFuture<Void>> futures = new ArrayList<>(wfs.size());
         for (Workflow<?> wf : wfs) {
-            insert(wf, ACK);
+            futures.add(insertAsync(wf));
         }
-        ack.onSuccess();
+        return Futures.allAsList(futures);
     }
 
     @Override
     public void insert(Workflow<?> wf, Connection con) throws DuplicateIdException, Exception {
-        insert(wf, ACK);
+        await(insertAsync(wf));
     }
 
     @Override
     public void insert(List<Workflow<?>> wfs, Connection con) throws DuplicateIdException, Exception {
-        for (Workflow<?> wf : wfs) {
-            insert(wf, ACK);
+        await(insertAsync(wfs));
+    }
+
+    private void acknowledge(final ListenableFuture<?> future, final Acknowledge ack, final String operation) {
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.get();
+                    ack.onSuccess();
+                } catch (InterruptedException | ExecutionException e) {
+                    logger.error(operation + " failed", e);
+                    ack.onException(e);
+                }
+            }
+        }, executor);
+    }
+
+    private static void await(ListenableFuture<?> future) throws Exception {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
         }
     }
 
@@ -224,8 +306,12 @@ public class HybridDBStorage implements ScottyDBStorageInterface {
         return wf;
     }
 
+    /**
+     * Registers the callback without waiting for the storage: the correlation ids are registered and the early
+     * responses are checked when the workflow instance has been written, then the callback is acknowledged.
+     */
     @Override
-    public void registerCallback(RegisterCall rc, Acknowledge callback) throws Exception {
+    public void registerCallback(final RegisterCall rc, final Acknowledge callback) throws Exception {
         logger.debug("registerCallback({})", rc);
 
         startupBlocker.pass();
@@ -246,30 +332,40 @@ public class HybridDBStorage implements ScottyDBStorageInterface {
         }
         cw.classname = rc.workflow.getClass().getName();
 
-        storage.safeWorkflowInstance(cw, false);
+        final ListenableFuture<Void> future = storage.safeWorkflowInstance(cw, false);
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.get();
+                    registerCorrelationIds(rc, cw);
+                    callback.onSuccess();
+                } catch (Exception e) {
+                    logger.error("registerCallback(" + wfId + ") failed", e);
+                    // the engine does not wait for the callback, so keep the workflow instance restartable
+                    error(rc.workflow, e, ACK);
+                    callback.onException(e);
+                }
+            }
+        }, registerCallbackExecutor);
+    }
 
+    private void registerCorrelationIds(final RegisterCall rc, final WorkflowInstance cw) throws Exception {
+        final String wfId = cw.id;
         correlationIdMap.addCorrelationIds(wfId, rc.correlationIds);
 
         // check for early responses
         //
         // 1st make sure that all currently working threads writing early responses do NOT write a response with one of
         // our correlationIds
-        synchronized (currentlyProcessingEarlyResponses) {
-            for (;;) {
-                boolean didWait = false;
-                for (String cid : rc.correlationIds) {
-                    if (currentlyProcessingEarlyResponses.contains(cid)) {
-                        currentlyProcessingEarlyResponses.wait();
-                        didWait = true;
-                    }
-                }
-                if (!didWait)
-                    break;
-            }
-        }
+        awaitEarlyResponseWriters(Arrays.asList(rc.correlationIds));
         // 2nd read early responses and connect them to the workflow instance
         boolean enqueued = false;
+        final EarlyResponseFilter filter = earlyResponseFilter;
         for (String cid : rc.correlationIds) {
+            if (filter != null && !filter.mightContain(cid)) {
+                continue;
+            }
             Response<?> response = serializer.deserializeResponse(storage.readEarlyResponse(cid));
             if (response != null) {
                 logger.debug("found early response with correlationId {} for workflow {} - doing notify...", cid, wfId);
@@ -288,8 +384,91 @@ public class HybridDBStorage implements ScottyDBStorageInterface {
                 }
             });
         }
+    }
 
-        callback.onSuccess();
+    private void awaitEarlyResponseWriters(Collection<String> correlationIds) throws InterruptedException {
+        synchronized (currentlyProcessingEarlyResponses) {
+            for (;;) {
+                boolean didWait = false;
+                for (String cid : correlationIds) {
+                    if (currentlyProcessingEarlyResponses.contains(cid)) {
+                        currentlyProcessingEarlyResponses.wait();
+                        didWait = true;
+                    }
+                }
+                if (!didWait)
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Resumes a workflow instance read from the storage during the startup. As the storage may resume in the
+     * background while the engine is already running, this is done under the workflow instance's mutex: a concurrent
+     * notify either finds the correlation id registered and waits for the mutex, or it stores an early response,
+     * which is read here.
+     */
+    private void resume(final WorkflowInstance cw) throws Exception {
+        logger.trace("resume(wfId={})", cw.id);
+        if (cw.state == ProcessingState.ERROR || cw.state == ProcessingState.INVALID) {
+            return;
+        }
+        if (cw.state == ProcessingState.ENQUEUED) {
+            _enqueue(cw.id, cw.ppoolId, cw.prio);
+            return;
+        }
+        if (cw.cid2ResponseMap == null) {
+            return;
+        }
+
+        final String wfId = cw.id;
+        synchronized (findMutex(wfId)) {
+            final List<String> missingResponseCorrelationIds = new ArrayList<>();
+            for (Entry<String, String> e : cw.cid2ResponseMap.entrySet()) {
+                if (e.getValue() == null) {
+                    missingResponseCorrelationIds.add(e.getKey());
+                }
+            }
+            correlationIdMap.addCorrelationIds(wfId, cw.cid2ResponseMap.keySet().toArray(new String[0]));
+            awaitEarlyResponseWriters(missingResponseCorrelationIds);
+
+            final List<String> earlyResponseCorrelationIds = new ArrayList<>();
+            final EarlyResponseFilter filter = earlyResponseFilter;
+            for (String cid : missingResponseCorrelationIds) {
+                if (filter != null && !filter.mightContain(cid)) {
+                    continue;
+                }
+                final String earlyResponse = storage.readEarlyResponse(cid);
+                if (earlyResponse != null) {
+                    cw.cid2ResponseMap.put(cid, earlyResponse);
+                    earlyResponseCorrelationIds.add(cid);
+                }
+            }
+            final int numberOfAvailableResponses = cw.cid2ResponseMap.size() - missingResponseCorrelationIds.size() + earlyResponseCorrelationIds.size();
+            final boolean timeoutOccured = cw.timeout != null && cw.timeout.getTime() <= System.currentTimeMillis();
+            final boolean enqueue = timeoutOccured || numberOfAvailableResponses == cw.cid2ResponseMap.size() || (numberOfAvailableResponses > 0 && cw.waitMode == WaitMode.FIRST);
+            if (!earlyResponseCorrelationIds.isEmpty() || timeoutOccured) {
+                if (enqueue) {
+                    cw.state = ProcessingState.ENQUEUED;
+                }
+                await(storage.safeWorkflowInstance(cw, false));
+                for (String cid : earlyResponseCorrelationIds) {
+                    storage.deleteEarlyResponse(cid);
+                }
+                if (enqueue) {
+                    _enqueue(wfId, cw.ppoolId, cw.prio);
+                    return;
+                }
+            }
+            if (cw.timeout != null) {
+                timeoutManager.registerTimeout(cw.timeout, wfId, new Runnable() {
+                    @Override
+                    public void run() {
+                        onTimeout(wfId);
+                    }
+                });
+            }
+        }
     }
 
     @Override
@@ -333,7 +512,7 @@ public class HybridDBStorage implements ScottyDBStorageInterface {
                             cw.state = ProcessingState.ENQUEUED;
                         }
 
-                        storage.safeWorkflowInstance(cw, false);
+                        await(storage.safeWorkflowInstance(cw, false));
 
                         if (enqueue) {
                             _enqueue(cw.id, cw.ppoolId, cw.prio);
@@ -366,7 +545,7 @@ public class HybridDBStorage implements ScottyDBStorageInterface {
 
                     if (enqueue) {
                         cw.state = ProcessingState.ENQUEUED;
-                        storage.safeWorkflowInstance(cw, false);
+                        await(storage.safeWorkflowInstance(cw, false));
                         _enqueue(cw.id, cw.ppoolId, cw.prio);
                     }
                 }
@@ -380,6 +559,10 @@ public class HybridDBStorage implements ScottyDBStorageInterface {
         synchronized (currentlyProcessingEarlyResponses) {
             currentlyProcessingEarlyResponses.add(response.getCorrelationId());
         }
+        final EarlyResponseFilter filter = earlyResponseFilter;
+        if (filter != null) {
+            filter.put(response.getCorrelationId());
+        }
         final ListenableFuture<Void> future = storage.safeEarlyResponse(response.getCorrelationId(), serializer.serializeResponse(response));
         future.addListener(new Runnable() {
             @Override
@@ -423,6 +606,16 @@ public class HybridDBStorage implements ScottyDBStorageInterface {
             return;
 
         logger.info("Starting up...");
+        registerCallbackExecutor = Executors.newFixedThreadPool(registerCallbackThreads, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "HybridDBStorage.registerCallback-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
         try {
             storage.initialize(new HybridDBStorageAccessor() {
                 @Override
@@ -434,7 +627,27 @@ public class HybridDBStorage implements ScottyDBStorageInterface {
                 public void enqueue(String wfId, String ppoolId, int prio) {
                     _enqueue(wfId, ppoolId, prio);
                 }
+
+                @Override
+                public void resume(WorkflowInstance wfi) throws Exception {
+                    HybridDBStorage.this.resume(wfi);
+                }
+
+                @Override
+                public void registerEarlyResponses(Iterable<String> correlationIds) {
+                    final EarlyResponseFilter filter = earlyResponseFilter;
+                    if (filter == null)
+                        return;
+                    try {
+                        filter.putExisting(correlationIds);
+                    } catch (RuntimeException e) {
+                        logger.warn("Unable to read the existing early responses - early response filter is used after one time to live", e);
+                    }
+                }
             }, Runtime.getRuntime().availableProcessors());
+            if (earlyResponseFilter != null) {
+                earlyResponseFilter.startup();
+            }
         } catch (RuntimeException e) {
             logger.error("startup failed", e);
             throw e;
@@ -451,8 +664,11 @@ public class HybridDBStorage implements ScottyDBStorageInterface {
     }
 
     @Override
-    public void shutdown() {
-        // empty
+    public synchronized void shutdown() {
+        if (registerCallbackExecutor != null) {
+            registerCallbackExecutor.shutdown();
+        }
+        storage.shutdown();
     }
 
     @Override
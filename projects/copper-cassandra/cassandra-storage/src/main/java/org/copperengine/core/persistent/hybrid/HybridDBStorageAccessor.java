@@ -16,7 +16,7 @@
 package org.copperengine.core.persistent.hybrid;
 
 /**
- * Used just for initialization of {@link HybridDBStorage} during startup
+ * Used just for initialization of {@link HybridDBStorage}, which may continue in the background after the startup
  * 
  * @author austermann
  *
@@ -27,4 +27,19 @@ public interface HybridDBStorageAccessor {
 
     public void registerCorrelationId(String correlationId, String wfId);
 
+    /**
+     * Resumes a workflow instance read from the storage, i.e. enqueues it or registers its correlation ids, checks for
+     * early responses and registers its timeout. Safe to use while the engine is already running.
+     */
+    public void resume(WorkflowInstance wfi) throws Exception;
+
+    /**
+     * Reports the correlation ids of all early responses stored before the startup. The ids are only iterated if an
+     * {@link EarlyResponseFilter} is configured, so the storage should read them lazily. May be called by a background
+     * initialization after the startup, the filter does not rule out any early response until then. Does nothing by
+     * default.
+     */
+    public default void registerEarlyResponses(Iterable<String> correlationIds) {
+    }
+
 }
@@ -30,7 +30,11 @@ import com.google.common.util.concurrent.ListenableFuture;
  */
 public interface Storage {
 
-    public void safeWorkflowInstance(WorkflowInstance cw, boolean initialInsert) throws Exception;
+    /**
+     * Writes the workflow instance. The returned future is completed when the write is durable, reads of the workflow
+     * instance are only guaranteed to see it afterwards.
+     */
+    public ListenableFuture<Void> safeWorkflowInstance(WorkflowInstance cw, boolean initialInsert) throws Exception;
 
     public ListenableFuture<Void> deleteWorkflowInstance(String wfId) throws Exception;
 
@@ -50,4 +54,11 @@ public interface Storage {
 
     public int countWorkflowInstances(WorkflowInstanceFilter filter) throws Exception;
 
+    /**
+     * Stops everything started by {@link #initialize}, e.g. a resume still running in the background. Called by
+     * {@link HybridDBStorage#shutdown()}.
+     */
+    public default void shutdown() {
+    }
+
 }
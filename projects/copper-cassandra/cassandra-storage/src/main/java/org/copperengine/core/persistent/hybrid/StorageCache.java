@@ -16,47 +16,153 @@
 
 package org.copperengine.core.persistent.hybrid;
 
-import java.lang.ref.SoftReference;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.lang.NullArgumentException;
 import org.copperengine.core.ProcessingState;
-import org.copperengine.core.Workflow;
+import org.copperengine.core.persistent.SerializedWorkflow;
+import org.copperengine.management.StorageCacheMXBean;
+import org.copperengine.management.model.CacheInfo;
 import org.copperengine.management.model.WorkflowInstanceFilter;
 import org.slf4j.Logger;
 
 import com.google.common.util.concurrent.ListenableFuture;
 
-public class StorageCache implements Storage {
+/**
+ * Caches workflow instances and early responses of a {@link Storage} in memory.
+ * <p>
+ * Both caches are bounded by a memory budget, which is compared against the estimated size of the serialized entries.
+ * Within the budget, the entries are evicted according to a W-TinyLFU policy, see {@link TinyLfuCache}.
+ */
+public class StorageCache implements Storage, StorageCacheMXBean {
 
     private static final Logger logger = org.slf4j.LoggerFactory.getLogger(StorageCache.class);
 
+    public static final long DEFAULT_MAX_WORKFLOW_INSTANCE_WEIGHT = 64L * 1024 * 1024;
+    public static final long DEFAULT_MAX_EARLY_RESPONSE_WEIGHT = 16L * 1024 * 1024;
+
+    // rough estimates, only used to size the frequency sketches
+    private static final int AVERAGE_WORKFLOW_INSTANCE_WEIGHT = 4096;
+    private static final int AVERAGE_EARLY_RESPONSE_WEIGHT = 1024;
+
+    // object headers, references and the primitive and date fields
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private static final TinyLfuCache.Weigher<String, WorkflowInstance> WORKFLOW_INSTANCE_WEIGHER = new TinyLfuCache.Weigher<String, WorkflowInstance>() {
+        @Override
+        public long weigh(String key, WorkflowInstance wfi) {
+            long weight = ENTRY_OVERHEAD + sizeOf(key) + sizeOf(wfi.id) + sizeOf(wfi.ppoolId) + sizeOf(wfi.classname);
+            final SerializedWorkflow sw = wfi.serializedWorkflow;
+            if (sw != null) {
+                weight += sizeOf(sw.getData()) + sizeOf(sw.getObjectState()) + sizeOf(sw.getBinaryData()) + sizeOf(sw.getBinaryObjectState());
+            }
+            if (wfi.cid2ResponseMap != null) {
+                for (Map.Entry<String, String> e : wfi.cid2ResponseMap.entrySet()) {
+                    weight += ENTRY_OVERHEAD / 2 + sizeOf(e.getKey()) + sizeOf(e.getValue());
+                }
+            }
+            return weight;
+        }
+    };
+
+    private static final TinyLfuCache.Weigher<String, String> EARLY_RESPONSE_WEIGHER = new TinyLfuCache.Weigher<String, String>() {
+        @Override
+        public long weigh(String key, String value) {
+            return ENTRY_OVERHEAD + sizeOf(key) + sizeOf(value);
+        }
+    };
+
     private final Storage delegate;
-    private final Map<String, SoftReference<WorkflowInstance>> wfCache;
-    private final Map<String, SoftReference<String>> earCache;
+    private final TinyLfuCache<String, WorkflowInstance> wfCache;
+    private final TinyLfuCache<String, String> earCache;
     private final CacheStats cacheStatsWfCache = new CacheStats();
     private final CacheStats cacheStatsEarCache = new CacheStats();
 
     public StorageCache(Storage delegate) {
+        this(delegate, DEFAULT_MAX_WORKFLOW_INSTANCE_WEIGHT, DEFAULT_MAX_EARLY_RESPONSE_WEIGHT);
+    }
+
+    /**
+     * @param delegate
+     *        the cached storage
+     * @param maxWorkflowInstanceWeight
+     *        memory budget of the workflow instance cache in bytes
+     * @param maxEarlyResponseWeight
+     *        memory budget of the early response cache in bytes
+     */
+    public StorageCache(Storage delegate, long maxWorkflowInstanceWeight, long maxEarlyResponseWeight) {
         if (delegate == null)
             throw new NullArgumentException("delegate");
         this.delegate = delegate;
 
-        wfCache = new ConcurrentHashMap<>();
-        earCache = new ConcurrentHashMap<>();
+        wfCache = new TinyLfuCache<>(maxWorkflowInstanceWeight, expectedEntries(maxWorkflowInstanceWeight, AVERAGE_WORKFLOW_INSTANCE_WEIGHT), WORKFLOW_INSTANCE_WEIGHER);
+        earCache = new TinyLfuCache<>(maxEarlyResponseWeight, expectedEntries(maxEarlyResponseWeight, AVERAGE_EARLY_RESPONSE_WEIGHT), EARLY_RESPONSE_WEIGHER);
+    }
+
+    private static int expectedEntries(long maxWeight, int averageWeight) {
+        return (int) Math.max(1, Math.min(maxWeight / averageWeight, 1 << 24));
+    }
+
+    private static long sizeOf(String s) {
+        return s == null ? 0 : 40 + 2L * s.length();
+    }
+
+    private static long sizeOf(byte[] b) {
+        return b == null ? 0 : 16 + b.length;
     }
 
     public void logCacheStats() {
-        logger.info("cacheStatsWfCache  = {}", cacheStatsWfCache);
-        logger.info("cacheStatsEarCache = {}", cacheStatsEarCache);
+        logger.info("cacheStatsWfCache  = {}", getWorkflowInstanceCacheInfo());
+        logger.info("cacheStatsEarCache = {}", getEarlyResponseCacheInfo());
+    }
+
+    public CacheStats getWorkflowInstanceCacheStats() {
+        return cacheStatsWfCache;
+    }
+
+    public CacheStats getEarlyResponseCacheStats() {
+        return cacheStatsEarCache;
+    }
+
+    @Override
+    public long getMaxWorkflowInstanceWeight() {
+        return wfCache.getMaxWeight();
+    }
+
+    @Override
+    public void setMaxWorkflowInstanceWeight(long maxWorkflowInstanceWeight) {
+        wfCache.setMaxWeight(maxWorkflowInstanceWeight);
+    }
+
+    @Override
+    public long getMaxEarlyResponseWeight() {
+        return earCache.getMaxWeight();
+    }
+
+    @Override
+    public void setMaxEarlyResponseWeight(long maxEarlyResponseWeight) {
+        earCache.setMaxWeight(maxEarlyResponseWeight);
+    }
+
+    @Override
+    public CacheInfo getWorkflowInstanceCacheInfo() {
+        return createCacheInfo("workflowInstances", wfCache, cacheStatsWfCache);
+    }
+
+    @Override
+    public CacheInfo getEarlyResponseCacheInfo() {
+        return createCacheInfo("earlyResponses", earCache, cacheStatsEarCache);
+    }
+
+    private static CacheInfo createCacheInfo(String name, TinyLfuCache<?, ?> cache, CacheStats stats) {
+        return new CacheInfo(name, cache.size(), cache.getWeight(), cache.getMaxWeight(), stats.getNumberOfReads(), stats.getNumberOfCacheHits(), stats.getNumberOfCacheMisses(), cache.getNumberOfEvictions(), cache.getNumberOfRejections());
     }
 
     @Override
-    public void safeWorkflowInstance(WorkflowInstance wfi, boolean initialInsert) throws Exception {
-        wfCache.put(wfi.id, new SoftReference<WorkflowInstance>(wfi));
-        delegate.safeWorkflowInstance(wfi, initialInsert);
+    public ListenableFuture<Void> safeWorkflowInstance(WorkflowInstance wfi, boolean initialInsert) throws Exception {
+        wfCache.put(wfi.id, wfi);
+        return delegate.safeWorkflowInstance(wfi, initialInsert);
     }
 
     @Override
@@ -67,17 +173,14 @@ public class StorageCache implements Storage {
 
     @Override
     public WorkflowInstance readWorkflowInstance(String wfId) throws Exception {
-        SoftReference<WorkflowInstance> entry = wfCache.get(wfId);
-        if (entry != null) {
-            WorkflowInstance wfi = entry.get();
-            if (wfi != null) {
-                cacheStatsWfCache.incNumberOfReads(true);
-                return wfi;
-            }
+        WorkflowInstance wfi = wfCache.get(wfId);
+        if (wfi != null) {
+            cacheStatsWfCache.incNumberOfReads(true);
+            return wfi;
         }
-        WorkflowInstance wfi = delegate.readWorkflowInstance(wfId);
+        wfi = delegate.readWorkflowInstance(wfId);
         if (wfi != null) {
-            wfCache.put(wfi.id, new SoftReference<WorkflowInstance>(wfi));
+            wfCache.put(wfi.id, wfi);
         }
         cacheStatsWfCache.incNumberOfReads(false);
         return wfi;
@@ -88,21 +191,23 @@ public class StorageCache implements Storage {
         delegate.initialize(internalStorageAccessor, numberOfThreads);
     }
 
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
     @Override
     public ListenableFuture<Void> safeEarlyResponse(String correlationId, String serializedResponse) throws Exception {
-        earCache.put(correlationId, new SoftReference<String>(serializedResponse));
+        earCache.put(correlationId, serializedResponse);
         return delegate.safeEarlyResponse(correlationId, serializedResponse);
     }
 
     @Override
     public String readEarlyResponse(String correlationId) throws Exception {
-        final SoftReference<String> entry = earCache.get(correlationId);
-        if (entry != null) {
-            String resp = entry.get();
-            if (resp != null) {
-                cacheStatsEarCache.incNumberOfReads(true);
-                return resp;
-            }
+        final String resp = earCache.get(correlationId);
+        if (resp != null) {
+            cacheStatsEarCache.incNumberOfReads(true);
+            return resp;
         }
         cacheStatsEarCache.incNumberOfReads(false);
         return delegate.readEarlyResponse(correlationId);
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.persistent.hybrid;
+
+import java.util.Date;
+import java.util.List;
+
+import org.copperengine.core.common.TimingWheel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Implementation of the {@link TimeoutManager} interface using a {@link TimingWheel}.
+ * <p>
+ * In contrast to the {@link DefaultTimeoutManager}, registering and unregistering a timeout does not contend for a
+ * single monitor, which pays off with many waiting workflow instances.
+ */
+public final class TimingWheelTimeoutManager implements TimeoutManager {
+
+    private final static Logger logger = LoggerFactory.getLogger(TimingWheelTimeoutManager.class);
+
+    public static final long DEFAULT_TICK_MSEC = 25;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private final TimingWheel<String, Runnable> timingWheel;
+    private volatile boolean started = false;
+
+    public TimingWheelTimeoutManager() {
+        this(DEFAULT_TICK_MSEC, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param tickMsec
+     *        resolution of the timeouts in milliseconds
+     * @param wheelSize
+     *        number of buckets of the timing wheel
+     */
+    public TimingWheelTimeoutManager(long tickMsec, int wheelSize) {
+        timingWheel = new TimingWheel<String, Runnable>("copper.Timeoutmanager", tickMsec, wheelSize, new TimingWheel.ExpiryHandler<Runnable>() {
+            @Override
+            public void onExpired(List<Runnable> expired) {
+                for (Runnable r : expired) {
+                    try {
+                        r.run();
+                    } catch (Exception e) {
+                        logger.error("run failed", e);
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public synchronized TimeoutManager startup() {
+        timingWheel.startup();
+        started = true;
+        return this;
+    }
+
+    @Override
+    public synchronized TimeoutManager shutdown() {
+        timingWheel.shutdown();
+        return this;
+    }
+
+    @Override
+    public void registerTimeout(Date timeoutTS, String workflowId, Runnable onTimeout) {
+        logger.debug("registerTimeout({}, {})", timeoutTS, workflowId);
+
+        if (timeoutTS == null)
+            return;
+
+        if (!started)
+            throw new IllegalStateException("timeout manager not yet started!");
+
+        timingWheel.register(timeoutTS.getTime(), workflowId, onTimeout);
+    }
+
+    @Override
+    public void unregisterTimeout(Date timeoutTS, String workflowId) {
+        logger.debug("unregisterTimeout({}, {})", timeoutTS, workflowId);
+
+        if (timeoutTS == null)
+            return;
+
+        if (!started)
+            throw new IllegalStateException("timeout manager not yet started!");
+
+        timingWheel.unregister(timeoutTS.getTime(), workflowId);
+    }
+
+}
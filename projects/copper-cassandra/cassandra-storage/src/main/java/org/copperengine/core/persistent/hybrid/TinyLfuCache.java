@@ -0,0 +1,381 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.persistent.hybrid;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Weight bounded cache with a W-TinyLFU admission and eviction policy, used by {@link StorageCache}.
+ * <p>
+ * New entries are put into a small LRU window. Entries leaving the window only enter the main region, a segmented LRU
+ * with a probation and a protected segment, if they were accessed more often than the entry they would displace. The
+ * access frequencies are estimated by a count-min sketch with 4 bit counters that are halved periodically, so that
+ * the cache adapts to changing access patterns. This keeps frequently read entries in the cache even if many entries
+ * are read just once.
+ * <p>
+ * Lookups are lock free. Their effect on the policy is recorded only if the policy lock is free, i.e. under
+ * contention some accesses are not counted, which affects the hit rate only marginally.
+ */
+final class TinyLfuCache<K, V> {
+
+    interface Weigher<K, V> {
+        /**
+         * @return the estimated memory footprint of the entry in bytes
+         */
+        long weigh(K key, V value);
+    }
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final class Node<K, V> {
+        final K key;
+        volatile V value;
+        long weight;
+        int region;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Doubly linked LRU list, the head is the least recently used node.
+     */
+    private static final class AccessOrder<K, V> {
+        Node<K, V> head;
+        Node<K, V> tail;
+        long weight;
+
+        void add(Node<K, V> node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null)
+                head = node;
+            else
+                tail.next = node;
+            tail = node;
+            weight += node.weight;
+        }
+
+        void remove(Node<K, V> node) {
+            if (node.prev == null)
+                head = node.next;
+            else
+                node.prev.next = node.next;
+            if (node.next == null)
+                tail = node.prev;
+            else
+                node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        void moveToTail(Node<K, V> node) {
+            if (node != tail) {
+                remove(node);
+                add(node);
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<>();
+    private final ReentrantLock policyLock = new ReentrantLock();
+    private final FrequencySketch sketch;
+    private final Weigher<K, V> weigher;
+    private final AtomicLong numberOfEvictions = new AtomicLong();
+    private final AtomicLong numberOfRejections = new AtomicLong();
+    private final List<AccessOrder<K, V>> regions = Arrays.asList(new AccessOrder<K, V>(), new AccessOrder<K, V>(), new AccessOrder<K, V>());
+    private volatile long maxWeight;
+    private long maxWindowWeight;
+    private long maxProtectedWeight;
+
+    /**
+     * @param maxWeight
+     *        memory budget in bytes
+     * @param expectedEntries
+     *        expected number of entries within the budget, used to size the frequency sketch
+     * @param weigher
+     *        estimates the memory footprint of the entries
+     */
+    TinyLfuCache(long maxWeight, int expectedEntries, Weigher<K, V> weigher) {
+        if (expectedEntries <= 0)
+            throw new IllegalArgumentException("expectedEntries must be > 0");
+        if (weigher == null)
+            throw new NullPointerException();
+        this.weigher = weigher;
+        this.sketch = new FrequencySketch(expectedEntries);
+        setMaxWeight(maxWeight);
+    }
+
+    void setMaxWeight(long maxWeight) {
+        if (maxWeight <= 0)
+            throw new IllegalArgumentException("maxWeight must be > 0");
+        policyLock.lock();
+        try {
+            this.maxWeight = maxWeight;
+            // 1% window, 99% main region with 80% protected
+            this.maxWindowWeight = Math.max(1, maxWeight / 100);
+            this.maxProtectedWeight = (maxWeight - maxWindowWeight) * 8 / 10;
+            evict();
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    long getMaxWeight() {
+        return maxWeight;
+    }
+
+    V get(K key) {
+        final Node<K, V> node = map.get(key);
+        if (policyLock.tryLock()) {
+            try {
+                sketch.increment(key);
+                if (node != null && map.get(key) == node) {
+                    onAccess(node);
+                }
+            } finally {
+                policyLock.unlock();
+            }
+        }
+        return node == null ? null : node.value;
+    }
+
+    void put(K key, V value) {
+        final long weight = weigher.weigh(key, value);
+        policyLock.lock();
+        try {
+            final Node<K, V> existing = map.get(key);
+            if (weight > maxWeight) {
+                numberOfRejections.incrementAndGet();
+                if (existing != null) {
+                    unlink(existing);
+                }
+                return;
+            }
+            sketch.increment(key);
+            if (existing != null) {
+                final AccessOrder<K, V> region = regions.get(existing.region);
+                region.weight += weight - existing.weight;
+                existing.weight = weight;
+                existing.value = value;
+                onAccess(existing);
+            }
+            else {
+                final Node<K, V> node = new Node<>(key, value, weight);
+                node.region = WINDOW;
+                regions.get(WINDOW).add(node);
+                map.put(key, node);
+            }
+            evict();
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    void remove(K key) {
+        policyLock.lock();
+        try {
+            final Node<K, V> node = map.get(key);
+            if (node != null) {
+                unlink(node);
+            }
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    int size() {
+        return map.size();
+    }
+
+    long getWeight() {
+        policyLock.lock();
+        try {
+            return regions.get(WINDOW).weight + regions.get(PROBATION).weight + regions.get(PROTECTED).weight;
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    long getNumberOfEvictions() {
+        return numberOfEvictions.get();
+    }
+
+    /**
+     * @return number of entries not cached because they exceed the memory budget on their own
+     */
+    long getNumberOfRejections() {
+        return numberOfRejections.get();
+    }
+
+    private void onAccess(Node<K, V> node) {
+        if (node.region == PROBATION) {
+            regions.get(PROBATION).remove(node);
+            node.region = PROTECTED;
+            regions.get(PROTECTED).add(node);
+            // demote the least recently used protected entries
+            while (regions.get(PROTECTED).weight > maxProtectedWeight && regions.get(PROTECTED).head != node) {
+                final Node<K, V> demoted = regions.get(PROTECTED).head;
+                regions.get(PROTECTED).remove(demoted);
+                demoted.region = PROBATION;
+                regions.get(PROBATION).add(demoted);
+            }
+        }
+        else {
+            regions.get(node.region).moveToTail(node);
+        }
+    }
+
+    private void evict() {
+        // entries leaving the window are candidates for the main region
+        while (regions.get(WINDOW).weight > maxWindowWeight) {
+            final Node<K, V> candidate = regions.get(WINDOW).head;
+            regions.get(WINDOW).remove(candidate);
+            candidate.region = PROBATION;
+            regions.get(PROBATION).add(candidate);
+            admit(candidate);
+        }
+        // a shrunk budget or grown entries may still exceed the limit
+        while (getWeightUnlocked() > maxWeight) {
+            final Node<K, V> victim = regions.get(PROBATION).head != null ? regions.get(PROBATION).head : regions.get(PROTECTED).head != null ? regions.get(PROTECTED).head : regions.get(WINDOW).head;
+            evict(victim);
+        }
+    }
+
+    /**
+     * Makes room in the main region for the candidate, which was just added to the probation segment, or evicts the
+     * candidate if it was accessed less often than the entries it would displace.
+     */
+    private void admit(Node<K, V> candidate) {
+        final long maxMainWeight = maxWeight - maxWindowWeight;
+        while (regions.get(PROBATION).weight + regions.get(PROTECTED).weight > maxMainWeight) {
+            Node<K, V> victim = regions.get(PROBATION).head;
+            if (victim == candidate) {
+                victim = candidate.next != null ? candidate.next : regions.get(PROTECTED).head;
+            }
+            if (victim == null) {
+                evict(candidate);
+                return;
+            }
+            if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                evict(victim);
+            }
+            else {
+                evict(candidate);
+                return;
+            }
+        }
+    }
+
+    private long getWeightUnlocked() {
+        return regions.get(WINDOW).weight + regions.get(PROBATION).weight + regions.get(PROTECTED).weight;
+    }
+
+    private void evict(Node<K, V> node) {
+        unlink(node);
+        numberOfEvictions.incrementAndGet();
+    }
+
+    private void unlink(Node<K, V> node) {
+        regions.get(node.region).remove(node);
+        map.remove(node.key, node);
+    }
+
+    /**
+     * Count-min sketch with four 4 bit counters per key. All counters are halved after <code>10 * expectedEntries</code>
+     * increments.
+     */
+    static final class FrequencySketch {
+
+        private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int tableMask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedEntries) {
+            int size = Integer.highestOneBit(Math.max(expectedEntries, 16) - 1) << 1;
+            // 16 counters per long
+            size = Math.max(1, Math.min(size / 4, 1 << 26));
+            table = new long[size];
+            tableMask = size - 1;
+            sampleSize = (int) Math.min(10L * expectedEntries, Integer.MAX_VALUE);
+        }
+
+        int frequency(Object key) {
+            final int hash = spread(key.hashCode());
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                final long h = indexHash(hash, i);
+                final int index = (int) (h >>> 32) & tableMask;
+                final int offset = (int) (h & 15) << 2;
+                frequency = Math.min(frequency, (int) ((table[index] >>> offset) & 15L));
+            }
+            return frequency;
+        }
+
+        void increment(Object key) {
+            final int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                final long h = indexHash(hash, i);
+                final int index = (int) (h >>> 32) & tableMask;
+                final int offset = (int) (h & 15) << 2;
+                final long mask = 15L << offset;
+                if ((table[index] & mask) != mask) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions /= 2;
+        }
+
+        private static int spread(int x) {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+
+        private static long indexHash(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return h;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.persistent.cassandra;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.EndPoint;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Tests the {@link TokenAwareBatchWriter} against a session stand-in, which completes the requests on demand.
+ */
+public class TokenAwareBatchWriterTest {
+
+    private static class TestResultSetFuture extends AbstractFuture<ResultSet> implements ResultSetFuture {
+        final Statement statement;
+
+        TestResultSetFuture(Statement statement) {
+            this.statement = statement;
+        }
+
+        void complete() {
+            set(Mockito.mock(ResultSet.class));
+        }
+
+        void fail(Throwable t) {
+            setException(t);
+        }
+
+        @Override
+        public ResultSet getUninterruptibly() {
+            try {
+                return Uninterruptibles.getUninterruptibly(this);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        @Override
+        public ResultSet getUninterruptibly(long timeout, TimeUnit unit) throws TimeoutException {
+            try {
+                return Uninterruptibles.getUninterruptibly(this, timeout, unit);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    private final List<TestResultSetFuture> requests = new CopyOnWriteArrayList<>();
+    private final Set<Host> replicasA = Collections.singleton(Mockito.mock(Host.class));
+    private final Set<Host> replicasB = Collections.singleton(Mockito.mock(Host.class));
+    private Session session;
+
+    @Before
+    public void setUp() {
+        final Cluster cluster = Mockito.mock(Cluster.class, Mockito.RETURNS_DEEP_STUBS);
+        Mockito.when(cluster.getConfiguration().getCodecRegistry()).thenReturn(CodecRegistry.DEFAULT_INSTANCE);
+        // partition keys starting with 'a' are owned by replicasA, all others by replicasB
+        Mockito.when(cluster.getMetadata().getReplicas(Mockito.anyString(), Mockito.any(ByteBuffer.class))).thenAnswer(new Answer<Set<Host>>() {
+            @Override
+            public Set<Host> answer(InvocationOnMock invocation) throws Throwable {
+                final ByteBuffer routingKey = invocation.getArgument(1);
+                return routingKey.get(routingKey.position()) == 'a' ? replicasA : replicasB;
+            }
+        });
+        session = Mockito.mock(Session.class);
+        Mockito.when(session.getCluster()).thenReturn(cluster);
+        Mockito.when(session.executeAsync(Mockito.any(Statement.class))).thenAnswer(new Answer<ResultSetFuture>() {
+            @Override
+            public ResultSetFuture answer(InvocationOnMock invocation) throws Throwable {
+                final TestResultSetFuture future = new TestResultSetFuture(invocation.<Statement> getArgument(0));
+                requests.add(future);
+                return future;
+            }
+        });
+    }
+
+    private static Statement insert(String id) {
+        return new SimpleStatement("INSERT INTO COP_WFI_ID (ID) VALUES (?)", id).setKeyspace("copper").setRoutingKey(ByteBuffer.wrap(id.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testBatchingPerReplicaSet() throws Exception {
+        final TokenAwareBatchWriter writer = new TokenAwareBatchWriter(session, 100, 10, 64 * 1024, 1);
+        final ListenableFuture<Void> a1 = writer.write(insert("a1"));
+        final ListenableFuture<Void> a2 = writer.write(insert("a2"));
+        final ListenableFuture<Void> a3 = writer.write(insert("a3"));
+        final ListenableFuture<Void> b1 = writer.write(insert("b1"));
+
+        // a2 and a3 wait for the request of a1, b1 belongs to other replicas
+        Assert.assertEquals(2, requests.size());
+        Assert.assertEquals(4, writer.getNumberOfPendingWrites());
+
+        requests.get(0).complete();
+        Assert.assertTrue(a1.isDone());
+        Assert.assertFalse(a2.isDone());
+        Assert.assertEquals(3, requests.size());
+        final Statement batch = requests.get(2).statement;
+        Assert.assertTrue(batch instanceof BatchStatement);
+        Assert.assertEquals(2, ((BatchStatement) batch).size());
+
+        requests.get(2).complete();
+        requests.get(1).complete();
+        Assert.assertTrue(a2.isDone() && a3.isDone() && b1.isDone());
+        Assert.assertEquals(0, writer.getNumberOfPendingWrites());
+        Assert.assertEquals(4, writer.getNumberOfWrites());
+        Assert.assertEquals(3, writer.getNumberOfRequests());
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        final TokenAwareBatchWriter writer = new TokenAwareBatchWriter(session, 2, 1, 64 * 1024, 1);
+        writer.write(insert("a1"));
+        writer.write(insert("a2"));
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    writer.write(insert("a3"));
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+        };
+        thread.start();
+        thread.join(200);
+        Assert.assertTrue("write must block while two writes are pending", thread.isAlive());
+        Assert.assertEquals(2, requests.size());
+
+        requests.get(0).complete();
+        thread.join(5000);
+        Assert.assertFalse(thread.isAlive());
+        Assert.assertEquals(3, requests.size());
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        final TokenAwareBatchWriter writer = new TokenAwareBatchWriter(session, 100, 10, 64 * 1024, 1);
+        final ListenableFuture<Void> a1 = writer.write(insert("a1"));
+        requests.get(0).fail(new NoHostAvailableException(Collections.<EndPoint, Throwable> emptyMap()));
+        Assert.assertFalse(a1.isDone());
+
+        final long startTS = System.currentTimeMillis();
+        while (requests.size() < 2 && System.currentTimeMillis() - startTS < 5000) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(2, requests.size());
+        requests.get(1).complete();
+        a1.get(1, TimeUnit.SECONDS);
+        Assert.assertEquals(0, writer.getNumberOfPendingWrites());
+    }
+
+    @Test
+    public void testCloseFailsWaitingRetries() throws Exception {
+        final TokenAwareBatchWriter writer = new TokenAwareBatchWriter(session, 100, 10, 64 * 1024, 1);
+        final ListenableFuture<Void> a1 = writer.write(insert("a1"));
+        requests.get(0).fail(new NoHostAvailableException(Collections.<EndPoint, Throwable> emptyMap()));
+        writer.close();
+
+        Assert.assertTrue(a1.isDone());
+        try {
+            a1.get();
+            Assert.fail("closed before the retry");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals(0, writer.getNumberOfPendingWrites());
+        Thread.sleep(100);
+        Assert.assertEquals(1, requests.size());
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.persistent.hybrid;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EarlyResponseFilterTest {
+
+    @Test
+    public void testMightContain() {
+        final EarlyResponseFilter filter = new EarlyResponseFilter(1000, 0.01, 1, TimeUnit.HOURS);
+        // not started yet
+        Assert.assertTrue(filter.mightContain("unknown"));
+
+        filter.putExisting(Arrays.asList("existing1", "existing2"));
+        filter.startup();
+        filter.put("new");
+        Assert.assertTrue(filter.mightContain("existing1"));
+        Assert.assertTrue(filter.mightContain("existing2"));
+        Assert.assertTrue(filter.mightContain("new"));
+
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (filter.mightContain(UUID.randomUUID().toString())) {
+                falsePositives++;
+            }
+        }
+        Assert.assertTrue("falsePositives=" + falsePositives, falsePositives < 50);
+        Assert.assertEquals(1004, filter.getNumberOfChecks());
+        Assert.assertEquals(1000 - falsePositives, filter.getNumberOfRuledOut());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        final EarlyResponseFilter filter = new EarlyResponseFilter(1000, 0.01, 300, TimeUnit.MILLISECONDS);
+        filter.putExisting(Collections.<String> emptyList());
+        filter.startup();
+        filter.put("cid");
+        Thread.sleep(200);
+        Assert.assertTrue(filter.mightContain("cid"));
+        Thread.sleep(400);
+        Assert.assertFalse(filter.mightContain("cid"));
+    }
+
+    @Test
+    public void testWithoutExistingEarlyResponses() throws Exception {
+        final EarlyResponseFilter filter = new EarlyResponseFilter(1000, 0.01, 300, TimeUnit.MILLISECONDS);
+        filter.startup();
+        // early responses stored before the startup are unknown, so nothing is ruled out for one ttl
+        Assert.assertTrue(filter.mightContain("cid"));
+        Thread.sleep(400);
+        Assert.assertFalse(filter.mightContain("cid"));
+    }
+
+    @Test
+    public void testExistingEarlyResponsesAfterStartup() {
+        final EarlyResponseFilter filter = new EarlyResponseFilter(1000, 0.01, 1, TimeUnit.HOURS);
+        filter.startup();
+        // still reading the existing early responses in the background
+        Assert.assertTrue(filter.mightContain("cid"));
+        filter.putExisting(Arrays.asList("existing"));
+        Assert.assertTrue(filter.mightContain("existing"));
+        Assert.assertFalse(filter.mightContain("cid"));
+    }
+
+}
@@ -15,20 +15,37 @@
  */
 package org.copperengine.core.persistent.hybrid;
 
+import java.util.HashMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.copperengine.core.Acknowledge;
+import org.copperengine.core.ProcessingState;
+import org.copperengine.core.Response;
+import org.copperengine.core.WaitMode;
+import org.copperengine.core.Workflow;
 import org.copperengine.core.common.WorkflowRepository;
+import org.copperengine.core.persistent.RegisterCall;
+import org.copperengine.core.persistent.SerializedWorkflow;
+import org.copperengine.core.persistent.Serializer;
 import org.copperengine.core.persistent.StandardJavaSerializer;
 import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
 public class HybridDBStorageTest {
 
@@ -96,4 +113,184 @@ public class HybridDBStorageTest {
 
         Assert.assertEquals(max, counter.intValue());
     }
+
+    @Test
+    public void test_resume() throws Exception {
+        final String ppoolId = "DEFAULT";
+        final StandardJavaSerializer serializer = new StandardJavaSerializer();
+        final Storage storage = Mockito.mock(Storage.class);
+        final WorkflowInstance waitingAll = createWorkflowInstance("waitingAll", ProcessingState.WAITING, WaitMode.ALL, "c1", "c2");
+        final WorkflowInstance waitingFirst = createWorkflowInstance("waitingFirst", ProcessingState.WAITING, WaitMode.FIRST, "c3");
+        final WorkflowInstance enqueued = createWorkflowInstance("enqueued", ProcessingState.ENQUEUED, null);
+        Mockito.when(storage.readEarlyResponse("c3")).thenReturn(serializer.serializeResponse(new Response<String>("c3", "early", null)));
+        Mockito.when(storage.readWorkflowInstance("waitingAll")).thenReturn(waitingAll);
+        Mockito.when(storage.safeWorkflowInstance(Mockito.any(WorkflowInstance.class), Mockito.anyBoolean())).thenReturn(Futures.<Void> immediateFuture(null));
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                final HybridDBStorageAccessor accessor = invocation.getArgument(0);
+                accessor.resume(waitingAll);
+                accessor.resume(waitingFirst);
+                accessor.resume(enqueued);
+                return null;
+            }
+        }).when(storage).initialize(Mockito.any(HybridDBStorageAccessor.class), Mockito.anyInt());
+
+        final HybridDBStorage dbStorage = new HybridDBStorage(serializer, Mockito.mock(WorkflowRepository.class), storage, Mockito.mock(TimeoutManager.class), Mockito.mock(Executor.class));
+        dbStorage.startup();
+
+        // the early response completes waitingFirst
+        Assert.assertEquals(2, dbStorage.queryQueueSize(ppoolId));
+        Assert.assertEquals(ProcessingState.ENQUEUED, waitingFirst.state);
+        Mockito.verify(storage).safeWorkflowInstance(waitingFirst, false);
+        Mockito.verify(storage).deleteEarlyResponse("c3");
+
+        // responses for the resumed workflow instance are no early responses
+        dbStorage.notify(new Response<String>("c1", "r1", null), new Acknowledge.BestEffortAcknowledge());
+        Assert.assertEquals(2, dbStorage.queryQueueSize(ppoolId));
+        dbStorage.notify(new Response<String>("c2", "r2", null), new Acknowledge.BestEffortAcknowledge());
+        Assert.assertEquals(3, dbStorage.queryQueueSize(ppoolId));
+        Mockito.verify(storage, Mockito.never()).safeEarlyResponse(Mockito.anyString(), Mockito.anyString());
+    }
+
+    @Test
+    public void test_backgroundResume() throws Exception {
+        final String ppoolId = "DEFAULT";
+        final StandardJavaSerializer serializer = new StandardJavaSerializer();
+        final Storage storage = Mockito.mock(Storage.class);
+        final WorkflowInstance waiting = createWorkflowInstance("waiting", ProcessingState.WAITING, WaitMode.ALL, "c1");
+        final ConcurrentHashMap<String, String> earlyResponses = new ConcurrentHashMap<String, String>();
+        Mockito.when(storage.safeEarlyResponse(Mockito.anyString(), Mockito.anyString())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                earlyResponses.put(invocation.getArgument(0), invocation.getArgument(1));
+                return Futures.<Void> immediateFuture(null);
+            }
+        });
+        Mockito.when(storage.readEarlyResponse(Mockito.anyString())).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                return earlyResponses.get(invocation.getArgument(0));
+            }
+        });
+        Mockito.when(storage.safeWorkflowInstance(Mockito.any(WorkflowInstance.class), Mockito.anyBoolean())).thenReturn(Futures.<Void> immediateFuture(null));
+        final CountDownLatch resumeLatch = new CountDownLatch(1);
+        final Thread[] resumeThread = new Thread[1];
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                final HybridDBStorageAccessor accessor = invocation.getArgument(0);
+                resumeThread[0] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            resumeLatch.await();
+                            accessor.resume(waiting);
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                };
+                resumeThread[0].start();
+                return null;
+            }
+        }).when(storage).initialize(Mockito.any(HybridDBStorageAccessor.class), Mockito.anyInt());
+
+        final HybridDBStorage dbStorage = new HybridDBStorage(serializer, Mockito.mock(WorkflowRepository.class), storage, Mockito.mock(TimeoutManager.class), MoreExecutors.directExecutor());
+        dbStorage.startup();
+
+        // the workflow instance is not resumed yet, the response is kept as early response
+        final Acknowledge.DefaultAcknowledge ack = new Acknowledge.DefaultAcknowledge();
+        dbStorage.notify(new Response<String>("c1", "r1", null), ack);
+        ack.waitForAcknowledge();
+        Assert.assertTrue(earlyResponses.containsKey("c1"));
+        Assert.assertEquals(0, dbStorage.queryQueueSize(ppoolId));
+
+        // the resume picks up the early response
+        resumeLatch.countDown();
+        resumeThread[0].join(5000);
+        Assert.assertEquals(1, dbStorage.queryQueueSize(ppoolId));
+        Assert.assertEquals(ProcessingState.ENQUEUED, waiting.state);
+        Assert.assertNotNull(waiting.cid2ResponseMap.get("c1"));
+        Mockito.verify(storage).deleteEarlyResponse("c1");
+
+        dbStorage.shutdown();
+        Mockito.verify(storage).shutdown();
+    }
+
+    @Test
+    public void test_insertAsync() throws Exception {
+        final Storage storage = Mockito.mock(Storage.class);
+        final SettableFuture<Void> written = SettableFuture.create();
+        Mockito.when(storage.safeWorkflowInstance(Mockito.any(WorkflowInstance.class), Mockito.eq(true))).thenReturn(written);
+        final Serializer serializer = Mockito.mock(Serializer.class);
+        Mockito.when(serializer.serializeWorkflow(Mockito.any(Workflow.class))).thenReturn(new SerializedWorkflow());
+        final HybridDBStorage dbStorage = new HybridDBStorage(serializer, Mockito.mock(WorkflowRepository.class), storage, Mockito.mock(TimeoutManager.class), MoreExecutors.directExecutor());
+        dbStorage.startup();
+
+        final Workflow<?> wf = Mockito.mock(Workflow.class);
+        Mockito.when(wf.getId()).thenReturn("wf1");
+        Mockito.when(wf.getProcessorPoolId()).thenReturn("DEFAULT");
+        final AtomicInteger acknowledged = new AtomicInteger();
+        dbStorage.insert(wf, new Acknowledge() {
+            @Override
+            public void onSuccess() {
+                acknowledged.incrementAndGet();
+            }
+
+            @Override
+            public void onException(Throwable t) {
+                Assert.fail(t.toString());
+            }
+        });
+
+        // neither enqueued nor acknowledged before the workflow instance is written
+        Assert.assertEquals(0, dbStorage.queryQueueSize("DEFAULT"));
+        Assert.assertEquals(0, acknowledged.get());
+        written.set(null);
+        Assert.assertEquals(1, acknowledged.get());
+        Assert.assertEquals(1, dbStorage.queryQueueSize("DEFAULT"));
+        dbStorage.shutdown();
+    }
+
+    @Test
+    public void test_registerCallbackFailure() throws Exception {
+        final Storage storage = Mockito.mock(Storage.class);
+        Mockito.when(storage.safeWorkflowInstance(Mockito.any(WorkflowInstance.class), Mockito.eq(false))).thenReturn(Futures.<Void> immediateFailedFuture(new RuntimeException("TEST")));
+        final Serializer serializer = Mockito.mock(Serializer.class);
+        Mockito.when(serializer.serializeWorkflow(Mockito.any(Workflow.class))).thenReturn(new SerializedWorkflow());
+        final HybridDBStorage dbStorage = new HybridDBStorage(serializer, Mockito.mock(WorkflowRepository.class), storage, Mockito.mock(TimeoutManager.class), MoreExecutors.directExecutor());
+        dbStorage.startup();
+        try {
+            final Workflow<?> wf = Mockito.mock(Workflow.class);
+            Mockito.when(wf.getId()).thenReturn("wf1");
+            Mockito.when(wf.getProcessorPoolId()).thenReturn("DEFAULT");
+            final Acknowledge.DefaultAcknowledge ack = new Acknowledge.DefaultAcknowledge();
+            dbStorage.registerCallback(new RegisterCall(wf, WaitMode.ALL, null, new String[] { "c1" }, null), ack);
+            try {
+                ack.waitForAcknowledge();
+                Assert.fail("write failed");
+            } catch (RuntimeException e) {
+                // expected
+            }
+            // the workflow instance is marked as erroneous, so that it can be restarted
+            Mockito.verify(storage).updateWorkflowInstanceState("wf1", ProcessingState.ERROR);
+        } finally {
+            dbStorage.shutdown();
+        }
+    }
+
+    private static WorkflowInstance createWorkflowInstance(String id, ProcessingState state, WaitMode waitMode, String... correlationIds) {
+        final WorkflowInstance wfi = new WorkflowInstance();
+        wfi.id = id;
+        wfi.ppoolId = "DEFAULT";
+        wfi.prio = 5;
+        wfi.state = state;
+        wfi.waitMode = waitMode;
+        wfi.cid2ResponseMap = new HashMap<String, String>();
+        for (String cid : correlationIds) {
+            wfi.cid2ResponseMap.put(cid, null);
+        }
+        return wfi;
+    }
 }
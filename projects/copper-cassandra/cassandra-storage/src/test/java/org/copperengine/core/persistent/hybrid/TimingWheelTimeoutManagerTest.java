@@ -0,0 +1,77 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.persistent.hybrid;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimingWheelTimeoutManagerTest {
+
+    @Test(expected = IllegalStateException.class)
+    public void testNotStarted() {
+        new TimingWheelTimeoutManager().registerTimeout(new Date(), "wf1", new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+    }
+
+    @Test
+    public void testTimeouts() throws Exception {
+        final TimingWheelTimeoutManager timeoutManager = new TimingWheelTimeoutManager(10, 64);
+        timeoutManager.startup();
+        try {
+            final CountDownLatch latch = new CountDownLatch(2);
+            final AtomicInteger unregisteredCalls = new AtomicInteger();
+            final Date timeoutTS = new Date(System.currentTimeMillis() + 100);
+            timeoutManager.registerTimeout(timeoutTS, "wf1", new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                    // must not keep the other expired timeouts from being run
+                    throw new RuntimeException("TEST");
+                }
+            });
+            timeoutManager.registerTimeout(timeoutTS, "wf2", new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            });
+            timeoutManager.registerTimeout(timeoutTS, "wf3", new Runnable() {
+                @Override
+                public void run() {
+                    unregisteredCalls.incrementAndGet();
+                }
+            });
+            timeoutManager.unregisterTimeout(timeoutTS, "wf3");
+            // no timeout, nothing to register
+            timeoutManager.registerTimeout(null, "wf4", null);
+
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+            Thread.sleep(100);
+            Assert.assertEquals(0, unregisteredCalls.get());
+        } finally {
+            timeoutManager.shutdown();
+        }
+    }
+
+}
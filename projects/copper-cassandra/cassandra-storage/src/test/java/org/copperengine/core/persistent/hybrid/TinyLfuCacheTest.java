@@ -0,0 +1,95 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.persistent.hybrid;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TinyLfuCacheTest {
+
+    private static final TinyLfuCache.Weigher<String, String> WEIGHER = new TinyLfuCache.Weigher<String, String>() {
+        @Override
+        public long weigh(String key, String value) {
+            return value.length();
+        }
+    };
+
+    @Test
+    public void testWeightBound() {
+        final TinyLfuCache<String, String> cache = new TinyLfuCache<>(1000, 100, WEIGHER);
+        for (int i = 0; i < 1000; i++) {
+            cache.put("k" + i, "0123456789");
+            Assert.assertTrue(cache.getWeight() <= 1000);
+        }
+        Assert.assertTrue(cache.size() <= 100);
+        Assert.assertTrue(cache.getNumberOfEvictions() >= 900);
+
+        cache.setMaxWeight(500);
+        Assert.assertTrue(cache.getWeight() <= 500);
+        Assert.assertEquals(cache.getWeight(), 10L * cache.size());
+    }
+
+    @Test
+    public void testScanResistance() {
+        final TinyLfuCache<String, String> cache = new TinyLfuCache<>(1000, 100, WEIGHER);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                final String key = "hot" + i;
+                if (cache.get(key) == null) {
+                    cache.put(key, "0123456789");
+                }
+            }
+        }
+        // a scan of entries that are read once must not displace the frequently read entries
+        for (int i = 0; i < 10000; i++) {
+            final String key = "cold" + i;
+            if (cache.get(key) == null) {
+                cache.put(key, "0123456789");
+            }
+        }
+        int hits = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.get("hot" + i) != null)
+                hits++;
+        }
+        Assert.assertTrue("hits=" + hits, hits >= 45);
+    }
+
+    @Test
+    public void testPutAndRemove() {
+        final TinyLfuCache<String, String> cache = new TinyLfuCache<>(1000, 100, WEIGHER);
+        cache.put("a", "12345");
+        Assert.assertEquals("12345", cache.get("a"));
+        cache.put("a", "1234567890");
+        Assert.assertEquals("1234567890", cache.get("a"));
+        Assert.assertEquals(10, cache.getWeight());
+        cache.remove("a");
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void testRejectOversizedEntries() {
+        final TinyLfuCache<String, String> cache = new TinyLfuCache<>(10, 10, WEIGHER);
+        cache.put("a", "12345");
+        cache.put("a", "12345678901");
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(1, cache.getNumberOfRejections());
+        Assert.assertEquals(0, cache.getWeight());
+    }
+
+}
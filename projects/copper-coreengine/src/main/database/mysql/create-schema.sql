@@ -79,6 +79,10 @@ create index IDX_COP_WAIT_WFI_ID on COP_WAIT (
    WORKFLOW_INSTANCE_ID
 );
 
+create index IDX_COP_WAIT_TIMEOUT_TS on COP_WAIT (
+   TIMEOUT_TS
+);
+
 ALTER TABLE COP_WAIT ADD FOREIGN KEY (WORKFLOW_INSTANCE_ID) REFERENCES COP_WORKFLOW_INSTANCE (ID);
 
 --
@@ -87,6 +87,11 @@ create index IDX_COP_WAIT_WFI_ID on COP_WAIT (
 )
 storage (buffer_pool keep);
 
+create index IDX_COP_WAIT_TIMEOUT_TS on COP_WAIT (
+   TIMEOUT_TS
+)
+storage (buffer_pool keep);
+
 --
 -- COP_QUEUE
 --
@@ -0,0 +1,4 @@
+--
+-- due timeouts for the incremental queue state update, see ScottyDBStorage.setIncrementalQueueStateUpdate
+--
+create index IDX_COP_WAIT_TIMEOUT_TS on COP_WAIT (TIMEOUT_TS) storage (buffer_pool keep);
@@ -18,6 +18,8 @@ create table COP_WORKFLOW_INSTANCE  (
    PPOOL_ID      		VARCHAR(32) not null,
    DATA					TEXT null,
    OBJECT_STATE			TEXT null,
+   DATA_BIN				BYTEA null,
+   OBJECT_STATE_BIN		BYTEA null,
    CS_WAITMODE			SMALLINT,
    MIN_NUMB_OF_RESP		SMALLINT,
    NUMB_OF_WAITS		SMALLINT,
@@ -77,6 +79,10 @@ create index IDX_COP_WAIT_WFI_ID on COP_WAIT (
    WORKFLOW_INSTANCE_ID
 );
 
+create index IDX_COP_WAIT_TIMEOUT_TS on COP_WAIT (
+   TIMEOUT_TS
+);
+
 ALTER TABLE COP_WAIT ADD FOREIGN KEY (WORKFLOW_INSTANCE_ID) REFERENCES COP_WORKFLOW_INSTANCE (ID);
 
 --
@@ -0,0 +1,10 @@
+--
+-- binary workflow state, see AbstractSqlDialect.setBinaryWorkflowState
+--
+alter table COP_WORKFLOW_INSTANCE add DATA_BIN BYTEA NULL;
+alter table COP_WORKFLOW_INSTANCE add OBJECT_STATE_BIN BYTEA NULL;
+
+--
+-- due timeouts for the incremental queue state update, see ScottyDBStorage.setIncrementalQueueStateUpdate
+--
+create index IDX_COP_WAIT_TIMEOUT_TS on COP_WAIT (TIMEOUT_TS);
@@ -223,4 +223,19 @@ public abstract class AbstractAuditTrail implements AuditTrail, AuditTrailMXBean
         return dataSource;
     }
 
+    protected List<Property2ColumnMapping> getMapping() {
+        return mapping;
+    }
+
+    /**
+     * @return the read methods of the mapped properties in the order of {@link #getMapping()}, available after startup
+     */
+    protected List<Method> getPropertyGetters() {
+        return propertyGetters;
+    }
+
+    protected boolean isOracle() {
+        return isOracle;
+    }
+
 }
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.audit;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.copperengine.core.Acknowledge;
+import org.copperengine.core.db.utility.JdbcUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Audit trail with its own ingestion pipeline, independent of the COPPER batcher.
+ * <p>
+ * Events are put into a bounded queue. If the queue is full, the caller is blocked or the event is dropped, depending
+ * on the {@link OverflowPolicy}. Writer threads take the events in batches of up to <code>batchSize</code>, apply the
+ * {@link MessagePostProcessor} (e.g. compression) and write the batch in one transaction on a connection they keep.
+ * On PostgreSQL the batch is loaded with <code>COPY</code>, on other databases with a cached prepared statement and a
+ * JDBC batch. If a batch fails, its events are written one by one, so a single bad event does not fail the others.
+ */
+public class AsyncAuditTrail extends AbstractAuditTrail {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncAuditTrail.class);
+
+    /**
+     * What to do with an asynchronously logged event, if the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * wait until there is space in the queue
+         */
+        BLOCK,
+        /**
+         * drop the event and report a {@link RejectedExecutionException} to its callback
+         */
+        DROP
+    }
+
+    private static final class Entry {
+        final AuditTrailEvent event;
+        final Acknowledge ack;
+
+        Entry(AuditTrailEvent event, Acknowledge ack) {
+            this.event = event;
+            this.ack = ack;
+        }
+    }
+
+    private int capacity = 10000;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private int batchSize = 500;
+    private int numberOfWriterThreads = 1;
+    private boolean bulkLoad = true;
+
+    private BlockingQueue<Entry> queue;
+    private final List<Thread> writerThreads = new ArrayList<Thread>();
+    private volatile boolean running = false;
+    private final LongAdder droppedEvents = new LongAdder();
+    private final LongAdder writtenEvents = new LongAdder();
+    private final LongAdder failedEvents = new LongAdder();
+
+    /**
+     * Sets the maximum number of events waiting to be written. Default is 10000.
+     */
+    public void setCapacity(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException();
+        this.capacity = capacity;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == null)
+            throw new NullPointerException();
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Sets the maximum number of events written in one transaction. Default is 500.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0)
+            throw new IllegalArgumentException();
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the number of writer threads, each of them holding one connection of the data source. Default is 1.
+     */
+    public void setNumberOfWriterThreads(int numberOfWriterThreads) {
+        if (numberOfWriterThreads <= 0)
+            throw new IllegalArgumentException();
+        this.numberOfWriterThreads = numberOfWriterThreads;
+    }
+
+    /**
+     * Enables the bulk load path of the database, currently <code>COPY</code> on PostgreSQL. Default is true.
+     */
+    public void setBulkLoad(boolean bulkLoad) {
+        this.bulkLoad = bulkLoad;
+    }
+
+    @Override
+    public synchronized void startup() throws Exception {
+        if (running)
+            return;
+        super.startup();
+        final boolean useCopy = bulkLoad && !isOracle() && isPostgreSQLWithCopy();
+        logger.info("Using {} to write audit trail events", useCopy ? "COPY" : "JDBC batch insert");
+        queue = new ArrayBlockingQueue<Entry>(capacity);
+        running = true;
+        for (int i = 0; i < numberOfWriterThreads; i++) {
+            final AuditTrailWriter writer = useCopy ? new PostgreSQLCopyAuditTrailWriter(getDataSource(), getDbTable(), getMapping(), getPropertyGetters()) : new JdbcAuditTrailWriter(getDataSource(), getSqlStmt(), isOracle(), getPropertyGetters());
+            final Thread t = new Thread("AuditTrail.Writer#" + i) {
+                @Override
+                public void run() {
+                    AsyncAuditTrail.this.run(writer);
+                }
+            };
+            t.setDaemon(true);
+            writerThreads.add(t);
+            t.start();
+        }
+    }
+
+    private boolean isPostgreSQLWithCopy() throws Exception {
+        final Connection con = getDataSource().getConnection();
+        try {
+            return con.getMetaData().getDatabaseProductName().equalsIgnoreCase("postgresql") && PostgreSQLCopyAuditTrailWriter.isSupported(con);
+        } finally {
+            JdbcUtils.closeConnection(con);
+        }
+    }
+
+    /**
+     * Stops accepting events, writes the events still queued and stops the writer threads.
+     */
+    public synchronized void shutdown() {
+        if (!running)
+            return;
+        running = false;
+        for (Thread t : writerThreads) {
+            try {
+                t.join(30000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        writerThreads.clear();
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            droppedEvents.increment();
+            entry.ack.onException(new IllegalStateException("audit trail is not running"));
+        }
+    }
+
+    /**
+     * returns immediately after queueing the log message, or drops it if the queue is full and the overflow policy is
+     * {@link OverflowPolicy#DROP}
+     *
+     * @param e
+     *            the AuditTrailEvent to be logged
+     */
+    public void asynchLog(AuditTrailEvent e) {
+        doLog(e, new Acknowledge.BestEffortAcknowledge(), false);
+    }
+
+    /**
+     * returns immediately after queueing the log message, or drops it if the queue is full and the overflow policy is
+     * {@link OverflowPolicy#DROP}
+     *
+     * @param e
+     *            the AuditTrailEvent to be logged
+     * @param cb
+     *            callback called when logging succeeded or failed.
+     */
+    public void asynchLog(final AuditTrailEvent e, final AuditTrailCallback cb) {
+        doLog(e, new Acknowledge() {
+            @Override
+            public void onSuccess() {
+                cb.done();
+            }
+
+            @Override
+            public void onException(Throwable t) {
+                cb.error(t instanceof Exception ? (Exception) t : new RuntimeException(t));
+            }
+        }, false);
+    }
+
+    @Override
+    public void synchLog(final AuditTrailEvent event) {
+        Acknowledge.DefaultAcknowledge ack = new Acknowledge.DefaultAcknowledge();
+        if (doLog(event, ack, true)) {
+            ack.waitForAcknowledge();
+        }
+    }
+
+    protected boolean doLog(AuditTrailEvent e, Acknowledge ack, boolean block) {
+        if (!isEnabled(e.logLevel))
+            return false;
+        if (!running) {
+            logger.warn("audit trail is not running - dropping {}", e);
+            droppedEvents.increment();
+            ack.onException(new IllegalStateException("audit trail is not running"));
+            return true;
+        }
+        final Entry entry = new Entry(e, ack);
+        if (block || overflowPolicy == OverflowPolicy.BLOCK) {
+            try {
+                queue.put(entry);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                droppedEvents.increment();
+                ack.onException(ie);
+                return true;
+            }
+        } else if (!queue.offer(entry)) {
+            droppedEvents.increment();
+            ack.onException(new RejectedExecutionException("audit trail queue is full"));
+            return true;
+        }
+        // shutdown might have drained the queue for the last time between the check above and the put. Whoever
+        // removes the entry from the queue completes its acknowledge.
+        if (!running && queue.remove(entry)) {
+            droppedEvents.increment();
+            fail(entry, new IllegalStateException("audit trail is not running"));
+        }
+        return true;
+    }
+
+    private void run(final AuditTrailWriter writer) {
+        logger.info("started");
+        final List<Entry> batch = new ArrayList<Entry>(batchSize);
+        final List<Entry> entries = new ArrayList<Entry>(batchSize);
+        final List<AuditTrailEvent> events = new ArrayList<AuditTrailEvent>(batchSize);
+        final List<String> messages = new ArrayList<String>(batchSize);
+        try {
+            while (running || !queue.isEmpty()) {
+                final Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                for (Entry entry : batch) {
+                    // the caller's event keeps its message, only the written value is serialized
+                    final String message;
+                    try {
+                        message = messagePostProcessor.serialize(entry.event.getMessage());
+                    } catch (RuntimeException e) {
+                        logger.error("serializing audit trail event failed", e);
+                        failedEvents.increment();
+                        fail(entry, e);
+                        continue;
+                    }
+                    entries.add(entry);
+                    events.add(entry.event);
+                    messages.add(message);
+                }
+                if (!entries.isEmpty()) {
+                    write(writer, entries, events, messages);
+                }
+                batch.clear();
+                entries.clear();
+                events.clear();
+                messages.clear();
+            }
+        } catch (InterruptedException e) {
+            logger.warn("interrupted");
+        } finally {
+            writer.close();
+        }
+        logger.info("stopped");
+    }
+
+    private void write(final AuditTrailWriter writer, final List<Entry> entries, final List<AuditTrailEvent> events, final List<String> messages) {
+        try {
+            writer.write(events, messages);
+            writtenEvents.add(entries.size());
+            for (Entry entry : entries) {
+                succeed(entry);
+            }
+            return;
+        } catch (Exception e) {
+            if (entries.size() == 1) {
+                logger.error("writing audit trail event failed", e);
+                failedEvents.increment();
+                fail(entries.get(0), e);
+                return;
+            }
+            logger.warn("writing " + entries.size() + " audit trail events failed - writing them one by one", e);
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            final Entry entry = entries.get(i);
+            try {
+                writer.write(Collections.singletonList(entry.event), Collections.singletonList(messages.get(i)));
+            } catch (Exception e) {
+                logger.error("writing audit trail event failed", e);
+                failedEvents.increment();
+                fail(entry, e);
+                continue;
+            }
+            writtenEvents.increment();
+            succeed(entry);
+        }
+    }
+
+    private static void succeed(Entry entry) {
+        try {
+            entry.ack.onSuccess();
+        } catch (RuntimeException e) {
+            logger.error("audit trail callback failed", e);
+        }
+    }
+
+    private static void fail(Entry entry, Exception exception) {
+        try {
+            entry.ack.onException(exception);
+        } catch (RuntimeException e) {
+            logger.error("audit trail callback failed", e);
+        }
+    }
+
+    /**
+     * @return the number of events waiting to be written
+     */
+    public int getQueueSize() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    public long getDroppedEvents() {
+        return droppedEvents.sum();
+    }
+
+    public long getWrittenEvents() {
+        return writtenEvents.sum();
+    }
+
+    public long getFailedEvents() {
+        return failedEvents.sum();
+    }
+
+}
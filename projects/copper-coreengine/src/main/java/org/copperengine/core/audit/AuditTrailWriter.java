@@ -0,0 +1,97 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.audit;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.copperengine.core.db.utility.JdbcUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes batches of audit trail events for one writer thread of the {@link AsyncAuditTrail}. The writer keeps its
+ * connection and statements between batches and reopens them after a failure.
+ */
+abstract class AuditTrailWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(AuditTrailWriter.class);
+
+    private final DataSource dataSource;
+    private Connection connection;
+
+    AuditTrailWriter(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Writes and commits the events.
+     *
+     * @param messages
+     *        the serialized message of each event, written instead of the event's own message
+     */
+    void write(List<AuditTrailEvent> events, List<String> messages) throws Exception {
+        if (connection == null) {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+        }
+        try {
+            doWrite(connection, events, messages);
+            connection.commit();
+        } catch (Exception e) {
+            close();
+            throw e;
+        }
+    }
+
+    void close() {
+        if (connection == null)
+            return;
+        closeStatements();
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            logger.debug("rollback failed", e);
+        }
+        JdbcUtils.closeConnection(connection);
+        connection = null;
+    }
+
+    protected abstract void doWrite(Connection con, List<AuditTrailEvent> events, List<String> messages) throws Exception;
+
+    /**
+     * @return the value of the mapped property, or <code>message</code> for the message property
+     */
+    static Object getValue(Method getter, AuditTrailEvent data, String message) throws Exception {
+        if (getter.getName().equals("getMessage") && getter.getParameterTypes().length == 0) {
+            return message;
+        }
+        if (getter.getDeclaringClass().isInstance(data)) {
+            return getter.invoke(data, (Object[]) null);
+        }
+        return null;
+    }
+
+    /**
+     * Closes the statements cached for the current connection.
+     */
+    protected abstract void closeStatements();
+
+}
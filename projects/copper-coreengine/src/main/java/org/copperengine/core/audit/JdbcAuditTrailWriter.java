@@ -0,0 +1,93 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.audit;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Date;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.copperengine.core.db.utility.JdbcUtils;
+
+/**
+ * Writes audit trail events with a JDBC batch insert. The prepared statement is kept for the lifetime of the
+ * connection and the JDBC types of the mapped properties are determined once. On Oracle, the driver executes the batch
+ * as an array insert.
+ */
+class JdbcAuditTrailWriter extends AuditTrailWriter {
+
+    private final String sqlStmt;
+    private final boolean isOracle;
+    private final Method[] getters;
+    private final int[] jdbcTypes;
+    private PreparedStatement stmt;
+
+    JdbcAuditTrailWriter(DataSource dataSource, String sqlStmt, boolean isOracle, List<Method> propertyGetters) {
+        super(dataSource);
+        this.sqlStmt = sqlStmt;
+        this.isOracle = isOracle;
+        this.getters = propertyGetters.toArray(new Method[propertyGetters.size()]);
+        this.jdbcTypes = new int[getters.length];
+        for (int i = 0; i < getters.length; i++) {
+            jdbcTypes[i] = BatchInsertIntoAutoTrail.guessJdbcType(getters[i]);
+        }
+    }
+
+    @Override
+    protected void doWrite(Connection con, List<AuditTrailEvent> events, List<String> messages) throws Exception {
+        if (stmt == null) {
+            stmt = con.prepareStatement(sqlStmt);
+        }
+        for (int j = 0; j < events.size(); j++) {
+            final AuditTrailEvent data = events.get(j);
+            int idx = 1;
+            if (isOracle) {
+                if (data.getSequenceId() == null) {
+                    stmt.setNull(idx++, Types.NUMERIC);
+                } else {
+                    stmt.setLong(idx++, data.getSequenceId().longValue());
+                }
+            } else if (data.getSequenceId() != null) {
+                throw new UnsupportedOperationException("Custom SequenceId currently not supported for this DBMS");
+            }
+            for (int i = 0; i < getters.length; i++) {
+                Object value = getValue(getters[i], data, messages.get(j));
+                if (value == null) {
+                    stmt.setNull(idx++, jdbcTypes[i]);
+                } else {
+                    if (value instanceof Date && !(value instanceof Timestamp)) {
+                        value = new Timestamp(((Date) value).getTime());
+                    }
+                    stmt.setObject(idx++, value, jdbcTypes[i]);
+                }
+            }
+            stmt.addBatch();
+        }
+        stmt.executeBatch();
+    }
+
+    @Override
+    protected void closeStatements() {
+        JdbcUtils.closeStatement(stmt);
+        stmt = null;
+    }
+
+}
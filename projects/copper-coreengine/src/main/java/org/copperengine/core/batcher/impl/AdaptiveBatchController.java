@@ -0,0 +1,268 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.batcher.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.copperengine.core.batcher.BatchExecutorBase;
+import org.copperengine.management.model.BatchExecutorInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the batching statistics of a {@link BatcherImpl} and, if adaptive batching is enabled, periodically tunes
+ * the preferred batch size and linger time of each executor and the number of batcher threads against a target
+ * latency.
+ */
+class AdaptiveBatchController extends Thread {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveBatchController.class);
+
+    /**
+     * Statistics and current batching parameters of one executor. The queue reads the parameters while holding its
+     * lock, so they are volatile and only written by the controller, or reset when adaptive batching is turned off.
+     */
+    static final class ExecutorStatistics {
+
+        private static final double ALPHA = 0.3;
+
+        final String id;
+        final int configuredPreferredSize;
+        final int maximumSize;
+        private final LongAdder submitted = new LongAdder();
+        private volatile int preferredBatchSize;
+        private volatile long lingerMSec = Long.MAX_VALUE;
+
+        // sums since the last adjustment, guarded by this
+        private int batches;
+        private long commands;
+        private long waitMSec;
+        private int executions;
+        private long executionNanos;
+
+        private double averageBatchSize;
+        private double averageWaitMSec;
+        private double averageExecutionMSec;
+        private double commandsPerSecond;
+
+        ExecutorStatistics(BatchExecutorBase<?, ?> executor) {
+            this.id = executor.id();
+            this.configuredPreferredSize = executor.preferredBatchSize();
+            this.maximumSize = executor.maximumBatchSize();
+            this.preferredBatchSize = configuredPreferredSize;
+        }
+
+        int getPreferredBatchSize() {
+            return preferredBatchSize;
+        }
+
+        synchronized void reset() {
+            preferredBatchSize = configuredPreferredSize;
+            lingerMSec = Long.MAX_VALUE;
+        }
+
+        /**
+         * @return the time a command waits at most for further commands, <code>Long.MAX_VALUE</code> if only the
+         *         target time of the commands applies
+         */
+        long getLingerMSec() {
+            return lingerMSec;
+        }
+
+        void submitted() {
+            submitted.increment();
+        }
+
+        synchronized void dequeued(int size, long waitMSec) {
+            this.batches++;
+            this.commands += size;
+            this.waitMSec += waitMSec;
+        }
+
+        synchronized void executed(long nanos) {
+            this.executions++;
+            this.executionNanos += nanos;
+        }
+
+        synchronized void adjust(long intervalMSec, long targetLatencyMSec, boolean adaptive) {
+            commandsPerSecond = average(commandsPerSecond, submitted.sumThenReset() * 1000.0 / intervalMSec);
+            final boolean active = batches > 0 && executions > 0;
+            if (batches > 0) {
+                averageBatchSize = average(averageBatchSize, commands / (double) batches);
+                averageWaitMSec = average(averageWaitMSec, waitMSec / (double) batches);
+            }
+            if (executions > 0) {
+                averageExecutionMSec = average(averageExecutionMSec, executionNanos / 1000000.0 / executions);
+            }
+            batches = 0;
+            commands = 0;
+            waitMSec = 0;
+            executions = 0;
+            executionNanos = 0;
+
+            if (!adaptive) {
+                preferredBatchSize = configuredPreferredSize;
+                lingerMSec = Long.MAX_VALUE;
+                return;
+            }
+            if (!active)
+                return;
+
+            int preferred = preferredBatchSize;
+            if (averageWaitMSec + averageExecutionMSec > targetLatencyMSec && averageExecutionMSec > targetLatencyMSec / 2.0) {
+                // the database is the bottleneck - smaller batches keep the latency down
+                preferred = Math.max(1, preferred * 3 / 4);
+            } else if (averageBatchSize >= preferred * 0.9 && averageExecutionMSec < targetLatencyMSec / 2.0) {
+                // batches fill up and are executed fast - the database can absorb larger ones
+                preferred = Math.min(maximumSize, preferred + Math.max(1, preferred / 4));
+            }
+            preferredBatchSize = preferred;
+
+            // linger only as long as it takes to collect a preferred batch and as the latency budget permits
+            final double commandsPerMSec = commandsPerSecond / 1000.0;
+            final double budgetMSec = targetLatencyMSec - averageExecutionMSec;
+            if (budgetMSec <= 0 || commandsPerMSec * budgetMSec < 2.0) {
+                lingerMSec = 0;
+            } else {
+                lingerMSec = (long) Math.min(budgetMSec, preferred / commandsPerMSec);
+            }
+        }
+
+        synchronized double getAverageExecutionMSec() {
+            return averageExecutionMSec;
+        }
+
+        synchronized BatchExecutorInfo toInfo() {
+            final long linger = lingerMSec;
+            return new BatchExecutorInfo(id, preferredBatchSize, maximumSize, linger == Long.MAX_VALUE ? -1 : linger, averageBatchSize, averageWaitMSec, averageExecutionMSec, commandsPerSecond);
+        }
+
+        private static double average(double average, double sample) {
+            return average == 0.0 ? sample : average + ALPHA * (sample - average);
+        }
+    }
+
+    private final BatcherImpl batcher;
+    private final ConcurrentMap<BatchExecutorBase<?, ?>, ExecutorStatistics> statistics = new ConcurrentHashMap<BatchExecutorBase<?, ?>, ExecutorStatistics>();
+    private final LongAdder busyNanos = new LongAdder();
+    private volatile boolean adaptive = false;
+    private volatile long targetLatencyMSec = 50;
+    private volatile long intervalMSec = 1000;
+    private volatile boolean shutdown = false;
+
+    AdaptiveBatchController(BatcherImpl batcher) {
+        super("Batcher.Controller");
+        this.batcher = batcher;
+        this.setDaemon(true);
+    }
+
+    boolean isAdaptive() {
+        return adaptive;
+    }
+
+    void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+        if (!adaptive) {
+            for (ExecutorStatistics s : statistics.values()) {
+                s.reset();
+            }
+        }
+    }
+
+    long getTargetLatencyMSec() {
+        return targetLatencyMSec;
+    }
+
+    void setTargetLatencyMSec(long targetLatencyMSec) {
+        if (targetLatencyMSec <= 0)
+            throw new IllegalArgumentException("targetLatencyMSec must be > 0");
+        this.targetLatencyMSec = targetLatencyMSec;
+    }
+
+    void setIntervalMSec(long intervalMSec) {
+        if (intervalMSec <= 0)
+            throw new IllegalArgumentException("intervalMSec must be > 0");
+        this.intervalMSec = intervalMSec;
+    }
+
+    ExecutorStatistics getStatistics(BatchExecutorBase<?, ?> executor) {
+        ExecutorStatistics s = statistics.get(executor);
+        if (s == null) {
+            s = new ExecutorStatistics(executor);
+            ExecutorStatistics existing = statistics.putIfAbsent(executor, s);
+            if (existing != null)
+                s = existing;
+        }
+        return s;
+    }
+
+    void executed(BatchExecutorBase<?, ?> executor, long nanos) {
+        busyNanos.add(nanos);
+        getStatistics(executor).executed(nanos);
+    }
+
+    List<BatchExecutorInfo> getBatchExecutorInfos() {
+        List<BatchExecutorInfo> infos = new ArrayList<BatchExecutorInfo>(statistics.size());
+        for (ExecutorStatistics s : statistics.values()) {
+            infos.add(s.toInfo());
+        }
+        return infos;
+    }
+
+    void shutdown() {
+        shutdown = true;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        long lastAdjustTS = System.currentTimeMillis();
+        while (!shutdown) {
+            try {
+                Thread.sleep(intervalMSec);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            final long now = System.currentTimeMillis();
+            try {
+                adjust(Math.max(1, now - lastAdjustTS));
+            } catch (RuntimeException e) {
+                logger.error("adjust failed", e);
+            }
+            lastAdjustTS = now;
+        }
+    }
+
+    void adjust(long elapsedMSec) {
+        final boolean adaptive = this.adaptive;
+        final long targetLatencyMSec = this.targetLatencyMSec;
+        boolean databaseHasCapacity = true;
+        for (ExecutorStatistics s : statistics.values()) {
+            s.adjust(elapsedMSec, targetLatencyMSec, adaptive);
+            if (s.getAverageExecutionMSec() > targetLatencyMSec / 2.0)
+                databaseHasCapacity = false;
+        }
+        final double utilization = busyNanos.sumThenReset() / (elapsedMSec * 1000000.0 * batcher.getEffectiveNumThreads());
+        if (adaptive) {
+            batcher.adjustNumThreads(utilization, databaseHasCapacity);
+        }
+    }
+
+}
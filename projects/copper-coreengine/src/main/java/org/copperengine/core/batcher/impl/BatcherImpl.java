@@ -28,6 +28,7 @@ import org.copperengine.core.batcher.impl.BatcherQueue.State;
 import org.copperengine.core.monitoring.NullRuntimeStatisticsCollector;
 import org.copperengine.core.monitoring.RuntimeStatisticsCollector;
 import org.copperengine.management.BatcherMXBean;
+import org.copperengine.management.model.BatchExecutorInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,11 +44,10 @@ public class BatcherImpl implements Batcher, BatcherMXBean {
     private class WorkerThread extends Thread {
 
         boolean started = false;
-        boolean stop = false;
 
         @SuppressWarnings({ "rawtypes", "unchecked" })
         public void run() {
-            while (!stop) {
+            for (;;) {
                 if (!started) {
                     synchronized (this) {
                         started = true;
@@ -60,10 +60,22 @@ public class BatcherImpl implements Batcher, BatcherMXBean {
                     if (commands == null) {
                         return;
                     }
+                    if (commands.isEmpty()) {
+                        // woken up while idle
+                        if (tooManyThreads && retire(this)) {
+                            return;
+                        }
+                        continue;
+                    }
                     final BatchExecutorBase e = commands.get(0).executor();
-                    final long startTS = System.currentTimeMillis();
+                    final long startTS = System.nanoTime();
                     batchRunner.run(commands, e);
-                    statisticsCollector.submit(e.id(), commands.size(), System.currentTimeMillis() - startTS, TimeUnit.MILLISECONDS);
+                    final long nanos = System.nanoTime() - startTS;
+                    statisticsCollector.submit(e.id(), commands.size(), TimeUnit.NANOSECONDS.toMillis(nanos), TimeUnit.MILLISECONDS);
+                    controller.executed(e, nanos);
+                    if (tooManyThreads && retire(this)) {
+                        return;
+                    }
 
                 } catch (InterruptedException e) {
                     logger.warn("Interrupted", e);
@@ -77,10 +89,16 @@ public class BatcherImpl implements Batcher, BatcherMXBean {
         }
     }
 
-    BatcherQueue queue = new BatcherQueue();
+    final AdaptiveBatchController controller = new AdaptiveBatchController(this);
+    BatcherQueue queue = new BatcherQueue(controller);
     private RuntimeStatisticsCollector statisticsCollector = new NullRuntimeStatisticsCollector();
     private List<WorkerThread> threads = new ArrayList<WorkerThread>();
+    private volatile boolean tooManyThreads = false;
+    private int workerCount = 0;
     private int numThreads;
+    private int adaptiveNumThreads;
+    private int minThreads = 1;
+    private int maxThreads = 32;
     @SuppressWarnings("rawtypes")
     private BatchRunner batchRunner;
 
@@ -112,33 +130,174 @@ public class BatcherImpl implements Batcher, BatcherMXBean {
         this.statisticsCollector = statisticsCollector;
     }
 
+    /**
+     * If adaptive batching is enabled, the batcher adjusts the preferred batch size and the linger time of each batch
+     * executor and the number of batcher threads at runtime, based on the observed execution times, to meet the
+     * target latency. The linger time never exceeds the target time of a command. Default is <code>false</code>.
+     *
+     * @param adaptive
+     *        true to enable adaptive batching
+     */
+    public synchronized void setAdaptive(boolean adaptive) {
+        if (adaptive && !controller.isAdaptive()) {
+            adaptiveNumThreads = Math.max(minThreads, Math.min(maxThreads, numThreads));
+        }
+        controller.setAdaptive(adaptive);
+        if (!adaptive) {
+            queue.resetPreferredSizes();
+        }
+        if (!threads.isEmpty()) {
+            try {
+                adjustNumberOfThreads();
+            } catch (InterruptedException e) {
+                logger.error("setAdaptive failed", e);
+            }
+        }
+    }
+
+    public boolean isAdaptive() {
+        return controller.isAdaptive();
+    }
+
+    /**
+     * Sets the latency from submitting a command until its batch is executed, that adaptive batching aims for.
+     * Default is 50 msec.
+     *
+     * @param targetLatencyMSec
+     *        the target latency in milliseconds
+     */
+    public void setTargetLatencyMSec(long targetLatencyMSec) {
+        controller.setTargetLatencyMSec(targetLatencyMSec);
+    }
+
+    public long getTargetLatencyMSec() {
+        return controller.getTargetLatencyMSec();
+    }
+
+    /**
+     * Sets the interval of the adaptive batching adjustments. Default is 1000 msec.
+     *
+     * @param adjustmentIntervalMSec
+     *        the interval in milliseconds
+     */
+    public void setAdjustmentIntervalMSec(long adjustmentIntervalMSec) {
+        controller.setIntervalMSec(adjustmentIntervalMSec);
+    }
+
+    /**
+     * @param minThreads
+     *        the minimum number of threads when batching adaptively, default is 1
+     */
+    public synchronized void setMinThreads(int minThreads) {
+        if (minThreads <= 0 || minThreads > maxThreads)
+            throw new IllegalArgumentException();
+        this.minThreads = minThreads;
+    }
+
+    public synchronized int getMinThreads() {
+        return minThreads;
+    }
+
+    /**
+     * @param maxThreads
+     *        the maximum number of threads when batching adaptively, default is 32
+     */
+    public synchronized void setMaxThreads(int maxThreads) {
+        if (maxThreads < minThreads || maxThreads > 200)
+            throw new IllegalArgumentException();
+        this.maxThreads = maxThreads;
+    }
+
+    public synchronized int getMaxThreads() {
+        return maxThreads;
+    }
+
+    @Override
+    public List<BatchExecutorInfo> getBatchExecutorInfos() {
+        return controller.getBatchExecutorInfos();
+    }
+
+    /**
+     * @return the number of threads the batcher currently aims for, i.e. the configured number of threads or, when
+     *         batching adaptively, the number of threads set by the adaptive batching
+     */
+    synchronized int getEffectiveNumThreads() {
+        return controller.isAdaptive() ? adaptiveNumThreads : numThreads;
+    }
+
+    /**
+     * Adds a thread if the threads are busy, commands are queued and the database executes batches fast enough,
+     * removes a thread if the threads are mostly idle. The configured number of threads is left unchanged and applies
+     * again when adaptive batching is turned off.
+     */
+    synchronized void adjustNumThreads(double utilization, boolean databaseHasCapacity) {
+        int newNumThreads = Math.max(minThreads, Math.min(maxThreads, adaptiveNumThreads));
+        if (utilization > 0.8 && databaseHasCapacity && queue.size() > 0 && newNumThreads < maxThreads) {
+            newNumThreads++;
+        } else if (utilization < 0.2 && newNumThreads > minThreads) {
+            newNumThreads--;
+        }
+        if (newNumThreads != adaptiveNumThreads) {
+            logger.info("Adjusting number of batcher threads from {} to {}, utilization={}", adaptiveNumThreads, newNumThreads, utilization);
+            adaptiveNumThreads = newNumThreads;
+        }
+        if (threads.size() != getEffectiveNumThreads()) {
+            try {
+                adjustNumberOfThreads();
+            } catch (InterruptedException e) {
+                logger.error("adjustNumThreads failed", e);
+            }
+        }
+    }
+
+    /**
+     * Starts missing threads. Surplus threads are not stopped here, as they might be executing a batch. Instead, the
+     * idle ones are woken up and each thread retires when it is idle or has finished a batch, see
+     * {@link #retire(WorkerThread)}.
+     */
     private synchronized void adjustNumberOfThreads() throws InterruptedException {
+        final int numThreads = getEffectiveNumThreads();
         while (threads.size() < numThreads) {
             logger.info("Starting new batcher thread...");
             WorkerThread thread = new WorkerThread();
-            thread.setName("Batcher.Worker#" + (threads.size() + 1));
+            thread.setName("Batcher.Worker#" + (++workerCount));
             thread.start();
             thread.waitForStartup();
             threads.add(thread);
             logger.info("Done, starting new batcher thread.");
         }
-        while (threads.size() > numThreads) {
-            logger.info("Stopping batcher thread...");
-            WorkerThread thread = threads.remove(threads.size() - 1);
-            thread.stop = true;
-            thread.interrupt();
-            thread.join();
-            logger.info("Done, stopping batcher thread.");
+        tooManyThreads = threads.size() > numThreads;
+        if (tooManyThreads) {
+            logger.info("Stopping {} batcher thread(s)...", threads.size() - numThreads);
+            queue.wakeupIdleThreads();
         }
     }
 
+    private synchronized boolean retire(WorkerThread thread) {
+        if (threads.size() <= getEffectiveNumThreads()) {
+            tooManyThreads = false;
+            return false;
+        }
+        threads.remove(thread);
+        tooManyThreads = threads.size() > getEffectiveNumThreads();
+        logger.info("Stopped batcher thread {}", thread.getName());
+        return true;
+    }
+
+    synchronized List<WorkerThread> getThreads() {
+        return new ArrayList<WorkerThread>(threads);
+    }
+
     private synchronized void start() throws InterruptedException {
         adjustNumberOfThreads();
+        controller.start();
     }
 
-    private synchronized void stop() throws InterruptedException {
+    private void stop() throws InterruptedException {
+        controller.shutdown();
         queue.stop();
-        for (Thread t : threads) {
+        // not joined while holding the lock, a thread might be retiring
+        for (Thread t : getThreads()) {
             t.join();
         }
     }
@@ -17,6 +17,7 @@ package org.copperengine.core.batcher.impl;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -53,14 +54,19 @@ class BatcherQueue {
         int maximumSize;
         BatchCommandArray batch;
         Condition signaller;
+        final AdaptiveBatchController.ExecutorStatistics statistics;
+        boolean adaptive;
+        // time the oldest command in the batch was added
+        long firstAddTS;
 
-        BatchInfo(BatchExecutorBase<?, ?> executor) {
+        BatchInfo(BatchExecutorBase<?, ?> executor, AdaptiveBatchController.ExecutorStatistics statistics) {
             this.preferredSize = executor.preferredBatchSize();
             this.maximumSize = executor.maximumBatchSize();
             if (maximumSize < preferredSize)
                 throw new IllegalArgumentException(
                         "Preferred batch size must not exceed maximum batch size");
             this.batch = new BatchCommandArray(executor.prioritize(), initialArraySize());
+            this.statistics = statistics;
         }
 
         int initialArraySize() {
@@ -69,6 +75,8 @@ class BatcherQueue {
 
         public List<BatchCommand<?, ?>> removeCommands(boolean stopped) {
             int batchSize = batch.size();
+            if (batchSize > 0)
+                statistics.dequeued(Math.min(batchSize, maximumSize), Math.max(0, System.currentTimeMillis() - firstAddTS));
             if (batchSize <= maximumSize) {
                 BatchCommandArray commands = this.batch;
                 minTargetTime = Long.MAX_VALUE;
@@ -82,7 +90,7 @@ class BatcherQueue {
             if (!stopped && batch.size() < preferredSize) {
                 minTargetTime = Long.MAX_VALUE;
                 if (batch.size() > 0)
-                    minTargetTime = batch.get(0).targetTime();
+                    minTargetTime = targetTime(batch.get(0));
             }
             signaller = null;
             return Arrays.asList(commands);
@@ -96,15 +104,33 @@ class BatcherQueue {
         /**
          * @return the new target time, if changed, else -1
          */
-        Long add(BatchCommand<?, ?> cmd) {
+        Long add(BatchCommand<?, ?> cmd, boolean adaptive) {
+            if (batch.size() == 0)
+                firstAddTS = System.currentTimeMillis();
             batch.add(cmd);
-            if (this.preferredSize == batch.size() && minTargetTime > 0)
+            statistics.submitted();
+            this.adaptive = adaptive;
+            preferredSize = adaptive ? Math.min(statistics.getPreferredBatchSize(), maximumSize) : statistics.configuredPreferredSize;
+            if (batch.size() >= this.preferredSize && minTargetTime > 0)
                 return (minTargetTime = 0);
-            if (cmd.targetTime() < minTargetTime)
-                return (minTargetTime = cmd.targetTime());
+            long targetTime = targetTime(cmd);
+            if (targetTime < minTargetTime)
+                return (minTargetTime = targetTime);
             return null;
         }
 
+        /**
+         * @return the target time of the command, limited by the linger time when batching adaptively
+         */
+        long targetTime(BatchCommand<?, ?> cmd) {
+            if (adaptive) {
+                long lingerMSec = statistics.getLingerMSec();
+                if (lingerMSec != Long.MAX_VALUE)
+                    return Math.min(cmd.targetTime(), firstAddTS + lingerMSec);
+            }
+            return cmd.targetTime();
+        }
+
     }
 
     Map<BatchExecutorBase<?, ?>, BatchInfo> batchMap;
@@ -113,9 +139,12 @@ class BatcherQueue {
     ArrayList<BatchInfo> batches;
     ReentrantLock lock;
     int numThreads;
+    int idleWakeups;
     State state;
+    final AdaptiveBatchController controller;
 
-    public BatcherQueue() {
+    public BatcherQueue(AdaptiveBatchController controller) {
+        this.controller = controller;
         this.numThreads = 0;
         lock = new ReentrantLock(false);
         batches = new ArrayList<BatchInfo>();
@@ -130,7 +159,7 @@ class BatcherQueue {
         try {
             BatchInfo batchInfo = batchMap.get(cmd.executor());
             if (batchInfo == null) {
-                batchInfo = new BatchInfo(cmd.executor());
+                batchInfo = new BatchInfo(cmd.executor(), controller.getStatistics(cmd.executor()));
                 batchMap.put(cmd.executor(), batchInfo);
                 batches.add(batchInfo);
             } else {
@@ -142,13 +171,29 @@ class BatcherQueue {
                     lock.lock();
                 }
             }
-            Long targetTime = batchInfo.add(cmd);
+            Long targetTime = batchInfo.add(cmd, controller.isAdaptive());
             enqueueBatch(batchInfo, targetTime);
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Resets the preferred size of all batches to the one configured by their executor, after adaptive batching has
+     * been turned off.
+     */
+    void resetPreferredSizes() {
+        lock.lock();
+        try {
+            for (BatchInfo x : batchMap.values()) {
+                x.preferredSize = x.statistics.configuredPreferredSize;
+                x.adaptive = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public int size() {
         lock.lock();
         try {
@@ -249,9 +294,29 @@ class BatcherQueue {
         }
     }
 
+    /**
+     * Wakes up the threads waiting in {@link #poll()} that have no batch assigned, their poll returns an empty list.
+     */
+    void wakeupIdleThreads() {
+        lock.lock();
+        try {
+            ++idleWakeups;
+            for (Condition cond : freeConditions) {
+                cond.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the next batch of commands, an empty list if the calling thread is idle and was woken up by
+     *         {@link #wakeupIdleThreads()}, or <code>null</code> if the queue is stopped
+     */
     public List<BatchCommand<?, ?>> poll() throws InterruptedException {
         lock.lockInterruptibly();
         try {
+            final int wakeups = idleWakeups;
             outerLoop: while (true) {
                 ++numThreads;
                 Condition myCondition = null;
@@ -272,6 +337,12 @@ class BatcherQueue {
                             unusedConditions.add(myCondition);
                             return null;
                         }
+                        if (wakeups != idleWakeups) {
+                            freeConditions.remove(myCondition);
+                            unusedConditions.add(myCondition);
+                            --numThreads;
+                            return Collections.emptyList();
+                        }
                         myCondition.await();
                         continue waitLoop;
                     }
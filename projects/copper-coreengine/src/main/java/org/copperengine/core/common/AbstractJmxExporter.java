@@ -16,6 +16,7 @@
 package org.copperengine.core.common;
 
 import java.lang.management.ManagementFactory;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -36,6 +37,8 @@ import org.copperengine.management.DatabaseDialectMXBean;
 import org.copperengine.management.ProcessingEngineMXBean;
 import org.copperengine.management.ProcessorPoolMXBean;
 import org.copperengine.management.StatisticsCollectorMXBean;
+import org.copperengine.management.StorageCacheMXBean;
+import org.copperengine.management.TicketPoolMXBean;
 import org.copperengine.management.WorkflowRepositoryMXBean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -63,7 +66,9 @@ public abstract class AbstractJmxExporter {
         register(mBeanServer, getBatcherMXBeans(), "copper.db");
         register(mBeanServer, getDBStorageMXBeans(), "copper.db");
         register(mBeanServer, getDatabaseDialectMXBeans(), "copper.db");
+        register(mBeanServer, getStorageCacheMXBeans(), "copper.db");
         register(mBeanServer, getAuditTrailQueryMXBeans(), "copper.audittrail");
+        register(mBeanServer, getTicketPoolMXBeans(), "copper.ticketpool");
     }
 
     public void shutdown() throws MBeanRegistrationException, InstanceNotFoundException {
@@ -118,6 +123,20 @@ public abstract class AbstractJmxExporter {
      */
     protected abstract Map<String, AuditTrailQueryMXBean> getAuditTrailQueryMXBeans();
 
+    /**
+     * @return a map with entries { "name" -&gt; TicketPoolMXBean }. The map may be empty, which is the default.
+     */
+    protected Map<String, TicketPoolMXBean> getTicketPoolMXBeans() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * @return a map with entries { "name" -&gt; StorageCacheMXBean }. The map may be empty, which is the default.
+     */
+    protected Map<String, StorageCacheMXBean> getStorageCacheMXBeans() {
+        return Collections.emptyMap();
+    }
+
     private void register(MBeanServer mBeanServer, Map<String, ?> map, String domain) throws MalformedObjectNameException, InstanceAlreadyExistsException, MBeanRegistrationException, NotCompliantMBeanException {
         for (Map.Entry<String, ?> entry : map.entrySet()) {
             ObjectName name = new ObjectName(domain, "name", entry.getKey());
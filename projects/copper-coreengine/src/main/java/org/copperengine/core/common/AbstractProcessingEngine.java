@@ -20,6 +20,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.copperengine.core.CopperException;
 import org.copperengine.core.CopperRuntimeException;
@@ -63,6 +64,7 @@ public abstract class AbstractProcessingEngine implements ProcessingEngine, Proc
     protected Date startupTS;
     private final AtomicLong lastActivityTS = new AtomicLong(System.currentTimeMillis());
     private final EventCounter startedWorkflowInstances = new EventCounter(24*60);
+    private final LongAdder notifications = new LongAdder();
 
     public void setStatisticsCollector(RuntimeStatisticsCollector statisticsCollector) {
         this.statisticsCollector = statisticsCollector;
@@ -274,6 +276,15 @@ public abstract class AbstractProcessingEngine implements ProcessingEngine, Proc
         startedWorkflowInstances.countEvent();
     }
     
+    protected void trackNotification() {
+        notifications.increment();
+    }
+
+    @Override
+    public long getNotificationCount() {
+        return notifications.sum();
+    }
+
     @Override
     public EngineActivity queryEngineActivity(int minutesInHistory) {
         long countWfiLastNMinutes = startedWorkflowInstances.getNumberOfEvents(minutesInHistory);
@@ -21,13 +21,12 @@ import java.util.Queue;
 
 import org.copperengine.core.ProcessingEngine;
 import org.copperengine.core.Workflow;
-import org.copperengine.core.internal.SuspendableQueue;
 import org.copperengine.management.ProcessorPoolMXBean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * A {@link ProcessorPool} implementation using a priority queue.
+ * A {@link ProcessorPool} implementation using a priority queue, see {@link WfRunQueue}.
  * 
  * @author austermann
  */
@@ -35,7 +34,8 @@ public abstract class PriorityProcessorPool implements ProcessorPool, ProcessorP
 
     private static final Logger logger = LoggerFactory.getLogger(PriorityProcessorPool.class);
 
-    protected final SuspendableQueue<Workflow<?>> queue = new SuspendableQueue<Workflow<?>>(createQueue());
+    protected final Queue<Workflow<?>> queue = createQueue();
+    private final WfRunQueue runQueue = asRunQueue(queue);
     private final List<Processor> workerThreads = new ArrayList<Processor>();
 
     private ProcessingEngine engine = null;
@@ -76,12 +76,20 @@ public abstract class PriorityProcessorPool implements ProcessorPool, ProcessorP
     }
 
     /**
-     * Creates a new instance of {@link WfPriorityQueue}
+     * Creates a new instance of {@link WfRunQueue}. Subclasses may return a subclass of {@link WfRunQueue}, other
+     * queue implementations are not supported.
      * @return
      *        the new created instance.
      */
     protected Queue<Workflow<?>> createQueue() {
-        return new WfPriorityQueue();
+        return new WfRunQueue();
+    }
+
+    private static WfRunQueue asRunQueue(Queue<Workflow<?>> queue) {
+        if (!(queue instanceof WfRunQueue)) {
+            throw new IllegalStateException("createQueue must return a WfRunQueue, but returned " + queue.getClass().getName());
+        }
+        return (WfRunQueue) queue;
     }
 
     /**
@@ -174,9 +182,7 @@ public abstract class PriorityProcessorPool implements ProcessorPool, ProcessorP
         state = ProcessorPoolState.shuttingDown;
 
         shutdown = true;
-        synchronized (queue) {
-            queue.notifyAll();
-        }
+        runQueue.signalAll();
 
         for (Processor p : workerThreads) {
             p.shutdown();
@@ -225,20 +231,20 @@ public abstract class PriorityProcessorPool implements ProcessorPool, ProcessorP
     }
 
     @Override
-    public void resume() {
-        synchronized (queue) {
-            queue.setSuspended(false);
-            queue.notifyAll();
-            state = ProcessorPoolState.running;
-        }
+    public long getProcessedCount() {
+        return runQueue.getDequeuedCount();
     }
 
     @Override
-    public void suspend() {
-        synchronized (queue) {
-            queue.setSuspended(true);
-            state = ProcessorPoolState.suspended;
-        }
+    public synchronized void resume() {
+        runQueue.setSuspended(false);
+        state = ProcessorPoolState.running;
+    }
+
+    @Override
+    public synchronized void suspend() {
+        runQueue.setSuspended(true);
+        state = ProcessorPoolState.suspended;
     }
 
     public void setProcessorFactory(ProcessorFactory processorFactory) {
@@ -35,7 +35,7 @@ public abstract class Processor extends Thread {
     protected volatile boolean shutdown = false;
     protected final ProcessingEngine engine;
     protected ProcessingHook processingHook = new MDCProcessingHook();
-    private boolean idle = false; 
+    private volatile boolean idle = false;
 
     public Processor(String name, Queue<Workflow<?>> queue, int prio, final ProcessingEngine engine) {
         super(name);
@@ -61,18 +61,7 @@ public abstract class Processor extends Thread {
         logger.info("started");
         while (!shutdown) {
             try {
-                Workflow<?> wf = null;
-                synchronized (queue) {
-                    wf = queue.poll();
-                    if (wf == null) {
-                        logger.trace("queue is empty - waiting");
-                        idle = true;
-                        queue.wait();
-                        idle = false;
-                        logger.trace("waking up again...");
-                        wf = queue.poll();
-                    }
-                }
+                final Workflow<?> wf = nextWorkflow();
                 if (!shutdown && wf != null) {
                     if (wf.getClass().getAnnotation(Transformed.class) == null) {
                         throw new RuntimeException(wf.getClass().getName() + " has not been transformed");
@@ -94,6 +83,36 @@ public abstract class Processor extends Thread {
         logger.info("stopped");
     }
 
+    private Workflow<?> nextWorkflow() throws InterruptedException {
+        if (queue instanceof WfRunQueue) {
+            final WfRunQueue runQueue = (WfRunQueue) queue;
+            Workflow<?> wf = runQueue.poll();
+            if (wf == null) {
+                logger.trace("queue is empty - waiting");
+                idle = true;
+                try {
+                    wf = runQueue.take();
+                } finally {
+                    idle = false;
+                }
+                logger.trace("waking up again...");
+            }
+            return wf;
+        }
+        synchronized (queue) {
+            Workflow<?> wf = queue.poll();
+            if (wf == null) {
+                logger.trace("queue is empty - waiting");
+                idle = true;
+                queue.wait();
+                idle = false;
+                logger.trace("waking up again...");
+                wf = queue.poll();
+            }
+            return wf;
+        }
+    }
+
     protected void postProcess(Workflow<?> wf) {
         if (processingHook != null) {
             processingHook.postProcess(wf);
@@ -109,8 +128,6 @@ public abstract class Processor extends Thread {
     protected abstract void process(Workflow<?> wf);
     
     public boolean isIdle() {
-        synchronized (queue) {
-            return idle;
-        }
+        return idle;
     }
 }
@@ -27,6 +27,8 @@ import org.copperengine.management.DatabaseDialectMXBean;
 import org.copperengine.management.ProcessingEngineMXBean;
 import org.copperengine.management.ProcessorPoolMXBean;
 import org.copperengine.management.StatisticsCollectorMXBean;
+import org.copperengine.management.StorageCacheMXBean;
+import org.copperengine.management.TicketPoolMXBean;
 import org.copperengine.management.WorkflowRepositoryMXBean;
 
 /**
@@ -47,6 +49,8 @@ public class SimpleJmxExporter extends AbstractJmxExporter {
     private Map<String, DatabaseDialectMXBean> databaseDialectMXBeans = new HashMap<>();
     private Map<String, DBStorageMXBean> dbStorageMXBeans = new HashMap<>();
     private Map<String, AuditTrailQueryMXBean> auditTrailQueryMXBeans = new HashMap<>();
+    private Map<String, TicketPoolMXBean> ticketPoolMXBeans = new HashMap<>();
+    private Map<String, StorageCacheMXBean> storageCacheMXBeans = new HashMap<>();
 
     public void addWorkflowRepositoryMXBean(String mxbeanName, WorkflowRepositoryMXBean workflowRepositoryMXBean) {
         this.workflowRepositoryMXBeans.put(mxbeanName, workflowRepositoryMXBean);
@@ -84,6 +88,14 @@ public class SimpleJmxExporter extends AbstractJmxExporter {
         this.auditTrailQueryMXBeans.put(mxbeanName, auditTrailQueryMXBean);
     }
 
+    public void addTicketPoolMXBean(String mxbeanName, TicketPoolMXBean ticketPoolMXBean) {
+        this.ticketPoolMXBeans.put(mxbeanName, ticketPoolMXBean);
+    }
+
+    public void addStorageCacheMXBean(String mxbeanName, StorageCacheMXBean storageCacheMXBean) {
+        this.storageCacheMXBeans.put(mxbeanName, storageCacheMXBean);
+    }
+
     @Override
     public Map<String, WorkflowRepositoryMXBean> getWorkflowRepositoryMXBeans() {
         return workflowRepositoryMXBeans;
@@ -164,6 +176,24 @@ public class SimpleJmxExporter extends AbstractJmxExporter {
         this.auditTrailQueryMXBeans = auditTrailQueryMXBeans;
     }
 
+    @Override
+    public Map<String, TicketPoolMXBean> getTicketPoolMXBeans() {
+        return ticketPoolMXBeans;
+    }
+
+    public void setTicketPoolMXBeans(Map<String, TicketPoolMXBean> ticketPoolMXBeans) {
+        this.ticketPoolMXBeans = ticketPoolMXBeans;
+    }
+
+    @Override
+    public Map<String, StorageCacheMXBean> getStorageCacheMXBeans() {
+        return storageCacheMXBeans;
+    }
+
+    public void setStorageCacheMXBeans(Map<String, StorageCacheMXBean> storageCacheMXBeans) {
+        this.storageCacheMXBeans = storageCacheMXBeans;
+    }
+
     private static <T> Map<String, T> createSingletonMap(String key, T object) {
         if (object != null) {
             return Collections.singletonMap(key, object);
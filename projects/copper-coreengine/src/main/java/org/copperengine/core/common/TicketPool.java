@@ -15,11 +15,15 @@
  */
 package org.copperengine.core.common;
 
-import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
 
 import javax.management.Notification;
 import javax.management.NotificationBroadcasterSupport;
 
+import org.copperengine.core.monitoring.LatencyHistogram;
+import org.copperengine.management.TicketPoolMXBean;
+import org.copperengine.management.model.HistogramData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,59 +33,107 @@ import org.slf4j.LoggerFactory;
  * maximum amount of tickets in the pool is reached, the request is delayed
  * until another process has released its ticket. After obtaining a ticket, the
  * system must release this ticket back to the TicketPool.
+ * <p>
+ * Tickets are obtained and released with a single CAS if no thread is waiting. Waiting threads are parked and served
+ * in FIFO order, so a thread requesting many tickets is not starved by threads requesting few. The time threads wait
+ * for their tickets is recorded in a histogram, available via {@link TicketPoolMXBean}.
  * 
  * @author jsiebeck
  */
-public class TicketPool {
-    private static final long TIMESLICE_WIDTH = 10000;
+public class TicketPool implements TicketPoolMXBean {
 
     private static Logger logger = LoggerFactory.getLogger(TicketPool.class);
 
-    private final String id;
-    private int maxTickets;
-    private int used;
-
-    /* variables for JMX observation */
-    private long lastTimeslice = System.currentTimeMillis() / TIMESLICE_WIDTH;
-    private long notificationSequence = 0;
     /**
-     * stores the number of waits and the wait times within one time slice,
-     * broken down logarithmically into wait times of <code><10, <100, <1000, ... msec</code> as follows:
-     * <code>pos 2n</code>: number of waits <= (n+1)^10 msec <code>pos 2n+1</code>: sum of wait ms of waits in pos 2n
+     * The state is the number of available tickets. It becomes negative when tickets are obtained by force.
      */
-    long waitTimes[] = new long[10];
-    private boolean traceEnabled = false;
-    private NotificationBroadcasterSupport notificationSupport = null;
+    private final class Sync extends AbstractQueuedSynchronizer {
+
+        private static final long serialVersionUID = 1L;
+
+        int available() {
+            return getState();
+        }
+
+        void add(int delta) {
+            for (;;) {
+                final int current = getState();
+                if (compareAndSetState(current, current + delta))
+                    return;
+            }
+        }
+
+        int tryObtain(int count) {
+            for (;;) {
+                final int current = getState();
+                final int remaining = current - count;
+                if (remaining < 0 || compareAndSetState(current, remaining))
+                    return remaining;
+            }
+        }
+
+        @Override
+        protected int tryAcquireShared(int count) {
+            if (hasQueuedPredecessors())
+                return -1;
+            return tryObtain(count);
+        }
+
+        @Override
+        protected boolean tryReleaseShared(int count) {
+            for (;;) {
+                final int current = getState();
+                // no more tickets than the capacity, even if released more often than obtained
+                final int next = Math.max(current, Math.min(current + count, maxTickets));
+                if (next == current)
+                    return false;
+                if (compareAndSetState(current, next))
+                    return true;
+            }
+        }
+    }
+
+    private final String id;
+    private final Sync sync = new Sync();
+    private final LatencyHistogram waitTimes = new LatencyHistogram();
+    private volatile int maxTickets;
 
     public TicketPool(String id, int availableTickets) {
         super();
         /* set the id to a unique name, if none was provided */
         this.id = (id == null ? super.toString() : id);
         setCapacity(availableTickets);
-
-        // TicketPoolObserver.getInstance().register(this, this.id);
     }
 
     public TicketPool(int availableTickets) {
         this(null, availableTickets);
     }
 
-    public synchronized long availableTickets() {
-        return maxTickets - used;
+    public long availableTickets() {
+        return Math.max(0, sync.available());
     }
 
-    public synchronized int getUsedTickets() {
-        return used;
+    @Override
+    public int getUsedTickets() {
+        return maxTickets - sync.available();
     }
 
-    public synchronized int getMaxTickets() {
+    @Override
+    public int getMaxTickets() {
         return maxTickets;
     }
 
+    @Override
     public synchronized void setCapacity(int availableTickets) {
         if (availableTickets <= 0)
             throw new IllegalArgumentException("There should be at least one ticket available!");
+        final int delta = availableTickets - maxTickets;
         maxTickets = availableTickets;
+        if (delta > 0) {
+            sync.releaseShared(delta);
+        } else {
+            sync.add(delta);
+        }
     }
 
     /**
@@ -108,58 +160,40 @@ public class TicketPool {
         obtain(count, force, false);
     }
 
-    public synchronized boolean obtain(int count, boolean force, boolean noWait) throws IllegalArgumentException {
-        boolean waited = false;
-        final long startWait = System.currentTimeMillis();
+    /**
+     * Obtains the given amount of tickets without waiting. Fails if there are not enough tickets or if other threads
+     * are already waiting for tickets.
+     *
+     * @param count
+     *        number of tickets to obtain
+     * @return true, if the tickets were obtained
+     * @throws IllegalArgumentException
+     *         Thrown if, count is &lt; 0 or count &gt; maxTickets
+     */
+    public boolean tryObtain(int count) throws IllegalArgumentException {
+        return obtain(count, false, true);
+    }
+
+    public boolean obtain(int count, boolean force, boolean noWait) throws IllegalArgumentException {
         if (!force && count > maxTickets)
             throw new IllegalArgumentException("Cannot obtain more tickets than maximum.");
         if (count <= 0)
             throw new IllegalArgumentException("Cannot obtain zero or less tickets.");
-        if (!force) {
-            if (logger.isDebugEnabled())
-                logger.debug("Trying to obtain " + count + " tickets. " + this.toString());
-        } else {
-            if (logger.isDebugEnabled())
-                logger.debug("Forcing to obtain " + count + " tickets. " + this.toString());
+        if (force) {
+            sync.add(-count);
+            return true;
         }
-        if (!force) {
-            while (used + count > maxTickets) {
-                try {
-                    if (!noWait) {
-                        if (logger.isDebugEnabled())
-                            logger.debug("I am waiting...");
-                        wait();
-                        waited = true;
-                    } else {
-                        return false;
-                    }
-                } catch (InterruptedException e) {
-                    logger.warn("wait interrupted", e);
-                }
-            }
+        if (!sync.hasQueuedThreads() && sync.tryObtain(count) >= 0) {
+            return true;
         }
-        used += count;
-        if (logger.isDebugEnabled())
-            logger.debug("Obtained my tickets! " + this.toString());
-        notifyAll();
-
-        /* if enabled, collect statistics for JMX Notifications */
-        if (waited && traceEnabled && notificationSupport != null) {
-            long stopWait = System.currentTimeMillis() - startWait;
-
-            final int pos = Math.min((int) Math.log10(stopWait + 1), 4);
-            waitTimes[2 * pos]++;
-            waitTimes[2 * pos + 1] += stopWait;
-
-            long currentTimeslice = System.currentTimeMillis() / TIMESLICE_WIDTH;
-            if (currentTimeslice > lastTimeslice) {
-                final Notification notification = new Notification("10sec. stats", this, notificationSequence++, Arrays.toString(waitTimes));
-                notification.setUserData(waitTimes);
-                notificationSupport.sendNotification(notification);
-                waitTimes = new long[10];
-                lastTimeslice = currentTimeslice;
-            }
+        if (noWait) {
+            return false;
         }
+        if (logger.isDebugEnabled())
+            logger.debug("Waiting for " + count + " tickets. " + this.toString());
+        final long startWait = System.nanoTime();
+        sync.acquireShared(count);
+        waitTimes.record(System.nanoTime() - startWait, TimeUnit.NANOSECONDS);
         return true;
     }
 
@@ -170,17 +204,12 @@ public class TicketPool {
      * @param count
      *        number of tickets to be released
      */
-    public synchronized void release(int count) {
-        used -= count;
-        if (used < 0)
-            used = 0; // no negative number of ticket!
-        if (logger.isDebugEnabled())
-            logger.debug("Released " + count + " tickets! (Now " + this.toString() + ")");
-        notifyAll();
+    public void release(int count) {
+        sync.releaseShared(count);
     }
 
-    public synchronized String toString() {
-        return id + ": " + used + " of " + maxTickets + " tickets used";
+    public String toString() {
+        return id + ": " + getUsedTickets() + " of " + maxTickets + " tickets used";
     }
 
     /**
@@ -195,39 +224,53 @@ public class TicketPool {
         return id;
     }
 
+    @Override
     public String getId() {
         return id;
     }
 
-    public synchronized int getCapacity() {
+    public int getCapacity() {
         return getMaxTickets();
     }
 
-    public synchronized boolean isTraceEnabled() {
-        return traceEnabled;
+    @Override
+    public int getWaitingThreads() {
+        return sync.getQueueLength();
+    }
+
+    @Override
+    public HistogramData getWaitTimeHistogram() {
+        return waitTimes.getSnapshot();
+    }
+
+    @Override
+    public void resetWaitTimeHistogram() {
+        waitTimes.reset();
     }
 
     /**
-     * you must set {@link #traceEnabled} to <code>true</code> and set a {@link NotificationBroadcasterSupport} to allow
-     * monitoring wait times via
-     * JMX {@link Notification}s
-     * 
-     * @param traceEnabled boolean to be set if tracing via JMX is desired
-     * @see #setNotificationBroadcasterSupport(NotificationBroadcasterSupport)
+     * @return false
+     * @deprecated wait times are always recorded, see {@link #getWaitTimeHistogram()}
      */
-    public synchronized void setTraceEnabled(boolean traceEnabled) {
-        this.traceEnabled = traceEnabled;
+    @Deprecated
+    public boolean isTraceEnabled() {
+        return false;
     }
 
     /**
-     * you must set a {@link NotificationBroadcasterSupport} and set {@link #traceEnabled} to <code>true</code> and to
-     * allow monitoring wait
-     * times via JMX {@link Notification}s
-     * 
-     * @param nbs NotificationBroadcasterSupport to be set if monitoring wait via JMX is desired
-     * @see #setTraceEnabled(boolean)
+     * @param traceEnabled ignored
+     * @deprecated wait times are always recorded, see {@link #getWaitTimeHistogram()}
+     */
+    @Deprecated
+    public void setTraceEnabled(boolean traceEnabled) {
+    }
+
+    /**
+     * @param nbs ignored
+     * @deprecated JMX {@link Notification}s are no longer sent, wait times are available via
+     *             {@link #getWaitTimeHistogram()}
      */
+    @Deprecated
     public void setNotificationBroadcasterSupport(NotificationBroadcasterSupport nbs) {
-        notificationSupport = nbs;
     }
 }
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timing wheel for timeouts, used by timeout managers.
+ * <p>
+ * Timeouts are rounded up to the next tick and stored in one of <code>wheelSize</code> buckets, so registering and
+ * unregistering a timeout is O(1) and only locks one slot of one bucket. Timeouts beyond the wheel's horizon
+ * (<code>tickMsec * wheelSize</code>) and timeouts that are already due are kept in a sorted overflow map and moved
+ * into the wheel as soon as they come within the horizon.
+ * <p>
+ * A single thread advances the wheel tick by tick and passes all values expired in a tick to the
+ * {@link ExpiryHandler} at once.
+ *
+ * @param <K>
+ *        key type, unique within one timeout timestamp
+ * @param <V>
+ *        value type, passed to the {@link ExpiryHandler}
+ */
+public class TimingWheel<K, V> {
+
+    private static final Logger logger = LoggerFactory.getLogger(TimingWheel.class);
+
+    /**
+     * Receives the values of expired timeouts
+     */
+    public interface ExpiryHandler<V> {
+        void onExpired(List<V> expired);
+    }
+
+    private final long tickMsec;
+    private final long horizon;
+    private final int mask;
+    private final List<ConcurrentHashMap<Long, Map<K, V>>> wheel;
+    private final TreeMap<Long, Map<K, V>> overflow = new TreeMap<Long, Map<K, V>>();
+    private final ExpiryHandler<V> expiryHandler;
+    private final Thread thread;
+    private volatile long processedUpTo;
+    private volatile boolean shutdown = false;
+
+    /**
+     * @param threadName
+     *        name of the thread advancing the wheel
+     * @param tickMsec
+     *        resolution of the wheel in milliseconds
+     * @param wheelSize
+     *        number of buckets, rounded up to the next power of two
+     * @param expiryHandler
+     *        receives the values of expired timeouts
+     */
+    public TimingWheel(String threadName, long tickMsec, int wheelSize, ExpiryHandler<V> expiryHandler) {
+        if (tickMsec <= 0)
+            throw new IllegalArgumentException("tickMsec must be > 0");
+        if (wheelSize <= 0 || wheelSize > (1 << 30))
+            throw new IllegalArgumentException("wheelSize must be between 1 and 2^30");
+        if (expiryHandler == null)
+            throw new NullPointerException();
+        final int size = wheelSize == 1 ? 1 : Integer.highestOneBit(wheelSize - 1) << 1;
+        this.tickMsec = tickMsec;
+        this.horizon = tickMsec * size;
+        this.mask = size - 1;
+        this.wheel = new ArrayList<ConcurrentHashMap<Long, Map<K, V>>>(size);
+        for (int i = 0; i < size; i++) {
+            wheel.add(new ConcurrentHashMap<Long, Map<K, V>>(4));
+        }
+        this.expiryHandler = expiryHandler;
+        this.processedUpTo = (System.currentTimeMillis() / tickMsec) * tickMsec;
+        this.thread = new Thread(threadName) {
+            @Override
+            public void run() {
+                TimingWheel.this.run();
+            }
+        };
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * @param timeoutTS
+     *        timeout timestamp in milliseconds
+     * @return the tick the timeout is processed in
+     */
+    public long slot(long timeoutTS) {
+        return ((timeoutTS / tickMsec) + 1) * tickMsec;
+    }
+
+    public void startup() {
+        thread.start();
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        LockSupport.unpark(thread);
+    }
+
+    public void register(long timeoutTS, K key, V value) {
+        final long slot = slot(timeoutTS);
+        final long processed = processedUpTo;
+        if (slot > processed && slot - processed < horizon) {
+            final ConcurrentHashMap<Long, Map<K, V>> bucket = bucket(slot);
+            add(bucket, slot, key, value);
+            if (slot <= processedUpTo) {
+                // the wheel thread might have passed this slot concurrently
+                final V v = remove(bucket, slot, key);
+                if (v != null) {
+                    addToOverflow(slot, key, v);
+                }
+            }
+        } else {
+            addToOverflow(slot, key, value);
+        }
+    }
+
+    public void unregister(long timeoutTS, K key) {
+        final long slot = slot(timeoutTS);
+        // check the overflow first - entries are moved from the overflow into the wheel only
+        synchronized (overflow) {
+            final Map<K, V> map = overflow.get(slot);
+            if (map != null && map.remove(key) != null) {
+                if (map.isEmpty()) {
+                    overflow.remove(slot);
+                }
+                return;
+            }
+        }
+        remove(bucket(slot), slot, key);
+    }
+
+    /**
+     * Counts the registered timeouts. The result is a snapshot without synchronization against concurrent
+     * registrations and expiries and is meant for monitoring only.
+     *
+     * @return the approximate number of registered timeouts
+     */
+    public int size() {
+        int size = 0;
+        for (ConcurrentHashMap<Long, Map<K, V>> bucket : wheel) {
+            if (!bucket.isEmpty()) {
+                for (Map<K, V> map : bucket.values()) {
+                    size += map.size();
+                }
+            }
+        }
+        synchronized (overflow) {
+            for (Map<K, V> map : overflow.values()) {
+                size += map.size();
+            }
+        }
+        return size;
+    }
+
+    private ConcurrentHashMap<Long, Map<K, V>> bucket(long slot) {
+        return wheel.get((int) (slot / tickMsec) & mask);
+    }
+
+    private void add(ConcurrentHashMap<Long, Map<K, V>> bucket, Long slot, final K key, final V value) {
+        bucket.compute(slot, (s, map) -> {
+            if (map == null) {
+                map = new HashMap<K, V>(4);
+            }
+            map.put(key, value);
+            return map;
+        });
+    }
+
+    private V remove(ConcurrentHashMap<Long, Map<K, V>> bucket, Long slot, final K key) {
+        final List<V> removed = new ArrayList<V>(1);
+        bucket.computeIfPresent(slot, (s, map) -> {
+            final V v = map.remove(key);
+            if (v != null) {
+                removed.add(v);
+            }
+            return map.isEmpty() ? null : map;
+        });
+        return removed.isEmpty() ? null : removed.get(0);
+    }
+
+    private void addToOverflow(long slot, K key, V value) {
+        synchronized (overflow) {
+            Map<K, V> map = overflow.get(slot);
+            if (map == null) {
+                map = new HashMap<K, V>(4);
+                overflow.put(slot, map);
+            }
+            map.put(key, value);
+        }
+    }
+
+    private void run() {
+        logger.info("started");
+        while (!shutdown) {
+            try {
+                final long now = System.currentTimeMillis();
+                final long next = processedUpTo + tickMsec;
+                if (next > now) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(next - now));
+                    continue;
+                }
+                final List<V> expired = new ArrayList<V>();
+                final long target = (now / tickMsec) * tickMsec;
+                if (target - processedUpTo >= horizon) {
+                    // we are more than one revolution behind, e.g. after a long GC pause
+                    processedUpTo = target;
+                    for (ConcurrentHashMap<Long, Map<K, V>> bucket : wheel) {
+                        expire(bucket, target, expired);
+                    }
+                } else {
+                    for (long tick = next; tick <= target; tick += tickMsec) {
+                        processedUpTo = tick;
+                        expire(bucket(tick), tick, expired);
+                    }
+                }
+                processOverflow(target, expired);
+                if (!expired.isEmpty()) {
+                    if (logger.isDebugEnabled())
+                        logger.debug("{} timeouts expired at {}", expired.size(), target);
+                    expiryHandler.onExpired(expired);
+                }
+            } catch (Exception e) {
+                logger.error("Unexpected exception:", e);
+            }
+        }
+        logger.info("stopped");
+    }
+
+    private void expire(ConcurrentHashMap<Long, Map<K, V>> bucket, long tick, List<V> expired) {
+        for (Long slot : bucket.keySet()) {
+            if (slot <= tick) {
+                final Map<K, V> map = bucket.remove(slot);
+                if (map != null) {
+                    expired.addAll(map.values());
+                }
+            }
+        }
+    }
+
+    private void processOverflow(long target, List<V> expired) {
+        synchronized (overflow) {
+            for (Iterator<Map.Entry<Long, Map<K, V>>> i = overflow.headMap(target + horizon).entrySet().iterator(); i.hasNext();) {
+                final Map.Entry<Long, Map<K, V>> entry = i.next();
+                i.remove();
+                if (entry.getKey() <= target) {
+                    expired.addAll(entry.getValue().values());
+                } else {
+                    for (Map.Entry<K, V> e : entry.getValue().entrySet()) {
+                        add(bucket(entry.getKey()), entry.getKey(), e.getKey(), e.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -28,7 +28,9 @@ import org.copperengine.core.Workflow;
  * Entries in the queue are ordered using their priority and enqueue timestamp
  *
  * @author austermann
+ * @deprecated the {@link PriorityProcessorPool} uses the {@link WfRunQueue}
  */
+@Deprecated
 public class WfPriorityQueue implements Queue<Workflow<?>> {
 
     private static class QueueEntry {
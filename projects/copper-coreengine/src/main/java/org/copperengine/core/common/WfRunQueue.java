@@ -0,0 +1,418 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.common;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.copperengine.core.Workflow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Concurrent run queue for {@link Workflow} instances, used by the {@link PriorityProcessorPool}.
+ * <p>
+ * Entries are ordered by their priority and FIFO within the same priority. There is one lock-free multi producer/multi
+ * consumer queue per priority, built from linked array segments, so neither enqueueing nor dequeueing allocates per
+ * entry or takes a global monitor. Processors waiting in {@link #take()} are parked and woken up one at a time per
+ * enqueued entry.
+ * <p>
+ * While the queue is suspended, {@link #poll()} and {@link #peek()} return <code>null</code> and {@link #take()}
+ * blocks.
+ * <p>
+ * Like the queues of <code>java.util.concurrent</code>, {@link #iterator()} is weakly consistent and {@link #size()}
+ * is only a snapshot while other threads modify the queue.
+ */
+public class WfRunQueue extends AbstractQueue<Workflow<?>> {
+
+    private static final Logger logger = LoggerFactory.getLogger(WfRunQueue.class);
+
+    private static final int SEGMENT_SIZE = 512;
+    private static final Object TAKEN = new Object();
+
+    private static final class Segment {
+        final AtomicReferenceArray<Object> items = new AtomicReferenceArray<Object>(SEGMENT_SIZE);
+        final AtomicInteger enqueueIdx = new AtomicInteger();
+        final AtomicInteger dequeueIdx = new AtomicInteger();
+        final AtomicReference<Segment> next = new AtomicReference<Segment>();
+    }
+
+    /**
+     * FIFO queue for one priority. A consumer overtaking a producer marks the producer's slot as taken, so the producer
+     * retries with the next slot.
+     */
+    private static final class Bucket {
+        final int priority;
+        final AtomicReference<Segment> head;
+        final AtomicReference<Segment> tail;
+
+        Bucket(int priority) {
+            this.priority = priority;
+            final Segment s = new Segment();
+            this.head = new AtomicReference<Segment>(s);
+            this.tail = new AtomicReference<Segment>(s);
+        }
+
+        void offer(Workflow<?> wf) {
+            for (;;) {
+                final Segment t = tail.get();
+                final int i = t.enqueueIdx.getAndIncrement();
+                if (i < SEGMENT_SIZE) {
+                    if (t.items.compareAndSet(i, null, wf)) {
+                        return;
+                    }
+                    continue;
+                }
+                Segment next = t.next.get();
+                if (next == null) {
+                    t.next.compareAndSet(null, new Segment());
+                    next = t.next.get();
+                }
+                tail.compareAndSet(t, next);
+            }
+        }
+
+        Workflow<?> poll() {
+            for (;;) {
+                final Segment h = head.get();
+                if (h.dequeueIdx.get() >= h.enqueueIdx.get() && h.next.get() == null) {
+                    return null;
+                }
+                final int i = h.dequeueIdx.getAndIncrement();
+                if (i >= SEGMENT_SIZE) {
+                    final Segment next = h.next.get();
+                    if (next == null) {
+                        return null;
+                    }
+                    head.compareAndSet(h, next);
+                    continue;
+                }
+                final Object o = h.items.getAndSet(i, TAKEN);
+                if (o != null && o != TAKEN) {
+                    return (Workflow<?>) o;
+                }
+            }
+        }
+
+        Workflow<?> peek() {
+            for (Segment s = head.get(); s != null; s = s.next.get()) {
+                final int end = Math.min(s.enqueueIdx.get(), SEGMENT_SIZE);
+                for (int i = Math.min(s.dequeueIdx.get(), SEGMENT_SIZE); i < end; i++) {
+                    final Object o = s.items.get(i);
+                    if (o != null && o != TAKEN) {
+                        return (Workflow<?>) o;
+                    }
+                }
+            }
+            return null;
+        }
+
+        void collect(List<Workflow<?>> target) {
+            for (Segment s = head.get(); s != null; s = s.next.get()) {
+                final int end = Math.min(s.enqueueIdx.get(), SEGMENT_SIZE);
+                for (int i = Math.min(s.dequeueIdx.get(), SEGMENT_SIZE); i < end; i++) {
+                    final Object o = s.items.get(i);
+                    if (o != null && o != TAKEN) {
+                        target.add((Workflow<?>) o);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Marks the slot holding <code>wf</code> as taken, so consumers skip it.
+         */
+        boolean remove(Object wf) {
+            for (Segment s = head.get(); s != null; s = s.next.get()) {
+                final int end = Math.min(s.enqueueIdx.get(), SEGMENT_SIZE);
+                for (int i = 0; i < end; i++) {
+                    if (s.items.get(i) == wf && s.items.compareAndSet(i, wf, TAKEN)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class Waiter {
+        final Thread thread = Thread.currentThread();
+        final AtomicBoolean waiting = new AtomicBoolean(false);
+    }
+
+    private volatile Bucket[] buckets = new Bucket[0];
+    private final LongAdder size = new LongAdder();
+    private final LongAdder dequeued = new LongAdder();
+    private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<Waiter>();
+    private final ThreadLocal<Waiter> waiterTL = new ThreadLocal<Waiter>() {
+        @Override
+        protected Waiter initialValue() {
+            return new Waiter();
+        }
+    };
+    private volatile boolean suspended = false;
+
+    public void setSuspended(boolean suspended) {
+        logger.info("Setting suspended to {}", suspended);
+        this.suspended = suspended;
+        if (!suspended) {
+            signalAll();
+        }
+    }
+
+    public boolean isSuspended() {
+        return suspended;
+    }
+
+    private Bucket bucket(int priority) {
+        for (Bucket b : buckets) {
+            if (b.priority == priority) {
+                return b;
+            }
+        }
+        synchronized (this) {
+            final Bucket[] current = buckets;
+            for (Bucket b : current) {
+                if (b.priority == priority) {
+                    return b;
+                }
+            }
+            int pos = 0;
+            while (pos < current.length && current[pos].priority < priority) {
+                pos++;
+            }
+            final Bucket b = new Bucket(priority);
+            final Bucket[] newBuckets = Arrays.copyOf(current, current.length + 1);
+            System.arraycopy(current, pos, newBuckets, pos + 1, current.length - pos);
+            newBuckets[pos] = b;
+            buckets = newBuckets;
+            return b;
+        }
+    }
+
+    @Override
+    public boolean offer(Workflow<?> wf) {
+        if (wf == null)
+            throw new NullPointerException();
+        bucket(wf.getPriority()).offer(wf);
+        size.increment();
+        if (!suspended) {
+            signal();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean add(Workflow<?> wf) {
+        return offer(wf);
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Workflow<?>> c) {
+        for (Workflow<?> wf : c) {
+            offer(wf);
+        }
+        return !c.isEmpty();
+    }
+
+    @Override
+    public Workflow<?> poll() {
+        if (suspended)
+            return null;
+        final Workflow<?> wf = pollInternal();
+        if (wf != null) {
+            dequeued.increment();
+        }
+        return wf;
+    }
+
+    private Workflow<?> pollInternal() {
+        for (Bucket b : buckets) {
+            final Workflow<?> wf = b.poll();
+            if (wf != null) {
+                size.decrement();
+                return wf;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, waiting until an element becomes available.
+     *
+     * @return the head of this queue
+     * @throws InterruptedException
+     *         if the current thread is interrupted while waiting
+     */
+    public Workflow<?> take() throws InterruptedException {
+        final Waiter waiter = waiterTL.get();
+        for (;;) {
+            Workflow<?> wf = poll();
+            if (wf != null) {
+                // still registered after a spurious wakeup
+                if (waiter.waiting.get()) {
+                    leave(waiter);
+                }
+                return wf;
+            }
+            if (waiter.waiting.compareAndSet(false, true)) {
+                waiters.offer(waiter);
+            }
+            // check again, an element might have been enqueued before we were registered as waiter
+            wf = poll();
+            if (wf != null) {
+                leave(waiter);
+                return wf;
+            }
+            LockSupport.park(this);
+            if (Thread.interrupted()) {
+                leave(waiter);
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    private void leave(Waiter waiter) {
+        if (waiter.waiting.compareAndSet(true, false)) {
+            waiters.remove(waiter);
+        } else {
+            // we have been signalled meanwhile - pass it on to another waiter
+            signal();
+        }
+    }
+
+    private void signal() {
+        Waiter w;
+        while ((w = waiters.poll()) != null) {
+            if (w.waiting.compareAndSet(true, false)) {
+                LockSupport.unpark(w.thread);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Wakes up all threads waiting in {@link #take()}
+     */
+    public void signalAll() {
+        Waiter w;
+        while ((w = waiters.poll()) != null) {
+            if (w.waiting.compareAndSet(true, false)) {
+                LockSupport.unpark(w.thread);
+            }
+        }
+    }
+
+    /**
+     * @return the number of elements retrieved from this queue via {@link #poll()} or {@link #take()} since its
+     *         creation
+     */
+    public long getDequeuedCount() {
+        return dequeued.sum();
+    }
+
+    int getNumberOfWaiters() {
+        return waiters.size();
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.max(0L, size.sum());
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public void clear() {
+        while (pollInternal() != null) {
+        }
+    }
+
+    @Override
+    public Workflow<?> peek() {
+        if (suspended)
+            return null;
+        for (Bucket b : buckets) {
+            final Workflow<?> wf = b.peek();
+            if (wf != null) {
+                return wf;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof Workflow))
+            return false;
+        for (Bucket b : buckets) {
+            if (b.remove(o)) {
+                size.decrement();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a weakly consistent iterator over the entries in the order they would be polled
+     */
+    @Override
+    public Iterator<Workflow<?>> iterator() {
+        final List<Workflow<?>> snapshot = new ArrayList<Workflow<?>>();
+        for (Bucket b : buckets) {
+            b.collect(snapshot);
+        }
+        final Iterator<Workflow<?>> it = snapshot.iterator();
+        return new Iterator<Workflow<?>>() {
+            private Workflow<?> last;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Workflow<?> next() {
+                last = it.next();
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                if (last == null)
+                    throw new IllegalStateException();
+                WfRunQueue.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+}
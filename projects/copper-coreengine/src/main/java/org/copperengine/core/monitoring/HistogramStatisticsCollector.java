@@ -0,0 +1,240 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.monitoring;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.copperengine.management.StatisticsCollectorMXBean;
+import org.copperengine.management.model.HistogramData;
+import org.copperengine.management.model.MeasurePointData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects runtime statistics in a latency histogram per measure point, so that besides averages also percentiles
+ * like p99 are available. Recording is lock free.
+ * <p>
+ * Besides the histogram since the last reset, each measure point keeps the histogram of the last completed interval.
+ * After each interval, the interval statistics are logged to the logger <code>stat</code>.
+ */
+public class HistogramStatisticsCollector implements RuntimeStatisticsCollector, StatisticsCollectorMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(HistogramStatisticsCollector.class);
+    private static final Logger statLogger = LoggerFactory.getLogger("stat");
+
+    private final class MeasurePoint {
+        final String mpId;
+        final LongAdder elementCount = new LongAdder();
+        final LongAdder elapsedTimeMicros = new LongAdder();
+        final LatencyHistogram histogram = new LatencyHistogram(subBucketBits);
+        final AtomicReference<LatencyHistogram> currentInterval = new AtomicReference<LatencyHistogram>(new LatencyHistogram(subBucketBits));
+        volatile HistogramData lastInterval;
+
+        MeasurePoint(String mpId) {
+            this.mpId = mpId;
+        }
+
+        void record(int elements, long micros) {
+            elementCount.add(elements);
+            elapsedTimeMicros.add(micros);
+            histogram.recordMicros(micros);
+            currentInterval.get().recordMicros(micros);
+        }
+
+        /**
+         * Starts a new interval. Values recorded concurrently to the switch may be missing in the completed interval.
+         */
+        HistogramData rotate() {
+            final LatencyHistogram completed = currentInterval.getAndSet(new LatencyHistogram(subBucketBits));
+            lastInterval = completed.getSnapshot();
+            return lastInterval;
+        }
+
+        void reset() {
+            elementCount.reset();
+            elapsedTimeMicros.reset();
+            histogram.reset();
+            currentInterval.set(new LatencyHistogram(subBucketBits));
+            lastInterval = null;
+        }
+
+        MeasurePointData toMeasurePointData() {
+            final HistogramData snapshot = histogram.getSnapshot();
+            return new MeasurePointData(mpId, elementCount.sum(), elapsedTimeMicros.sum(), snapshot.getCount(), snapshot.getValueAtPercentile(50.0), snapshot.getValueAtPercentile(99.0), snapshot.getValueAtPercentile(99.9), snapshot.getMax(), snapshot, lastInterval);
+        }
+    }
+
+    private final ConcurrentMap<String, MeasurePoint> measurePoints = new ConcurrentHashMap<String, MeasurePoint>();
+    private int subBucketBits = 5;
+    private int intervalSec = 15;
+    private Thread thread;
+    private volatile boolean shutdown = false;
+
+    /**
+     * Sets the precision of the histograms, see {@link LatencyHistogram#LatencyHistogram(int)}. Default is 5, i.e.
+     * about 3%. Has to be set before the first value is submitted.
+     */
+    public void setSubBucketBits(int subBucketBits) {
+        if (subBucketBits < 1 || subBucketBits > 10)
+            throw new IllegalArgumentException();
+        this.subBucketBits = subBucketBits;
+    }
+
+    /**
+     * Sets the length of the interval after which the interval histograms are completed and logged. Default is 15.
+     */
+    public void setIntervalSec(int intervalSec) {
+        if (intervalSec <= 0)
+            throw new IllegalArgumentException();
+        this.intervalSec = intervalSec;
+    }
+
+    public synchronized void start() {
+        if (thread != null)
+            throw new IllegalStateException();
+        thread = new Thread("StatisticsCollector") {
+            @Override
+            public void run() {
+                while (!shutdown) {
+                    try {
+                        Thread.sleep(intervalSec * 1000L);
+                        rotate();
+                    } catch (InterruptedException e) {
+                        // ignore
+                    } catch (Exception e) {
+                        logger.error("", e);
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void shutdown() {
+        if (shutdown)
+            return;
+        shutdown = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public void submit(String measurePointId, int elementCount, long elapsedTime, TimeUnit timeUnit) {
+        if (measurePointId == null)
+            throw new NullPointerException();
+        if (measurePointId.isEmpty())
+            throw new IllegalArgumentException();
+        if (elapsedTime < 0)
+            throw new IllegalArgumentException();
+        if (elementCount < 0)
+            throw new IllegalArgumentException();
+        if (timeUnit == null)
+            throw new NullPointerException();
+
+        MeasurePoint mp = measurePoints.get(measurePointId);
+        if (mp == null) {
+            mp = measurePoints.computeIfAbsent(measurePointId, MeasurePoint::new);
+        }
+        mp.record(elementCount, timeUnit.toMicros(elapsedTime));
+    }
+
+    /**
+     * Completes the current interval of all measure points and logs their interval statistics.
+     */
+    void rotate() {
+        for (MeasurePoint mp : sorted()) {
+            final HistogramData interval = mp.rotate();
+            if (interval.getCount() > 0) {
+                statLogger.info(toString(mp.mpId, interval));
+            }
+        }
+    }
+
+    private List<MeasurePoint> sorted() {
+        final List<MeasurePoint> list = new ArrayList<MeasurePoint>(measurePoints.values());
+        Collections.sort(list, new Comparator<MeasurePoint>() {
+            @Override
+            public int compare(MeasurePoint o1, MeasurePoint o2) {
+                return o1.mpId.compareToIgnoreCase(o2.mpId);
+            }
+        });
+        return list;
+    }
+
+    private static String toString(String mpId, HistogramData h) {
+        final String DOTS = ".................................................1";
+        final double avg = h.getCount() > 0 ? (double) h.getSum() / (double) h.getCount() / 1000.0 : 0.0;
+        return String.format("%1$55.55s #exec=%2$6d; avg=%3$10.3f msec; p50=%4$10.3f msec; p99=%5$10.3f msec; p999=%6$10.3f msec; max=%7$10.3f msec", mpId + DOTS, h.getCount(), avg, h.getValueAtPercentile(50.0) / 1000.0, h.getValueAtPercentile(99.0) / 1000.0, h.getValueAtPercentile(99.9) / 1000.0, h.getMax() / 1000.0);
+    }
+
+    @Override
+    public void reset() {
+        logger.debug("Attention! Resetting current statistics");
+        for (MeasurePoint mp : measurePoints.values()) {
+            mp.reset();
+        }
+    }
+
+    @Override
+    public String print() {
+        final StringBuilder sb = new StringBuilder(1024);
+        for (MeasurePoint mp : sorted()) {
+            sb.append(toString(mp.mpId, mp.histogram.getSnapshot())).append("\n");
+        }
+        if (sb.length() > 0) {
+            sb.deleteCharAt(sb.length() - 1);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String print(String measurePointId) {
+        final MeasurePoint mp = measurePoints.get(measurePointId);
+        return mp == null ? "-" : toString(mp.mpId, mp.histogram.getSnapshot());
+    }
+
+    @Override
+    public List<MeasurePointData> queryAll() {
+        final List<MeasurePointData> resultList = new ArrayList<MeasurePointData>(measurePoints.size());
+        for (MeasurePoint mp : measurePoints.values()) {
+            resultList.add(mp.toMeasurePointData());
+        }
+        Collections.sort(resultList, new Comparator<MeasurePointData>() {
+            @Override
+            public int compare(MeasurePointData data1, MeasurePointData data2) {
+                return data1.getMpId().compareTo(data2.getMpId());
+            }
+        });
+        return resultList;
+    }
+
+    @Override
+    public MeasurePointData query(String measurePointId) {
+        final MeasurePoint mp = measurePoints.get(measurePointId);
+        return mp == null ? null : mp.toMeasurePointData();
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.monitoring;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.copperengine.management.model.HistogramData;
+
+/**
+ * Lock free histogram of latencies in microseconds. Values are counted in log-linear buckets, by default four buckets
+ * per power of two, so the bucket bounds deviate at most 25% from a recorded value. A higher precision can be chosen
+ * with {@link #LatencyHistogram(int)}. Recording is a few atomic increments without allocation.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    static final int BUCKETS = buckets(SUB_BUCKET_BITS);
+
+    private final int subBucketBits;
+    private final AtomicLongArray counts;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram() {
+        this(SUB_BUCKET_BITS);
+    }
+
+    /**
+     * @param subBucketBits
+     *        number of bits for the buckets per power of two, between 1 and 10. The bucket bounds deviate at most
+     *        <code>1/2^subBucketBits</code> from a recorded value, e.g. 3% for 5 bits.
+     */
+    public LatencyHistogram(int subBucketBits) {
+        if (subBucketBits < 1 || subBucketBits > 10)
+            throw new IllegalArgumentException();
+        this.subBucketBits = subBucketBits;
+        this.counts = new AtomicLongArray(buckets(subBucketBits));
+    }
+
+    static int buckets(int subBucketBits) {
+        return (64 - subBucketBits) << subBucketBits;
+    }
+
+    static int bucket(long value) {
+        return bucket(value, SUB_BUCKET_BITS);
+    }
+
+    static int bucket(long value, int subBucketBits) {
+        final int subBuckets = 1 << subBucketBits;
+        if (value < subBuckets)
+            return (int) value;
+        final int msb = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (msb - subBucketBits)) & (subBuckets - 1);
+        return (msb - subBucketBits + 1) * subBuckets + subBucket;
+    }
+
+    static long upperBound(int bucket) {
+        return upperBound(bucket, SUB_BUCKET_BITS);
+    }
+
+    static long upperBound(int bucket, int subBucketBits) {
+        final int subBuckets = 1 << subBucketBits;
+        if (bucket < subBuckets)
+            return bucket;
+        final int shift = bucket / subBuckets - 1;
+        final long lower = (long) (subBuckets + bucket % subBuckets) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    public void record(long value, TimeUnit unit) {
+        recordMicros(unit.toMicros(value));
+    }
+
+    public void recordMicros(long micros) {
+        if (micros < 0)
+            micros = 0;
+        counts.incrementAndGet(bucket(micros, subBucketBits));
+        count.increment();
+        sum.add(micros);
+        long currentMax = max.get();
+        while (micros > currentMax && !max.compareAndSet(currentMax, micros)) {
+            currentMax = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Resets all counters. Values recorded concurrently may be partially lost.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * @return a snapshot of the non-empty buckets. Values recorded concurrently may be partially contained.
+     */
+    public HistogramData getSnapshot() {
+        int nonEmpty = 0;
+        final int buckets = counts.length();
+        final long[] all = new long[buckets];
+        for (int i = 0; i < buckets; i++) {
+            all[i] = counts.get(i);
+            if (all[i] > 0)
+                nonEmpty++;
+        }
+        final long[] upperBounds = new long[nonEmpty];
+        final long[] bucketCounts = new long[nonEmpty];
+        int j = 0;
+        for (int i = 0; i < buckets && j < nonEmpty; i++) {
+            if (all[i] > 0) {
+                upperBounds[j] = upperBound(i, subBucketBits);
+                bucketCounts[j] = all[i];
+                j++;
+            }
+        }
+        return new HistogramData(count.sum(), sum.sum(), max.get(), upperBounds, bucketCounts);
+    }
+
+}
@@ -66,9 +66,17 @@ public abstract class AbstractSqlDialect implements DatabaseDialect, DatabaseDia
     protected String queryUpdateQueueState = getResourceAsString("/sql-query-ready-bpids.sql");
     private String engineId;
 
+    private boolean setBasedDequeue = false;
+    private boolean binaryWorkflowState = false;
+
     private StmtStatistic dequeueStmtStatistic;
     private StmtStatistic queueDeleteStmtStatistic;
+    private StmtStatistic dequeueTotalStmtStatistic;
+    private StmtStatistic setBasedDequeueClaimStmtStatistic;
+    private StmtStatistic setBasedDequeueResponsesStmtStatistic;
+    private StmtStatistic setBasedDequeueTotalStmtStatistic;
     private StmtStatistic enqueueUpdateStateStmtStatistic;
+    private StmtStatistic incrementalUpdateStateStmtStatistic;
     private StmtStatistic insertStmtStatistic;
     private StmtStatistic deleteStaleResponsesStmtStatistic;
     protected StmtStatistic selectQueueSizeStmtStatistic;
@@ -97,6 +105,9 @@ public abstract class AbstractSqlDialect implements DatabaseDialect, DatabaseDia
             engineId = "default";
             logger.info("Setting engineId to {}", engineId);
         }
+        if (binaryWorkflowState && !(serializer instanceof BinarySerializer)) {
+            throw new IllegalArgumentException("Binary workflow state requires a " + BinarySerializer.class.getSimpleName() + ", but serializer is a " + serializer.getClass().getName());
+        }
         initStats();
     }
 
@@ -104,6 +115,10 @@ public abstract class AbstractSqlDialect implements DatabaseDialect, DatabaseDia
         this.engineId = engineId;
     }
 
+    public String getEngineId() {
+        return engineId;
+    }
+
     public void setEngineIdProvider(EngineIdProvider engineIdProvider) {
         engineId = engineIdProvider.getEngineId();
     }
@@ -145,10 +160,94 @@ public abstract class AbstractSqlDialect implements DatabaseDialect, DatabaseDia
         this.runtimeStatisticsCollector = runtimeStatisticsCollector;
     }
 
+    /**
+     * Enables the set based dequeue mode. Instead of reading the waits and responses of the dequeued workflow
+     * instances in chunks of 25 ids, they are read with one statement per batch. Dialects that support it (see
+     * {@link #createClaimStmt(Connection, String, int)}) additionally claim the queue entries and read the workflow
+     * instances with a single statement without taking the dequeue lock.
+     * Default is <code>false</code>, i.e. the legacy dequeue is used.
+     *
+     * @param setBasedDequeue
+     *        <code>true</code> to enable the set based dequeue mode
+     */
+    public void setSetBasedDequeue(boolean setBasedDequeue) {
+        logger.info("setSetBasedDequeue({})", setBasedDequeue);
+        this.setBasedDequeue = setBasedDequeue;
+    }
+
+    public boolean isSetBasedDequeue() {
+        return setBasedDequeue;
+    }
+
+    /**
+     * Enables writing the workflow instance state in binary form into the columns DATA_BIN and OBJECT_STATE_BIN of
+     * COP_WORKFLOW_INSTANCE instead of the text columns DATA and OBJECT_STATE. This requires a
+     * {@link BinarySerializer} and a dialect/schema supporting it (see {@link #supportsBinaryWorkflowState()}).
+     * <p>
+     * Rows written in text form stay readable in both modes. Rows written in binary form can only be read with this
+     * option turned on, so enable it only after all engines of a cluster have been upgraded.
+     *
+     * @param binaryWorkflowState
+     *        <code>true</code> to write the workflow instance state in binary form
+     */
+    public void setBinaryWorkflowState(boolean binaryWorkflowState) {
+        if (!supportsBinaryWorkflowState() && binaryWorkflowState) {
+            throw new IllegalArgumentException("Binary workflow state not supported!");
+        }
+        logger.info("setBinaryWorkflowState({})", binaryWorkflowState);
+        this.binaryWorkflowState = binaryWorkflowState;
+    }
+
+    public boolean isBinaryWorkflowState() {
+        return binaryWorkflowState;
+    }
+
+    /**
+     * @return <code>true</code>, if this dialect supports the columns DATA_BIN and OBJECT_STATE_BIN, see
+     *         {@link #setBinaryWorkflowState(boolean)}
+     */
+    protected boolean supportsBinaryWorkflowState() {
+        return false;
+    }
+
+    /**
+     * @param prefix
+     *        table alias including the dot or an empty string
+     * @return the additional column list <code>,DATA_BIN,OBJECT_STATE_BIN</code> if binary workflow state is enabled,
+     *         an empty string otherwise
+     */
+    protected String binaryStateColumns(String prefix) {
+        return binaryWorkflowState ? "," + prefix + "DATA_BIN," + prefix + "OBJECT_STATE_BIN" : "";
+    }
+
+    /**
+     * Reads the serialized workflow state from the current row. If binary workflow state is enabled and the text
+     * columns are empty, the binary columns DATA_BIN and OBJECT_STATE_BIN are read (by name).
+     */
+    protected SerializedWorkflow readSerializedWorkflow(ResultSet rs, int dataIndex, int objectStateIndex) throws SQLException {
+        final SerializedWorkflow sw = new SerializedWorkflow();
+        sw.setData(rs.getString(dataIndex));
+        sw.setObjectState(rs.getString(objectStateIndex));
+        if (binaryWorkflowState && sw.getObjectState() == null) {
+            sw.setBinaryData(rs.getBytes("DATA_BIN"));
+            sw.setBinaryObjectState(rs.getBytes("OBJECT_STATE_BIN"));
+        }
+        return sw;
+    }
+
+    protected SerializedWorkflow serializeWorkflow(Workflow<?> wf) throws Exception {
+        return binaryWorkflowState ? ((BinarySerializer) serializer).serializeWorkflowBinary(wf) : serializer.serializeWorkflow(wf);
+    }
+
     private void initStats() {
         dequeueStmtStatistic = new StmtStatistic("DBStorage.dequeue.fullquery", runtimeStatisticsCollector);
         queueDeleteStmtStatistic = new StmtStatistic("DBStorage.queue.delete", runtimeStatisticsCollector);
+        dequeueTotalStmtStatistic = new StmtStatistic("DBStorage.dequeue.total", runtimeStatisticsCollector);
+        setBasedDequeueClaimStmtStatistic = new StmtStatistic("DBStorage.dequeue.setBased.claim", runtimeStatisticsCollector);
+        setBasedDequeueResponsesStmtStatistic = new StmtStatistic("DBStorage.dequeue.setBased.responses", runtimeStatisticsCollector);
+        setBasedDequeueTotalStmtStatistic = new StmtStatistic("DBStorage.dequeue.setBased.total", runtimeStatisticsCollector);
         enqueueUpdateStateStmtStatistic = new StmtStatistic("DBStorage.enqueue.updateState", runtimeStatisticsCollector);
+        incrementalUpdateStateStmtStatistic = new StmtStatistic("DBStorage.enqueue.updateState.incremental", runtimeStatisticsCollector);
         insertStmtStatistic = new StmtStatistic("DBStorage.insert", runtimeStatisticsCollector);
         deleteStaleResponsesStmtStatistic = new StmtStatistic("DBStorage.deleteStaleResponses", runtimeStatisticsCollector);
         selectQueueSizeStmtStatistic = new StmtStatistic("DBStorage.selectQueueSize", runtimeStatisticsCollector);
@@ -220,18 +319,24 @@ public abstract class AbstractSqlDialect implements DatabaseDialect, DatabaseDia
         logger.info("done!");
     }
 
-    @SuppressWarnings("rawtypes")
     @Override
     public List<Workflow<?>> dequeue(String ppoolId, int max, Connection con) throws Exception {
         logger.trace("dequeue({},{})", ppoolId, max);
+        if (setBasedDequeue) {
+            return dequeueSetBased(ppoolId, max, con);
+        }
+        return dequeueLegacy(ppoolId, max, con);
+    }
 
+    @SuppressWarnings("rawtypes")
+    private List<Workflow<?>> dequeueLegacy(String ppoolId, int max, Connection con) throws Exception {
         PreparedStatement dequeueStmt = null;
         PreparedStatement updateQueueStmt = null;
         PreparedStatement selectResponsesStmt = null;
-        PreparedStatement updateBpStmt = null;
         final String lockContext = "dequeue#" + ppoolId;
         try {
             final long startTS = System.currentTimeMillis();
+            dequeueTotalStmtStatistic.start();
             lock(con, lockContext);
             final List<Workflow<?>> rv = new ArrayList<Workflow<?>>(max);
             final List<BatchCommand> invalidWorkflowInstances = new ArrayList<BatchCommand>();
@@ -243,27 +348,12 @@ public abstract class AbstractSqlDialect implements DatabaseDialect, DatabaseDia
             final Map<String, Workflow<?>> map = new HashMap<String, Workflow<?>>(max * 3);
             while (rs.next()) {
                 final String id = rs.getString(1);
-                final int prio = rs.getInt(2);
 
                 updateQueueStmt.setString(1, engineId);
                 updateQueueStmt.setString(2, id);
                 updateQueueStmt.addBatch();
 
-                try {
-                    SerializedWorkflow sw = new SerializedWorkflow();
-                    sw.setData(rs.getString(3));
-                    sw.setObjectState(rs.getString(4));
-                    PersistentWorkflow<?> wf = (PersistentWorkflow<?>) serializer.deserializeWorkflow(sw, wfRepository);
-                    wf.setId(id);
-                    wf.setProcessorPoolId(ppoolId);
-                    wf.setPriority(prio);
-                    WorkflowAccessor.setCreationTS(wf, new Date(rs.getTimestamp(5).getTime()));
-                    WorkflowAccessor.setLastActivityTS(wf, new Date(rs.getTimestamp(6).getTime()));
-                    map.put(wf.getId(), wf);
-                } catch (Exception e) {
-                    logger.error("decoding of '" + id + "' failed: " + e.toString(), e);
-                    invalidWorkflowInstances.add(createBatchCommand4error(new DummyPersistentWorkflow(id, ppoolId, null, prio), e, DBProcessingState.INVALID, new Acknowledge.BestEffortAcknowledge()));
-                }
+                decodeDequeuedWorkflow(rs, ppoolId, map, invalidWorkflowInstances);
             }
             rs.close();
             dequeueStmt.close();
@@ -279,24 +369,7 @@ public abstract class AbstractSqlDialect implements DatabaseDialect, DatabaseDia
                     }
                     ResultSet rsResponses = selectResponsesStmt.executeQuery();
                     while (rsResponses.next()) {
-                        String bpId = rsResponses.getString(1);
-                        String cid = rsResponses.getString(2);
-                        final Timestamp timeoutTS = rsResponses.getTimestamp(3);
-                        boolean isTimeout = timeoutTS != null ? timeoutTS.getTime() <= System.currentTimeMillis() : false;
-                        String response = rsResponses.getString(4);
-                        PersistentWorkflow<?> wf = (PersistentWorkflow<?>) map.get(bpId);
-                        Response<?> r = null;
-                        if (response != null) {
-                            r = serializer.deserializeResponse(response);
-                            wf.addResponseId(r.getResponseId());
-                        } else if (isTimeout) {
-                            // timeout
-                            r = new Response<Object>(cid);
-                        }
-                        if (r != null) {
-                            wf.putResponse(r);
-                        }
-                        wf.addWaitCorrelationId(cid);
+                        addWaitAndResponse(rsResponses, map);
                     }
                     rsResponses.close();
                 }
@@ -305,19 +378,16 @@ public abstract class AbstractSqlDialect implements DatabaseDialect, DatabaseDia
                 updateQueueStmt.executeBatch();
                 queueDeleteStmtStatistic.stop(map.size());
 
-                @SuppressWarnings("unchecked")
-                Collection<PersistentWorkflow<?>> workflows = (Collection) map.values();
-                workflowPersistencePlugin.onWorkflowsLoaded(con, workflows);
-                rv.addAll(workflows);
+                onWorkflowsDequeued(con, map, rv);
             }
 
             handleInvalidWorkflowInstances(con, invalidWorkflowInstances);
+            dequeueTotalStmtStatistic.stop(rv.size());
 
             logger.trace("dequeue for pool {} returns {} element(s)", ppoolId, rv.size());
             logger.debug("{} in {} msec", rv.size(), (System.currentTimeMillis() - startTS));
             return rv;
         } finally {
-            JdbcUtils.closeStatement(updateBpStmt);
             JdbcUtils.closeStatement(dequeueStmt);
             JdbcUtils.closeStatement(updateQueueStmt);
             JdbcUtils.closeStatement(selectResponsesStmt);
@@ -325,6 +395,140 @@ public abstract class AbstractSqlDialect implements DatabaseDialect, DatabaseDia
         }
     }
 
+    @SuppressWarnings("rawtypes")
+    private List<Workflow<?>> dequeueSetBased(String ppoolId, int max, Connection con) throws Exception {
+        PreparedStatement claimStmt = null;
+        PreparedStatement updateQueueStmt = null;
+        final String lockContext = "dequeue#" + ppoolId;
+        boolean locked = false;
+        try {
+            final long startTS = System.currentTimeMillis();
+            setBasedDequeueTotalStmtStatistic.start();
+            final List<Workflow<?>> rv = new ArrayList<Workflow<?>>(max);
+            final List<BatchCommand> invalidWorkflowInstances = new ArrayList<BatchCommand>();
+            final Map<String, Workflow<?>> map = new HashMap<String, Workflow<?>>(max * 3);
+
+            setBasedDequeueClaimStmtStatistic.start();
+            claimStmt = createClaimStmt(con, ppoolId, max);
+            if (claimStmt == null) {
+                // no atomic claim available for this dialect - select and update the queue entries under the dequeue lock
+                lock(con, lockContext);
+                locked = true;
+                claimStmt = createDequeueStmt(con, ppoolId, max);
+                updateQueueStmt = con.prepareStatement("update COP_QUEUE set ENGINE_ID=? where WORKFLOW_INSTANCE_ID=?");
+            }
+            final ResultSet rs = claimStmt.executeQuery();
+            int claimed = 0;
+            while (rs.next()) {
+                if (updateQueueStmt != null) {
+                    updateQueueStmt.setString(1, engineId);
+                    updateQueueStmt.setString(2, rs.getString(1));
+                    updateQueueStmt.addBatch();
+                }
+                decodeDequeuedWorkflow(rs, ppoolId, map, invalidWorkflowInstances);
+                claimed++;
+            }
+            rs.close();
+            if (updateQueueStmt != null && claimed > 0) {
+                updateQueueStmt.executeBatch();
+            }
+            setBasedDequeueClaimStmtStatistic.stop(claimed);
+
+            if (!map.isEmpty()) {
+                setBasedDequeueResponsesStmtStatistic.start();
+                final List<String> ids = new ArrayList<String>(map.keySet());
+                final int chunkSize = getMaxInListSize();
+                for (int from = 0; from < ids.size();) {
+                    final int to = (int) Math.min(ids.size(), (long) from + chunkSize);
+                    final PreparedStatement selectResponsesStmt = createSelectWaitsAndResponsesStmt(con, ids.subList(from, to));
+                    try {
+                        final ResultSet rsResponses = selectResponsesStmt.executeQuery();
+                        while (rsResponses.next()) {
+                            addWaitAndResponse(rsResponses, map);
+                        }
+                        rsResponses.close();
+                    } finally {
+                        JdbcUtils.closeStatement(selectResponsesStmt);
+                    }
+                    from = to;
+                }
+                setBasedDequeueResponsesStmtStatistic.stop(map.size());
+
+                onWorkflowsDequeued(con, map, rv);
+            }
+
+            handleInvalidWorkflowInstances(con, invalidWorkflowInstances);
+            setBasedDequeueTotalStmtStatistic.stop(rv.size());
+
+            logger.trace("dequeue for pool {} returns {} element(s)", ppoolId, rv.size());
+            logger.debug("{} in {} msec", rv.size(), (System.currentTimeMillis() - startTS));
+            return rv;
+        } finally {
+            JdbcUtils.closeStatement(claimStmt);
+            JdbcUtils.closeStatement(updateQueueStmt);
+            if (locked) {
+                releaseLock(con, lockContext);
+            }
+        }
+    }
+
+    /**
+     * Decodes the current row of a dequeue result set (id,priority,data,object_state,creation_ts,last_mod_ts and
+     * optionally data_bin,object_state_bin) and
+     * puts the resulting workflow into <code>map</code>. Instances that cannot be decoded are added to
+     * <code>invalidWorkflowInstances</code>.
+     */
+    @SuppressWarnings("rawtypes")
+    private void decodeDequeuedWorkflow(ResultSet rs, String ppoolId, Map<String, Workflow<?>> map, List<BatchCommand> invalidWorkflowInstances) throws SQLException {
+        final String id = rs.getString(1);
+        final int prio = rs.getInt(2);
+        try {
+            SerializedWorkflow sw = readSerializedWorkflow(rs, 3, 4);
+            PersistentWorkflow<?> wf = (PersistentWorkflow<?>) serializer.deserializeWorkflow(sw, wfRepository);
+            wf.setId(id);
+            wf.setProcessorPoolId(ppoolId);
+            wf.setPriority(prio);
+            WorkflowAccessor.setCreationTS(wf, new Date(rs.getTimestamp(5).getTime()));
+            WorkflowAccessor.setLastActivityTS(wf, new Date(rs.getTimestamp(6).getTime()));
+            map.put(wf.getId(), wf);
+        } catch (Exception e) {
+            logger.error("decoding of '" + id + "' failed: " + e.toString(), e);
+            invalidWorkflowInstances.add(createBatchCommand4error(new DummyPersistentWorkflow(id, ppoolId, null, prio), e, DBProcessingState.INVALID, new Acknowledge.BestEffortAcknowledge()));
+        }
+    }
+
+    /**
+     * Applies the current row of a waits and responses result set
+     * (WORKFLOW_INSTANCE_ID, correlation_id, timeout_ts, response) to the corresponding workflow in <code>map</code>.
+     */
+    private void addWaitAndResponse(ResultSet rsResponses, Map<String, Workflow<?>> map) throws Exception {
+        String bpId = rsResponses.getString(1);
+        String cid = rsResponses.getString(2);
+        final Timestamp timeoutTS = rsResponses.getTimestamp(3);
+        boolean isTimeout = timeoutTS != null ? timeoutTS.getTime() <= System.currentTimeMillis() : false;
+        String response = rsResponses.getString(4);
+        PersistentWorkflow<?> wf = (PersistentWorkflow<?>) map.get(bpId);
+        Response<?> r = null;
+        if (response != null) {
+            r = serializer.deserializeResponse(response);
+            wf.addResponseId(r.getResponseId());
+        } else if (isTimeout) {
+            // timeout
+            r = new Response<Object>(cid);
+        }
+        if (r != null) {
+            wf.putResponse(r);
+        }
+        wf.addWaitCorrelationId(cid);
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private void onWorkflowsDequeued(Connection con, Map<String, Workflow<?>> map, List<Workflow<?>> rv) throws Exception {
+        Collection<PersistentWorkflow<?>> workflows = (Collection) map.values();
+        workflowPersistencePlugin.onWorkflowsLoaded(con, workflows);
+        rv.addAll(workflows);
+    }
+
     @SuppressWarnings({ "rawtypes", "unchecked" })
     private void handleInvalidWorkflowInstances(Connection con, final List<BatchCommand> invalidWorkflowInstances) throws Exception {
         logger.debug("invalidWorkflowInstances.size()={}", invalidWorkflowInstances.size());
@@ -337,44 +541,21 @@ public abstract class AbstractSqlDialect implements DatabaseDialect, DatabaseDia
     @Override
     public int updateQueueState(int max, Connection con) throws SQLException {
         PreparedStatement queryStmt = null;
-        PreparedStatement updStmt = null;
-        PreparedStatement insStmt = null;
         final String lockContext = "updateQueueState";
 
         try {
-            int rowcount = 0;
             final long startTS = System.currentTimeMillis();
             lock(con, lockContext);
 
-            final Timestamp NOW = new Timestamp(System.currentTimeMillis());
             enqueueUpdateStateStmtStatistic.start();
             queryStmt = createUpdateStateStmt(con, max);
+            final Map<String, ReadyWorkflowInstance> ready = new LinkedHashMap<String, ReadyWorkflowInstance>();
             ResultSet rs = queryStmt.executeQuery();
-            updStmt = con.prepareStatement("update COP_WAIT set state=1, timeout_ts=timeout_ts where WORKFLOW_INSTANCE_ID=?");
-            insStmt = con.prepareStatement("INSERT INTO COP_QUEUE (PPOOL_ID, PRIORITY, LAST_MOD_TS, WORKFLOW_INSTANCE_ID) VALUES (?,?,?,?)");
             while (rs.next()) {
-                rowcount++;
-
-                final String wfiId = rs.getString(1);
-                final String ppoolId = rs.getString(2);
-                final int prio = rs.getInt(3);
-
-                updStmt.setString(1, wfiId);
-                updStmt.addBatch();
-
-                insStmt.setString(1, ppoolId);
-                insStmt.setInt(2, prio);
-                insStmt.setTimestamp(3, NOW);
-                insStmt.setString(4, wfiId);
-                insStmt.addBatch();
-
-                logger.debug("Inserting {} into COP_QUEUE", wfiId);
+                ready.put(rs.getString(1), new ReadyWorkflowInstance(rs.getString(2), rs.getInt(3)));
             }
             rs.close();
-            if (rowcount > 0) {
-                insStmt.executeBatch();
-                updStmt.executeBatch();
-            }
+            final int rowcount = enqueueReadyWorkflowInstances(ready, con);
             enqueueUpdateStateStmtStatistic.stop(rowcount == 0 ? 1 : rowcount);
             logger.debug("Queue update in {} msec", (System.currentTimeMillis() - startTS));
             return rowcount;
@@ -385,13 +566,157 @@ public abstract class AbstractSqlDialect implements DatabaseDialect, DatabaseDia
             }
             throw e;
         } finally {
-            JdbcUtils.closeStatement(insStmt);
-            JdbcUtils.closeStatement(updStmt);
             JdbcUtils.closeStatement(queryStmt);
             releaseLock(con, lockContext);
         }
     }
 
+    @Override
+    public int updateQueueState(Collection<String> correlationIds, int max, Connection con) throws SQLException {
+        final String lockContext = "updateQueueState";
+        try {
+            final long startTS = System.currentTimeMillis();
+            lock(con, lockContext);
+
+            incrementalUpdateStateStmtStatistic.start();
+            int rowcount = 0;
+            try {
+                rowcount = enqueueReadyWorkflowInstances(findReadyWorkflowInstances(correlationIds, max, con), con);
+            } finally {
+                incrementalUpdateStateStmtStatistic.stop(rowcount == 0 ? 1 : rowcount);
+            }
+            logger.debug("Incremental queue update for {} correlation ids in {} msec", correlationIds.size(), (System.currentTimeMillis() - startTS));
+            return rowcount;
+        } finally {
+            releaseLock(con, lockContext);
+        }
+    }
+
+    private Map<String, ReadyWorkflowInstance> findReadyWorkflowInstances(Collection<String> correlationIds, int max, Connection con) throws SQLException {
+        final Map<String, ReadyWorkflowInstance> ready = new LinkedHashMap<String, ReadyWorkflowInstance>();
+        // due timeouts - the query is supported by the index on COP_WAIT.TIMEOUT_TS
+        try (PreparedStatement stmt = con.prepareStatement("SELECT WORKFLOW_INSTANCE_ID, PPOOL_ID, PRIORITY FROM COP_WAIT WHERE STATE=0 AND TIMEOUT_TS <= ?")) {
+            stmt.setMaxRows(max);
+            stmt.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    ready.put(rs.getString(1), new ReadyWorkflowInstance(rs.getString(2), rs.getInt(3)));
+                }
+            }
+        }
+        // waits for the correlation ids, including the other correlation ids the same workflow instances wait for
+        final Map<String, List<String>> waitingCids = new HashMap<String, List<String>>();
+        final Map<String, Integer> minNumbOfResp = new HashMap<String, Integer>();
+        final Map<String, ReadyWorkflowInstance> waiting = new HashMap<String, ReadyWorkflowInstance>();
+        for (List<String> chunk : chunks(new ArrayList<String>(new HashSet<String>(correlationIds)))) {
+            try (PreparedStatement stmt = con.prepareStatement("SELECT WORKFLOW_INSTANCE_ID, CORRELATION_ID, MIN_NUMB_OF_RESP, PPOOL_ID, PRIORITY FROM COP_WAIT WHERE STATE=0 AND WORKFLOW_INSTANCE_ID IN (SELECT WORKFLOW_INSTANCE_ID FROM COP_WAIT WHERE CORRELATION_ID IN (" + placeholders(chunk.size()) + "))")) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    stmt.setString(i + 1, chunk.get(i));
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        final String wfiId = rs.getString(1);
+                        List<String> cids = waitingCids.get(wfiId);
+                        if (cids == null) {
+                            cids = new ArrayList<String>();
+                            waitingCids.put(wfiId, cids);
+                        }
+                        if (!cids.contains(rs.getString(2))) {
+                            cids.add(rs.getString(2));
+                        }
+                        final Integer min = minNumbOfResp.get(wfiId);
+                        minNumbOfResp.put(wfiId, min == null ? rs.getInt(3) : Math.min(min, rs.getInt(3)));
+                        if (!waiting.containsKey(wfiId)) {
+                            waiting.put(wfiId, new ReadyWorkflowInstance(rs.getString(4), rs.getInt(5)));
+                        }
+                    }
+                }
+            }
+        }
+        final Set<String> cidsWithResponse = new HashSet<String>();
+        final List<String> allWaitingCids = new ArrayList<String>();
+        for (List<String> cids : waitingCids.values()) {
+            allWaitingCids.addAll(cids);
+        }
+        for (List<String> chunk : chunks(allWaitingCids)) {
+            try (PreparedStatement stmt = con.prepareStatement("SELECT DISTINCT CORRELATION_ID FROM COP_RESPONSE WHERE CORRELATION_ID IN (" + placeholders(chunk.size()) + ")")) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    stmt.setString(i + 1, chunk.get(i));
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        cidsWithResponse.add(rs.getString(1));
+                    }
+                }
+            }
+        }
+        for (Map.Entry<String, List<String>> entry : waitingCids.entrySet()) {
+            if (ready.size() >= max)
+                break;
+            int c = 0;
+            for (String cid : entry.getValue()) {
+                if (cidsWithResponse.contains(cid))
+                    c++;
+            }
+            if (c > 0 && c >= minNumbOfResp.get(entry.getKey())) {
+                ready.put(entry.getKey(), waiting.get(entry.getKey()));
+            }
+        }
+        return ready;
+    }
+
+    private static final class ReadyWorkflowInstance {
+        final String ppoolId;
+        final int priority;
+
+        ReadyWorkflowInstance(String ppoolId, int priority) {
+            this.ppoolId = ppoolId;
+            this.priority = priority;
+        }
+    }
+
+    private static int enqueueReadyWorkflowInstances(Map<String, ReadyWorkflowInstance> ready, Connection con) throws SQLException {
+        if (ready.isEmpty())
+            return 0;
+        final Timestamp NOW = new Timestamp(System.currentTimeMillis());
+        try (PreparedStatement updStmt = con.prepareStatement("update COP_WAIT set state=1, timeout_ts=timeout_ts where WORKFLOW_INSTANCE_ID=?");
+                PreparedStatement insStmt = con.prepareStatement("INSERT INTO COP_QUEUE (PPOOL_ID, PRIORITY, LAST_MOD_TS, WORKFLOW_INSTANCE_ID) VALUES (?,?,?,?)")) {
+            for (Map.Entry<String, ReadyWorkflowInstance> entry : ready.entrySet()) {
+                final String wfiId = entry.getKey();
+                updStmt.setString(1, wfiId);
+                updStmt.addBatch();
+
+                insStmt.setString(1, entry.getValue().ppoolId);
+                insStmt.setInt(2, entry.getValue().priority);
+                insStmt.setTimestamp(3, NOW);
+                insStmt.setString(4, wfiId);
+                insStmt.addBatch();
+
+                logger.debug("Inserting {} into COP_QUEUE", wfiId);
+            }
+            insStmt.executeBatch();
+            updStmt.executeBatch();
+        }
+        return ready.size();
+    }
+
+    private static List<List<String>> chunks(List<String> list) {
+        final int chunkSize = 100;
+        final List<List<String>> chunks = new ArrayList<List<String>>();
+        for (int i = 0; i < list.size(); i += chunkSize) {
+            chunks.add(list.subList(i, Math.min(i + chunkSize, list.size())));
+        }
+        return chunks;
+    }
+
+    private static String placeholders(int n) {
+        final StringBuilder sb = new StringBuilder(2 * n);
+        for (int i = 0; i < n; i++) {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        return sb.toString();
+    }
+
     @Override
     public int deleteStaleResponse(Connection con, int maxRows) throws Exception {
         if (logger.isTraceEnabled())
@@ -853,7 +1178,7 @@ public abstract class AbstractSqlDialect implements DatabaseDialect, DatabaseDia
     public BatchCommand createBatchCommand4registerCallback(RegisterCall rc, ScottyDBStorageInterface dbStorageInterface, Acknowledge ack) throws Exception {
         if (rc == null)
             throw new NullPointerException();
-        return new SqlRegisterCallback.Command(rc, serializer, dbStorageInterface, System.currentTimeMillis() + dbBatchingLatencyMSec, workflowPersistencePlugin, ack);
+        return new SqlRegisterCallback.Command(rc, serializer, binaryWorkflowState, dbStorageInterface, System.currentTimeMillis() + dbBatchingLatencyMSec, workflowPersistencePlugin, ack);
     }
 
     @Override
@@ -862,13 +1187,13 @@ public abstract class AbstractSqlDialect implements DatabaseDialect, DatabaseDia
         PreparedStatement stmtQueue = null;
         try {
             final Timestamp NOW = new Timestamp(System.currentTimeMillis());
-            stmtWF = con.prepareStatement("INSERT INTO COP_WORKFLOW_INSTANCE (ID,STATE,PRIORITY,LAST_MOD_TS,PPOOL_ID,DATA,OBJECT_STATE,CREATION_TS,CLASSNAME) VALUES (?,?,?,?,?,?,?,?,?)");
+            stmtWF = con.prepareStatement("INSERT INTO COP_WORKFLOW_INSTANCE (ID,STATE,PRIORITY,LAST_MOD_TS,PPOOL_ID,DATA,OBJECT_STATE,CREATION_TS,CLASSNAME" + binaryStateColumns("") + ") VALUES (?,?,?,?,?,?,?,?,?" + (binaryWorkflowState ? ",?,?" : "") + ")");
             stmtQueue = con.prepareStatement("insert into COP_QUEUE (ppool_id, priority, last_mod_ts, WORKFLOW_INSTANCE_ID) values (?,?,?,?)");
             int n = 0;
             for (int i = 0; i < wfs.size(); i++) {
                 Workflow<?> wf = wfs.get(i);
                 logger.debug("insert({})", wf.getId());
-                final SerializedWorkflow sw = serializer.serializeWorkflow(wf);
+                final SerializedWorkflow sw = serializeWorkflow(wf);
                 stmtWF.setString(1, wf.getId());
                 stmtWF.setInt(2, DBProcessingState.ENQUEUED.ordinal());
                 stmtWF.setInt(3, wf.getPriority());
@@ -878,6 +1203,10 @@ public abstract class AbstractSqlDialect implements DatabaseDialect, DatabaseDia
                 stmtWF.setString(7, sw.getObjectState());
                 stmtWF.setTimestamp(8, new Timestamp(wf.getCreationTS().getTime()));
                 stmtWF.setString(9, wf.getClass().getName());
+                if (binaryWorkflowState) {
+                    stmtWF.setBytes(10, sw.getBinaryData());
+                    stmtWF.setBytes(11, sw.getBinaryObjectState());
+                }
                 stmtWF.addBatch();
 
                 stmtQueue.setString(1, wf.getProcessorPoolId());
@@ -938,6 +1267,62 @@ public abstract class AbstractSqlDialect implements DatabaseDialect, DatabaseDia
 
     protected abstract PreparedStatement createDequeueStmt(final Connection c, final String ppoolId, final int max) throws SQLException;
 
+    /**
+     * Creates a statement that atomically claims up to <code>max</code> unclaimed queue entries of the processor pool
+     * for this engine and returns the corresponding workflow instances with the same columns as
+     * {@link #createDequeueStmt(Connection, String, int)}. The dequeue lock is not taken when this statement is used,
+     * so the statement must be safe for concurrent dequeuers, e.g. by using <code>FOR UPDATE SKIP LOCKED</code>.
+     * Used by the set based dequeue mode only.
+     *
+     * @param c
+     *        connection to use
+     * @param ppoolId
+     *        processor pool id
+     * @param max
+     *        max. number of queue entries to claim
+     * @return the claim statement or <code>null</code>, if the dialect does not support atomic claiming
+     * @throws SQLException
+     *         if the statement could not be created
+     */
+    protected PreparedStatement createClaimStmt(final Connection c, final String ppoolId, final int max) throws SQLException {
+        return null;
+    }
+
+    /**
+     * Creates a statement that reads all waits (and their responses, if any) of the specified workflow instances
+     * with the columns WORKFLOW_INSTANCE_ID, correlation_id, timeout_ts, response.
+     * Used by the set based dequeue mode only. <code>workflowInstanceIds</code> contains at most
+     * {@link #getMaxInListSize()} elements.
+     *
+     * @param c
+     *        connection to use
+     * @param workflowInstanceIds
+     *        ids of the workflow instances
+     * @return the select statement
+     * @throws SQLException
+     *         if the statement could not be created
+     */
+    protected PreparedStatement createSelectWaitsAndResponsesStmt(final Connection c, final List<String> workflowInstanceIds) throws SQLException {
+        final StringBuilder sql = new StringBuilder(200 + workflowInstanceIds.size() * 2);
+        sql.append("select w.WORKFLOW_INSTANCE_ID, w.correlation_id, w.timeout_ts, r.response from (select WORKFLOW_INSTANCE_ID, correlation_id, timeout_ts from COP_WAIT where WORKFLOW_INSTANCE_ID in (");
+        for (int i = 0; i < workflowInstanceIds.size(); i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        sql.append(")) w LEFT OUTER JOIN COP_RESPONSE r ON w.correlation_id = r.correlation_id order by r.correlation_id, r.response_id");
+        final PreparedStatement stmt = c.prepareStatement(sql.toString());
+        for (int i = 0; i < workflowInstanceIds.size(); i++) {
+            stmt.setString(i + 1, workflowInstanceIds.get(i));
+        }
+        return stmt;
+    }
+
+    /**
+     * @return max. number of workflow instance ids passed to {@link #createSelectWaitsAndResponsesStmt(Connection, List)}
+     */
+    protected int getMaxInListSize() {
+        return 1000;
+    }
+
     protected abstract PreparedStatement createDeleteStaleResponsesStmt(final Connection c, final int MAX_ROWS) throws SQLException;
 
     @Override
@@ -945,7 +1330,7 @@ public abstract class AbstractSqlDialect implements DatabaseDialect, DatabaseDia
         if (multiEngineMode) {
             logger.warn("Checking DB consistency when multiEngineMode is turned on!");
         }
-        final PreparedStatement dequeueStmt = con.prepareStatement("select id,priority,data,object_state,PPOOL_ID from COP_WORKFLOW_INSTANCE where state not in (?,?)");
+        final PreparedStatement dequeueStmt = con.prepareStatement("select id,priority,data,object_state,PPOOL_ID" + binaryStateColumns("") + " from COP_WORKFLOW_INSTANCE where state not in (?,?)");
         try {
             final List<String> idsOfBadWorkflows = new ArrayList<String>();
             dequeueStmt.setInt(1, DBProcessingState.INVALID.ordinal());
@@ -955,12 +1340,8 @@ public abstract class AbstractSqlDialect implements DatabaseDialect, DatabaseDia
                 final String id = rs.getString(1);
                 try {
                     final int prio = rs.getInt(2);
-                    final String data = rs.getString(3);
-                    final String objectState = rs.getString(4);
                     final String ppoolId = rs.getString(5);
-                    final SerializedWorkflow sw = new SerializedWorkflow();
-                    sw.setData(data);
-                    sw.setObjectState(objectState);
+                    final SerializedWorkflow sw = readSerializedWorkflow(rs, 3, 4);
                     final PersistentWorkflow<?> wf = (PersistentWorkflow<?>) serializer.deserializeWorkflow(sw, wfRepository);
                     wf.setId(id);
                     wf.setProcessorPoolId(ppoolId);
@@ -1010,9 +1391,7 @@ public abstract class AbstractSqlDialect implements DatabaseDialect, DatabaseDia
             final String id = rs.getString(1);
             final int prio = rs.getInt(2);
 
-            SerializedWorkflow sw = new SerializedWorkflow();
-            sw.setData(rs.getString(3));
-            sw.setObjectState(rs.getString(4));
+            SerializedWorkflow sw = readSerializedWorkflow(rs, 3, 4);
             wf = (PersistentWorkflow<?>) serializer.deserializeWorkflow(sw, wfRepository);
             wf.setId(id);
             wf.setPriority(prio);
@@ -1056,7 +1435,7 @@ public abstract class AbstractSqlDialect implements DatabaseDialect, DatabaseDia
     }
 
     protected PreparedStatement createReadStmt(final Connection c, final String workflowId) throws SQLException {
-        PreparedStatement dequeueStmt = c.prepareStatement("select id,priority,data,object_state,creation_ts,PPOOL_ID,state,last_mod_ts from COP_WORKFLOW_INSTANCE where id = ?");
+        PreparedStatement dequeueStmt = c.prepareStatement("select id,priority,data,object_state,creation_ts,PPOOL_ID,state,last_mod_ts" + binaryStateColumns("") + " from COP_WORKFLOW_INSTANCE where id = ?");
         dequeueStmt.setString(1, workflowId);
         return dequeueStmt;
     }
@@ -1074,9 +1453,7 @@ public abstract class AbstractSqlDialect implements DatabaseDialect, DatabaseDia
                 final int prio = rs.getInt(3);
                 final String ppoolId = rs.getString(4);
                 try {
-                    SerializedWorkflow sw = new SerializedWorkflow();
-                    sw.setData(rs.getString(5));
-                    sw.setObjectState(rs.getString(6));
+                    SerializedWorkflow sw = readSerializedWorkflow(rs, 5, 6);
                     PersistentWorkflow<?> wf = (PersistentWorkflow<?>) serializer.deserializeWorkflow(sw, wfRepository);
                     wf.setId(id);
                     wf.setProcessorPoolId(ppoolId);
@@ -1125,7 +1502,7 @@ public abstract class AbstractSqlDialect implements DatabaseDialect, DatabaseDia
     }
 
     private StringBuilder appendQueryBase(StringBuilder sql, List<Object> params, WorkflowInstanceFilter filter) {
-        sql.append(" FROM (SELECT w.timeout, w.classname, (CASE WHEN q.WORKFLOW_INSTANCE_ID IS NOT NULL AND w.STATE=2 THEN 0 ELSE w.STATE END) STATE, w.ID, w.PRIORITY, w.PPOOL_ID, w.DATA, w.OBJECT_STATE, w.CREATION_TS, w.LAST_MOD_TS, q.ENGINE_ID FROM COP_WORKFLOW_INSTANCE w LEFT OUTER JOIN COP_QUEUE q on w.id = q.WORKFLOW_INSTANCE_ID) x WHERE 1=1");
+        sql.append(" FROM (SELECT w.timeout, w.classname, (CASE WHEN q.WORKFLOW_INSTANCE_ID IS NOT NULL AND w.STATE=2 THEN 0 ELSE w.STATE END) STATE, w.ID, w.PRIORITY, w.PPOOL_ID, w.DATA, w.OBJECT_STATE" + binaryStateColumns("w.") + ", w.CREATION_TS, w.LAST_MOD_TS, q.ENGINE_ID FROM COP_WORKFLOW_INSTANCE w LEFT OUTER JOIN COP_QUEUE q on w.id = q.WORKFLOW_INSTANCE_ID) x WHERE 1=1");
         if (filter.getWorkflowClassname() != null) {
             sql.append(" AND x.CLASSNAME=?");
             params.add(filter.getWorkflowClassname());
@@ -1144,20 +1521,28 @@ public abstract class AbstractSqlDialect implements DatabaseDialect, DatabaseDia
     public String queryObjectState(String id, Connection con) throws Exception {
         PersistentWorkflow decodedState;
         String codedState = null;
+        byte[] binaryState = null;
 
         final StringBuilder sql = new StringBuilder();
-        sql.append("SELECT OBJECT_STATE FROM COP_WORKFLOW_INSTANCE WHERE ID = ?");
+        sql.append("SELECT OBJECT_STATE" + (binaryWorkflowState ? ", OBJECT_STATE_BIN" : "") + " FROM COP_WORKFLOW_INSTANCE WHERE ID = ?");
         PreparedStatement prepedStmt = con.prepareStatement(sql.toString());
         prepedStmt.setString(1, id);
         ResultSet rs = prepedStmt.executeQuery();
 
         while (rs.next()) {
             codedState = rs.getString("OBJECT_STATE");
+            if (binaryWorkflowState && codedState == null) {
+                binaryState = rs.getBytes("OBJECT_STATE_BIN");
+            }
         }
         JdbcUtils.closeStatement(prepedStmt);
 
         try {
-            decodedState = (PersistentWorkflow<?>) serializer.deserializeStateOnly(codedState, wfRepository);
+            if (binaryState != null) {
+                decodedState = (PersistentWorkflow<?>) ((BinarySerializer) serializer).deserializeStateOnly(binaryState, wfRepository);
+            } else {
+                decodedState = (PersistentWorkflow<?>) serializer.deserializeStateOnly(codedState, wfRepository);
+            }
         } catch (Exception e) {
             logger.error("decoding of '" + id + "' failed: " + e.toString(), e);
             throw new CopperException("Workflow \"" + id + "\" can't be deserialzed");
@@ -1305,9 +1690,7 @@ public abstract class AbstractSqlDialect implements DatabaseDialect, DatabaseDia
         final String id = rs.getString("ID");
         final int prio = rs.getInt("PRIORITY");
         final String ppoolId = rs.getString("PPOOL_ID");
-        final SerializedWorkflow sw = new SerializedWorkflow();
-        sw.setData(rs.getString("DATA"));
-        sw.setObjectState(rs.getString("OBJECT_STATE"));
+        final SerializedWorkflow sw = readSerializedWorkflow(rs, rs.findColumn("DATA"), rs.findColumn("OBJECT_STATE"));
         final PersistentWorkflow<?> wf = (PersistentWorkflow<?>) serializer.deserializeWorkflow(sw, wfRepository);
         wf.setId(id);
         wf.setProcessorPoolId(ppoolId);
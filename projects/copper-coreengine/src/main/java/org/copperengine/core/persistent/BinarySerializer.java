@@ -0,0 +1,49 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.persistent;
+
+import java.io.Serializable;
+
+import org.copperengine.core.Workflow;
+import org.copperengine.core.common.WorkflowRepository;
+
+/**
+ * Byte oriented extension of the {@link Serializer} SPI. Workflow instances are serialized into byte arrays, that a
+ * {@link DatabaseDialect} may store in binary (BLOB/bytea) columns without any text encoding.
+ * <p>
+ * Implementations must still support the text based methods of {@link Serializer}, and
+ * {@link Serializer#deserializeWorkflow(SerializedWorkflow, WorkflowRepository)} must accept both text and binary
+ * {@link SerializedWorkflow}s, so that existing rows stay readable.
+ */
+public interface BinarySerializer extends Serializer {
+
+    /**
+     * @param o
+     *        the workflow to serialize
+     * @return the serialized workflow with {@link SerializedWorkflow#getBinaryData()} and
+     *         {@link SerializedWorkflow#getBinaryObjectState()} set
+     * @throws Exception
+     *         if serialization fails
+     */
+    public SerializedWorkflow serializeWorkflowBinary(final Workflow<?> o) throws Exception;
+
+    public Workflow<?> deserializeStateOnly(byte[] state, WorkflowRepository wfRepo) throws Exception;
+
+    public byte[] serializeObjectBinary(final Serializable o) throws Exception;
+
+    public Serializable deserializeObject(byte[] data) throws Exception;
+
+}
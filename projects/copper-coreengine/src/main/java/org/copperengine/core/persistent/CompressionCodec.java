@@ -0,0 +1,40 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.persistent;
+
+import java.io.IOException;
+
+/**
+ * Codec for compressing and uncompressing serialized objects, see
+ * {@link StandardJavaSerializer#setCompressionCodec(CompressionCodec)}.
+ * <p>
+ * Each codec is identified by a header byte, which is stored in front of the compressed data. Thus rows written with
+ * different codecs may be mixed, as long as all of these codecs are known when reading.
+ * Implementations must be thread safe.
+ */
+public interface CompressionCodec {
+
+    /**
+     * @return the header byte identifying this codec. Must be a printable ASCII character other than 'U', which
+     *         marks uncompressed data.
+     */
+    public byte header();
+
+    public byte[] compress(byte[] data, int offset, int length) throws IOException;
+
+    public byte[] uncompress(byte[] data, int offset, int length) throws IOException;
+
+}
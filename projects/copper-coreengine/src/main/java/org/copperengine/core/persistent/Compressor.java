@@ -50,8 +50,12 @@ public class Compressor {
     }
 
     public byte[] compress(final byte[] bytes) {
+        return compress(bytes, 0, bytes.length);
+    }
+
+    public byte[] compress(final byte[] bytes, int offset, int length) {
         try {
-            deflater.setInput(bytes);
+            deflater.setInput(bytes, offset, length);
             deflater.finish();
             int len = deflater.deflate(buffer);
             byte[] compressedBytes = new byte[len];
@@ -67,8 +71,12 @@ public class Compressor {
     }
 
     public byte[] uncompress(byte[] bytes) throws DataFormatException {
+        return uncompress(bytes, 0, bytes.length);
+    }
+
+    public byte[] uncompress(byte[] bytes, int offset, int length) throws DataFormatException {
         try {
-            inflater.setInput(bytes);
+            inflater.setInput(bytes, offset, length);
             int len = inflater.inflate(buffer);
             byte[] uncompressedBytes = new byte[len];
             System.arraycopy(buffer, 0, uncompressedBytes, 0, len);
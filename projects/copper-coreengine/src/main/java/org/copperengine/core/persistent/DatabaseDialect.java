@@ -17,6 +17,7 @@ package org.copperengine.core.persistent;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -37,6 +38,18 @@ public interface DatabaseDialect {
 
     public abstract int updateQueueState(final int max, final Connection con) throws SQLException;
 
+    /**
+     * Incremental variant of {@link #updateQueueState(int, Connection)}: enqueues the workflow instances with due
+     * timeouts and those waiting for one of the given correlation ids that have received enough responses, without
+     * scanning the complete COP_WAIT and COP_RESPONSE tables. Falls back to the full update by default.
+     * <p>
+     * Like the full update, at most <code>max</code> workflow instances are enqueued. If <code>max</code> is returned,
+     * some of the correlation ids may not have been checked, so the caller has to pass them again.
+     */
+    public default int updateQueueState(final Collection<String> correlationIds, final int max, final Connection con) throws SQLException {
+        return updateQueueState(max, con);
+    }
+
     public abstract int deleteStaleResponse(Connection con, int maxRows) throws Exception;
 
     public abstract void insert(final List<Workflow<?>> wfs, final Connection con) throws DuplicateIdException, Exception;
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.persistent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link CompressionCodec} using the deflate algorithm with a configurable compression level, e.g.
+ * {@link Deflater#BEST_SPEED} for fast compression. Data of any size is compressed and uncompressed in chunks, so
+ * there is no upper size limit as in {@link Compressor}.
+ * <p>
+ * Uses the header byte 'C', i.e. it is able to read data compressed by {@link StandardJavaSerializer} before codecs
+ * were introduced.
+ */
+public class DeflateCompressionCodec implements CompressionCodec {
+
+    public static final byte HEADER = 'C';
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final int level;
+    private final ThreadLocal<Deflater> deflaterTL = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(level);
+        }
+    };
+    private final ThreadLocal<Inflater> inflaterTL = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+    private final ThreadLocal<byte[]> bufferTL = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHUNK_SIZE];
+        }
+    };
+
+    /**
+     * Creates a codec with compression level {@link Deflater#BEST_COMPRESSION}.
+     */
+    public DeflateCompressionCodec() {
+        this(Deflater.BEST_COMPRESSION);
+    }
+
+    /**
+     * @param level
+     *        compression level, see {@link Deflater}
+     */
+    public DeflateCompressionCodec(int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION))
+            throw new IllegalArgumentException("invalid compression level " + level);
+        this.level = level;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    @Override
+    public byte header() {
+        return HEADER;
+    }
+
+    @Override
+    public byte[] compress(byte[] data, int offset, int length) throws IOException {
+        final Deflater deflater = deflaterTL.get();
+        try {
+            prepare(deflater);
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            final byte[] buffer = bufferTL.get();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+            while (!deflater.finished()) {
+                final int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    @Override
+    public byte[] uncompress(byte[] data, int offset, int length) throws IOException {
+        final Inflater inflater = inflaterTL.get();
+        try {
+            inflater.setInput(data, offset, length);
+            final byte[] buffer = bufferTL.get();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(length * 4);
+            while (!inflater.finished()) {
+                final int n = inflater.inflate(buffer);
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(lookupDictionary(inflater.getAdler()));
+                    } else if (inflater.needsInput()) {
+                        throw new IOException("Truncated compressed data");
+                    }
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    /**
+     * Called before compressing, e.g. to set a preset dictionary. Default implementation does nothing.
+     *
+     * @param deflater
+     *        the (reset) deflater
+     */
+    protected void prepare(Deflater deflater) {
+    }
+
+    /**
+     * Called when the compressed data requires a preset dictionary.
+     *
+     * @param adler32
+     *        Adler-32 checksum of the required dictionary
+     * @return the dictionary
+     * @throws IOException
+     *         if the dictionary is unknown. The default implementation always throws.
+     */
+    protected byte[] lookupDictionary(int adler32) throws IOException {
+        throw new IOException("Compressed data requires an unknown dictionary (adler32=" + adler32 + ")");
+    }
+
+}
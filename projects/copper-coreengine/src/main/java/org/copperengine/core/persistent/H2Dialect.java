@@ -72,6 +72,11 @@ public class H2Dialect extends AbstractSqlDialect {
         super.startup();
     }
 
+    @Override
+    protected boolean supportsBinaryWorkflowState() {
+        return true;
+    }
+
     @Override
     protected PreparedStatement createUpdateStateStmt(final Connection c, final int max) throws SQLException {
         final Timestamp NOW = new Timestamp(System.currentTimeMillis());
@@ -83,7 +88,7 @@ public class H2Dialect extends AbstractSqlDialect {
 
     @Override
     protected PreparedStatement createDequeueStmt(final Connection c, final String ppoolId, final int maxRows) throws SQLException {
-        PreparedStatement dequeueStmt = c.prepareStatement("select id,priority,data,object_state,creation_ts,last_mod_ts from COP_WORKFLOW_INSTANCE where id in (select WORKFLOW_INSTANCE_ID from COP_QUEUE where ppool_id = ? and engine_id is NULL order by priority, last_mod_ts) LIMIT " + maxRows);
+        PreparedStatement dequeueStmt = c.prepareStatement("select id,priority,data,object_state,creation_ts,last_mod_ts" + binaryStateColumns("") + " from COP_WORKFLOW_INSTANCE where id in (select WORKFLOW_INSTANCE_ID from COP_QUEUE where ppool_id = ? and engine_id is NULL order by priority, last_mod_ts) LIMIT " + maxRows);
         dequeueStmt.setString(1, ppoolId);
         return dequeueStmt;
     }
@@ -176,10 +181,10 @@ public class H2Dialect extends AbstractSqlDialect {
     protected PreparedStatement createQueryAllActiveStmt(Connection c, String className, int max) throws SQLException {
         PreparedStatement queryStmt;
         if (className != null) {
-            queryStmt = c.prepareStatement("select id,state,priority,ppool_id,data,object_state,creation_ts,last_mod_ts,timeout from COP_WORKFLOW_INSTANCE where state in (0,1,2) and classname=? LIMIT " + max);
+            queryStmt = c.prepareStatement("select id,state,priority,ppool_id,data,object_state,creation_ts,last_mod_ts,timeout" + binaryStateColumns("") + " from COP_WORKFLOW_INSTANCE where state in (0,1,2) and classname=? LIMIT " + max);
             queryStmt.setString(1, className);
         } else {
-            queryStmt = c.prepareStatement("select id,state,priority,ppool_id,data,object_state,creation_ts,last_mod_ts,timeout from COP_WORKFLOW_INSTANCE where state in (0,1,2) LIMIT " + max);
+            queryStmt = c.prepareStatement("select id,state,priority,ppool_id,data,object_state,creation_ts,last_mod_ts,timeout" + binaryStateColumns("") + " from COP_WORKFLOW_INSTANCE where state in (0,1,2) LIMIT " + max);
         }
         return queryStmt;
     }
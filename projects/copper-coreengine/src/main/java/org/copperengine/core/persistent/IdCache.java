@@ -15,108 +15,198 @@
  */
 package org.copperengine.core.persistent;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Bounded cache of response ids per correlation id, used by {@link ScottyDBStorage} to quickly check for early
+ * responses. Entries expire after the configured time to live.
+ * <p>
+ * All operations are lock free, {@link #contains(String)} is a plain map lookup. Since all entries share the same
+ * time to live, their insertion order is their expiry order: a FIFO queue of the entries serves both for expiry and
+ * for evicting the oldest entries when the cache is full. Expired and evicted entries are purged by the thread that
+ * puts a new entry, unless another thread is already purging.
+ */
 class IdCache {
 
     private static final class ResponseEntry {
-        String correlationId;
-        long ttlTS;
+        final String responseId;
+        final String correlationId;
+        final long ttlTS;
+        volatile boolean removed = false;
 
-        public ResponseEntry(String responseId, String correlationId, long ttlTS) {
+        ResponseEntry(String responseId, String correlationId, long ttlTS) {
+            this.responseId = responseId;
             this.correlationId = correlationId;
             this.ttlTS = ttlTS;
         }
+    }
 
+    /**
+     * Number of cached responses for a correlation id and the time to live of the youngest one. Immutable, replaced
+     * atomically in the map.
+     */
+    private static final class CorrelationEntry {
+        final int count;
+        final long ttlTS;
+
+        CorrelationEntry(int count, long ttlTS) {
+            this.count = count;
+            this.ttlTS = ttlTS;
+        }
     }
 
-    private final Object mutex = new Object();
-    private final Map<String, List<String>> cid2reponseId = new HashMap<String, List<String>>();
-    private final LinkedHashMap<String, ResponseEntry> responseMap = new LinkedHashMap<>();
+    private final ConcurrentMap<String, ResponseEntry> responseMap = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CorrelationEntry> correlationMap = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<ResponseEntry> fifo = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    // removed entries still contained in the fifo
+    private final AtomicInteger removedInFifo = new AtomicInteger();
+    private final AtomicBoolean purging = new AtomicBoolean();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
     private final int maxSize;
     private final long ttlMsec;
 
     public IdCache(int maxSize, long ttl, TimeUnit timeunit) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("maxSize must be > 0");
         this.maxSize = maxSize;
         this.ttlMsec = timeunit.toMillis(ttl);
     }
 
     public void put(String responseId, String correlationId) {
-        ResponseEntry entry = new ResponseEntry(responseId, correlationId, System.currentTimeMillis() + ttlMsec);
-        synchronized (mutex) {
-            if (responseMap.size() == maxSize) {
-                Entry<String, ResponseEntry> head = responseMap.entrySet().iterator().next();
-                __remove(head.getKey());
-            }
-
-            responseMap.put(responseId, entry);
-            List<String> responseIds = cid2reponseId.get(correlationId);
-            if (responseIds == null) {
-                responseIds = new ArrayList<>(2);
-                cid2reponseId.put(correlationId, responseIds);
-            }
-            responseIds.add(responseId);
+        final long now = System.currentTimeMillis();
+        final ResponseEntry entry = new ResponseEntry(responseId, correlationId, now + ttlMsec);
+        // count the correlation id first, so that a concurrent remove of this response can not miss it
+        correlationMap.compute(correlationId, (cid, existing) -> existing == null ? new CorrelationEntry(1, entry.ttlTS) : new CorrelationEntry(existing.count + 1, Math.max(existing.ttlTS, entry.ttlTS)));
+        size.incrementAndGet();
+        final ResponseEntry replaced = responseMap.put(responseId, entry);
+        if (replaced != null) {
+            unlink(replaced);
         }
+        // append to the fifo after the map, a purging thread would otherwise drop an entry it can not yet remove from
+        // the map, leaving it in the map for good
+        fifo.add(entry);
+        purge(now);
     }
 
     public boolean remove(String responseId) {
-        synchronized (mutex) {
-            return __remove(responseId);
-        }
-    }
-
-    private boolean __remove(String responseId) {
-        ResponseEntry entry = responseMap.remove(responseId);
+        final ResponseEntry entry = responseMap.remove(responseId);
         if (entry != null) {
-            List<String> responseIds = cid2reponseId.get(entry.correlationId);
-            if (responseIds != null) {
-                responseIds.remove(responseId);
-                if (responseIds.isEmpty()) {
-                    cid2reponseId.remove(entry.correlationId);
-                }
-            }
+            unlink(entry);
             return true;
         }
         return false;
     }
 
-    public boolean contains(String correlationId) {
-        synchronized (mutex) {
-            return __contains(correlationId);
-        }
+    /**
+     * Called exactly once for each entry, by the thread that removed it from the response map
+     */
+    private void unlink(ResponseEntry entry) {
+        entry.removed = true;
+        removedInFifo.incrementAndGet();
+        size.decrementAndGet();
+        correlationMap.computeIfPresent(entry.correlationId, (cid, existing) -> existing.count <= 1 ? null : new CorrelationEntry(existing.count - 1, existing.ttlTS));
     }
 
-    private boolean __contains(String correlationId) {
-        List<String> responseIds = cid2reponseId.get(correlationId);
-        if (responseIds == null)
-            return false;
-
-        for (String responseId : responseIds) {
-            ResponseEntry entry = responseMap.get(responseId);
-            if (entry.ttlTS < System.currentTimeMillis()) {
-                // entry too old - ignored
+    private void purge(long now) {
+        if (!purging.compareAndSet(false, true))
+            return;
+        try {
+            ResponseEntry head;
+            while ((head = fifo.peek()) != null) {
+                if (!head.removed) {
+                    final boolean expired = head.ttlTS < now;
+                    if (!expired && size.get() <= maxSize)
+                        break;
+                    if (responseMap.remove(head.responseId, head)) {
+                        unlink(head);
+                        (expired ? expirations : evictions).increment();
+                    }
+                }
+                fifo.poll();
+                removedInFifo.decrementAndGet();
             }
-            else {
-                return true;
+            // entries removed via remove(responseId) are usually not at the head - drop them once they pile up
+            if (removedInFifo.get() > maxSize) {
+                for (Iterator<ResponseEntry> i = fifo.iterator(); i.hasNext();) {
+                    if (i.next().removed) {
+                        i.remove();
+                        removedInFifo.decrementAndGet();
+                    }
+                }
             }
+        } finally {
+            purging.set(false);
         }
+    }
+
+    /**
+     * Checks whether a response for the correlation id is cached. As an approximation, the time to live of the
+     * youngest response applies to all responses of a correlation id.
+     *
+     * @param correlationId
+     *        the correlation id
+     * @return true, if a response that did not yet expire is cached
+     */
+    public boolean contains(String correlationId) {
+        final CorrelationEntry entry = correlationMap.get(correlationId);
+        if (entry != null && entry.ttlTS >= System.currentTimeMillis()) {
+            hits.increment();
+            return true;
+        }
+        misses.increment();
         return false;
     }
 
     public boolean contains(String... correlationIds) {
-        synchronized (mutex) {
-            for (String cid : correlationIds) {
-                if (!__contains(cid))
-                    return false;
-            }
-            return true;
+        for (String cid : correlationIds) {
+            if (!contains(cid))
+                return false;
         }
+        return true;
+    }
+
+    /**
+     * @return the number of cached responses, including expired ones that were not yet purged
+     */
+    public int size() {
+        return size.get();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of responses removed because the cache was full
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of responses removed because their time to live elapsed
+     */
+    public long getExpirations() {
+        return expirations.sum();
     }
 
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.persistent;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-JVM implementation of the {@link QueueWakeupChannel}. All channels with the same name deliver wakeups to each
+ * other, e.g. for several engines running in one JVM or in tests. Engines in other JVMs are not notified.
+ */
+public class LocalQueueWakeupChannel implements QueueWakeupChannel {
+
+    private static final ConcurrentMap<String, List<LocalQueueWakeupChannel>> channels = new ConcurrentHashMap<String, List<LocalQueueWakeupChannel>>();
+
+    private final String name;
+    private volatile Listener listener;
+
+    public LocalQueueWakeupChannel() {
+        this("default");
+    }
+
+    public LocalQueueWakeupChannel(String name) {
+        if (name == null)
+            throw new NullPointerException();
+        this.name = name;
+    }
+
+    @Override
+    public void startup(Listener listener) {
+        if (listener == null)
+            throw new NullPointerException();
+        this.listener = listener;
+        List<LocalQueueWakeupChannel> members = channels.computeIfAbsent(name, k -> new CopyOnWriteArrayList<LocalQueueWakeupChannel>());
+        members.add(this);
+    }
+
+    @Override
+    public void shutdown() {
+        List<LocalQueueWakeupChannel> members = channels.get(name);
+        if (members != null) {
+            members.remove(this);
+        }
+        listener = null;
+    }
+
+    @Override
+    public void publish() {
+        List<LocalQueueWakeupChannel> members = channels.get(name);
+        if (members == null)
+            return;
+        for (LocalQueueWakeupChannel member : members) {
+            Listener l = member.listener;
+            if (member != this && l != null) {
+                l.onWakeup();
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+}
@@ -22,7 +22,7 @@ import java.util.Queue;
 import org.copperengine.core.ProcessingState;
 import org.copperengine.core.Workflow;
 import org.copperengine.core.common.PriorityProcessorPool;
-import org.copperengine.core.common.WfPriorityQueue;
+import org.copperengine.core.common.WfRunQueue;
 import org.copperengine.core.internal.WorkflowAccessor;
 import org.copperengine.core.persistent.txn.TransactionController;
 import org.copperengine.management.PersistentPriorityProcessorPoolMXBean;
@@ -53,6 +53,9 @@ public class PersistentPriorityProcessorPool extends PriorityProcessorPool imple
     private volatile int emptyQueueWaitMSec = 50;
     private volatile int _dequeueBulkSize = DEFAULT_DEQUEUE_SIZE;
     private Integer oldDequeueBulkSize = null;
+    private volatile boolean adaptivePrefetch = false;
+    private volatile int minPrefetch = 100;
+    private final PrefetchController prefetchController = new PrefetchController(minPrefetch);
 
     /**
      * Creates a new {@link PersistentPriorityProcessorPool} with as many worker threads as processors available on the
@@ -88,22 +91,49 @@ public class PersistentPriorityProcessorPool extends PriorityProcessorPool imple
 
     public void setTransactionController(TransactionController transactionController) {
         this.transactionController = transactionController;
-        ((PersistentProcessorFactory) processorFactory).setTransactionController(transactionController);
+        persistentProcessorFactory().setTransactionController(transactionController);
+    }
+
+    /**
+     * Enables group commit of the processors of this pool: up to <code>groupCommitSize</code> workflow steps run in one
+     * transaction and their storage commands are committed together, see {@link PersistentProcessor}. Has to be set
+     * before startup. Default is 1, i.e. each step runs in its own transaction.
+     *
+     * @param groupCommitSize
+     *        maximum number of workflow steps per transaction
+     */
+    public void setGroupCommitSize(int groupCommitSize) {
+        persistentProcessorFactory().setGroupCommitSize(groupCommitSize);
+    }
+
+    public int getGroupCommitSize() {
+        return persistentProcessorFactory().getGroupCommitSize();
+    }
+
+    private PersistentProcessorFactory persistentProcessorFactory() {
+        if (!(processorFactory instanceof PersistentProcessorFactory)) {
+            throw new IllegalStateException("expected a " + PersistentProcessorFactory.class.getSimpleName() + " but the processor factory is " + processorFactory);
+        }
+        return (PersistentProcessorFactory) processorFactory;
     }
 
     @Override
     protected Queue<Workflow<?>> createQueue() {
-        return new WfPriorityQueue() {
-            private boolean notifiedLowerThreshold = false;
+        return new WfRunQueue() {
+            private volatile boolean notifiedLowerThreshold = false;
 
             @Override
             public Workflow<?> poll() {
                 Workflow<?> wf = super.poll();
-                if (!notifiedLowerThreshold && size() < lowerThreshold) {
+                if (wf != null) {
+                    prefetchController.processed();
+                }
+                final int threshold = adaptivePrefetch ? prefetchController.getRefillLevel() : lowerThreshold;
+                if (!notifiedLowerThreshold && size() < threshold) {
                     signalQueueSizeBelowLowerThreshold();
                     notifiedLowerThreshold = true;
                 }
-                if (notifiedLowerThreshold && size() > lowerThreshold) {
+                if (notifiedLowerThreshold && size() > threshold) {
                     notifiedLowerThreshold = false;
                 }
                 return wf;
@@ -139,22 +169,33 @@ public class PersistentPriorityProcessorPool extends PriorityProcessorPool imple
         final ScottyDBStorageInterface dbStorage = engine.getDbStorage();
         while (!shutdown) {
             try {
+                int targetBacklog = 0;
                 while (!shutdown) {
-                    int queueSize = 0;
-                    synchronized (queue) {
-                        queueSize = queue.size();
+                    final int queueSize = queue.size();
+                    targetBacklog = prefetchController.update(System.nanoTime(), minPrefetch, upperThreshold);
+                    if (adaptivePrefetch) {
+                        if (queueSize <= prefetchController.getRefillLevel()) {
+                            break;
+                        }
+                        logger.trace("Queue size {} above refill level of target backlog {}. Waiting...", queueSize, targetBacklog);
+                    } else {
+                        if (queueSize < upperThreshold) {
+                            break;
+                        }
+                        logger.trace("Queue size {} >= upper threshold {}. Waiting...", queueSize, upperThreshold);
                     }
-                    if (queueSize < upperThreshold) {
-                        break;
-                    }
-                    logger.trace("Queue size {} >= upper threshold {}. Waiting...", queueSize, upperThreshold);
                     wait4QueueSizeBelowLowerThreshold();
                 }
                 List<Workflow<?>> rv;
-                final int dequeueBulkSize = _dequeueBulkSize;
+                int dequeueBulkSize = _dequeueBulkSize;
+                if (adaptivePrefetch && dequeueBulkSize > 0) {
+                    dequeueBulkSize = Math.min(dequeueBulkSize, Math.max(1, targetBacklog - queue.size()));
+                }
                 if (dequeueBulkSize > 0) {
                     logger.trace("Dequeueing elements from DB...");
+                    final long startTS = System.nanoTime();
                     rv = dbStorage.dequeue(getId(), dequeueBulkSize);
+                    prefetchController.dequeued(dequeueBulkSize, rv.size(), System.nanoTime() - startTS);
                 } else {
                     logger.trace("dequeueBulkSize is zero - dequeue suspended.");
                     rv = Collections.emptyList();
@@ -171,10 +212,7 @@ public class PersistentPriorityProcessorPool extends PriorityProcessorPool imple
                         WorkflowAccessor.setProcessingState(wf, ProcessingState.DEQUEUED);
                         engine.register(wf);
                     }
-                    synchronized (queue) {
-                        queue.addAll(rv);
-                        queue.notifyAll();
-                    }
+                    queue.addAll(rv);
                 }
             } catch (InterruptedException e) {
                 logger.info("interrupted");
@@ -250,6 +288,49 @@ public class PersistentPriorityProcessorPool extends PriorityProcessorPool imple
         this._dequeueBulkSize = dequeueBulkSize;
     }
 
+    /**
+     * If adaptive prefetch is enabled, the number of workflow instances held in memory is derived from the measured
+     * processing rate of this pool and the latency of a dequeue, instead of the static lower and upper threshold. The
+     * upper threshold and the dequeue bulk size remain upper bounds. Default is false.
+     *
+     * @param adaptivePrefetch
+     *        true to enable adaptive prefetch
+     */
+    public void setAdaptivePrefetch(boolean adaptivePrefetch) {
+        this.adaptivePrefetch = adaptivePrefetch;
+        signalQueueSizeBelowLowerThreshold();
+    }
+
+    public boolean isAdaptivePrefetch() {
+        return adaptivePrefetch;
+    }
+
+    /**
+     * Sets the minimum target backlog of the adaptive prefetch, i.e. the number of workflow instances kept in memory
+     * while the pool is idle. Default is 100.
+     */
+    public void setMinPrefetch(int minPrefetch) {
+        if (minPrefetch < 1 || minPrefetch > upperThreshold)
+            throw new IllegalArgumentException();
+        this.minPrefetch = minPrefetch;
+    }
+
+    public int getMinPrefetch() {
+        return minPrefetch;
+    }
+
+    public int getTargetBacklog() {
+        return prefetchController.getTargetBacklog();
+    }
+
+    public double getProcessingRate() {
+        return prefetchController.getProcessedPerSecond();
+    }
+
+    public double getDequeueLatencyMSec() {
+        return prefetchController.getDequeueLatencyMSec();
+    }
+
     protected TransactionController getTransactionController() {
         return transactionController;
     }
@@ -15,7 +15,13 @@
  */
 package org.copperengine.core.persistent;
 
+import java.sql.Connection;
+import java.sql.Savepoint;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 
 import org.copperengine.core.Acknowledge;
@@ -23,15 +29,35 @@ import org.copperengine.core.Interrupt;
 import org.copperengine.core.ProcessingEngine;
 import org.copperengine.core.ProcessingState;
 import org.copperengine.core.Workflow;
+import org.copperengine.core.batcher.BatchCommand;
 import org.copperengine.core.common.Processor;
 import org.copperengine.core.internal.WorkflowAccessor;
+import org.copperengine.core.persistent.txn.CopperTransactionController;
+import org.copperengine.core.persistent.txn.DatabaseTransaction;
 import org.copperengine.core.persistent.txn.Transaction;
 import org.copperengine.core.persistent.txn.TransactionController;
 
+/**
+ * Processor of a {@link PersistentPriorityProcessorPool}. Each workflow step runs in its own transaction of the
+ * {@link TransactionController}, unless group commit is enabled.
+ * <p>
+ * With a group commit size greater than one, a processor takes up to that many workflow instances from the queue as
+ * long as they are immediately available and runs their steps in one transaction. If the storage is a
+ * {@link ScottyDBStorage}, the resulting finish and registerCallback commands are executed at the end of that
+ * transaction instead of being passed to the batcher, so a group needs a single commit. The callbacks of the commands
+ * are called after the commit. A step that throws an exception is handled like without group commit once the
+ * transaction of the group has ended. Before each step a savepoint is set on the connection of the group transaction
+ * and a failed step is rolled back to it, so only the changes and commands of the successful steps are committed. This
+ * requires that {@link TransactionController#run(DatabaseTransaction)} joins the transaction of the group, as the
+ * Spring transaction controller does. The {@link CopperTransactionController} has no transaction spanning the group,
+ * so no savepoints are set and only the commands of the failed step are dropped. With any other storage, each step
+ * runs in its own transaction regardless of the group commit size.
+ */
 public class PersistentProcessor extends Processor {
 
     private final PersistentScottyEngine engine;
     private final TransactionController transactionController;
+    private volatile int groupCommitSize = 1;
 
     public PersistentProcessor(String name, Queue<Workflow<?>> queue, int prio, ProcessingEngine engine, TransactionController transactionController) {
         super(name, queue, prio, engine);
@@ -43,33 +69,31 @@ public class PersistentProcessor extends Processor {
         this.transactionController = transactionController;
     }
 
+    /**
+     * Sets the maximum number of workflow steps that share one transaction. Default is 1, i.e. no group commit.
+     */
+    public void setGroupCommitSize(int groupCommitSize) {
+        if (groupCommitSize < 1)
+            throw new IllegalArgumentException();
+        this.groupCommitSize = groupCommitSize;
+    }
+
+    public int getGroupCommitSize() {
+        return groupCommitSize;
+    }
+
     @Override
     protected void process(final Workflow<?> wf) {
+        if (groupCommitSize > 1 && engine.getDbStorage() instanceof ScottyDBStorage) {
+            processGroup(wf, (ScottyDBStorage) engine.getDbStorage());
+            return;
+        }
         final PersistentWorkflow<?> pw = (PersistentWorkflow<?>) wf;
         try {
             transactionController.run(new Transaction<Void>() {
                 @Override
                 public Void run() throws Exception {
-                    synchronized (pw) {
-                        try {
-                            WorkflowAccessor.setProcessingState(pw, ProcessingState.RUNNING);
-                            WorkflowAccessor.setLastActivityTS(wf, new Date());
-                            engine.injectDependencies(pw);
-                            pw.__beforeProcess();
-                            pw.main();
-                            WorkflowAccessor.setProcessingState(pw, ProcessingState.FINISHED);
-                            engine.getDbStorage().finish(pw, new Acknowledge.BestEffortAcknowledge());
-                            assert pw.get__stack().isEmpty() : "Stack must be empty";
-                        } catch (Interrupt e) {
-                            assert pw.get__stack().size() > 0;
-                        } finally {
-                            WorkflowAccessor.setLastActivityTS(wf, new Date());
-                            engine.unregister(pw);
-                        }
-                        if (pw.registerCall != null) {
-                            engine.getDbStorage().registerCallback(pw.registerCall, new Acknowledge.BestEffortAcknowledge());
-                        }
-                    }
+                    runStep(pw, null, null);
                     return null;
                 }
             });
@@ -79,6 +103,159 @@ public class PersistentProcessor extends Processor {
         }
     }
 
+    private void processGroup(final Workflow<?> first, final ScottyDBStorage storage) {
+        final int maxSize = groupCommitSize;
+        final List<PersistentWorkflow<?>> group = new ArrayList<PersistentWorkflow<?>>(maxSize);
+        final List<BatchCommand<?, ?>> commands = new ArrayList<BatchCommand<?, ?>>(maxSize);
+        final Map<PersistentWorkflow<?>, Exception> failures = new LinkedHashMap<PersistentWorkflow<?>, Exception>();
+        try {
+            transactionController.run(new Transaction<Void>() {
+                @Override
+                public Void run() throws Exception {
+                    runGroup(first, group, maxSize, storage, commands, failures);
+                    storage.executeCommandGroup(commands);
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            if (group.isEmpty()) {
+                // the transaction could not be started
+                logger.error("execution of workflow instance failed", e);
+                handleError((PersistentWorkflow<?>) first, e);
+                return;
+            }
+            logger.warn("group commit of " + group.size() + " workflow instances failed - executing their commands one by one", e);
+            storage.executeCommandsSeparately(commands);
+            handleErrors(failures);
+            return;
+        }
+        completeCommands(commands);
+        handleErrors(failures);
+    }
+
+    private void runGroup(final Workflow<?> first, final List<PersistentWorkflow<?>> group, final int maxSize, final ScottyDBStorage storage, final List<BatchCommand<?, ?>> commands, final Map<PersistentWorkflow<?>, Exception> failures) throws Exception {
+        final PersistentWorkflow<?> firstPW = (PersistentWorkflow<?>) first;
+        group.add(firstPW);
+        runStepOfGroup(firstPW, storage, commands, failures);
+        while (group.size() < maxSize && !shutdown) {
+            final Workflow<?> wf = queue.poll();
+            if (wf == null) {
+                break;
+            }
+            final PersistentWorkflow<?> pw = (PersistentWorkflow<?>) wf;
+            group.add(pw);
+            preProcess(pw);
+            try {
+                runStepOfGroup(pw, storage, commands, failures);
+            } finally {
+                postProcess(pw);
+            }
+        }
+    }
+
+    private void runStepOfGroup(PersistentWorkflow<?> pw, ScottyDBStorage storage, List<BatchCommand<?, ?>> commands, Map<PersistentWorkflow<?>, Exception> failures) throws Exception {
+        final int numberOfCommands = commands.size();
+        Savepoint savepoint = null;
+        try {
+            savepoint = setSavepoint();
+            runStep(pw, storage, commands);
+        } catch (Exception e) {
+            logger.error("execution of workflow instance failed", e);
+            failures.put(pw, e);
+            commands.subList(numberOfCommands, commands.size()).clear();
+            // if this fails, the whole group fails
+            rollback(savepoint);
+        }
+    }
+
+    private Savepoint setSavepoint() throws Exception {
+        if (transactionController instanceof CopperTransactionController) {
+            return null;
+        }
+        return transactionController.run(new DatabaseTransaction<Savepoint>() {
+            @Override
+            public Savepoint run(Connection con) throws Exception {
+                return con.setSavepoint();
+            }
+        });
+    }
+
+    private void rollback(final Savepoint savepoint) throws Exception {
+        if (savepoint == null) {
+            return;
+        }
+        transactionController.run(new DatabaseTransaction<Void>() {
+            @Override
+            public Void run(Connection con) throws Exception {
+                con.rollback(savepoint);
+                return null;
+            }
+        });
+    }
+
+    private void handleErrors(Map<PersistentWorkflow<?>, Exception> failures) {
+        for (Map.Entry<PersistentWorkflow<?>, Exception> failure : failures.entrySet()) {
+            handleError(failure.getKey(), failure.getValue());
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private void completeCommands(List<BatchCommand<?, ?>> commands) {
+        for (BatchCommand cmd : commands) {
+            try {
+                cmd.callback().commandCompleted();
+            } catch (RuntimeException e) {
+                logger.error("command callback failed", e);
+            }
+        }
+    }
+
+    /**
+     * Runs the next step of the workflow instance. If <code>storage</code> is not null, the commands for finish and
+     * registerCallback are collected in <code>commands</code>. Commands created by the workflow itself, e.g. for a
+     * notify, are executed as usual, as the workflow may wait for their acknowledge.
+     */
+    private void runStep(final PersistentWorkflow<?> pw, final ScottyDBStorage storage, final List<BatchCommand<?, ?>> commands) throws Exception {
+        synchronized (pw) {
+            try {
+                WorkflowAccessor.setProcessingState(pw, ProcessingState.RUNNING);
+                WorkflowAccessor.setLastActivityTS(pw, new Date());
+                engine.injectDependencies(pw);
+                pw.__beforeProcess();
+                pw.main();
+                WorkflowAccessor.setProcessingState(pw, ProcessingState.FINISHED);
+                if (storage != null) {
+                    storage.beginCommandGroup(commands);
+                }
+                try {
+                    engine.getDbStorage().finish(pw, new Acknowledge.BestEffortAcknowledge());
+                } finally {
+                    if (storage != null) {
+                        storage.endCommandGroup();
+                    }
+                }
+                assert pw.get__stack().isEmpty() : "Stack must be empty";
+            } catch (Interrupt e) {
+                assert pw.get__stack().size() > 0;
+            } finally {
+                WorkflowAccessor.setLastActivityTS(pw, new Date());
+                engine.unregister(pw);
+            }
+            if (pw.registerCall != null) {
+                if (storage != null) {
+                    storage.beginCommandGroup(commands);
+                }
+                try {
+                    engine.getDbStorage().registerCallback(pw.registerCall, new Acknowledge.BestEffortAcknowledge());
+                } finally {
+                    if (storage != null) {
+                        storage.endCommandGroup();
+                    }
+                }
+            }
+        }
+    }
+
     protected void handleError(PersistentWorkflow<?> wf, Exception exception) {
         logger.error("Storing error information for workflow instance...");
         try {
@@ -26,6 +26,7 @@ import org.copperengine.core.persistent.txn.TransactionController;
 public class PersistentProcessorFactory implements ProcessorFactory {
 
     private TransactionController transactionController;
+    private int groupCommitSize = 1;
 
     public PersistentProcessorFactory(TransactionController transactionController) {
         this.transactionController = transactionController;
@@ -38,7 +39,23 @@ public class PersistentProcessorFactory implements ProcessorFactory {
         this.transactionController = transactionController;
     }
 
+    /**
+     * Sets the group commit size of the processors created by this factory, see
+     * {@link PersistentProcessor#setGroupCommitSize(int)}.
+     */
+    public void setGroupCommitSize(int groupCommitSize) {
+        if (groupCommitSize < 1)
+            throw new IllegalArgumentException();
+        this.groupCommitSize = groupCommitSize;
+    }
+
+    public int getGroupCommitSize() {
+        return groupCommitSize;
+    }
+
     public Processor newProcessor(String id, Queue<Workflow<?>> queue, int threadPrioriry, ProcessingEngine engine) {
-        return new PersistentProcessor(id, queue, threadPrioriry, engine, transactionController);
+        PersistentProcessor processor = new PersistentProcessor(id, queue, threadPrioriry, engine, transactionController);
+        processor.setGroupCommitSize(groupCommitSize);
+        return processor;
     }
 }
@@ -108,6 +108,7 @@ public class PersistentScottyEngine extends AbstractProcessingEngine implements
             }
             startupBlocker.pass();
             dbStorage.notify(response, ack);
+            trackNotification();
         } catch (Exception e) {
             CopperRuntimeException error = new CopperRuntimeException("notify failed", e);
             ack.onException(error);
@@ -57,11 +57,37 @@ public class PostgreSQLDialect extends AbstractSqlDialect {
 
     @Override
     protected PreparedStatement createDequeueStmt(final Connection c, final String ppoolId, final int max) throws SQLException {
-        PreparedStatement dequeueStmt = c.prepareStatement("select id,priority,data,object_state,creation_ts,last_mod_ts from COP_WORKFLOW_INSTANCE where id in (select WORKFLOW_INSTANCE_ID from COP_QUEUE where ppool_id = ?  and engine_id is NULL order by priority, last_mod_ts) LIMIT " + max);
+        PreparedStatement dequeueStmt = c.prepareStatement("select id,priority,data,object_state,creation_ts,last_mod_ts" + binaryStateColumns("") + " from COP_WORKFLOW_INSTANCE where id in (select WORKFLOW_INSTANCE_ID from COP_QUEUE where ppool_id = ?  and engine_id is NULL order by priority, last_mod_ts) LIMIT " + max);
         dequeueStmt.setString(1, ppoolId);
         return dequeueStmt;
     }
 
+    @Override
+    protected boolean supportsBinaryWorkflowState() {
+        return true;
+    }
+
+    @Override
+    protected PreparedStatement createClaimStmt(final Connection c, final String ppoolId, final int max) throws SQLException {
+        PreparedStatement claimStmt = c.prepareStatement("with claimed as (update COP_QUEUE set ENGINE_ID=? where WORKFLOW_INSTANCE_ID in (select WORKFLOW_INSTANCE_ID from COP_QUEUE where ppool_id = ? and engine_id is NULL order by priority, last_mod_ts LIMIT " + max + " FOR UPDATE SKIP LOCKED) returning WORKFLOW_INSTANCE_ID) select i.id,i.priority,i.data,i.object_state,i.creation_ts,i.last_mod_ts" + binaryStateColumns("i.") + " from COP_WORKFLOW_INSTANCE i join claimed c on i.id = c.WORKFLOW_INSTANCE_ID");
+        claimStmt.setString(1, getEngineId());
+        claimStmt.setString(2, ppoolId);
+        return claimStmt;
+    }
+
+    @Override
+    protected PreparedStatement createSelectWaitsAndResponsesStmt(final Connection c, final List<String> workflowInstanceIds) throws SQLException {
+        PreparedStatement stmt = c.prepareStatement("select w.WORKFLOW_INSTANCE_ID, w.correlation_id, w.timeout_ts, r.response from (select WORKFLOW_INSTANCE_ID, correlation_id, timeout_ts from COP_WAIT where WORKFLOW_INSTANCE_ID = ANY (?)) w LEFT OUTER JOIN COP_RESPONSE r ON w.correlation_id = r.correlation_id order by r.correlation_id, r.response_id");
+        stmt.setArray(1, c.createArrayOf("varchar", workflowInstanceIds.toArray()));
+        return stmt;
+    }
+
+    @Override
+    protected int getMaxInListSize() {
+        // ids are bound as a single array parameter
+        return Integer.MAX_VALUE;
+    }
+
     @Override
     protected PreparedStatement createDeleteStaleResponsesStmt(final Connection c, final int MAX_ROWS) throws SQLException {
         PreparedStatement stmt = c.prepareStatement("delete from COP_RESPONSE where response_timeout < ? and not exists (select * from COP_WAIT w where w.correlation_id = COP_RESPONSE.correlation_id LIMIT " + MAX_ROWS + ")");
@@ -102,10 +128,10 @@ public class PostgreSQLDialect extends AbstractSqlDialect {
     protected PreparedStatement createQueryAllActiveStmt(Connection c, String className, int max) throws SQLException {
         PreparedStatement queryStmt;
         if (className != null) {
-            queryStmt = c.prepareStatement("select id,state,priority,ppool_id,data,object_state,creation_ts,last_mod_ts,timeout from COP_WORKFLOW_INSTANCE where state in (0,1,2) and classname=? LIMIT " + max);
+            queryStmt = c.prepareStatement("select id,state,priority,ppool_id,data,object_state,creation_ts,last_mod_ts,timeout" + binaryStateColumns("") + " from COP_WORKFLOW_INSTANCE where state in (0,1,2) and classname=? LIMIT " + max);
             queryStmt.setString(1, className);
         } else {
-            queryStmt = c.prepareStatement("select id,state,priority,ppool_id,data,object_state,creation_ts,last_mod_ts,timeout from COP_WORKFLOW_INSTANCE where state in (0,1,2) LIMIT " + max);
+            queryStmt = c.prepareStatement("select id,state,priority,ppool_id,data,object_state,creation_ts,last_mod_ts,timeout" + binaryStateColumns("") + " from COP_WORKFLOW_INSTANCE where state in (0,1,2) LIMIT " + max);
         }
         return queryStmt;
     }
@@ -290,7 +316,7 @@ public class PostgreSQLDialect extends AbstractSqlDialect {
     }
 
     private StringBuilder appendQueryBase(StringBuilder sql, List<Object> params, WorkflowInstanceFilter filter) {
-        sql.append(" FROM (SELECT w.timeout, w.classname, (CASE WHEN q.WORKFLOW_INSTANCE_ID IS NOT NULL AND w.STATE=2 THEN 0 ELSE w.STATE END) STATE, w.ID, w.PRIORITY, w.PPOOL_ID, w.DATA, w.OBJECT_STATE, w.CREATION_TS, w.LAST_MOD_TS, q.ENGINE_ID FROM COP_WORKFLOW_INSTANCE w LEFT OUTER JOIN COP_QUEUE q on w.id = q.WORKFLOW_INSTANCE_ID) x WHERE 1=1");
+        sql.append(" FROM (SELECT w.timeout, w.classname, (CASE WHEN q.WORKFLOW_INSTANCE_ID IS NOT NULL AND w.STATE=2 THEN 0 ELSE w.STATE END) STATE, w.ID, w.PRIORITY, w.PPOOL_ID, w.DATA, w.OBJECT_STATE" + binaryStateColumns("w.") + ", w.CREATION_TS, w.LAST_MOD_TS, q.ENGINE_ID FROM COP_WORKFLOW_INSTANCE w LEFT OUTER JOIN COP_QUEUE q on w.id = q.WORKFLOW_INSTANCE_ID) x WHERE 1=1");
         if (filter.getWorkflowClassname() != null) {
             sql.append(" AND x.CLASSNAME=?");
             params.add(filter.getWorkflowClassname());
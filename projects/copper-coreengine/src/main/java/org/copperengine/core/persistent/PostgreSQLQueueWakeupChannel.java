@@ -0,0 +1,267 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.persistent;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sql.DataSource;
+
+import org.copperengine.core.db.utility.JdbcUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link QueueWakeupChannel} using PostgreSQL <code>LISTEN/NOTIFY</code>, to be used together with the
+ * {@link PostgreSQLDialect}.
+ * <p>
+ * A dedicated connection of the data source listens on the channel. Published wakeups are coalesced and sent with
+ * <code>pg_notify</code> by a background thread. Wakeups published within a transaction are sent with
+ * <code>pg_notify</code> on the caller's connection, so PostgreSQL delivers them on commit. These also wake up this
+ * engine, whose own dequeue may have looked at the queue before the commit.
+ * <p>
+ * The PostgreSQL JDBC driver is accessed by reflection, so it is not required at compile time. Drivers supporting
+ * <code>getNotifications(int)</code> block on the socket while idle, older drivers poll the listening connection every
+ * <code>pollIntervalMSec</code> milliseconds with a trivial statement.
+ */
+public class PostgreSQLQueueWakeupChannel implements QueueWakeupChannel {
+
+    private static final Logger logger = LoggerFactory.getLogger(PostgreSQLQueueWakeupChannel.class);
+
+    private final DataSource dataSource;
+    private final String senderId = UUID.randomUUID().toString();
+    private final AtomicBoolean pending = new AtomicBoolean(false);
+    private String channelName = "copper_queue";
+    private int pollIntervalMSec = 500;
+    private volatile boolean shutdown = false;
+    private volatile Listener listener;
+    private Thread listenerThread;
+    private Thread publisherThread;
+
+    public PostgreSQLQueueWakeupChannel(DataSource dataSource) {
+        if (dataSource == null)
+            throw new NullPointerException();
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Sets the name of the PostgreSQL notification channel. All engines sharing a database must use the same name.
+     * Default is <code>copper_queue</code>.
+     *
+     * @param channelName
+     *        a valid, unquoted PostgreSQL identifier
+     */
+    public void setChannelName(String channelName) {
+        if (channelName == null || !channelName.matches("[A-Za-z_][A-Za-z0-9_]*"))
+            throw new IllegalArgumentException("invalid channel name: " + channelName);
+        this.channelName = channelName;
+    }
+
+    /**
+     * Sets the time the listener blocks for notifications, or the poll interval for drivers that cannot block.
+     * This is also the delay before reconnecting after a failure. Default is 500.
+     */
+    public void setPollIntervalMSec(int pollIntervalMSec) {
+        if (pollIntervalMSec <= 0)
+            throw new IllegalArgumentException();
+        this.pollIntervalMSec = pollIntervalMSec;
+    }
+
+    @Override
+    public synchronized void startup(Listener listener) {
+        if (listener == null)
+            throw new NullPointerException();
+        if (listenerThread != null)
+            return;
+        this.listener = listener;
+        listenerThread = new Thread("QueueWakeup.Listener") {
+            @Override
+            public void run() {
+                listen();
+            }
+        };
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+        publisherThread = new Thread("QueueWakeup.Publisher") {
+            @Override
+            public void run() {
+                publishPending();
+            }
+        };
+        publisherThread.setDaemon(true);
+        publisherThread.start();
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        if (shutdown)
+            return;
+        shutdown = true;
+        if (listenerThread != null) {
+            listenerThread.interrupt();
+            LockSupport.unpark(publisherThread);
+        }
+    }
+
+    @Override
+    public void publish() {
+        if (pending.compareAndSet(false, true)) {
+            Thread t = publisherThread;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+    }
+
+    /**
+     * Sends the notification on the caller's connection. PostgreSQL delivers it when the transaction commits and
+     * discards it on rollback. It carries no sender id, so the listener of this engine does not ignore it.
+     */
+    @Override
+    public void publish(Connection con) throws SQLException {
+        notify(con, "");
+    }
+
+    private void publishPending() {
+        logger.info("started");
+        while (!shutdown) {
+            if (!pending.getAndSet(false)) {
+                LockSupport.park(this);
+                continue;
+            }
+            try {
+                sendNotify();
+            } catch (Exception e) {
+                logger.warn("pg_notify failed", e);
+                sleep();
+            }
+        }
+        logger.info("finished");
+    }
+
+    private void sendNotify() throws SQLException {
+        Connection c = dataSource.getConnection();
+        try {
+            notify(c, senderId);
+            if (!c.getAutoCommit()) {
+                c.commit();
+            }
+        } finally {
+            JdbcUtils.closeConnection(c);
+        }
+    }
+
+    private void notify(Connection c, String payload) throws SQLException {
+        PreparedStatement stmt = c.prepareStatement("SELECT pg_notify(?, ?)");
+        try {
+            stmt.setString(1, channelName);
+            stmt.setString(2, payload);
+            stmt.execute();
+        } finally {
+            JdbcUtils.closeStatement(stmt);
+        }
+    }
+
+    private void listen() {
+        logger.info("started");
+        while (!shutdown) {
+            Connection c = null;
+            try {
+                c = dataSource.getConnection();
+                c.setAutoCommit(true);
+                Statement stmt = c.createStatement();
+                try {
+                    stmt.execute("LISTEN " + channelName);
+                } finally {
+                    JdbcUtils.closeStatement(stmt);
+                }
+                // notifications sent while we were not listening are lost
+                wakeup();
+                receive(c);
+            } catch (Exception e) {
+                if (!shutdown) {
+                    logger.warn("listening on channel " + channelName + " failed", e);
+                    sleep();
+                }
+            } finally {
+                JdbcUtils.closeConnection(c);
+            }
+        }
+        logger.info("finished");
+    }
+
+    private void receive(Connection c) throws Exception {
+        final Class<?> pgConnectionClass = Class.forName("org.postgresql.PGConnection");
+        final Object pgConnection = pgConnectionClass.isInstance(c) ? c : c.unwrap(pgConnectionClass);
+        Method blockingGetNotifications = null;
+        try {
+            blockingGetNotifications = pgConnectionClass.getMethod("getNotifications", int.class);
+        } catch (NoSuchMethodException e) {
+            logger.info("JDBC driver does not support blocking getNotifications, polling every {} msec", pollIntervalMSec);
+        }
+        final Method getNotifications = pgConnectionClass.getMethod("getNotifications");
+        final Method getParameter = Class.forName("org.postgresql.PGNotification").getMethod("getParameter");
+        while (!shutdown) {
+            Object notifications;
+            if (blockingGetNotifications != null) {
+                notifications = blockingGetNotifications.invoke(pgConnection, pollIntervalMSec);
+            } else {
+                Statement stmt = c.createStatement();
+                try {
+                    stmt.execute("SELECT 1");
+                } finally {
+                    JdbcUtils.closeStatement(stmt);
+                }
+                notifications = getNotifications.invoke(pgConnection);
+            }
+            boolean received = false;
+            int n = notifications == null ? 0 : Array.getLength(notifications);
+            for (int i = 0; i < n; i++) {
+                if (!senderId.equals(getParameter.invoke(Array.get(notifications, i)))) {
+                    received = true;
+                }
+            }
+            if (received) {
+                wakeup();
+            } else if (blockingGetNotifications == null) {
+                sleep();
+            }
+        }
+    }
+
+    private void wakeup() {
+        Listener l = listener;
+        if (l != null) {
+            l.onWakeup();
+        }
+    }
+
+    private void sleep() {
+        try {
+            Thread.sleep(pollIntervalMSec);
+        } catch (InterruptedException e) {
+            // shutdown
+        }
+    }
+
+}
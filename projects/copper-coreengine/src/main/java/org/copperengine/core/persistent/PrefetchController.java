@@ -0,0 +1,104 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.persistent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Computes how many workflow instances a {@link PersistentPriorityProcessorPool} shall keep in memory, using Little's
+ * law: the target backlog is the processing rate of the pool times the latency of a dequeue, multiplied by a
+ * headroom factor. A dequeue is due as soon as a quarter of the target backlog has been processed, so the pool never
+ * runs dry while the database delivers, and no more instances than needed are held in the heap of one node.
+ * <p>
+ * Rate and latency are exponentially smoothed. Only the reader thread of the pool calls {@link #update(long, int, int)}
+ * and {@link #dequeued(int, int, long)}, the processors call {@link #processed()}.
+ */
+class PrefetchController {
+
+    static final double HEADROOM = 2.0;
+
+    private static final double ALPHA = 0.3;
+    private static final long RATE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final LongAdder processed = new LongAdder();
+
+    // written by the reader thread only
+    private long lastUpdateNanos;
+    private long lastProcessed;
+    private volatile double processedPerMSec = 0.0;
+    private volatile double dequeueLatencyMSec = 10.0;
+    private volatile int targetBacklog;
+
+    PrefetchController(int initialTargetBacklog) {
+        this.targetBacklog = initialTargetBacklog;
+        this.lastUpdateNanos = System.nanoTime();
+    }
+
+    void processed() {
+        processed.increment();
+    }
+
+    /**
+     * Records a dequeue. The call is only taken as latency sample, if it returned all requested instances or was not
+     * much slower than expected, because the storage may block on an empty queue.
+     */
+    void dequeued(int requested, int returned, long nanos) {
+        final double msec = nanos / 1000000.0;
+        final double current = dequeueLatencyMSec;
+        if (returned >= requested || msec <= 4 * current) {
+            dequeueLatencyMSec = current + ALPHA * (msec - current);
+        }
+    }
+
+    /**
+     * Updates the processing rate and returns the new target backlog.
+     */
+    int update(long nowNanos, int minBacklog, int maxBacklog) {
+        final long elapsed = nowNanos - lastUpdateNanos;
+        if (elapsed >= RATE_INTERVAL_NANOS) {
+            final long total = processed.sum();
+            final double rate = (total - lastProcessed) / (elapsed / 1000000.0);
+            processedPerMSec = processedPerMSec + ALPHA * (rate - processedPerMSec);
+            lastProcessed = total;
+            lastUpdateNanos = nowNanos;
+        }
+        final double backlog = Math.ceil(processedPerMSec * dequeueLatencyMSec * HEADROOM);
+        targetBacklog = (int) Math.max(minBacklog, Math.min(maxBacklog, backlog));
+        return targetBacklog;
+    }
+
+    /**
+     * @return the backlog below which the next dequeue is due
+     */
+    int getRefillLevel() {
+        final int target = targetBacklog;
+        return target - Math.max(1, target / 4);
+    }
+
+    int getTargetBacklog() {
+        return targetBacklog;
+    }
+
+    double getProcessedPerSecond() {
+        return processedPerMSec * 1000.0;
+    }
+
+    double getDequeueLatencyMSec() {
+        return dequeueLatencyMSec;
+    }
+
+}
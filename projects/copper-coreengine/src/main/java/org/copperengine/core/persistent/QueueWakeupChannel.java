@@ -0,0 +1,69 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.persistent;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Channel that wakes up the dequeue of a {@link ScottyDBStorage} when workflow instances were put into the queue by
+ * another engine sharing the same database. Without a channel, each processor pool polls the queue every
+ * <code>waitForEnqueueMSec</code> milliseconds. With a channel, that poll is only a fallback for lost events and may
+ * be configured much longer.
+ */
+public interface QueueWakeupChannel {
+
+    /**
+     * Callback invoked when another engine published a wakeup.
+     */
+    interface Listener {
+        void onWakeup();
+    }
+
+    /**
+     * Starts receiving wakeups. Called once by the storage during its startup.
+     *
+     * @param listener
+     *        the listener to be called for each wakeup received from another engine
+     */
+    void startup(Listener listener);
+
+    /**
+     * Stops receiving and publishing wakeups.
+     */
+    void shutdown();
+
+    /**
+     * Tells the other engines that workflow instances were put into the queue. Implementations may coalesce
+     * several calls and must not block the caller for a database round trip.
+     */
+    void publish();
+
+    /**
+     * Tells the other engines that workflow instances were put into the queue within the caller's transaction on
+     * <code>con</code>. The wakeup must not reach the other engines before that transaction commits, otherwise they
+     * would find nothing to dequeue. The default implementation cannot tie a wakeup to a transaction and does nothing,
+     * the other engines then pick up the instances with their next poll.
+     *
+     * @param con
+     *        connection of the caller's transaction, neither committed nor closed by this method
+     * @throws SQLException
+     *         if the wakeup could not be added to the transaction
+     */
+    default void publish(Connection con) throws SQLException {
+    }
+
+}
@@ -16,10 +16,19 @@
 package org.copperengine.core.persistent;
 
 import java.sql.Connection;
+import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -30,6 +39,7 @@ import org.copperengine.core.Response;
 import org.copperengine.core.Workflow;
 import org.copperengine.core.audit.AuditTrail;
 import org.copperengine.core.batcher.BatchCommand;
+import org.copperengine.core.batcher.BatchExecutorBase;
 import org.copperengine.core.batcher.Batcher;
 import org.copperengine.core.persistent.txn.DatabaseTransaction;
 import org.copperengine.core.persistent.txn.TransactionController;
@@ -51,10 +61,13 @@ public class ScottyDBStorage implements ScottyDBStorageInterface, ScottyDBStorag
 
     private static final Logger logger = LoggerFactory.getLogger(ScottyDBStorage.class);
 
-    private final IdCache cidStore4responses = new IdCache(10000, 10, TimeUnit.SECONDS);
+    private volatile IdCache cidStore4responses = new IdCache(10000, 10, TimeUnit.SECONDS);
     private final QueueNotifier queueState = new QueueNotifier();
+    private final ThreadLocal<List<BatchCommand<?, ?>>> commandGroup = new ThreadLocal<List<BatchCommand<?, ?>>>();
     private final Object enqueueSignal = new Object();
+    private long enqueueGeneration = 0;
     private int waitForEnqueueMSec = 500;
+    private QueueWakeupChannel queueWakeupChannel;
     private volatile int clocksAllowedDeltaMSec = 100;
     private int clocksCheckIntervalSeconds = 60;
 
@@ -68,6 +81,10 @@ public class ScottyDBStorage implements ScottyDBStorageInterface, ScottyDBStorag
     private ScheduledExecutorService scheduledExecutorService;
     private volatile boolean shutdown = false;
     private boolean checkDbConsistencyAtStartup = false;
+    private boolean incrementalQueueStateUpdate = false;
+    private long fullQueueStateUpdateIntervalMSec = 60000L;
+    private final Queue<String> queueStateCandidates = new ConcurrentLinkedQueue<String>();
+    private final Queue<String> uncommittedQueueStateCandidates = new ConcurrentLinkedQueue<String>();
 
     private CountDownLatch enqueueThreadTerminated = new CountDownLatch(1);
 
@@ -91,6 +108,35 @@ public class ScottyDBStorage implements ScottyDBStorageInterface, ScottyDBStorag
         this.checkDbConsistencyAtStartup = checkDbConsistencyAtStartup;
     }
 
+    /**
+     * Enables the incremental update of the queue state. Instead of periodically scanning all waiting workflow
+     * instances for received responses, the enqueue thread only checks the workflow instances waiting for the
+     * correlation ids of newly stored responses and wait calls, together with the due timeouts. The cost of an update
+     * is thereby proportional to the traffic rather than to the number of waiting workflow instances. A full update is
+     * still done every <code>fullQueueStateUpdateIntervalMSec</code> to pick up responses stored by other engines or
+     * directly in the database. Default is <code>false</code>.
+     * <p>
+     * The timeout check benefits from an index on COP_WAIT.TIMEOUT_TS, see the create-schema scripts.
+     *
+     * @param incrementalQueueStateUpdate
+     *        <code>true</code> to enable the incremental update
+     */
+    public void setIncrementalQueueStateUpdate(boolean incrementalQueueStateUpdate) {
+        this.incrementalQueueStateUpdate = incrementalQueueStateUpdate;
+    }
+
+    /**
+     * Sets the interval of the full queue state update when the incremental update is enabled.
+     *
+     * @param fullQueueStateUpdateIntervalMSec
+     *        interval in milliseconds, default is 60000
+     */
+    public void setFullQueueStateUpdateIntervalMSec(long fullQueueStateUpdateIntervalMSec) {
+        if (fullQueueStateUpdateIntervalMSec <= 0)
+            throw new IllegalArgumentException();
+        this.fullQueueStateUpdateIntervalMSec = fullQueueStateUpdateIntervalMSec;
+    }
+
     public void setTransactionController(TransactionController transactionController) {
         this.transactionController = transactionController;
     }
@@ -117,10 +163,43 @@ public class ScottyDBStorage implements ScottyDBStorageInterface, ScottyDBStorag
         this.deleteStaleResponsesIntervalMsec = deleteStaleResponsesIntervalMsec;
     }
 
+    /**
+     * Sets the maximum time a processor pool waits before it polls an empty queue again. Workflow instances enqueued
+     * by this engine or reported by the {@link QueueWakeupChannel} end the wait immediately.
+     *
+     * @param waitForEnqueueMSec
+     *        wait time in milliseconds, default is 500
+     */
     public void setWaitForEnqueueMSec(int waitForEnqueueMSec) {
         this.waitForEnqueueMSec = waitForEnqueueMSec;
     }
 
+    /**
+     * Sets a channel that wakes up this storage when other engines sharing the database enqueue workflow instances,
+     * and that tells the other engines about instances enqueued here. When configured, the
+     * <code>waitForEnqueueMSec</code> is only a fallback and may be raised to several seconds, which reduces the
+     * load of idle engines on the database. Default is no channel.
+     *
+     * @param queueWakeupChannel
+     *        the channel, e.g. a {@link PostgreSQLQueueWakeupChannel}
+     */
+    public void setQueueWakeupChannel(QueueWakeupChannel queueWakeupChannel) {
+        this.queueWakeupChannel = queueWakeupChannel;
+    }
+
+    /**
+     * Configures the cache of early responses, which is used to move a workflow instance into the queue immediately
+     * if its responses arrived before the wait call. Default is 10000 responses for 10 seconds.
+     *
+     * @param maxSize
+     *        maximum number of cached responses
+     * @param ttlMSec
+     *        time in milliseconds after which a cached response is ignored
+     */
+    public void setEarlyResponseCache(int maxSize, long ttlMSec) {
+        this.cidStore4responses = new IdCache(maxSize, ttlMSec, TimeUnit.MILLISECONDS);
+    }
+
     private void resumeBrokenBusinessProcesses() throws Exception {
         logger.info("resumeBrokenBusinessProcesses");
         run(new DatabaseTransaction<Void>() {
@@ -145,6 +224,7 @@ public class ScottyDBStorage implements ScottyDBStorageInterface, ScottyDBStorag
             });
             ack.onSuccess();
             signalEnqueue();
+            publishEnqueue();
         } catch (Exception e) {
             ack.onException(e);
             throw e;
@@ -164,6 +244,7 @@ public class ScottyDBStorage implements ScottyDBStorageInterface, ScottyDBStorag
             });
             ack.onSuccess();
             signalEnqueue();
+            publishEnqueue();
         } catch (Exception e) {
             ack.onException(e);
             throw e;
@@ -176,6 +257,7 @@ public class ScottyDBStorage implements ScottyDBStorageInterface, ScottyDBStorag
             return Collections.emptyList();
 
         while (true) {
+            final long generation = getEnqueueGeneration();
             List<Workflow<?>> ret = run(new DatabaseTransaction<List<Workflow<?>>>() {
                 @Override
                 public List<Workflow<?>> run(Connection con) throws Exception {
@@ -185,14 +267,23 @@ public class ScottyDBStorage implements ScottyDBStorageInterface, ScottyDBStorag
             if (!ret.isEmpty()) {
                 return ret;
             }
-            waitForEnqueue();
+            waitForEnqueue(generation);
         }
     }
 
-    private void waitForEnqueue() throws InterruptedException {
+    private long getEnqueueGeneration() {
+        synchronized (enqueueSignal) {
+            return enqueueGeneration;
+        }
+    }
+
+    private void waitForEnqueue(long generation) throws InterruptedException {
         logger.trace("waitForEnqueue...");
         synchronized (enqueueSignal) {
-            enqueueSignal.wait(waitForEnqueueMSec);
+            // skip the wait if something was enqueued since the last dequeue started
+            if (enqueueGeneration == generation) {
+                enqueueSignal.wait(waitForEnqueueMSec);
+            }
         }
         logger.trace("waitForEnqueue DONE");
     }
@@ -200,7 +291,23 @@ public class ScottyDBStorage implements ScottyDBStorageInterface, ScottyDBStorag
     private void signalEnqueue() {
         logger.trace("signalEnqueue");
         synchronized (enqueueSignal) {
-            enqueueSignal.notify();
+            enqueueGeneration++;
+            enqueueSignal.notifyAll();
+        }
+    }
+
+    private void publishEnqueue() {
+        QueueWakeupChannel channel = queueWakeupChannel;
+        if (channel != null) {
+            channel.publish();
+        }
+    }
+
+    private void publishEnqueue(Connection con) throws SQLException {
+        // the caller commits, so the wakeup has to be part of its transaction
+        QueueWakeupChannel channel = queueWakeupChannel;
+        if (channel != null) {
+            channel.publish(con);
         }
     }
 
@@ -212,6 +319,21 @@ public class ScottyDBStorage implements ScottyDBStorageInterface, ScottyDBStorag
         queueState.signalQueueState();
     }
 
+    private void addQueueStateCandidates(Collection<String> correlationIds) {
+        if (incrementalQueueStateUpdate) {
+            queueStateCandidates.addAll(correlationIds);
+        }
+    }
+
+    private List<String> pollQueueStateCandidates(Queue<String> candidates, int max) {
+        final List<String> list = new ArrayList<String>();
+        String cid;
+        while (list.size() < max && (cid = candidates.poll()) != null) {
+            list.add(cid);
+        }
+        return list;
+    }
+
     @Override
     public void notify(final List<Response<?>> response, Acknowledge ack) throws Exception {
         for (Response<?> r : response)
@@ -238,6 +360,15 @@ public class ScottyDBStorage implements ScottyDBStorageInterface, ScottyDBStorag
             };
             enqueueThread.start();
 
+            if (queueWakeupChannel != null) {
+                queueWakeupChannel.startup(new QueueWakeupChannel.Listener() {
+                    @Override
+                    public void onWakeup() {
+                        signalEnqueue();
+                    }
+                });
+            }
+
             scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
 
             scheduledExecutorService.scheduleWithFixedDelay(new Runnable() {
@@ -312,6 +443,10 @@ public class ScottyDBStorage implements ScottyDBStorageInterface, ScottyDBStorag
 
         shutdownEnqueueThread();
 
+        if (queueWakeupChannel != null) {
+            queueWakeupChannel.shutdown();
+        }
+
         dialect.shutdown();
     }
 
@@ -331,22 +466,60 @@ public class ScottyDBStorage implements ScottyDBStorageInterface, ScottyDBStorag
         int sleepTime = 0;
         int sleepTimeMaxIdle = 2000;
         int sleepTimeMaxLowTraffic = 500;
+        long lastFullUpdateTS = 0;
+        boolean fullUpdatePending = false;
+        final Map<String, Long> uncommittedCids = new LinkedHashMap<String, Long>();
         while (!shutdown) {
             int x = 0;
+            final long now = System.currentTimeMillis();
+            final boolean fullUpdate = !incrementalQueueStateUpdate || fullUpdatePending || now - lastFullUpdateTS >= fullQueueStateUpdateIntervalMSec;
+            List<String> cids = Collections.emptyList();
+            if (incrementalQueueStateUpdate) {
+                // responses stored within a foreign transaction are checked repeatedly for a while, as we don't know
+                // when the transaction is committed
+                for (String cid : pollQueueStateCandidates(uncommittedQueueStateCandidates, Integer.MAX_VALUE)) {
+                    uncommittedCids.put(cid, now);
+                }
+                if (fullUpdate) {
+                    // everything stored so far is covered by the full update
+                    queueStateCandidates.clear();
+                    lastFullUpdateTS = now;
+                } else {
+                    cids = pollQueueStateCandidates(queueStateCandidates, max);
+                    cids.addAll(uncommittedCids.keySet());
+                }
+                for (Iterator<Long> it = uncommittedCids.values().iterator(); it.hasNext();) {
+                    if (now - it.next() > 2 * sleepTimeMaxIdle) {
+                        it.remove();
+                    }
+                }
+            }
+            final List<String> correlationIds = cids;
             logger.trace("Starting updateQueueState...");
             try {
                 x = run(new DatabaseTransaction<Integer>() {
                     @Override
                     public Integer run(Connection con) throws Exception {
-                        return dialect.updateQueueState(max, con);
+                        return fullUpdate ? dialect.updateQueueState(max, con) : dialect.updateQueueState(correlationIds, max, con);
                     }
                 });
             } catch (Exception e) {
                 logger.error("updateQueueState failed", e);
+                queueStateCandidates.addAll(correlationIds);
+                x = -1;
             }
             logger.trace("updateQueueState returned x={}", x);
+            if (fullUpdate) {
+                // the candidates were dropped in favor of the full update, so it is repeated until it is complete
+                fullUpdatePending = x < 0 || x >= max;
+            } else if (x >= max) {
+                // the update stopped at max, the correlation ids it did not get to are checked again
+                queueStateCandidates.addAll(correlationIds);
+            }
+            x = Math.max(x, 0);
             if (x > 0) {
                 signalEnqueue();
+                publishEnqueue();
             }
             if (x == 0) {
                 sleepTime = Math.max(10, Math.min(3 * sleepTime / 2, sleepTimeMaxIdle));
@@ -355,7 +528,7 @@ public class ScottyDBStorage implements ScottyDBStorageInterface, ScottyDBStorag
             } else {
                 sleepTime = 0;
             }
-            if (sleepTime > 0) {
+            if (sleepTime > 0 && queueStateCandidates.isEmpty()) {
                 try {
                     waitForQueueState(sleepTime);
                 } catch (InterruptedException ignore) {
@@ -374,6 +547,7 @@ public class ScottyDBStorage implements ScottyDBStorageInterface, ScottyDBStorag
         else {
             dialect.insert(wf, con);
             signalEnqueue();
+            publishEnqueue(con);
         }
     }
 
@@ -385,6 +559,7 @@ public class ScottyDBStorage implements ScottyDBStorageInterface, ScottyDBStorag
         else {
             dialect.insert(wfs, con);
             signalEnqueue();
+            publishEnqueue(con);
         }
     }
 
@@ -477,12 +652,81 @@ public class ScottyDBStorage implements ScottyDBStorageInterface, ScottyDBStorag
         }
     }
 
+    /**
+     * Starts collecting the batch commands created by the current thread, e.g. for finish or registerCallback, in the
+     * given list instead of executing them, until {@link #endCommandGroup()} is called.
+     */
+    void beginCommandGroup(List<BatchCommand<?, ?>> group) {
+        if (group == null)
+            throw new NullPointerException();
+        commandGroup.set(group);
+    }
+
+    /**
+     * Stops collecting the batch commands of the current thread.
+     */
+    void endCommandGroup() {
+        commandGroup.remove();
+    }
+
+    /**
+     * Executes the commands of a command group in one database transaction, bypassing the batcher. If called within
+     * a transaction of the transaction controller, the commands join that transaction. The callbacks of the commands
+     * are not called, the caller has to call them once the enclosing transaction has been committed, or pass the
+     * commands to {@link #executeCommandsSeparately(List)} if it failed.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    void executeCommandGroup(final List<BatchCommand<?, ?>> commands) throws Exception {
+        if (commands.isEmpty())
+            return;
+        final Map<BatchExecutorBase, List<BatchCommand>> commandsByExecutor = new LinkedHashMap<BatchExecutorBase, List<BatchCommand>>();
+        for (BatchCommand cmd : commands) {
+            List<BatchCommand> list = commandsByExecutor.get(cmd.executor());
+            if (list == null) {
+                list = new ArrayList<BatchCommand>();
+                commandsByExecutor.put(cmd.executor(), list);
+            }
+            list.add(cmd);
+        }
+        run(new DatabaseTransaction<Void>() {
+            @Override
+            public Void run(Connection con) throws Exception {
+                for (Map.Entry<BatchExecutorBase, List<BatchCommand>> e : commandsByExecutor.entrySet()) {
+                    final int max = Math.max(1, e.getKey().maximumBatchSize());
+                    final List<BatchCommand> list = e.getValue();
+                    for (int i = 0; i < list.size(); i += max) {
+                        e.getKey().doExec(list.subList(i, Math.min(list.size(), i + max)), con);
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Executes each command in its own transaction and calls its callback, like the batcher does after a failed batch.
+     */
+    void executeCommandsSeparately(final List<BatchCommand<?, ?>> commands) {
+        for (BatchCommand<?, ?> cmd : commands) {
+            try {
+                runSingleBatchCommand(cmd);
+            } catch (Exception e) {
+                // already passed to the callback of the command
+            }
+        }
+    }
+
     @Override
     public void notify(List<Response<?>> responses, Connection c) throws Exception {
         logger.trace("notify(responses.size={})", responses.size());
         dialect.notify(responses, c);
         // TODO "signalQueueState();" is missing here - but we don't know when the transaction is commited, so we cannot
-        // trigger it here
+        // trigger it here. The incremental queue state update checks these correlation ids for a while.
+        if (incrementalQueueStateUpdate) {
+            for (Response<?> r : responses) {
+                uncommittedQueueStateCandidates.add(r.getCorrelationId());
+            }
+        }
     }
 
     @Override
@@ -498,7 +742,10 @@ public class ScottyDBStorage implements ScottyDBStorageInterface, ScottyDBStorag
 
     @SuppressWarnings({ "unchecked", "rawtypes" })
     private void executeBatchCommand(BatchCommand cmd) throws Exception {
-        if (batcher != null) {
+        final List<BatchCommand<?, ?>> group = commandGroup.get();
+        if (group != null) {
+            group.add(cmd);
+        } else if (batcher != null) {
             batcher.submitBatchCommand(cmd);
         } else {
             runSingleBatchCommand(cmd);
@@ -524,7 +771,10 @@ public class ScottyDBStorage implements ScottyDBStorageInterface, ScottyDBStorag
 
                 // Sometimes the responses arrive _before_ wait is called in the workflow
                 // In this case, we want the queue to be updated immediately to have short latency times
-                if (cidStore4responses.contains(rc.correlationIds)) {
+                if (incrementalQueueStateUpdate) {
+                    addQueueStateCandidates(Arrays.asList(rc.correlationIds));
+                    signalQueueState();
+                } else if (cidStore4responses.contains(rc.correlationIds)) {
                     signalQueueState();
                 }
 
@@ -557,6 +807,7 @@ public class ScottyDBStorage implements ScottyDBStorageInterface, ScottyDBStorag
                 logger.trace("notify successfully finished for response {}", response);
                 if (response.isEarlyResponseHandling())
                     cidStore4responses.put(response.getResponseId(), response.getCorrelationId());
+                addQueueStateCandidates(Collections.singletonList(response.getCorrelationId()));
                 signalQueueState();
                 callback.onSuccess();
             }
@@ -592,6 +843,26 @@ public class ScottyDBStorage implements ScottyDBStorageInterface, ScottyDBStorag
         return (DatabaseDialectMXBean) (dialect instanceof DatabaseDialectMXBean ? dialect : null);
     }
 
+    @Override
+    public int getEarlyResponseCacheSize() {
+        return cidStore4responses.size();
+    }
+
+    @Override
+    public long getEarlyResponseCacheHits() {
+        return cidStore4responses.getHits();
+    }
+
+    @Override
+    public long getEarlyResponseCacheMisses() {
+        return cidStore4responses.getMisses();
+    }
+
+    @Override
+    public long getEarlyResponseCacheEvictions() {
+        return cidStore4responses.getEvictions();
+    }
+
     @Override
     public String getDescription() {
         return "Default RDBMS storage";
@@ -15,10 +15,17 @@
  */
 package org.copperengine.core.persistent;
 
+/**
+ * Serialized form of a workflow instance, consisting of the workflow's data and its object state.
+ * The state is either held as text (see {@link Serializer}) or, if written by a {@link BinarySerializer} in binary
+ * mode, as byte arrays.
+ */
 public class SerializedWorkflow {
 
     private String data;
     private String objectState;
+    private byte[] binaryData;
+    private byte[] binaryObjectState;
 
     public String getData() {
         return data;
@@ -36,4 +43,27 @@ public class SerializedWorkflow {
         this.objectState = objectState;
     }
 
+    public byte[] getBinaryData() {
+        return binaryData;
+    }
+
+    public void setBinaryData(byte[] binaryData) {
+        this.binaryData = binaryData;
+    }
+
+    public byte[] getBinaryObjectState() {
+        return binaryObjectState;
+    }
+
+    public void setBinaryObjectState(byte[] binaryObjectState) {
+        this.binaryObjectState = binaryObjectState;
+    }
+
+    /**
+     * @return <code>true</code>, if this workflow is held in binary form
+     */
+    public boolean isBinary() {
+        return binaryObjectState != null;
+    }
+
 }
@@ -43,9 +43,14 @@ class SqlRegisterCallback {
 
         private final RegisterCall registerCall;
         private final Serializer serializer;
+        private final boolean binaryWorkflowState;
         private final WorkflowPersistencePlugin workflowPersistencePlugin;
 
         public Command(final RegisterCall registerCall, final Serializer serializer, final ScottyDBStorageInterface dbStorage, final long targetTime, final WorkflowPersistencePlugin workflowPersistencePlugin, final Acknowledge ack) {
+            this(registerCall, serializer, false, dbStorage, targetTime, workflowPersistencePlugin, ack);
+        }
+
+        public Command(final RegisterCall registerCall, final Serializer serializer, final boolean binaryWorkflowState, final ScottyDBStorageInterface dbStorage, final long targetTime, final WorkflowPersistencePlugin workflowPersistencePlugin, final Acknowledge ack) {
             super(new CommandCallback<Command>() {
                 @Override
                 public void commandCompleted() {
@@ -61,6 +66,7 @@ class SqlRegisterCallback {
             }, targetTime);
             this.registerCall = registerCall;
             this.serializer = serializer;
+            this.binaryWorkflowState = binaryWorkflowState;
             this.workflowPersistencePlugin = workflowPersistencePlugin;
         }
 
@@ -77,12 +83,17 @@ class SqlRegisterCallback {
 
         @Override
         public void doExec(final Collection<BatchCommand<Executor, Command>> commands, final Connection con) throws Exception {
+            // commands created before and after switching the binary workflow state may end up in the same batch
+            boolean binary = false;
+            for (BatchCommand<Executor, Command> _cmd : commands) {
+                binary |= ((Command) _cmd).binaryWorkflowState;
+            }
             try (
                     PreparedStatement stmtDelQueue = con.prepareStatement("DELETE FROM COP_QUEUE WHERE WORKFLOW_INSTANCE_ID=?");
                     PreparedStatement deleteWait = con.prepareStatement("DELETE FROM COP_WAIT WHERE CORRELATION_ID=?");
                     PreparedStatement deleteResponse = con.prepareStatement("DELETE FROM COP_RESPONSE WHERE RESPONSE_ID=?");
                     PreparedStatement insertWaitStmt = con.prepareStatement("INSERT INTO COP_WAIT (CORRELATION_ID,WORKFLOW_INSTANCE_ID,MIN_NUMB_OF_RESP,TIMEOUT_TS,STATE,PRIORITY,PPOOL_ID) VALUES (?,?,?,?,?,?,?)");
-                    PreparedStatement updateWfiStmt = con.prepareStatement("UPDATE COP_WORKFLOW_INSTANCE SET STATE=?, PRIORITY=?, LAST_MOD_TS=?, PPOOL_ID=?, DATA=?, OBJECT_STATE=?, CS_WAITMODE=?, MIN_NUMB_OF_RESP=?, NUMB_OF_WAITS=?, TIMEOUT=? WHERE ID=?")) {
+                    PreparedStatement updateWfiStmt = con.prepareStatement(binary ? "UPDATE COP_WORKFLOW_INSTANCE SET STATE=?, PRIORITY=?, LAST_MOD_TS=?, PPOOL_ID=?, DATA=?, OBJECT_STATE=?, DATA_BIN=?, OBJECT_STATE_BIN=?, CS_WAITMODE=?, MIN_NUMB_OF_RESP=?, NUMB_OF_WAITS=?, TIMEOUT=? WHERE ID=?" : "UPDATE COP_WORKFLOW_INSTANCE SET STATE=?, PRIORITY=?, LAST_MOD_TS=?, PPOOL_ID=?, DATA=?, OBJECT_STATE=?, CS_WAITMODE=?, MIN_NUMB_OF_RESP=?, NUMB_OF_WAITS=?, TIMEOUT=? WHERE ID=?")) {
 
                 final Timestamp now = new Timestamp(System.currentTimeMillis());
                 boolean doWaitDeletes = false;
@@ -110,13 +121,17 @@ class SqlRegisterCallback {
                         insertWaitStmt.addBatch();
                     }
                     int idx = 1;
-                    SerializedWorkflow sw = cmd.serializer.serializeWorkflow(rc.workflow);
+                    SerializedWorkflow sw = cmd.binaryWorkflowState ? ((BinarySerializer) cmd.serializer).serializeWorkflowBinary(rc.workflow) : cmd.serializer.serializeWorkflow(rc.workflow);
                     updateWfiStmt.setInt(idx++, DBProcessingState.WAITING.ordinal());
                     updateWfiStmt.setInt(idx++, rc.workflow.getPriority());
                     updateWfiStmt.setTimestamp(idx++, now);
                     updateWfiStmt.setString(idx++, rc.workflow.getProcessorPoolId());
                     updateWfiStmt.setString(idx++, sw.getData());
                     updateWfiStmt.setString(idx++, sw.getObjectState());
+                    if (binary) {
+                        updateWfiStmt.setBytes(idx++, sw.getBinaryData());
+                        updateWfiStmt.setBytes(idx++, sw.getBinaryObjectState());
+                    }
                     updateWfiStmt.setInt(idx++, rc.waitMode.ordinal());
                     updateWfiStmt.setInt(idx++, rc.waitMode == WaitMode.FIRST ? 1 : rc.correlationIds.length);
                     updateWfiStmt.setInt(idx++, rc.correlationIds.length);
@@ -21,7 +21,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.zip.DataFormatException;
+import java.util.List;
 import java.util.zip.Deflater;
 
 import org.copperengine.core.Response;
@@ -33,10 +33,20 @@ import org.copperengine.core.util.Base64;
  * Implementation of the {@link Serializer} interface using java's standard object serialization.
  * If compression is enabled, the serialized objects are compressed if the size of the corresponding
  * byte array is larger than a configured threshold.
+ * <p>
+ * The text format is the Base64 encoded byte array, prefixed with 'C' (compressed) or 'U' (uncompressed).
+ * The binary format (see {@link BinarySerializer}) is the byte array itself, prefixed with the same marker as header
+ * byte.
+ * <p>
+ * By default, objects are compressed using deflate with best compression, objects larger than
+ * <code>compressorMaxSize</code> are not compressed at all. Alternatively, a {@link CompressionCodec} may be
+ * configured, e.g. {@link DeflateCompressionCodec} with a fast compression level or a
+ * {@link DictionaryCompressionCodec}. In that case the marker is the codec's header byte and there is no upper size
+ * limit. Data written with any registered codec (see {@link #setReadableCompressionCodecs(List)}) remains readable.
  *
  * @author austermann
  */
-public class StandardJavaSerializer implements Serializer {
+public class StandardJavaSerializer implements BinarySerializer {
 
     public static final boolean DEFAULT_COMPRESS = true;
 
@@ -44,10 +54,17 @@ public class StandardJavaSerializer implements Serializer {
     private static final String COPPER_2X_PACKAGE_PREFIX = "de.scoopgmbh.copper.";
     private static final String COPPER_2X_INTERRUPT_NAME = "InterruptException";
     private static final String COPPER_3_INTERRUPT_NAME = "Interrupt";
+    private static final byte UNCOMPRESSED = 'U';
 
     private boolean compress = DEFAULT_COMPRESS;
     private int compressThresholdSize = 250;
     private int compressorMaxSize = 128 * 1024;
+    private CompressionCodec compressionCodec;
+    private final CompressionCodec[] codecs = new CompressionCodec[128];
+
+    public StandardJavaSerializer() {
+        register(new DeflateCompressionCodec());
+    }
 
     private ThreadLocal<Compressor> compressorTL = new ThreadLocal<Compressor>() {
         @Override
@@ -74,35 +91,129 @@ public class StandardJavaSerializer implements Serializer {
         this.compressThresholdSize = compressThresholdSize;
     }
 
-    private String serialize(final Object o) throws IOException {
-        if (o == null)
-            return null;
+    /**
+     * Sets the codec used for compressing. It is also registered for uncompressing.
+     *
+     * @param compressionCodec
+     *        the codec or <code>null</code> to use the default compression
+     */
+    public void setCompressionCodec(CompressionCodec compressionCodec) {
+        if (compressionCodec != null) {
+            register(compressionCodec);
+        }
+        this.compressionCodec = compressionCodec;
+    }
+
+    public CompressionCodec getCompressionCodec() {
+        return compressionCodec;
+    }
+
+    /**
+     * Registers additional codecs for uncompressing, e.g. codecs used by previous configurations. Data compressed by
+     * the default compression is always readable.
+     *
+     * @param compressionCodecs
+     *        the codecs
+     */
+    public void setReadableCompressionCodecs(List<CompressionCodec> compressionCodecs) {
+        for (CompressionCodec codec : compressionCodecs) {
+            register(codec);
+        }
+    }
+
+    private void register(CompressionCodec codec) {
+        final byte header = codec.header();
+        if (header <= ' ' || header == 127 || header == UNCOMPRESSED)
+            throw new IllegalArgumentException("Invalid codec header byte " + header);
+        codecs[header] = codec;
+    }
+
+    private CompressionCodec codecFor(int header) throws IOException {
+        final CompressionCodec codec = header > 0 && header < codecs.length ? codecs[header] : null;
+        if (codec == null)
+            throw new IOException("Unknown header byte " + header);
+        return codec;
+    }
+
+    private byte[] toByteArray(final Object o, final boolean withHeader) throws IOException {
         final ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+        if (withHeader) {
+            baos.write(UNCOMPRESSED);
+        }
         final ObjectOutputStream oos = new ObjectOutputStream(baos);
         oos.writeObject(o);
         oos.close();
         baos.close();
-        byte[] data = baos.toByteArray();
-        boolean isCompressed = false;
-        if (compress && compressThresholdSize <= data.length && data.length <= compressorMaxSize) {
-            data = compressorTL.get().compress(data);
-            isCompressed = true;
+        return baos.toByteArray();
+    }
+
+    private boolean isCompressible(int length) {
+        return compress && compressThresholdSize <= length && (compressionCodec != null || length <= compressorMaxSize);
+    }
+
+    private byte[] compress(byte[] data, int offset, int length) throws IOException {
+        if (compressionCodec != null) {
+            return compressionCodec.compress(data, offset, length);
+        }
+        return compressorTL.get().compress(data, offset, length);
+    }
+
+    private byte compressedHeader() {
+        return compressionCodec != null ? compressionCodec.header() : DeflateCompressionCodec.HEADER;
+    }
+
+    private String serialize(final Object o) throws IOException {
+        if (o == null)
+            return null;
+        byte[] data = toByteArray(o, false);
+        byte header = UNCOMPRESSED;
+        if (isCompressible(data.length)) {
+            data = compress(data, 0, data.length);
+            header = compressedHeader();
         }
         final String encoded = Base64.encode(data);
         final StringBuilder sb = new StringBuilder(encoded.length() + 4);
-        sb.append(isCompressed ? 'C' : 'U').append(encoded);
+        sb.append((char) header).append(encoded);
         return sb.toString();
     }
 
-    private Serializable deserialize(String _data, final WorkflowRepository wfRepo) throws IOException, ClassNotFoundException, DataFormatException {
+    private byte[] serializeBinary(final Object o) throws IOException {
+        if (o == null)
+            return null;
+        final byte[] data = toByteArray(o, true);
+        if (!isCompressible(data.length - 1)) {
+            return data;
+        }
+        final byte[] compressed = compress(data, 1, data.length - 1);
+        final byte[] result = new byte[compressed.length + 1];
+        result[0] = compressedHeader();
+        System.arraycopy(compressed, 0, result, 1, compressed.length);
+        return result;
+    }
+
+    private Serializable deserialize(String _data, final WorkflowRepository wfRepo) throws IOException, ClassNotFoundException {
         if (_data == null)
             return null;
-        boolean isCompressed = _data.charAt(0) == 'C';
+        final char header = _data.charAt(0);
         byte[] data = Base64.decode(_data.substring(1));
-        if (isCompressed) {
-            data = compressorTL.get().uncompress(data);
+        if (header != UNCOMPRESSED) {
+            data = codecFor(header).uncompress(data, 0, data.length);
+        }
+        return readObject(data, 0, data.length, wfRepo);
+    }
+
+    private Serializable deserialize(byte[] data, final WorkflowRepository wfRepo) throws IOException, ClassNotFoundException {
+        if (data == null)
+            return null;
+        if (data[0] == UNCOMPRESSED) {
+            return readObject(data, 1, data.length - 1, wfRepo);
         }
-        ByteArrayInputStream bais = new ByteArrayInputStream(data);
+        final byte[] uncompressed = codecFor(data[0]).uncompress(data, 1, data.length - 1);
+        return readObject(uncompressed, 0, uncompressed.length, wfRepo);
+    }
+
+    private Serializable readObject(byte[] data, int offset, int length, final WorkflowRepository wfRepo) throws IOException, ClassNotFoundException {
+        ByteArrayInputStream bais = new ByteArrayInputStream(data, offset, length);
         ObjectInputStream ois = wfRepo != null ? new ObjectInputStream(bais) {
             @Override
             protected java.lang.Class<?> resolveClass(java.io.ObjectStreamClass desc) throws java.io.IOException, ClassNotFoundException {
@@ -149,9 +260,21 @@ public class StandardJavaSerializer implements Serializer {
         return serialize(o.getData());
     }
 
+    @Override
+    public SerializedWorkflow serializeWorkflowBinary(Workflow<?> o) throws Exception {
+        SerializedWorkflow sw = new SerializedWorkflow();
+        sw.setBinaryData(serializeDataBinary(o));
+        sw.setBinaryObjectState(serializeBinary(o));
+        return sw;
+    }
+
+    protected byte[] serializeDataBinary(Workflow<?> o) throws IOException {
+        return serializeBinary(o.getData());
+    }
+
     @Override
     public Workflow<?> deserializeWorkflow(SerializedWorkflow sw, WorkflowRepository wfRepo) throws Exception {
-        PersistentWorkflow<?> wf = (PersistentWorkflow<?>) deserialize(sw.getObjectState(), wfRepo);
+        PersistentWorkflow<?> wf = (PersistentWorkflow<?>) (sw.isBinary() ? deserialize(sw.getBinaryObjectState(), wfRepo) : deserialize(sw.getObjectState(), wfRepo));
         wf.setDataAsObject(deserializeData(sw));
         return wf;
     }
@@ -162,7 +285,16 @@ public class StandardJavaSerializer implements Serializer {
         return wf;
     }
 
+    @Override
+    public Workflow<?> deserializeStateOnly(byte[] state, WorkflowRepository wfRepo) throws Exception {
+        PersistentWorkflow<?> wf = (PersistentWorkflow<?>) deserialize(state, wfRepo);
+        return wf;
+    }
+
     protected Object deserializeData(SerializedWorkflow sw) throws Exception {
+        if (sw.isBinary()) {
+            return deserializeObject(sw.getBinaryData());
+        }
         return deserializeObject(sw.getData());
     }
 
@@ -186,4 +318,14 @@ public class StandardJavaSerializer implements Serializer {
         return deserialize(_data, null);
     }
 
+    @Override
+    public byte[] serializeObjectBinary(Serializable o) throws Exception {
+        return serializeBinary(o);
+    }
+
+    @Override
+    public Serializable deserializeObject(byte[] data) throws Exception {
+        return deserialize(data, null);
+    }
+
 }
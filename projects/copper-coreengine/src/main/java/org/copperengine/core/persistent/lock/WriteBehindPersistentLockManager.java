@@ -0,0 +1,445 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.persistent.lock;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.copperengine.core.Acknowledge;
+import org.copperengine.core.CopperRuntimeException;
+import org.copperengine.core.PersistentProcessingEngine;
+import org.copperengine.core.Response;
+import org.copperengine.core.batcher.AbstractBatchCommand;
+import org.copperengine.core.batcher.BatchCommand;
+import org.copperengine.core.batcher.BatchExecutor;
+import org.copperengine.core.batcher.Batcher;
+import org.copperengine.core.batcher.CommandCallback;
+import org.copperengine.core.db.utility.JdbcUtils;
+import org.copperengine.core.persistent.txn.DatabaseTransaction;
+import org.copperengine.core.persistent.txn.TransactionController;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Implementation of the {@link PersistentLockManager} interface, that holds the lock table in memory and writes the
+ * rows of COP_LOCK behind, in batches using a {@link Batcher}. Acquiring and releasing a lock does not wait for the
+ * database, waiting workflow instances are granted a lock via {@link PersistentProcessingEngine#notify}.
+ * <p>
+ * Changes of the same row are coalesced - if a lock is released before its row was written, nothing is written at all.
+ * The table is only used to restore the lock queues in {@link #startup()} after a restart. As writes may be lost in
+ * case of a crash, waiting workflow instances should use a timeout and call acquireLock again, as shown in
+ * {@link org.copperengine.core.lockmgr.LockManager#acquireLock(String, String)}. A failed write is retried with an
+ * increasing delay, starting at {@link #setRetryDelayMSec(long) retryDelayMSec} and doubling up to one minute, until it
+ * succeeds or {@link #shutdown()} is called.
+ * <p>
+ * This implementation is for a single engine per database only. In a cluster of engines sharing their database, use
+ * {@link PersistentLockManagerImpl} with a dialect that supports multiple instances, e.g.
+ * {@link PersistentLockManagerDialectOracleMultiInstance}.
+ */
+public class WriteBehindPersistentLockManager implements PersistentLockManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehindPersistentLockManager.class);
+
+    private static final class LockRequest {
+        final String workflowInstanceId;
+        final String correlationId;
+        final Date insertTS;
+
+        LockRequest(String workflowInstanceId, String correlationId, Date insertTS) {
+            this.workflowInstanceId = workflowInstanceId;
+            this.correlationId = correlationId;
+            this.insertTS = insertTS;
+        }
+    }
+
+    private static final class RowKey {
+        final String lockId;
+        final String workflowInstanceId;
+
+        RowKey(String lockId, String workflowInstanceId) {
+            this.lockId = lockId;
+            this.workflowInstanceId = workflowInstanceId;
+        }
+
+        @Override
+        public int hashCode() {
+            return lockId.hashCode() * 31 + workflowInstanceId.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof RowKey))
+                return false;
+            final RowKey other = (RowKey) obj;
+            return lockId.equals(other.lockId) && workflowInstanceId.equals(other.workflowInstanceId);
+        }
+    }
+
+    /**
+     * Write state of one row of COP_LOCK. At most one command per row is in flight, so that the writes of a row are
+     * never reordered. Guarded by the bin lock of the <code>rows</code> map.
+     */
+    private static final class RowState {
+        final RowKey key;
+        volatile LockRequest desired;
+        LockRequest written;
+        boolean inFlight;
+        int failures;
+
+        RowState(RowKey key) {
+            this.key = key;
+        }
+    }
+
+    private final PersistentProcessingEngine engine;
+    private final TransactionController transactionController;
+    private final Batcher batcher;
+    private final ConcurrentHashMap<String, List<LockRequest>> locks = new ConcurrentHashMap<String, List<LockRequest>>();
+    private final ConcurrentHashMap<RowKey, RowState> rows = new ConcurrentHashMap<RowKey, RowState>();
+    private final Executor executor = new Executor();
+    private volatile ScheduledExecutorService retryScheduler;
+    private long retryDelayMSec = 1000;
+
+    /**
+     * @param engine
+     *        the engine to notify waiting workflow instances
+     * @param transactionController
+     *        used to read the lock table in {@link #startup()}
+     * @param batcher
+     *        writes the lock table, e.g. the batcher of the engine's storage
+     */
+    public WriteBehindPersistentLockManager(PersistentProcessingEngine engine, TransactionController transactionController, Batcher batcher) {
+        if (engine == null || transactionController == null || batcher == null)
+            throw new NullPointerException();
+        this.engine = engine;
+        this.transactionController = transactionController;
+        this.batcher = batcher;
+    }
+
+    /**
+     * Sets the delay before the first retry of a failed write of COP_LOCK. Default is 1000 msec.
+     */
+    public void setRetryDelayMSec(long retryDelayMSec) {
+        if (retryDelayMSec <= 0)
+            throw new IllegalArgumentException();
+        this.retryDelayMSec = retryDelayMSec;
+    }
+
+    /**
+     * Restores the lock queues from COP_LOCK. Has to be called before the lock manager is used.
+     */
+    public synchronized void startup() {
+        if (retryScheduler == null) {
+            retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, "copper.WriteBehindPersistentLockManager");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        try {
+            final int count = transactionController.run(new DatabaseTransaction<Integer>() {
+                @Override
+                public Integer run(Connection con) throws Exception {
+                    return load(con);
+                }
+            });
+            logger.info("Restored {} lock requests", count);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CopperRuntimeException("startup failed", e);
+        }
+    }
+
+    /**
+     * Stops retrying failed writes. Writes already submitted to the batcher are not affected.
+     */
+    public synchronized void shutdown() {
+        if (retryScheduler == null)
+            return;
+        retryScheduler.shutdownNow();
+        retryScheduler = null;
+    }
+
+    private int load(Connection con) throws Exception {
+        PreparedStatement stmt = null;
+        try {
+            locks.clear();
+            rows.clear();
+            stmt = con.prepareStatement("SELECT LOCK_ID, CORRELATION_ID, WORKFLOW_INSTANCE_ID, INSERT_TS FROM COP_LOCK ORDER BY LOCK_ID, INSERT_TS, WORKFLOW_INSTANCE_ID");
+            final ResultSet rs = stmt.executeQuery();
+            int count = 0;
+            while (rs.next()) {
+                final String lockId = rs.getString(1);
+                final LockRequest request = new LockRequest(rs.getString(3), rs.getString(2), new Date(rs.getTimestamp(4).getTime()));
+                List<LockRequest> queue = locks.get(lockId);
+                if (queue == null) {
+                    queue = new ArrayList<LockRequest>(2);
+                    locks.put(lockId, queue);
+                }
+                queue.add(request);
+                final RowState row = new RowState(new RowKey(lockId, request.workflowInstanceId));
+                row.desired = request;
+                row.written = request;
+                rows.put(row.key, row);
+                count++;
+            }
+            rs.close();
+            return count;
+        } finally {
+            JdbcUtils.closeStatement(stmt);
+        }
+    }
+
+    @Override
+    public String acquireLock(final String lockId, final String workflowInstanceId) {
+        if (lockId == null || workflowInstanceId == null)
+            throw new NullPointerException();
+        final LockRequest[] result = new LockRequest[2];
+        locks.compute(lockId, (id, queue) -> {
+            if (queue == null) {
+                queue = new ArrayList<LockRequest>(2);
+            }
+            for (int i = 0; i < queue.size(); i++) {
+                final LockRequest request = queue.get(i);
+                if (request.workflowInstanceId.equals(workflowInstanceId)) {
+                    // acquired again - the caller still has to wait for the same correlation id
+                    result[0] = i == 0 ? null : request;
+                    return queue;
+                }
+            }
+            final LockRequest request = new LockRequest(workflowInstanceId, engine.createUUID(), new Date());
+            queue.add(request);
+            result[0] = queue.size() == 1 ? null : request;
+            result[1] = request;
+            return queue;
+        });
+        if (result[1] != null) {
+            write(new RowKey(lockId, workflowInstanceId), result[1]);
+        }
+        return result[0] == null ? null : result[0].correlationId;
+    }
+
+    @Override
+    public void releaseLock(final String lockId, final String workflowInstanceId) {
+        if (lockId == null || workflowInstanceId == null)
+            throw new NullPointerException();
+        final LockRequest[] result = new LockRequest[2];
+        locks.computeIfPresent(lockId, (id, queue) -> {
+            for (int i = 0; i < queue.size(); i++) {
+                if (queue.get(i).workflowInstanceId.equals(workflowInstanceId)) {
+                    result[0] = queue.remove(i);
+                    if (i == 0 && !queue.isEmpty()) {
+                        result[1] = queue.get(0);
+                    }
+                    break;
+                }
+            }
+            return queue.isEmpty() ? null : queue;
+        });
+        if (result[0] == null) {
+            logger.debug("releaseLock({},{}): no such lock request", lockId, workflowInstanceId);
+            return;
+        }
+        write(new RowKey(lockId, workflowInstanceId), null);
+        if (result[1] != null) {
+            engine.notify(new Response<PersistentLockResult>(result[1].correlationId, PersistentLockResult.OK, null), new Acknowledge.BestEffortAcknowledge());
+        }
+    }
+
+    /**
+     * @return the number of lock ids with at least one owner or waiter
+     */
+    public int getNumberOfLocks() {
+        return locks.size();
+    }
+
+    private void write(final RowKey key, final LockRequest desired) {
+        final RowState[] submit = new RowState[1];
+        rows.compute(key, (k, row) -> {
+            if (row == null) {
+                row = new RowState(k);
+            }
+            row.desired = desired;
+            if (!row.inFlight) {
+                row.inFlight = true;
+                submit[0] = row;
+            }
+            return row;
+        });
+        if (submit[0] != null) {
+            batcher.submitBatchCommand(new Command(submit[0]));
+        }
+    }
+
+    private void written(final RowState row, final LockRequest target) {
+        final RowState[] submit = new RowState[1];
+        rows.compute(row.key, (k, current) -> {
+            row.written = target;
+            row.failures = 0;
+            if (row.desired != target) {
+                // changed meanwhile
+                submit[0] = row;
+                return row;
+            }
+            row.inFlight = false;
+            return target == null ? null : row;
+        });
+        if (submit[0] != null) {
+            batcher.submitBatchCommand(new Command(row));
+        }
+    }
+
+    private void failed(final RowState row, Exception e) {
+        final ScheduledExecutorService scheduler = retryScheduler;
+        final long[] delay = { -1 };
+        rows.compute(row.key, (k, current) -> {
+            if (scheduler != null && row.desired != row.written) {
+                // still to be written, the row stays in flight until the retry is done
+                row.failures++;
+                delay[0] = Math.min(60000, retryDelayMSec << Math.min(row.failures - 1, 16));
+                return row;
+            }
+            return stopWriting(row);
+        });
+        if (delay[0] < 0) {
+            logger.error("writing COP_LOCK for lock '" + row.key.lockId + "' and workflow instance " + row.key.workflowInstanceId + " failed", e);
+            return;
+        }
+        logger.error("writing COP_LOCK for lock '" + row.key.lockId + "' and workflow instance " + row.key.workflowInstanceId + " failed, retrying in " + delay[0] + " msec", e);
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    batcher.submitBatchCommand(new Command(row));
+                }
+            }, delay[0], TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ree) {
+            logger.warn("shut down, not retrying to write COP_LOCK for lock '{}' and workflow instance {}", row.key.lockId, row.key.workflowInstanceId);
+            rows.compute(row.key, (k, current) -> stopWriting(row));
+        }
+    }
+
+    private static RowState stopWriting(final RowState row) {
+        row.inFlight = false;
+        row.failures = 0;
+        return row.desired == null && row.written == null ? null : row;
+    }
+
+    private final class Command extends AbstractBatchCommand<Executor, Command> {
+
+        final RowState row;
+        LockRequest target;
+
+        Command(final RowState row) {
+            this(row, new WriteCallback());
+        }
+
+        private Command(final RowState row, final WriteCallback callback) {
+            super(callback);
+            this.row = row;
+            callback.cmd = this;
+        }
+
+        @Override
+        public Executor executor() {
+            return executor;
+        }
+    }
+
+    private final class WriteCallback implements CommandCallback<Command> {
+
+        Command cmd;
+
+        @Override
+        public void commandCompleted() {
+            written(cmd.row, cmd.target);
+        }
+
+        @Override
+        public void unhandledException(Exception e) {
+            failed(cmd.row, e);
+        }
+    }
+
+    private final class Executor extends BatchExecutor<Executor, Command> {
+
+        @Override
+        public void doExec(Collection<BatchCommand<Executor, Command>> commands, Connection con) throws Exception {
+            PreparedStatement stmtDelete = null;
+            PreparedStatement stmtInsert = null;
+            try {
+                boolean delete = false;
+                boolean insert = false;
+                stmtDelete = con.prepareStatement("DELETE FROM COP_LOCK WHERE LOCK_ID=? AND WORKFLOW_INSTANCE_ID=?");
+                stmtInsert = con.prepareStatement("INSERT INTO COP_LOCK (LOCK_ID, CORRELATION_ID, WORKFLOW_INSTANCE_ID, INSERT_TS, REPLY_SENT) VALUES (?,?,?,?,'N')");
+                for (BatchCommand<Executor, Command> _cmd : commands) {
+                    final Command cmd = (Command) _cmd;
+                    final RowState row = cmd.row;
+                    final LockRequest target = row.desired;
+                    cmd.target = target;
+                    if (target == row.written)
+                        continue;
+                    if (row.written != null) {
+                        stmtDelete.setString(1, row.key.lockId);
+                        stmtDelete.setString(2, row.key.workflowInstanceId);
+                        stmtDelete.addBatch();
+                        delete = true;
+                    }
+                    if (target != null) {
+                        stmtInsert.setString(1, row.key.lockId);
+                        stmtInsert.setString(2, target.correlationId);
+                        stmtInsert.setString(3, row.key.workflowInstanceId);
+                        stmtInsert.setTimestamp(4, new Timestamp(target.insertTS.getTime()));
+                        stmtInsert.addBatch();
+                        insert = true;
+                    }
+                }
+                if (delete) {
+                    stmtDelete.executeBatch();
+                }
+                if (insert) {
+                    stmtInsert.executeBatch();
+                }
+            } finally {
+                JdbcUtils.closeStatement(stmtDelete);
+                JdbcUtils.closeStatement(stmtInsert);
+            }
+        }
+
+        @Override
+        public int maximumBatchSize() {
+            return 100;
+        }
+
+        @Override
+        public int preferredBatchSize() {
+            return 50;
+        }
+    }
+
+}
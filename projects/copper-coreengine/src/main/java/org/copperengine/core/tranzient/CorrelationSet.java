@@ -34,6 +34,7 @@ class CorrelationSet {
     private List<String> missingCorrelationIds;
     private WaitMode mode;
     private Long timeoutTS;
+    private boolean completed; // guarded by this
 
     public CorrelationSet(Workflow<?> workflow, List<String> missingCorrelationIds, WaitMode mode, Long timeoutTS) {
         this.workflowId = workflow.getId();
@@ -74,4 +75,12 @@ class CorrelationSet {
         return correlationIds;
     }
 
+    public synchronized boolean isCompleted() {
+        return completed;
+    }
+
+    public synchronized void setCompleted() {
+        this.completed = true;
+    }
+
 }
@@ -164,6 +164,17 @@ public final class DefaultTimeoutManager extends Thread implements TimeoutManage
         }
     }
 
+    @Override
+    public int getNumberOfTimeouts() {
+        int size = 0;
+        synchronized (slots) {
+            for (TimeoutSlot slot : slots.values()) {
+                size += slot.getCorrelationIds().size();
+            }
+        }
+        return size;
+    }
+
     @Override
     public void setEngine(ProcessingEngine engine) {
         this.engine = engine;
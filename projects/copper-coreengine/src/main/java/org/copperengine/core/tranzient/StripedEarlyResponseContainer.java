@@ -0,0 +1,387 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.tranzient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.copperengine.core.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Concurrent implementation of the {@link EarlyResponseContainer} interface with a strict memory budget.
+ * <p>
+ * The container is divided into stripes by correlation id, each stripe has its own lock and an equal share of the
+ * budget. So {@link #put(Response)} and {@link #get(String)} for different correlation ids rarely contend, which matters
+ * as the engine calls them while holding the lock of a correlation id.
+ * <p>
+ * The budget limits both the number of responses and their total estimated weight, see {@link #weigh(Response)}. If a
+ * stripe exceeds its share, the responses of its eldest correlation ids are evicted (overflow). Responses are removed
+ * after their hold back time (expiry) by a housekeeping thread, expired responses are never returned by
+ * {@link #get(String)}.
+ */
+public class StripedEarlyResponseContainer implements EarlyResponseContainer {
+
+    private static final Logger logger = LoggerFactory.getLogger(StripedEarlyResponseContainer.class);
+
+    static final class EarlyResponse {
+        final Response<?> response;
+        final long ts;
+        final long weight;
+
+        EarlyResponse(final Response<?> response, final long holdBackTime, final long weight) {
+            this.response = response;
+            long ts = System.currentTimeMillis() + holdBackTime;
+            if (ts <= 0) {
+                ts = Long.MAX_VALUE;
+            }
+            this.ts = ts;
+            this.weight = weight;
+        }
+    }
+
+    private static final class Stripe {
+        // insertion ordered, so the eldest correlation ids are evicted first
+        final LinkedHashMap<String, List<EarlyResponse>> responseMap = new LinkedHashMap<String, List<EarlyResponse>>();
+        int count;
+        long weight;
+
+        void remove(List<EarlyResponse> erList) {
+            for (EarlyResponse er : erList) {
+                count--;
+                weight -= er.weight;
+            }
+        }
+    }
+
+    private final Stripe[] stripes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+
+    private int maxResponses = 100000;
+    private long maxWeight = 64L * 1024L * 1024L;
+    private long minHoldBackTime = 30000;
+    private int checkInterval = 1000;
+    private Thread thread;
+    private volatile boolean shutdown = false;
+
+    public StripedEarlyResponseContainer() {
+        this(64);
+    }
+
+    /**
+     * @param numberOfStripes
+     *        number of stripes, rounded up to the next power of two
+     */
+    public StripedEarlyResponseContainer(int numberOfStripes) {
+        if (numberOfStripes <= 0)
+            throw new IllegalArgumentException("numberOfStripes must be > 0");
+        int n = 1;
+        while (n < numberOfStripes) {
+            n <<= 1;
+        }
+        stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    @Override
+    public void put(final Response<?> response) {
+        if (response == null)
+            throw new NullPointerException();
+
+        final EarlyResponse er = new EarlyResponse(response, response.getInternalProcessingTimeout() == null ? minHoldBackTime : response.getInternalProcessingTimeout(), weigh(response));
+        final int maxStripeResponses = maxResponses / stripes.length;
+        final long maxStripeWeight = maxWeight / stripes.length;
+        if (er.weight > maxStripeWeight) {
+            overflows.increment();
+            logger.warn("Dropping early response with correlationId {} - its weight {} exceeds the budget", response.getCorrelationId(), er.weight);
+            return;
+        }
+        final Stripe stripe = getStripe(response.getCorrelationId());
+        int evicted = 0;
+        synchronized (stripe) {
+            List<EarlyResponse> erList = stripe.responseMap.get(response.getCorrelationId());
+            if (erList == null) {
+                erList = new ArrayList<EarlyResponse>(2);
+                stripe.responseMap.put(response.getCorrelationId(), erList);
+            }
+            erList.add(er);
+            stripe.count++;
+            stripe.weight += er.weight;
+
+            if (stripe.count > maxStripeResponses || stripe.weight > maxStripeWeight) {
+                final Iterator<List<EarlyResponse>> iterator = stripe.responseMap.values().iterator();
+                while (stripe.count > maxStripeResponses || stripe.weight > maxStripeWeight) {
+                    final List<EarlyResponse> eldest = iterator.next();
+                    iterator.remove();
+                    stripe.remove(eldest);
+                    evicted += eldest.size();
+                }
+            }
+        }
+        if (evicted > 0) {
+            overflows.add(evicted);
+            logger.debug("Evicted {} early responses due to overflow", evicted);
+        }
+    }
+
+    @Override
+    public List<Response<?>> get(final String correlationId) {
+        if (correlationId == null)
+            throw new NullPointerException();
+        if (correlationId.length() == 0)
+            throw new IllegalArgumentException();
+
+        final Stripe stripe = getStripe(correlationId);
+        final List<EarlyResponse> erList;
+        synchronized (stripe) {
+            erList = stripe.responseMap.remove(correlationId);
+            if (erList != null) {
+                stripe.remove(erList);
+            }
+        }
+        if (erList == null) {
+            misses.increment();
+            return Collections.emptyList();
+        }
+        final long now = System.currentTimeMillis();
+        final List<Response<?>> rv = new ArrayList<Response<?>>(erList.size());
+        for (EarlyResponse earlyResponse : erList) {
+            if (earlyResponse.ts < now) {
+                expirations.increment();
+            } else {
+                rv.add(earlyResponse.response);
+            }
+        }
+        if (rv.isEmpty()) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return rv;
+    }
+
+    /**
+     * Estimates the memory consumed by an early response. The default implementation assumes a fixed overhead per
+     * response plus the size of the correlation id, the response id and of the response, if the response is a
+     * <code>String</code> or a <code>byte[]</code>. Override this method to account for other response types.
+     *
+     * @param response
+     *        the early response
+     * @return the estimated weight in bytes
+     */
+    protected long weigh(final Response<?> response) {
+        long weight = 128 + 2L * response.getCorrelationId().length();
+        if (response.getResponseId() != null) {
+            weight += 2L * response.getResponseId().length();
+        }
+        final Object data = response.getResponse();
+        if (data instanceof String) {
+            weight += 2L * ((String) data).length();
+        } else if (data instanceof byte[]) {
+            weight += ((byte[]) data).length;
+        }
+        return weight;
+    }
+
+    private Stripe getStripe(final String correlationId) {
+        final int h = correlationId.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+    }
+
+    @Override
+    public synchronized void startup() {
+        if (thread != null)
+            throw new IllegalStateException();
+        thread = new Thread("EarlyResponseManager") {
+            @Override
+            public void run() {
+                doHousekeeping();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        shutdown = true;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Sets the maximum number of early responses held by this container. It is divided equally between the stripes.
+     *
+     * @param maxResponses
+     *        maximum number of responses, at least the number of stripes
+     */
+    public void setMaxResponses(int maxResponses) {
+        if (maxResponses < stripes.length)
+            throw new IllegalArgumentException("maxResponses must be >= the number of stripes (" + stripes.length + ")");
+        this.maxResponses = maxResponses;
+    }
+
+    public int getMaxResponses() {
+        return maxResponses;
+    }
+
+    /**
+     * Sets the maximum total weight of the early responses held by this container, as estimated by
+     * {@link #weigh(Response)}. It is divided equally between the stripes.
+     *
+     * @param maxWeight
+     *        maximum weight in bytes
+     */
+    public void setMaxWeight(long maxWeight) {
+        if (maxWeight < stripes.length)
+            throw new IllegalArgumentException("maxWeight must be >= the number of stripes (" + stripes.length + ")");
+        this.maxWeight = maxWeight;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public void setMinHoldBackTime(long minHoldBackTime) {
+        if (minHoldBackTime <= 0)
+            throw new IllegalArgumentException();
+        this.minHoldBackTime = minHoldBackTime;
+    }
+
+    public long getMinHoldBackTime() {
+        return minHoldBackTime;
+    }
+
+    public void setCheckInterval(int checkInterval) {
+        if (checkInterval <= 0)
+            throw new IllegalArgumentException();
+        this.checkInterval = checkInterval;
+    }
+
+    public int getCheckInterval() {
+        return checkInterval;
+    }
+
+    public int getNumberOfStripes() {
+        return stripes.length;
+    }
+
+    /**
+     * @return the number of early responses currently held, including expired ones that were not yet removed
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.count;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the estimated total weight of the early responses currently held
+     */
+    public long getWeight() {
+        long weight = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                weight += stripe.weight;
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * @return the number of calls to {@link #get(String)} that returned at least one response
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of responses removed because their hold back time elapsed
+     */
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    /**
+     * @return the number of responses removed or dropped because the budget was exceeded
+     */
+    public long getOverflows() {
+        return overflows.sum();
+    }
+
+    private void doHousekeeping() {
+        logger.info("started");
+        while (!shutdown) {
+            try {
+                for (Stripe stripe : stripes) {
+                    removeExpired(stripe, System.currentTimeMillis());
+                }
+                Thread.sleep(checkInterval);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+        logger.info("stopped");
+    }
+
+    private void removeExpired(Stripe stripe, long now) {
+        int expired = 0;
+        synchronized (stripe) {
+            final Iterator<Map.Entry<String, List<EarlyResponse>>> responseMapIterator = stripe.responseMap.entrySet().iterator();
+            while (responseMapIterator.hasNext()) {
+                final List<EarlyResponse> erList = responseMapIterator.next().getValue();
+                final Iterator<EarlyResponse> erListIterator = erList.iterator();
+                while (erListIterator.hasNext()) {
+                    final EarlyResponse earlyResponse = erListIterator.next();
+                    if (earlyResponse.ts < now) {
+                        erListIterator.remove();
+                        stripe.count--;
+                        stripe.weight -= earlyResponse.weight;
+                        expired++;
+                    }
+                }
+                if (erList.isEmpty()) {
+                    responseMapIterator.remove();
+                }
+            }
+        }
+        if (expired > 0) {
+            expirations.add(expired);
+            logger.debug("Removed {} expired early responses", expired);
+        }
+    }
+}
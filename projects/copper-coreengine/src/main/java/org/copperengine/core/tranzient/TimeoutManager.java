@@ -36,6 +36,13 @@ public interface TimeoutManager {
 
     public void unregisterTimeout(long timeoutTS, List<String> correlationIds);
 
+    /**
+     * @return the number of currently registered timeouts, meant for monitoring, or -1 if unknown
+     */
+    public default int getNumberOfTimeouts() {
+        return -1;
+    }
+
     public void startup();
 
     public void shutdown();
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.tranzient;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.copperengine.core.Acknowledge;
+import org.copperengine.core.ProcessingEngine;
+import org.copperengine.core.Response;
+import org.copperengine.core.common.TimingWheel;
+
+/**
+ * Implementation of the {@link TimeoutManager} interface using a {@link TimingWheel}.
+ * <p>
+ * In contrast to the {@link DefaultTimeoutManager}, registering and unregistering a timeout does not contend for a
+ * single monitor, which pays off with many waiting workflow instances. Expired timeouts are delivered to a
+ * {@link TransientScottyEngine} in batches.
+ */
+public final class TimingWheelTimeoutManager implements TimeoutManager {
+
+    public static final long DEFAULT_TICK_MSEC = 25;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+    private static final int NOTIFY_BATCH_SIZE = 100;
+
+    private final TimingWheel<String, String> timingWheel;
+    private ProcessingEngine engine;
+
+    public TimingWheelTimeoutManager() {
+        this(DEFAULT_TICK_MSEC, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param tickMsec
+     *        resolution of the timeouts in milliseconds
+     * @param wheelSize
+     *        number of buckets of the timing wheel
+     */
+    public TimingWheelTimeoutManager(long tickMsec, int wheelSize) {
+        timingWheel = new TimingWheel<String, String>("copper.Timeoutmanager", tickMsec, wheelSize, new TimingWheel.ExpiryHandler<String>() {
+            @Override
+            public void onExpired(List<String> expired) {
+                notifyEngine(expired);
+            }
+        });
+    }
+
+    @Override
+    public void setEngine(ProcessingEngine engine) {
+        this.engine = engine;
+    }
+
+    @Override
+    public void registerTimeout(long timeoutTS, String correlationId) {
+        timingWheel.register(timeoutTS, correlationId, correlationId);
+    }
+
+    @Override
+    public void registerTimeout(long timeoutTS, List<String> correlationIds) {
+        for (String correlationId : correlationIds) {
+            timingWheel.register(timeoutTS, correlationId, correlationId);
+        }
+    }
+
+    @Override
+    public void unregisterTimeout(long timeoutTS, String correlationId) {
+        timingWheel.unregister(timeoutTS, correlationId);
+    }
+
+    @Override
+    public void unregisterTimeout(long timeoutTS, List<String> correlationIds) {
+        for (String correlationId : correlationIds) {
+            timingWheel.unregister(timeoutTS, correlationId);
+        }
+    }
+
+    @Override
+    public int getNumberOfTimeouts() {
+        return timingWheel.size();
+    }
+
+    @Override
+    public synchronized void startup() {
+        if (engine == null)
+            throw new NullPointerException();
+        timingWheel.startup();
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        timingWheel.shutdown();
+    }
+
+    private void notifyEngine(List<String> expiredCorrelationIds) {
+        final List<Response<?>> responses = new ArrayList<Response<?>>(Math.min(expiredCorrelationIds.size(), NOTIFY_BATCH_SIZE));
+        for (String cid : expiredCorrelationIds) {
+            @SuppressWarnings("rawtypes")
+            Response<?> r = new Response(cid);
+            if (engine instanceof TransientScottyEngine) {
+                responses.add(r);
+                if (responses.size() == NOTIFY_BATCH_SIZE) {
+                    ((TransientScottyEngine) engine).notify(responses);
+                    responses.clear();
+                }
+            } else {
+                engine.notify(r, new Acknowledge.BestEffortAcknowledge());
+            }
+        }
+        if (!responses.isEmpty()) {
+            ((TransientScottyEngine) engine).notify(responses);
+        }
+    }
+
+}
@@ -59,12 +59,7 @@ public class TransientPriorityProcessorPool extends PriorityProcessorPool implem
         if (wf == null)
             throw new NullPointerException();
         WorkflowAccessor.setProcessingState(wf, ProcessingState.ENQUEUED);
-        synchronized (queue) {
-            queue.add(wf);
-            if (!queue.isSuspended()) {
-                queue.notify();
-            }
-        }
+        queue.add(wf);
     }
     
     @Override
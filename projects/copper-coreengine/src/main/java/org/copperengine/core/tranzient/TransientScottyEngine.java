@@ -18,7 +18,6 @@ package org.copperengine.core.tranzient;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -61,7 +60,7 @@ public class TransientScottyEngine extends AbstractProcessingEngine implements P
 
     private static final Logger logger = LoggerFactory.getLogger(TransientScottyEngine.class);
 
-    private final Map<String, CorrelationSet> correlationMap = new HashMap<String, CorrelationSet>(50000);
+    private final ConcurrentHashMap<String, CorrelationSet> correlationMap = new ConcurrentHashMap<String, CorrelationSet>(50000);
     private final Map<String, Workflow<?>> workflowMap = new ConcurrentHashMap<String, Workflow<?>>(50000);
     private ProcessorPoolManager<TransientProcessorPool> poolManager;
     private TimeoutManager timeoutManager;
@@ -111,49 +110,115 @@ public class TransientScottyEngine extends AbstractProcessingEngine implements P
                 // ignore
             }
 
-            synchronized (correlationMap) {
-                final CorrelationSet cs = correlationMap.get(response.getCorrelationId());
-                if (cs == null) {
-                    if (response.isEarlyResponseHandling()) {
-                        earlyResponseContainer.put(response);
-                    }
+            if (handleResponse(response, ack))
+                ack.onSuccess();
+        } catch (RuntimeException e) {
+            ack.onException(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Notifies a batch of responses, e.g. expired timeouts.
+     *
+     * @param responses
+     *        the responses
+     */
+    void notify(List<Response<?>> responses) {
+        logger.debug("notify({} responses)", responses.size());
+        try {
+            startupBlocker.pass();
+        } catch (InterruptedException e) {
+            // ignore
+        }
+        final Acknowledge ack = new Acknowledge.BestEffortAcknowledge();
+        for (Response<?> response : responses) {
+            try {
+                if (response.getSequenceId() == null) {
+                    response.setSequenceId(sequenceIdFactory.incrementAndGet());
+                }
+                if (handleResponse(response, ack))
                     ack.onSuccess();
-                    return;
+            } catch (RuntimeException e) {
+                // don't let one failing response drop the rest of the batch
+                logger.error("notify failed for response " + response, e);
+                ack.onException(e);
+            }
+        }
+    }
+
+    /**
+     * Delivers a response to the waiting workflow instance or to the early response container.
+     * Responses for different correlation ids only contend, if they belong to the same {@link CorrelationSet}.
+     *
+     * @return <code>false</code>, if the acknowledge has already been notified
+     */
+    private boolean handleResponse(final Response<?> response, Acknowledge ack) {
+        trackNotification();
+        final String correlationId = response.getCorrelationId();
+        CorrelationSet cs = correlationMap.get(correlationId);
+        if (cs == null) {
+            // atomically with respect to registerCallbacks for the same correlation id
+            cs = correlationMap.compute(correlationId, (cid, existing) -> {
+                if (existing == null && response.isEarlyResponseHandling()) {
+                    earlyResponseContainer.put(response);
                 }
-                final Workflow<?> wf = workflowMap.get(cs.getWorkflowId());
-                if (wf == null) {
-                    logger.error("Workflow with id " + cs.getWorkflowId() + " not found");
-                    ack.onException(new CopperException("Workflow with id " + cs.getWorkflowId() + " not found"));
-                    return;
+                return existing;
+            });
+            if (cs == null) {
+                ack.onSuccess();
+                return false;
+            }
+        }
+        final Workflow<?> wf;
+        synchronized (cs) {
+            if (cs.isCompleted()) {
+                // completed concurrently by another response of this correlation set
+                if (response.isEarlyResponseHandling()) {
+                    earlyResponseContainer.put(response);
                 }
-                cs.getMissingCorrelationIds().remove(response.getCorrelationId());
-                if (cs.getTimeoutTS() != null && !response.isTimeout())
-                    timeoutManager.unregisterTimeout(cs.getTimeoutTS(), response.getCorrelationId());
-                wf.putResponse(response);
-
-                boolean doEnqueue = false;
-                if (cs.getMode() == WaitMode.FIRST) {
-                    if (!cs.getMissingCorrelationIds().isEmpty() && cs.getTimeoutTS() != null && !response.isTimeout()) {
-                        timeoutManager.unregisterTimeout(cs.getTimeoutTS(), cs.getMissingCorrelationIds());
-                    }
-                    doEnqueue = true;
+                ack.onSuccess();
+                return false;
+            }
+            wf = workflowMap.get(cs.getWorkflowId());
+            if (wf == null) {
+                logger.error("Workflow with id " + cs.getWorkflowId() + " not found");
+                ack.onException(new CopperException("Workflow with id " + cs.getWorkflowId() + " not found"));
+                return false;
+            }
+            cs.getMissingCorrelationIds().remove(correlationId);
+            if (cs.getTimeoutTS() != null && !response.isTimeout())
+                timeoutManager.unregisterTimeout(cs.getTimeoutTS(), correlationId);
+            wf.putResponse(response);
+
+            boolean doEnqueue = false;
+            if (cs.getMode() == WaitMode.FIRST) {
+                if (!cs.getMissingCorrelationIds().isEmpty() && cs.getTimeoutTS() != null && !response.isTimeout()) {
+                    timeoutManager.unregisterTimeout(cs.getTimeoutTS(), cs.getMissingCorrelationIds());
                 }
+                doEnqueue = true;
+            }
 
-                if (cs.getMissingCorrelationIds().isEmpty()) {
-                    doEnqueue = true;
-                }
+            if (cs.getMissingCorrelationIds().isEmpty()) {
+                doEnqueue = true;
+            }
 
-                if (doEnqueue) {
-                    for (String correlationId : cs.getCorrelationIds()) {
-                        correlationMap.remove(correlationId);
-                    }
-                    enqueue(wf);
-                }
+            if (!doEnqueue) {
+                return true;
             }
-            ack.onSuccess();
-        } catch (RuntimeException e) {
-            ack.onException(e);
-            throw e;
+            complete(cs);
+        }
+        enqueue(wf);
+        return true;
+    }
+
+    /**
+     * Must be called while holding the lock on the correlation set.
+     */
+    private void complete(CorrelationSet cs) {
+        cs.setCompleted();
+        for (String correlationId : cs.getCorrelationIds()) {
+            correlationMap.remove(correlationId, cs);
         }
     }
 
@@ -248,36 +313,38 @@ public class TransientScottyEngine extends AbstractProcessingEngine implements P
             throw new IllegalArgumentException("No correlationids given");
         
         boolean doEnqueue = false;
-        CorrelationSet cs = new CorrelationSet(w, correlationIds, mode, timeoutMsec > 0 ? System.currentTimeMillis() + timeoutMsec : null);
-        synchronized (correlationMap) {
-            for (String cid : correlationIds) {
-                List<Response<?>> earlyResponses = earlyResponseContainer.get(cid);
-                if (earlyResponses != null && !earlyResponses.isEmpty()) {
-                    for (Response<?> earlyResponse : earlyResponses) {
-                        w.putResponse(earlyResponse);
+        final CorrelationSet cs = new CorrelationSet(w, correlationIds, mode, timeoutMsec > 0 ? System.currentTimeMillis() + timeoutMsec : null);
+        synchronized (cs) {
+            // responses arriving for already registered correlation ids wait for the lock on cs
+            for (final String cid : correlationIds) {
+                correlationMap.compute(cid, (key, existing) -> {
+                    List<Response<?>> earlyResponses = earlyResponseContainer.get(cid);
+                    if (earlyResponses != null && !earlyResponses.isEmpty()) {
+                        for (Response<?> earlyResponse : earlyResponses) {
+                            w.putResponse(earlyResponse);
+                        }
+                        cs.getMissingCorrelationIds().remove(cid);
+                        return existing;
                     }
-                    cs.getMissingCorrelationIds().remove(cid);
-                }
+                    return cs;
+                });
             }
             if (cs.getMissingCorrelationIds().isEmpty() || (cs.getMissingCorrelationIds().size() < correlationIds.length && mode == WaitMode.FIRST)) {
                 doEnqueue = true;
+                complete(cs);
             } else {
-                for (String cid : cs.getCorrelationIds()) {
-                    correlationMap.put(cid, cs);
-                }
                 if (cs.getTimeoutTS() != null) {
                     if (mode == WaitMode.FIRST)
                         timeoutManager.registerTimeout(cs.getTimeoutTS().longValue(), cs.getMissingCorrelationIds().get(0));
                     else
                         timeoutManager.registerTimeout(cs.getTimeoutTS().longValue(), cs.getMissingCorrelationIds());
                 }
+                WorkflowAccessor.setProcessingState(w, ProcessingState.WAITING);
+                WorkflowAccessor.setTimeoutTS(w, cs.getTimeoutTS() != null ? new Date(cs.getTimeoutTS()) : null);
             }
         }
         if (doEnqueue) {
             enqueue(w);
-        } else {
-            WorkflowAccessor.setProcessingState(w, ProcessingState.WAITING);
-            WorkflowAccessor.setTimeoutTS(w, cs.getTimeoutTS() != null ? new Date(cs.getTimeoutTS()) : null);
         }
     }
 
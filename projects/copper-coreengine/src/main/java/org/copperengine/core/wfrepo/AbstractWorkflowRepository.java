@@ -29,6 +29,14 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.copperengine.core.CopperRuntimeException;
 import org.copperengine.core.Workflow;
@@ -56,6 +64,9 @@ public abstract class AbstractWorkflowRepository implements WorkflowRepository,
 
     private static final int flags = ClassReader.EXPAND_FRAMES;
 
+    private volatile int instrumentationThreads = Runtime.getRuntime().availableProcessors();
+    private volatile InstrumentationCache instrumentationCache = new InstrumentationCache();
+
     protected static final class VolatileState {
         public final Map<String, Class<?>> wfClassMap;
         public final Map<String, Class<?>> wfMapLatest;
@@ -208,62 +219,178 @@ public abstract class AbstractWorkflowRepository implements WorkflowRepository,
         return map;
     }
 
-    protected void instrumentWorkflows(File adaptedTargetDir, Map<String, Clazz> clazzMap, Map<String, ClassInfo> classInfos, ClassLoader tmpClassLoader) throws IOException {
-        logger.info("Instrumenting classfiles");
-        for (Clazz clazz : clazzMap.values()) {
-            byte[] bytes;
-            InputStream is = clazz.classfile.openStream();
-            try {
-                ClassReader cr2 = new ClassReader(is);
-                ClassNode cn = new ClassNode();
-                cr2.accept(cn, flags);
-                traceClassNode(clazz.classname + " - original", cn);
-
-                // Now content of ClassNode can be modified and then serialized back into bytecode:
-                new TryCatchBlockHandler().instrument(cn);
-
-                ClassWriter cw2 = new ClassWriter(0);
-                cn.accept(cw2);
-                bytes = cw2.toByteArray();
-                traceBytes(clazz.classname + " - after TryCatchBlockHandler", bytes);
-
-                ClassReader cr = new ClassReader(bytes);
-                ClassWriter cw = new ClassWriter(0);
-
-                ScottyClassAdapter cv = new ScottyClassAdapter(cw, clazz.aggregatedInterruptableMethods);
-                cr.accept(cv, flags);
-                classInfos.put(clazz.classname, cv.getClassInfo());
-                bytes = cw.toByteArray();
-                traceBytes(clazz.classname + " - after ScottyClassAdapter", bytes);
-
-                // Recompute frames, etc.
-                ClassReader cr3 = new ClassReader(bytes);
-                ClassWriter cw3 = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
-                cr3.accept(cw3, ClassReader.SKIP_FRAMES);
-                bytes = cw3.toByteArray();
-                traceBytes(clazz.classname + " - after COMPUTE_FRAMES", bytes);
-
-                StringWriter sw = new StringWriter();
-                PrintWriter pw = new PrintWriter(sw);
-                CheckClassAdapter.verify(new ClassReader(cw.toByteArray()), tmpClassLoader, false, pw);
-                if (sw.toString().length() != 0) {
-                    logger.error("CheckClassAdapter.verify failed for class " + cn.name + ":\n" + sw.toString());
-                } else {
-                    logger.info("CheckClassAdapter.verify succeeded for class " + cn.name);
-                }
+    /**
+     * Sets the number of threads used to instrument the workflow classes. Defaults to the number of available
+     * processors. Instrumentation of the individual classes is independent of each other, so with a large number of
+     * workflow classes startup and redeployment time scale down with the number of cores.
+     *
+     * @param instrumentationThreads
+     *        number of instrumentation threads, must be at least 1
+     */
+    public void setInstrumentationThreads(int instrumentationThreads) {
+        if (instrumentationThreads < 1)
+            throw new IllegalArgumentException("instrumentationThreads must be at least 1");
+        this.instrumentationThreads = instrumentationThreads;
+    }
+
+    public int getInstrumentationThreads() {
+        return instrumentationThreads;
+    }
+
+    /**
+     * Sets the cache for instrumented workflow classes. Classes that have been instrumented before are taken from the
+     * cache instead of being instrumented again. By default, the repository uses a cache of its own that keeps the
+     * entries in memory, i.e. a redeployment only instruments the changed classes. Set a cache with a directory to
+     * reuse the instrumented classes across restarts of the JVM.
+     *
+     * @param instrumentationCache
+     *        the cache or <code>null</code> to always instrument
+     */
+    public void setInstrumentationCache(InstrumentationCache instrumentationCache) {
+        this.instrumentationCache = instrumentationCache;
+    }
 
-            } finally {
-                is.close();
+    public InstrumentationCache getInstrumentationCache() {
+        return instrumentationCache;
+    }
+
+    protected void instrumentWorkflows(final File adaptedTargetDir, Map<String, Clazz> clazzMap, Map<String, ClassInfo> classInfos, final ClassLoader tmpClassLoader) throws IOException {
+        logger.info("Instrumenting {} classfiles", clazzMap.size());
+        final InstrumentationCache cache = instrumentationCache;
+        final long hits = cache != null ? cache.getHits() : 0L;
+        try {
+            instrumentWorkflows(adaptedTargetDir, clazzMap, classInfos, tmpClassLoader, cache);
+        } finally {
+            if (cache != null) {
+                logger.info("Took {} instrumented classfiles from the instrumentation cache", cache.getHits() - hits);
+            }
+        }
+    }
+
+    private void instrumentWorkflows(final File adaptedTargetDir, Map<String, Clazz> clazzMap, Map<String, ClassInfo> classInfos, final ClassLoader tmpClassLoader, final InstrumentationCache cache) throws IOException {
+        final int threads = Math.min(instrumentationThreads, clazzMap.size());
+        if (threads <= 1) {
+            for (Clazz clazz : clazzMap.values()) {
+                instrumentWorkflow(adaptedTargetDir, clazz, classInfos, tmpClassLoader, cache);
             }
+            return;
+        }
+
+        final Map<String, ClassInfo> concurrentClassInfos = new ConcurrentHashMap<String, ClassInfo>(clazzMap.size());
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
 
-            File adaptedClassfileName = new File(adaptedTargetDir, clazz.classname + ".class");
-            adaptedClassfileName.getParentFile().mkdirs();
-            FileOutputStream fos = new FileOutputStream(adaptedClassfileName);
-            try {
-                fos.write(bytes);
-            } finally {
-                fos.close();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "WfRepoInstrumenter#" + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>(clazzMap.size());
+            for (final Clazz clazz : clazzMap.values()) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        instrumentWorkflow(adaptedTargetDir, clazz, concurrentClassInfos, tmpClassLoader, cache);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof IOException)
+                        throw (IOException) cause;
+                    if (cause instanceof RuntimeException)
+                        throw (RuntimeException) cause;
+                    if (cause instanceof Error)
+                        throw (Error) cause;
+                    throw new CopperRuntimeException("Instrumentation failed", cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CopperRuntimeException("Interrupted while instrumenting workflows", e);
+                }
             }
+        } finally {
+            executor.shutdownNow();
+        }
+        classInfos.putAll(concurrentClassInfos);
+    }
+
+    private void instrumentWorkflow(File adaptedTargetDir, Clazz clazz, Map<String, ClassInfo> classInfos, ClassLoader tmpClassLoader, InstrumentationCache cache) throws IOException {
+        final byte[] original;
+        InputStream is = clazz.classfile.openStream();
+        try {
+            original = InstrumentationCache.readFully(is);
+        } finally {
+            is.close();
+        }
+        final InstrumentationCache.Entry cached = cache != null ? cache.get(original, clazz.aggregatedInterruptableMethods) : null;
+        if (cached != null) {
+            classInfos.put(clazz.classname, cached.getClassInfo());
+            writeClassfile(adaptedTargetDir, clazz, cached.getBytecode());
+            return;
+        }
+
+        byte[] bytes;
+        ClassReader cr2 = new ClassReader(original);
+        ClassNode cn = new ClassNode();
+        cr2.accept(cn, flags);
+        traceClassNode(clazz.classname + " - original", cn);
+
+        // Now content of ClassNode can be modified and then serialized back into bytecode:
+        new TryCatchBlockHandler().instrument(cn);
+
+        ClassWriter cw2 = new ClassWriter(0);
+        cn.accept(cw2);
+        bytes = cw2.toByteArray();
+        traceBytes(clazz.classname + " - after TryCatchBlockHandler", bytes);
+
+        ClassReader cr = new ClassReader(bytes);
+        ClassWriter cw = new ClassWriter(0);
+
+        ScottyClassAdapter cv = new ScottyClassAdapter(cw, clazz.aggregatedInterruptableMethods);
+        cr.accept(cv, flags);
+        final ClassInfo classInfo = cv.getClassInfo();
+        bytes = cw.toByteArray();
+        traceBytes(clazz.classname + " - after ScottyClassAdapter", bytes);
+
+        // Recompute frames, etc.
+        ClassReader cr3 = new ClassReader(bytes);
+        ClassWriter cw3 = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        cr3.accept(cw3, ClassReader.SKIP_FRAMES);
+        bytes = cw3.toByteArray();
+        traceBytes(clazz.classname + " - after COMPUTE_FRAMES", bytes);
+
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        CheckClassAdapter.verify(new ClassReader(cw.toByteArray()), tmpClassLoader, false, pw);
+        if (sw.toString().length() != 0) {
+            logger.error("CheckClassAdapter.verify failed for class " + cn.name + ":\n" + sw.toString());
+        } else {
+            logger.info("CheckClassAdapter.verify succeeded for class " + cn.name);
+        }
+
+        if (cache != null) {
+            // store before the class info is linked to its super class info and source code
+            cache.put(original, clazz.aggregatedInterruptableMethods, bytes, classInfo);
+        }
+        classInfos.put(clazz.classname, classInfo);
+        writeClassfile(adaptedTargetDir, clazz, bytes);
+    }
+
+    private static void writeClassfile(File adaptedTargetDir, Clazz clazz, byte[] bytes) throws IOException {
+        File adaptedClassfileName = new File(adaptedTargetDir, clazz.classname + ".class");
+        adaptedClassfileName.getParentFile().mkdirs();
+        FileOutputStream fos = new FileOutputStream(adaptedClassfileName);
+        try {
+            fos.write(bytes);
+        } finally {
+            fos.close();
         }
     }
 
@@ -18,26 +18,34 @@ package org.copperengine.core.wfrepo;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.StringWriter;
 import java.lang.ref.WeakReference;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -64,8 +72,9 @@ import org.slf4j.LoggerFactory;
  * Workflow classes have to be deployed as Java files.
  * They have to reside in one ore more directories or/and in one or more jarfiles.
  * On system startup these Java files are automatically compiled and instrumented by this repository.
- * It offers hot deployment by observing the Java files in the configured directories. In case of modifications, all
- * Java files are compiled and instrumented again.
+ * It offers hot deployment by observing the Java files in the configured directories. In case of modifications, the
+ * changed Java files and the Java files depending on them are compiled and instrumented again, see
+ * {@link #setIncrementalCompilation(boolean)}.
  * 
  * @author austermann
  */
@@ -84,6 +93,8 @@ public class FileBasedWorkflowRepository extends AbstractWorkflowRepository impl
     private List<String> sourceDirs = new ArrayList<String>();
     private List<String> sourceArchiveUrls = new ArrayList<String>();
     private String lastBuildResults;
+    private boolean incrementalCompilation = true;
+    private BuildState lastBuild;
 
     /**
      * Sets the list of source archive URLs. The source archives must be ZIP compressed archives, containing COPPER
@@ -209,12 +220,157 @@ public class FileBasedWorkflowRepository extends AbstractWorkflowRepository impl
         return targetDir;
     }
 
+    /**
+     * If true (which is the default), a redeployment only recompiles the compilation units that changed since the last
+     * build and all compilation units that reference classes of changed compilation units. Instrumented classfiles of
+     * unchanged classes are reused. The first build after {@link #start()} is always a full build.
+     * <p>
+     * Dependencies are detected using the constant pool of the compiled classes, so changes of compile time constants,
+     * which javac inlines into the referencing classes, are not detected. Disable incremental compilation if workflows
+     * depend on such constants declared in other workflow source files.
+     *
+     * @param incrementalCompilation
+     *        enables or disables incremental compilation
+     */
+    public void setIncrementalCompilation(boolean incrementalCompilation) {
+        this.incrementalCompilation = incrementalCompilation;
+    }
+
+    public boolean isIncrementalCompilation() {
+        return incrementalCompilation;
+    }
+
     public void setPreprocessors(List<Runnable> preprocessors) {
         if (preprocessors == null)
             throw new NullPointerException();
         this.preprocessors = new ArrayList<Runnable>(preprocessors);
     }
 
+    private static final class ClassfileInfo {
+        final String path;
+        final String unit;
+        final Set<String> references;
+
+        ClassfileInfo(String path, String unit, Set<String> references) {
+            this.path = path;
+            this.unit = unit;
+            this.references = references;
+        }
+    }
+
+    /**
+     * Keeps the results of a build, i.e. the hashes of the compiled sources and the compiled classfiles, so that the
+     * next build can compile incrementally. Unchanged classes are not instrumented again either, as they are found in
+     * the {@link #setInstrumentationCache(InstrumentationCache) instrumentation cache}.
+     */
+    private static final class BuildState {
+
+        private static final Pattern TYPE_DESCRIPTOR = Pattern.compile("L([^;<>\\[]+)[;<]");
+
+        final File compileTargetDir;
+        final List<String> compilerOptions;
+        final Map<String, String> sourceHashes;
+        final Map<String, ClassfileInfo> classfiles = new HashMap<String, ClassfileInfo>();
+        boolean incrementalBuildPossible = true;
+
+        BuildState(File compileTargetDir, List<String> compilerOptions, Map<String, String> sourceHashes) {
+            this.compileTargetDir = compileTargetDir;
+            this.compilerOptions = compilerOptions;
+            this.sourceHashes = sourceHashes;
+        }
+
+        void addClassfile(String classname, String path, String sourceFile, byte[] bytes) throws IOException {
+            String unit = null;
+            if (sourceFile != null) {
+                final int idx = classname.lastIndexOf('/');
+                unit = idx < 0 ? sourceFile : classname.substring(0, idx + 1) + sourceFile;
+            }
+            if (unit == null || !sourceHashes.containsKey(unit)) {
+                // e.g. a source file that does not reside in the directory of its package
+                logger.debug("Unable to find compilation unit of class {} - next build will be a full build", classname);
+                incrementalBuildPossible = false;
+            }
+            classfiles.put(classname, new ClassfileInfo(path, unit, findReferencedNames(bytes)));
+        }
+
+        /**
+         * @return the compilation units that changed or were removed compared to this build, plus all compilation units
+         *         of this build that directly or transitively reference classes of those units.
+         */
+        Set<String> findDirtyUnits(Map<String, String> newSourceHashes) {
+            final Set<String> dirty = new HashSet<String>();
+            for (Map.Entry<String, String> entry : newSourceHashes.entrySet()) {
+                if (!entry.getValue().equals(sourceHashes.get(entry.getKey()))) {
+                    dirty.add(entry.getKey());
+                }
+            }
+            for (String unit : sourceHashes.keySet()) {
+                if (!newSourceHashes.containsKey(unit)) {
+                    dirty.add(unit);
+                }
+            }
+
+            final Map<String, Set<String>> classesByUnit = new HashMap<String, Set<String>>();
+            final Map<String, Set<String>> referencingUnits = new HashMap<String, Set<String>>();
+            for (Map.Entry<String, ClassfileInfo> entry : classfiles.entrySet()) {
+                addTo(classesByUnit, entry.getValue().unit, entry.getKey());
+                for (String reference : entry.getValue().references) {
+                    if (classfiles.containsKey(reference)) {
+                        addTo(referencingUnits, reference, entry.getValue().unit);
+                    }
+                }
+            }
+            final Deque<String> queue = new ArrayDeque<String>(dirty);
+            while (!queue.isEmpty()) {
+                final Set<String> classes = classesByUnit.get(queue.poll());
+                if (classes == null)
+                    continue;
+                for (String classname : classes) {
+                    final Set<String> units = referencingUnits.get(classname);
+                    if (units == null)
+                        continue;
+                    for (String unit : units) {
+                        if (dirty.add(unit)) {
+                            queue.add(unit);
+                        }
+                    }
+                }
+            }
+            return dirty;
+        }
+
+        private static void addTo(Map<String, Set<String>> map, String key, String value) {
+            Set<String> set = map.get(key);
+            if (set == null) {
+                set = new HashSet<String>();
+                map.put(key, set);
+            }
+            set.add(value);
+        }
+
+        /**
+         * @return all strings of the class' constant pool plus the class names contained in type descriptors, i.e. a
+         *         superset of the names of all classes referenced by this class
+         */
+        private static Set<String> findReferencedNames(byte[] bytes) throws IOException {
+            final ClassReader cr = new ClassReader(bytes);
+            final Set<String> names = new HashSet<String>();
+            for (int i = 1; i < cr.getItemCount(); i++) {
+                final int offset = cr.getItem(i);
+                // CONSTANT_Utf8 entries, encoded exactly like DataOutput.writeUTF
+                if (offset > 0 && cr.readByte(offset - 1) == 1) {
+                    final String value = new DataInputStream(new ByteArrayInputStream(bytes, offset, cr.readUnsignedShort(offset) + 2)).readUTF();
+                    names.add(value);
+                    final Matcher m = TYPE_DESCRIPTOR.matcher(value);
+                    while (m.find()) {
+                        names.add(m.group(1));
+                    }
+                }
+            }
+            return names;
+        }
+    }
+
     static class ObserverThread extends Thread {
 
         final WeakReference<FileBasedWorkflowRepository> repository;
@@ -326,8 +482,10 @@ public class FileBasedWorkflowRepository extends AbstractWorkflowRepository impl
             additionalSourcesDir.mkdirs();
         extractAdditionalSources(additionalSourcesDir, this.sourceArchiveUrls);
 
-        Map<String, File> sourceFiles = compile(compileTargetDir, additionalSourcesDir);
-        final Map<String, Clazz> clazzMap = findInterruptableMethods(compileTargetDir);
+        final Map<String, File> sourceFiles = findSourceFiles(additionalSourcesDir);
+        final BuildState build = new BuildState(compileTargetDir, createCompilerOptions(), hashSourceFiles(sourceFiles));
+        compile(build, sourceFiles);
+        final Map<String, Clazz> clazzMap = findInterruptableMethods(build);
         final Map<String, ClassInfo> clazzInfoMap = new HashMap<String, ClassInfo>();
         instrumentWorkflows(adaptedTargetDir, clazzMap, clazzInfoMap, new URLClassLoader(new URL[] { compileTargetDir.toURI().toURL() }, Thread.currentThread().getContextClassLoader()));
         for (Clazz clazz : clazzMap.values()) {
@@ -388,6 +546,7 @@ public class FileBasedWorkflowRepository extends AbstractWorkflowRepository impl
         }
 
         final Map<String, String> sources = readJavaFiles(wfClassMap, sourceDirs, additionalSourcesDir);
+        lastBuild = build;
 
         return new VolatileState(wfMapLatest, wfMapVersioned, versions, cl, checksum, wfClassMap, sources, clazzInfoMap, createWorkflowClassInfoMap(wfMapLatest, sources));
     }
@@ -434,26 +593,30 @@ public class FileBasedWorkflowRepository extends AbstractWorkflowRepository impl
         }
     }
 
-    private Map<String, Clazz> findInterruptableMethods(File compileTargetDir) throws IOException {
+    private Map<String, Clazz> findInterruptableMethods(BuildState build) throws IOException {
         logger.info("Analysing classfiles");
         // Find and visit all classes
         Map<String, Clazz> clazzMap = new HashMap<String, Clazz>();
-        Collection<File> classfiles = findFiles(compileTargetDir, ".class").values();
-        for (File f : classfiles) {
-            ScottyFindInterruptableMethodsVisitor visitor = new ScottyFindInterruptableMethodsVisitor();
-            InputStream is = new FileInputStream(f);
-            try {
-                ClassReader cr = new ClassReader(is);
-                cr.accept(visitor, 0);
-            } finally {
-                is.close();
-            }
+        for (Map.Entry<String, File> entry : findFiles(build.compileTargetDir, ".class").entrySet()) {
+            final File f = entry.getValue();
+            final byte[] bytes = readFully(f);
+            final String[] sourceFile = new String[1];
+            ScottyFindInterruptableMethodsVisitor visitor = new ScottyFindInterruptableMethodsVisitor() {
+                @Override
+                public void visitSource(String source, String debug) {
+                    sourceFile[0] = source;
+                    super.visitSource(source, debug);
+                }
+            };
+            ClassReader cr = new ClassReader(bytes);
+            cr.accept(visitor, 0);
             Clazz clazz = new Clazz();
             clazz.interruptableMethods = visitor.getInterruptableMethods();
             clazz.classfile = f.toURI().toURL();
             clazz.classname = visitor.getClassname();
             clazz.superClassname = visitor.getSuperClassname();
             clazzMap.put(clazz.classname, clazz);
+            build.addClassfile(clazz.classname, entry.getKey(), sourceFile[0], bytes);
         }
 
         // Remove all classes that are no workflow
@@ -479,8 +642,24 @@ public class FileBasedWorkflowRepository extends AbstractWorkflowRepository impl
         return clazzMap;
     }
 
-    private Map<String, File> compile(File compileTargetDir, File additionalSourcesDir) throws IOException {
-        logger.info("Compiling workflows");
+    private Map<String, File> findSourceFiles(File additionalSourcesDir) {
+        final Map<String, File> files = new HashMap<String, File>();
+        for (String dir : sourceDirs) {
+            files.putAll(findFiles(new File(dir), ".java"));
+        }
+        files.putAll(findFiles(additionalSourcesDir, ".java"));
+        return files;
+    }
+
+    private Map<String, String> hashSourceFiles(Map<String, File> sourceFiles) throws IOException {
+        final Map<String, String> hashes = new HashMap<String, String>(sourceFiles.size());
+        for (Map.Entry<String, File> entry : sourceFiles.entrySet()) {
+            hashes.put(entry.getKey(), hash(readFully(entry.getValue())));
+        }
+        return hashes;
+    }
+
+    private List<String> createCompilerOptions() {
         List<String> options = new ArrayList<String>();
         String extraOptions = System.getProperty("org.copperengine.workflow.compiler.options", "");
         if(!extraOptions.isEmpty()) {
@@ -489,8 +668,6 @@ public class FileBasedWorkflowRepository extends AbstractWorkflowRepository impl
             }
         }
         options.add("-g");
-        options.add("-d");
-        options.add(compileTargetDir.getAbsolutePath());
         for (CompilerOptionsProvider cop : compilerOptionsProviders) {
             options.addAll(cop.getOptions());
         }
@@ -501,32 +678,93 @@ public class FileBasedWorkflowRepository extends AbstractWorkflowRepository impl
                 options.add(modulePath);
             }
         }
+        return options;
+    }
+
+    /**
+     * Compiles the workflow sources into the build's compile target directory. If possible, only the compilation units
+     * that changed since the last build and the compilation units depending on them are compiled, the classfiles of all
+     * other compilation units are taken over from the last build.
+     */
+    private void compile(BuildState build, Map<String, File> sourceFiles) throws IOException {
+        logger.info("Compiling workflows");
+        final BuildState last = lastBuild;
+        if (incrementalCompilation && last != null && last.incrementalBuildPossible && last.compilerOptions.equals(build.compilerOptions)) {
+            final Set<String> dirtyUnits = last.findDirtyUnits(build.sourceHashes);
+            for (Map.Entry<String, ClassfileInfo> entry : last.classfiles.entrySet()) {
+                if (!dirtyUnits.contains(entry.getValue().unit)) {
+                    final File target = new File(build.compileTargetDir, entry.getValue().path);
+                    target.getParentFile().mkdirs();
+                    Files.copy(new File(last.compileTargetDir, entry.getValue().path).toPath(), target.toPath());
+                }
+            }
+            final List<File> files = new ArrayList<File>();
+            for (String unit : dirtyUnits) {
+                if (sourceFiles.containsKey(unit)) {
+                    files.add(sourceFiles.get(unit));
+                }
+            }
+            logger.info("Incremental build - compiling {} of {} compilation units", files.size(), sourceFiles.size());
+            if (files.isEmpty() || compile(build.compileTargetDir, files, build.compilerOptions, true)) {
+                return;
+            }
+            logger.warn("Incremental compilation failed - falling back to a full build");
+            deleteDirectory(build.compileTargetDir);
+            build.compileTargetDir.mkdirs();
+        }
+        if (!sourceFiles.isEmpty() && !compile(build.compileTargetDir, sourceFiles.values(), build.compilerOptions, false)) {
+            throw new CopperRuntimeException("Compilation failed, see logfile for details");
+        }
+    }
+
+    private boolean compile(File compileTargetDir, Collection<File> files, List<String> compilerOptions, boolean incremental) throws IOException {
+        final List<String> options = new ArrayList<String>(compilerOptions);
+        options.add("-d");
+        options.add(compileTargetDir.getAbsolutePath());
+        if (incremental) {
+            // the classfiles of the unchanged compilation units have to be found on the classpath
+            addToClasspath(options, compileTargetDir);
+        }
         logger.info("Compiler options: " + options.toString());
         JavaCompiler compiler = getJavaCompiler();
         if (compiler == null)
             throw new IllegalStateException("No Java compiler available! Please make sure that either tools.jar is provided, or that you start with a full JDK (not an JRE!), or that any other JSR-199 compatible Java compiler is available on the classpath, e.g. the Eclipse compiler ecj");
         StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
-        final Map<String, File> files = new HashMap<String, File>();
         try {
-            for (String dir : sourceDirs) {
-                files.putAll(findFiles(new File(dir), ".java"));
-            }
-            files.putAll(findFiles(additionalSourcesDir, ".java"));
-            if (files.size() > 0) {
-                final Iterable<? extends JavaFileObject> compilationUnits1 = fileManager.getJavaFileObjectsFromFiles(files.values());
-                final StringWriter sw = new StringWriter();
-                final CompilationTask task = compiler.getTask(sw, fileManager, null, options, null, compilationUnits1);
-                lastBuildResults = null;
-                if (!task.call()) {
-                    lastBuildResults = "Compilation failed!\n" + sw.toString();
+            final Iterable<? extends JavaFileObject> compilationUnits1 = fileManager.getJavaFileObjectsFromFiles(files);
+            final StringWriter sw = new StringWriter();
+            final CompilationTask task = compiler.getTask(sw, fileManager, null, options, null, compilationUnits1);
+            lastBuildResults = null;
+            if (!task.call()) {
+                lastBuildResults = "Compilation failed!\n" + sw.toString();
+                if (incremental) {
+                    logger.info(lastBuildResults);
+                } else {
                     logger.error(lastBuildResults);
-                    throw new CopperRuntimeException("Compilation failed, see logfile for details");
                 }
+                return false;
             }
+            return true;
         } finally {
             fileManager.close();
         }
-        return files;
+    }
+
+    private static void addToClasspath(List<String> options, File dir) {
+        for (int i = 0; i < options.size() - 1; i++) {
+            final String option = options.get(i);
+            if ("--class-path".equals(option) || "-classpath".equals(option) || "-cp".equals(option)) {
+                options.set(i + 1, dir.getAbsolutePath() + File.pathSeparator + options.get(i + 1));
+                return;
+            }
+        }
+        // without an explicit classpath, an in-process javac uses the classpath of the current JVM
+        options.add("-cp");
+        options.add(dir.getAbsolutePath() + File.pathSeparator + System.getProperty("java.class.path", ""));
+    }
+
+    private static String hash(byte[] data) {
+        return InstrumentationCache.toHex(InstrumentationCache.createMessageDigest().digest(data));
     }
 
     private JavaCompiler getJavaCompiler() {
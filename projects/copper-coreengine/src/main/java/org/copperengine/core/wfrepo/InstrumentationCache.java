@@ -0,0 +1,342 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.wfrepo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.copperengine.core.CopperRuntimeException;
+import org.copperengine.core.instrument.ASMConstants;
+import org.copperengine.core.instrument.ClassInfo;
+import org.objectweb.asm.ClassWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A content addressed cache for instrumented workflow classes, i.e. the transformed bytecode together with the
+ * {@link ClassInfo} that was created while instrumenting it. Entries are kept in memory as long as the heap permits,
+ * so that a redeployment only instruments the classes that changed. If a cache directory is given, entries are
+ * persisted as well and survive a restart of the JVM.
+ * <p>
+ * Entries are keyed by the bytes of the original classfile, the interruptable methods of the class and its super
+ * classes, the configured ASM API version and a fingerprint of COPPER's instrumentation code (the classfiles of the
+ * instrumentation classes and the COPPER and ASM versions). So an entry is only used if instrumenting the class again
+ * would produce the same result, and updating COPPER or ASM automatically invalidates all entries.
+ * <p>
+ * A cache may be shared by several workflow repositories, also across JVMs. Entries that cannot be read are ignored and
+ * deleted. The cache directory may be deleted at any time, obsolete entries in it are never removed by COPPER.
+ * <b>Note:</b> Don't place the cache directory inside the target directory of a {@link FileBasedWorkflowRepository},
+ * as this directory is deleted on startup.
+ *
+ * @see AbstractWorkflowRepository#setInstrumentationCache(InstrumentationCache)
+ */
+public class InstrumentationCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(InstrumentationCache.class);
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final String[] INSTRUMENTATION_CLASSFILES = {
+            "/org/copperengine/core/instrument/BuildStackInfoAdapter.class",
+            "/org/copperengine/core/instrument/ByteCodeStackInfo.class",
+            "/org/copperengine/core/instrument/ClassInfo.class",
+            "/org/copperengine/core/instrument/MethodInfo.class",
+            "/org/copperengine/core/instrument/ScottyClassAdapter.class",
+            "/org/copperengine/core/instrument/ScottyMethodAdapter.class",
+            "/org/copperengine/core/instrument/StackInfo.class",
+            "/org/copperengine/core/instrument/TryCatchBlockHandler.class",
+            "/org/copperengine/core/wfrepo/AbstractWorkflowRepository.class"
+    };
+
+    /**
+     * A cached instrumented class.
+     */
+    public static final class Entry {
+        private final byte[] bytecode;
+        private final ClassInfo classInfo;
+
+        Entry(byte[] bytecode, ClassInfo classInfo) {
+            this.bytecode = bytecode;
+            this.classInfo = classInfo;
+        }
+
+        public byte[] getBytecode() {
+            return bytecode;
+        }
+
+        public ClassInfo getClassInfo() {
+            return classInfo;
+        }
+    }
+
+    private static final class MemoryEntry extends SoftReference<byte[]> {
+        final String key;
+
+        MemoryEntry(String key, byte[] data, ReferenceQueue<byte[]> queue) {
+            super(data, queue);
+            this.key = key;
+        }
+    }
+
+    private final File cacheDir;
+    private final byte[] fingerprint;
+    private final ConcurrentHashMap<String, MemoryEntry> memory = new ConcurrentHashMap<String, MemoryEntry>();
+    private final ReferenceQueue<byte[]> cleared = new ReferenceQueue<byte[]>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a cache that keeps its entries in memory only.
+     */
+    public InstrumentationCache() {
+        this.cacheDir = null;
+        this.fingerprint = createFingerprint();
+    }
+
+    public InstrumentationCache(String cacheDir) {
+        this(new File(cacheDir));
+    }
+
+    public InstrumentationCache(File cacheDir) {
+        if (cacheDir == null)
+            throw new NullPointerException();
+        this.cacheDir = cacheDir;
+        this.fingerprint = createFingerprint();
+    }
+
+    /**
+     * @return the cache directory or <code>null</code>, if the entries are kept in memory only
+     */
+    public File getCacheDir() {
+        return cacheDir;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @param classfile
+     *        the original classfile
+     * @param interruptableMethods
+     *        the aggregated interruptable methods of the class, as passed to the instrumentation
+     * @return the cached instrumented class or <code>null</code>, if the cache contains no valid entry
+     */
+    public Entry get(byte[] classfile, Set<String> interruptableMethods) {
+        final String key = createKey(classfile, interruptableMethods);
+        final MemoryEntry memoryEntry = memory.get(key);
+        byte[] data = memoryEntry != null ? memoryEntry.get() : null;
+        final File file = cacheDir != null ? getFile(key) : null;
+        if (data == null && file != null && file.exists()) {
+            try {
+                data = Files.readAllBytes(file.toPath());
+            } catch (IOException e) {
+                logger.warn("Ignoring unreadable instrumentation cache entry {}: {}", file, e.toString());
+            }
+        }
+        if (data == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try {
+            final Entry entry = read(key, data);
+            if (memoryEntry == null || memoryEntry.get() == null) {
+                putInMemory(key, data);
+            }
+            hits.incrementAndGet();
+            return entry;
+        } catch (Exception e) {
+            logger.warn("Ignoring unreadable instrumentation cache entry {}: {}", file != null ? file : key, e.toString());
+            memory.remove(key);
+            if (file != null) {
+                file.delete();
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Stores an instrumented class. Failures are logged but otherwise ignored, as the cache is an optimization only.
+     *
+     * @param classfile
+     *        the original classfile
+     * @param interruptableMethods
+     *        the aggregated interruptable methods of the class, as passed to the instrumentation
+     * @param bytecode
+     *        the instrumented classfile
+     * @param classInfo
+     *        the class info created during instrumentation
+     */
+    public void put(byte[] classfile, Set<String> interruptableMethods, byte[] bytecode, ClassInfo classInfo) {
+        final String key = createKey(classfile, interruptableMethods);
+        final byte[] data;
+        try {
+            // entries are kept serialized, so that each repository gets its own copy of the mutable ClassInfo
+            data = write(key, bytecode, classInfo);
+        } catch (IOException e) {
+            logger.warn("Unable to create instrumentation cache entry {}: {}", key, e.toString());
+            return;
+        }
+        putInMemory(key, data);
+        if (cacheDir == null)
+            return;
+        final File file = getFile(key);
+        File tmpFile = null;
+        try {
+            file.getParentFile().mkdirs();
+            // write to a temporary file first, so that concurrent readers never see partially written entries
+            tmpFile = File.createTempFile(key, ".tmp", file.getParentFile());
+            final FileOutputStream fos = new FileOutputStream(tmpFile);
+            try {
+                fos.write(data);
+            } finally {
+                fos.close();
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            logger.warn("Unable to write instrumentation cache entry {}: {}", file, e.toString());
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    private void putInMemory(String key, byte[] data) {
+        // drop the keys of entries the garbage collector has cleared
+        MemoryEntry ref;
+        while ((ref = (MemoryEntry) cleared.poll()) != null) {
+            memory.remove(ref.key, ref);
+        }
+        memory.put(key, new MemoryEntry(key, data, cleared));
+    }
+
+    private static byte[] write(String key, byte[] bytecode, ClassInfo classInfo) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream(bytecode.length + 1024);
+        final ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeInt(FORMAT_VERSION);
+        oos.writeUTF(key);
+        oos.writeObject(bytecode);
+        oos.writeObject(classInfo);
+        oos.close();
+        return bos.toByteArray();
+    }
+
+    private static Entry read(String key, byte[] data) throws IOException, ClassNotFoundException {
+        final ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+        try {
+            if (ois.readInt() != FORMAT_VERSION || !key.equals(ois.readUTF())) {
+                throw new IOException("Invalid header");
+            }
+            final byte[] bytecode = (byte[]) ois.readObject();
+            final ClassInfo classInfo = (ClassInfo) ois.readObject();
+            return new Entry(bytecode, classInfo);
+        } finally {
+            ois.close();
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(new File(cacheDir, key.substring(0, 2)), key);
+    }
+
+    private String createKey(byte[] classfile, Set<String> interruptableMethods) {
+        final List<String> methods = new ArrayList<String>(interruptableMethods);
+        Collections.sort(methods);
+        final MessageDigest md = createMessageDigest();
+        md.update(fingerprint);
+        md.update(Integer.toString(ASMConstants.API_VERSION).getBytes(StandardCharsets.UTF_8));
+        for (String method : methods) {
+            md.update(method.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+        }
+        md.update(classfile);
+        return toHex(md.digest());
+    }
+
+    private static byte[] createFingerprint() {
+        final MessageDigest md = createMessageDigest();
+        md.update(Integer.toString(FORMAT_VERSION).getBytes(StandardCharsets.UTF_8));
+        md.update(String.valueOf(InstrumentationCache.class.getPackage().getImplementationVersion()).getBytes(StandardCharsets.UTF_8));
+        md.update(String.valueOf(ClassWriter.class.getPackage().getImplementationVersion()).getBytes(StandardCharsets.UTF_8));
+        // the version of a snapshot build does not change with the code, so the instrumentation code itself is hashed
+        for (String classfile : INSTRUMENTATION_CLASSFILES) {
+            md.update(classfile.getBytes(StandardCharsets.UTF_8));
+            try {
+                final InputStream is = InstrumentationCache.class.getResourceAsStream(classfile);
+                if (is != null) {
+                    try {
+                        md.update(readFully(is));
+                    } finally {
+                        is.close();
+                    }
+                }
+            } catch (IOException e) {
+                throw new CopperRuntimeException("Unable to read " + classfile, e);
+            }
+        }
+        return md.digest();
+    }
+
+    static byte[] readFully(InputStream is) throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream(8 * 1024);
+        final byte[] buffer = new byte[8 * 1024];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            os.write(buffer, 0, read);
+        }
+        return os.toByteArray();
+    }
+
+    static MessageDigest createMessageDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new CopperRuntimeException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
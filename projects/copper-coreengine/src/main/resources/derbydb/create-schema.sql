@@ -77,6 +77,10 @@ create index IDX_COP_WAIT_WFI_ID on COP_WAIT (
    WORKFLOW_INSTANCE_ID
 );
 
+create index IDX_COP_WAIT_TIMEOUT_TS on COP_WAIT (
+   TIMEOUT_TS
+);
+
 --
 -- QUEUE
 --
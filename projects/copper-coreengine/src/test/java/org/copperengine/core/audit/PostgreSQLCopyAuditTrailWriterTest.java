@@ -0,0 +1,50 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.audit;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.Method;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.Date;
+
+import org.junit.Test;
+
+public class PostgreSQLCopyAuditTrailWriterTest {
+
+    @Test
+    public void testCsv() {
+        StringBuilder csv = new StringBuilder();
+        PostgreSQLCopyAuditTrailWriter.appendValue(csv, "a \"quoted\",\nmultiline message");
+        csv.append(',');
+        PostgreSQLCopyAuditTrailWriter.appendValue(csv, null);
+        csv.append(',');
+        PostgreSQLCopyAuditTrailWriter.appendValue(csv, "");
+        csv.append(',');
+        PostgreSQLCopyAuditTrailWriter.appendValue(csv, 4711);
+        csv.append(',');
+        PostgreSQLCopyAuditTrailWriter.appendValue(csv, new Date(Timestamp.valueOf("2015-01-02 03:04:05.678").getTime()));
+        assertEquals("\"a \"\"quoted\"\",\nmultiline message\",,\"\",4711,2015-01-02 03:04:05.678", csv.toString());
+    }
+
+    @Test
+    public void testCopyStmt() {
+        PostgreSQLCopyAuditTrailWriter writer = new PostgreSQLCopyAuditTrailWriter(null, "COP_AUDIT_TRAIL_EVENT", AbstractAuditTrail.createDefaultMapping(), Collections.<Method> emptyList());
+        assertEquals("COPY COP_AUDIT_TRAIL_EVENT (LOGLEVEL,OCCURRENCE,CONVERSATION_ID,CONTEXT,INSTANCE_ID,CORRELATION_ID,TRANSACTION_ID,MESSAGE_TYPE,LONG_MESSAGE) FROM STDIN WITH CSV", writer.getCopyStmt());
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.batcher.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.copperengine.core.batcher.BatchCommand;
+import org.copperengine.core.batcher.RetryingTxnBatchRunner;
+import org.copperengine.core.batcher.impl.AdaptiveBatchController.ExecutorStatistics;
+import org.copperengine.core.batcher.impl.BatcherImplTest.TestBatchCommand;
+import org.copperengine.core.batcher.impl.BatcherImplTest.TestBatchExecutor;
+import org.junit.Test;
+
+public class AdaptiveBatchControllerTest {
+
+    private static final long MSEC = 1000000L;
+
+    @Test
+    public void testLightLoadDisablesLinger() {
+        ExecutorStatistics s = new ExecutorStatistics(TestBatchExecutor.INSTANCE);
+        s.submitted();
+        s.dequeued(1, 900);
+        s.executed(2 * MSEC);
+        s.adjust(1000, 50, true);
+        assertEquals(0, s.getLingerMSec());
+        assertEquals(50, s.getPreferredBatchSize());
+    }
+
+    @Test
+    public void testHeavyLoadIncreasesBatchSize() {
+        ExecutorStatistics s = new ExecutorStatistics(TestBatchExecutor.INSTANCE);
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 5000; j++) {
+                s.submitted();
+            }
+            for (int j = 0; j < 50; j++) {
+                s.dequeued(100, 5);
+                s.executed(5 * MSEC);
+            }
+            s.adjust(1000, 50, true);
+        }
+        assertEquals(100, s.getPreferredBatchSize());
+        assertTrue(s.getLingerMSec() > 0 && s.getLingerMSec() <= 45);
+    }
+
+    @Test
+    public void testSlowDatabaseDecreasesBatchSize() {
+        ExecutorStatistics s = new ExecutorStatistics(TestBatchExecutor.INSTANCE);
+        for (int i = 0; i < 3; i++) {
+            s.submitted();
+            s.dequeued(50, 20);
+            s.executed(80 * MSEC);
+            s.adjust(1000, 50, true);
+        }
+        assertTrue(s.getPreferredBatchSize() < 50);
+        assertEquals(0, s.getLingerMSec());
+
+        s.adjust(1000, 50, false);
+        assertEquals(50, s.getPreferredBatchSize());
+        assertEquals(Long.MAX_VALUE, s.getLingerMSec());
+    }
+
+    @Test
+    public void testLingerLimitsTargetTime() throws Exception {
+        BatcherImpl batcher = new BatcherImpl(1);
+        batcher.setAdaptive(true);
+        ExecutorStatistics s = batcher.controller.getStatistics(TestBatchExecutor.INSTANCE);
+        s.submitted();
+        s.dequeued(1, 0);
+        s.executed(MSEC);
+        s.adjust(1000, 50, true);
+
+        BatcherQueue queue = batcher.queue;
+        TestBatchCommand cmd = new TestBatchCommand("test");
+        cmd.targetTime = System.currentTimeMillis() + 60000;
+        long startTS = System.currentTimeMillis();
+        queue.submitBatchCommand(cmd);
+        List<BatchCommand<?, ?>> batch = queue.poll();
+        assertEquals(1, batch.size());
+        assertTrue(System.currentTimeMillis() - startTS < 10000);
+    }
+
+    @Test
+    public void testDisableAdaptiveResetsPreferredSize() throws Exception {
+        BatcherImpl batcher = new BatcherImpl(1);
+        batcher.setAdaptive(true);
+        ExecutorStatistics s = batcher.controller.getStatistics(TestBatchExecutor.INSTANCE);
+        for (int i = 0; i < 3; i++) {
+            s.submitted();
+            s.dequeued(50, 20);
+            s.executed(80 * MSEC);
+            s.adjust(1000, 50, true);
+        }
+        assertTrue(s.getPreferredBatchSize() < 50);
+
+        BatcherQueue queue = batcher.queue;
+        TestBatchCommand cmd = new TestBatchCommand("test");
+        cmd.targetTime = System.currentTimeMillis() + 60000;
+        queue.submitBatchCommand(cmd);
+        BatcherQueue.BatchInfo batchInfo = queue.batchMap.get(TestBatchExecutor.INSTANCE);
+        assertTrue(batchInfo.preferredSize < 50);
+
+        batcher.setAdaptive(false);
+        assertEquals(50, s.getPreferredBatchSize());
+        assertEquals(Long.MAX_VALUE, s.getLingerMSec());
+        assertEquals(50, batchInfo.preferredSize);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Test
+    public void testAdjustNumThreadsStopsIdleThread() throws Exception {
+        BatcherImpl batcher = new BatcherImpl(2);
+        batcher.setBatchRunner(new RetryingTxnBatchRunner());
+        batcher.startup();
+        try {
+            assertEquals(2, waitForWorkers(batcher, 2));
+            batcher.setAdaptive(true);
+            batcher.adjustNumThreads(0.0, true);
+            assertEquals(1, batcher.getEffectiveNumThreads());
+            assertEquals(2, batcher.getNumThreads());
+            assertEquals(1, waitForWorkers(batcher, 1));
+
+            // the configured number of threads applies again
+            batcher.setAdaptive(false);
+            assertEquals(2, batcher.getEffectiveNumThreads());
+            assertEquals(2, waitForWorkers(batcher, 2));
+        } finally {
+            batcher.shutdown();
+        }
+        assertEquals(0, waitForWorkers(batcher, 0));
+    }
+
+    private static int waitForWorkers(BatcherImpl batcher, int expected) throws InterruptedException {
+        int workers = -1;
+        for (int i = 0; i < 500 && workers != expected; i++) {
+            if (i > 0) {
+                Thread.sleep(10);
+            }
+            workers = 0;
+            for (Thread t : batcher.getThreads()) {
+                if (t.isAlive()) {
+                    workers++;
+                }
+            }
+        }
+        return workers;
+    }
+
+}
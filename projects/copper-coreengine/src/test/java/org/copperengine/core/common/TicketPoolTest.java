@@ -0,0 +1,100 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+public class TicketPoolTest {
+
+    @Test
+    public void testObtainAndRelease() {
+        TicketPool pool = new TicketPool("test", 3);
+        pool.obtain(2);
+        assertEquals(2, pool.getUsedTickets());
+        assertTrue(pool.tryObtain(1));
+        assertFalse(pool.tryObtain(1));
+        assertEquals(0, pool.availableTickets());
+
+        // forcing exceeds the capacity
+        pool.obtain(2, true);
+        assertEquals(5, pool.getUsedTickets());
+        pool.release(5);
+        assertEquals(0, pool.getUsedTickets());
+
+        // releasing more tickets than obtained does not increase the capacity
+        pool.release(10);
+        assertEquals(0, pool.getUsedTickets());
+        assertEquals(3, pool.availableTickets());
+
+        pool.setCapacity(1);
+        pool.obtain();
+        assertFalse(pool.tryObtain(1));
+        assertEquals(0, pool.getWaitTimeHistogram().getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testObtainMoreThanCapacity() {
+        new TicketPool("test", 3).obtain(4);
+    }
+
+    @Test
+    public void testFifo() throws Exception {
+        final TicketPool pool = new TicketPool("test", 2);
+        pool.obtain(2);
+        final List<String> order = new CopyOnWriteArrayList<String>();
+        Thread many = startWaiter(pool, 2, "many", order);
+        while (pool.getWaitingThreads() < 1)
+            Thread.sleep(1);
+        Thread one = startWaiter(pool, 1, "one", order);
+        while (pool.getWaitingThreads() < 2)
+            Thread.sleep(1);
+
+        // the waiting threads are not overtaken by threads trying to obtain tickets without waiting
+        pool.release(1);
+        assertFalse(pool.tryObtain(1));
+        Thread.sleep(50);
+        assertTrue(order.isEmpty());
+
+        pool.release(1);
+        many.join(5000);
+        assertEquals("many", order.get(0));
+        pool.release(2);
+        one.join(5000);
+        assertEquals("one", order.get(1));
+        assertEquals(2, pool.getWaitTimeHistogram().getCount());
+        assertTrue(pool.getWaitTimeHistogram().getMax() >= 40000);
+    }
+
+    private static Thread startWaiter(final TicketPool pool, final int count, final String name, final List<String> order) {
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                pool.obtain(count);
+                order.add(name);
+            }
+        };
+        t.start();
+        return t;
+    }
+
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2002-2017 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+    private final ConcurrentMap<String, Long> expired = new ConcurrentHashMap<String, Long>();
+
+    private TimingWheel<String, String> createWheel(int wheelSize) {
+        return new TimingWheel<String, String>("test", 10, wheelSize, new TimingWheel.ExpiryHandler<String>() {
+            @Override
+            public void onExpired(List<String> values) {
+                for (String v : values) {
+                    expired.put(v, System.currentTimeMillis());
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        // wheel with a horizon of 80 msec, so some timeouts go to the overflow
+        TimingWheel<String, String> wheel = createWheel(8);
+        wheel.startup();
+        try {
+            final long now = System.currentTimeMillis();
+            final List<Long> timeouts = new ArrayList<Long>();
+            for (int i = 0; i < 50; i++) {
+                timeouts.add(now + i * 7L);
+            }
+            timeouts.add(now - 1000L);
+            Collections.shuffle(timeouts);
+            for (Long ts : timeouts) {
+                wheel.register(ts, "id" + ts, "id" + ts);
+            }
+            wheel.register(now + 100, "unregistered", "unregistered");
+            wheel.register(now + 20, "unregistered2", "unregistered2");
+            wheel.unregister(now + 100, "unregistered");
+            wheel.unregister(now + 20, "unregistered2");
+
+            Thread.sleep(600);
+            assertEquals(timeouts.size(), expired.size());
+            for (Long ts : timeouts) {
+                final Long expiredTS = expired.get("id" + ts);
+                assertTrue("id" + ts + " expired too early", expiredTS >= ts);
+            }
+        } finally {
+            wheel.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentRegister() throws Exception {
+        final TimingWheel<String, String> wheel = createWheel(64);
+        wheel.startup();
+        try {
+            final List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < 4; t++) {
+                final int threadNo = t;
+                threads.add(new Thread() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < 2000; i++) {
+                            final long ts = System.currentTimeMillis() + 20 + (i % 50);
+                            final String id = threadNo + "#" + i;
+                            wheel.register(ts, id, id);
+                            if (i % 2 == 0) {
+                                wheel.unregister(ts, id);
+                            }
+                        }
+                    }
+                });
+            }
+            for (Thread t : threads) {
+                t.start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            Thread.sleep(300);
+            assertEquals(4 * 1000, expired.size());
+        } finally {
+            wheel.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright 2002-2017 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.copperengine.core.Interrupt;
+import org.copperengine.core.Workflow;
+import org.copperengine.core.instrument.Transformed;
+import org.junit.Test;
+
+public class WfRunQueueTest {
+
+    @Transformed
+    public static class TestWorkflow extends Workflow<Void> {
+        private static final long serialVersionUID = 1L;
+
+        public TestWorkflow(String id, int priority) {
+            setId(id);
+            setPriority(priority);
+        }
+
+        @Override
+        public void main() throws Interrupt {
+        }
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+        WfRunQueue queue = new WfRunQueue();
+        // more than one segment per priority
+        for (int i = 0; i < 1500; i++) {
+            queue.add(new TestWorkflow("A" + i, 5));
+        }
+        for (int i = 0; i < 3; i++) {
+            queue.add(new TestWorkflow("B" + i, -1));
+            queue.add(new TestWorkflow("C" + i, 1));
+        }
+        assertEquals(1506, queue.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("B" + i, queue.poll().getId());
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals("C" + i, queue.poll().getId());
+        }
+        for (int i = 0; i < 1500; i++) {
+            assertEquals("A" + i, queue.poll().getId());
+        }
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testSuspend() throws Exception {
+        final WfRunQueue queue = new WfRunQueue();
+        queue.setSuspended(true);
+        final Workflow<?> wf = new TestWorkflow("A", 5);
+        queue.add(wf);
+        assertNull(queue.poll());
+        final CountDownLatch taken = new CountDownLatch(1);
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    queue.take();
+                    taken.countDown();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+        };
+        t.start();
+        assertEquals(false, taken.await(100, TimeUnit.MILLISECONDS));
+        queue.setSuspended(false);
+        assertTrue(taken.await(5, TimeUnit.SECONDS));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testConcurrentProducersAndConsumers() throws Exception {
+        final WfRunQueue queue = new WfRunQueue();
+        final int producers = 4;
+        final int consumers = 4;
+        final int perProducer = 20000;
+        final ConcurrentHashMap<String, Workflow<?>> consumed = new ConcurrentHashMap<String, Workflow<?>>();
+        final CountDownLatch done = new CountDownLatch(producers * perProducer);
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int c = 0; c < consumers; c++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (;;) {
+                            Workflow<?> wf = queue.take();
+                            assertNull(consumed.put(wf.getId(), wf));
+                            done.countDown();
+                        }
+                    } catch (InterruptedException e) {
+                        // stopped
+                    }
+                }
+            });
+        }
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        queue.add(new TestWorkflow(producer + "#" + i, i % 3));
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        for (Thread t : threads) {
+            t.interrupt();
+        }
+        assertEquals(producers * perProducer, consumed.size());
+        assertEquals(0, queue.size());
+        assertSame(null, queue.poll());
+    }
+
+    @Test
+    public void testQueueMethods() throws Exception {
+        final WfRunQueue queue = new WfRunQueue();
+        assertNull(queue.peek());
+        final Workflow<?> a = new TestWorkflow("A", 5);
+        final Workflow<?> b = new TestWorkflow("B", 1);
+        final Workflow<?> c = new TestWorkflow("C", 5);
+        queue.addAll(Arrays.asList(a, b, c));
+
+        assertSame(b, queue.peek());
+        assertSame(b, queue.element());
+        assertTrue(queue.contains(a));
+        assertTrue(queue.containsAll(Arrays.asList(a, b, c)));
+        assertEquals(Arrays.asList(b, a, c), Arrays.asList(queue.toArray()));
+
+        assertTrue(queue.remove(a));
+        assertFalse(queue.remove(a));
+        assertFalse(queue.contains(a));
+        assertEquals(2, queue.size());
+
+        final Iterator<Workflow<?>> it = queue.iterator();
+        assertSame(b, it.next());
+        it.remove();
+        assertEquals(1, queue.size());
+        assertSame(c, queue.peek());
+
+        queue.setSuspended(true);
+        assertNull(queue.peek());
+        queue.setSuspended(false);
+
+        assertSame(c, queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testInterruptedWaitersAreRemoved() throws Exception {
+        final WfRunQueue queue = new WfRunQueue();
+        for (int i = 0; i < 10; i++) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        queue.take();
+                    } catch (InterruptedException e) {
+                        // expected
+                    }
+                }
+            };
+            t.start();
+            while (queue.getNumberOfWaiters() == 0) {
+                Thread.sleep(1);
+            }
+            t.interrupt();
+            t.join(5000);
+            assertEquals(0, queue.getNumberOfWaiters());
+        }
+    }
+
+    @Test
+    public void testWaiterIsRemovedAfterSpuriousWakeup() throws Exception {
+        final CountDownLatch available = new CountDownLatch(1);
+        final WfRunQueue queue = new WfRunQueue() {
+            @Override
+            public Workflow<?> poll() {
+                return available.getCount() == 0 ? super.poll() : null;
+            }
+        };
+        final Workflow<?> wf = new TestWorkflow("A", 5);
+        queue.add(wf);
+        final CountDownLatch taken = new CountDownLatch(1);
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    queue.take();
+                    taken.countDown();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+        };
+        t.start();
+        while (queue.getNumberOfWaiters() == 0) {
+            Thread.sleep(1);
+        }
+        // wake up the waiter without a signal, the element is found by the first poll of the loop
+        available.countDown();
+        while (taken.getCount() > 0 && t.isAlive()) {
+            LockSupport.unpark(t);
+            Thread.sleep(1);
+        }
+        assertTrue(taken.await(5, TimeUnit.SECONDS));
+        assertEquals(0, queue.getNumberOfWaiters());
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.monitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.copperengine.management.model.MeasurePointData;
+import org.junit.Test;
+
+public class HistogramStatisticsCollectorTest {
+
+    @Test
+    public void testPercentiles() {
+        HistogramStatisticsCollector collector = new HistogramStatisticsCollector();
+        for (int i = 1; i <= 1000; i++) {
+            collector.submit("insertIntoA", 1, i, TimeUnit.MILLISECONDS);
+        }
+        collector.submit("insertIntoB", 10, 5, TimeUnit.MILLISECONDS);
+
+        MeasurePointData mpd = collector.query("insertIntoA");
+        assertEquals(1000, mpd.getCount());
+        assertEquals(1000, mpd.getElementCount());
+        assertEquals(1000000L, mpd.getMaxMicros());
+        assertWithin(500000L, mpd.getP50Micros());
+        assertWithin(990000L, mpd.getP99Micros());
+        assertWithin(999000L, mpd.getP999Micros());
+        assertNull(mpd.getIntervalHistogram());
+
+        List<MeasurePointData> all = collector.queryAll();
+        assertEquals(2, all.size());
+        assertEquals("insertIntoA", all.get(0).getMpId());
+        assertEquals("insertIntoB", all.get(1).getMpId());
+        assertTrue(collector.print().contains("p99="));
+
+        collector.rotate();
+        collector.submit("insertIntoA", 1, 1, TimeUnit.SECONDS);
+        mpd = collector.query("insertIntoA");
+        assertEquals(1000, mpd.getIntervalHistogram().getCount());
+        assertEquals(1001, mpd.getCount());
+
+        collector.reset();
+        mpd = collector.query("insertIntoA");
+        assertEquals(0, mpd.getCount());
+        assertNull(mpd.getIntervalHistogram());
+        assertNull(collector.query("unknown"));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected " + expected + " but was " + actual, Math.abs(expected - actual) <= expected * 4 / 100);
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.monitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.copperengine.management.model.HistogramData;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        for (long value : new long[] { 0, 1, 3, 4, 5, 7, 8, 9, 15, 16, 1000, 123456789L, Long.MAX_VALUE }) {
+            int bucket = LatencyHistogram.bucket(value);
+            assertTrue(bucket < LatencyHistogram.BUCKETS);
+            assertTrue(value + " <= " + LatencyHistogram.upperBound(bucket), value <= LatencyHistogram.upperBound(bucket));
+            if (bucket > 0) {
+                assertTrue(value > LatencyHistogram.upperBound(bucket - 1));
+            }
+            assertTrue(LatencyHistogram.upperBound(bucket) - value <= value / 4);
+        }
+    }
+
+    @Test
+    public void testSnapshot() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i, TimeUnit.MILLISECONDS);
+        }
+        HistogramData data = histogram.getSnapshot();
+        assertEquals(100, data.getCount());
+        assertEquals(5050000, data.getSum());
+        assertEquals(100000, data.getMax());
+        long p50 = data.getValueAtPercentile(50.0);
+        assertTrue(p50 >= 50000 && p50 <= 63000);
+        assertEquals(100000, data.getValueAtPercentile(100.0));
+
+        histogram.reset();
+        assertEquals(0, histogram.getSnapshot().getCounts().length);
+        assertEquals(0, histogram.getSnapshot().getValueAtPercentile(99.0));
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.persistent;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark for {@link IdCache#put(String, String)} and {@link IdCache#contains(String)} on a full cache, sized like
+ * the one in {@link ScottyDBStorage}. Run with several threads to measure contention.
+ * <p>
+ * {@link IdCache} is package-private, so this benchmark lives in the test sources of copper-coreengine, run it with
+ * <code>gradlew :projects:copper-coreengine:jmh</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IdCacheBenchmark {
+
+    private static final int SIZE = 10000;
+
+    private IdCache cache;
+    private String[] correlationIds;
+
+    @State(Scope.Thread)
+    public static class Ids {
+        private int next;
+        private String prefix;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            prefix = Thread.currentThread().getName() + "#";
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        cache = new IdCache(SIZE, 10, TimeUnit.SECONDS);
+        correlationIds = new String[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            correlationIds[i] = "cid#" + i;
+            cache.put("rid#" + i, correlationIds[i]);
+        }
+    }
+
+    @Benchmark
+    public void put(Ids ids) {
+        int i = ids.next++;
+        cache.put(ids.prefix + i, correlationIds[i % SIZE]);
+    }
+
+    @Benchmark
+    public boolean contains(Ids ids) {
+        return cache.contains(correlationIds[ids.next++ % SIZE]);
+    }
+
+}
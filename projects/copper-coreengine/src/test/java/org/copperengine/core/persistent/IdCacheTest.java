@@ -68,6 +68,31 @@ public class IdCacheTest {
         Assert.assertFalse(idCache.contains("c4"));
     }
 
+    @Test
+    public void testStatistics() throws Exception {
+        IdCache idCache = new IdCache(2, 200, TimeUnit.MILLISECONDS);
+        idCache.put("r1", "c1");
+        idCache.put("r2", "c1");
+        Assert.assertTrue(idCache.remove("r1"));
+        Assert.assertFalse(idCache.remove("r1"));
+        Assert.assertTrue(idCache.contains("c1"));
+        Assert.assertTrue(idCache.remove("r2"));
+        Assert.assertFalse(idCache.contains("c1"));
+        Assert.assertEquals(1, idCache.getHits());
+        Assert.assertEquals(1, idCache.getMisses());
+
+        idCache.put("r3", "c3");
+        idCache.put("r4", "c4");
+        idCache.put("r5", "c5");
+        Assert.assertEquals(2, idCache.size());
+        Assert.assertEquals(1, idCache.getEvictions());
+        Thread.sleep(250);
+        idCache.put("r6", "c6");
+        Assert.assertEquals(1, idCache.size());
+        Assert.assertEquals(2, idCache.getExpirations());
+        Assert.assertTrue(idCache.contains("c6"));
+    }
+
     @Test
     public void testConcurrency() throws Exception {
         final AtomicLong idFactory = new AtomicLong(System.currentTimeMillis() * 1000L);
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.persistent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class LocalQueueWakeupChannelTest {
+
+    @Test
+    public void testPublish() throws Exception {
+        final AtomicInteger wakeups1 = new AtomicInteger();
+        final AtomicInteger wakeups2 = new AtomicInteger();
+        final AtomicInteger wakeupsOther = new AtomicInteger();
+        LocalQueueWakeupChannel channel1 = new LocalQueueWakeupChannel("testPublish");
+        LocalQueueWakeupChannel channel2 = new LocalQueueWakeupChannel("testPublish");
+        LocalQueueWakeupChannel other = new LocalQueueWakeupChannel("testPublishOther");
+        channel1.startup(() -> wakeups1.incrementAndGet());
+        channel2.startup(() -> wakeups2.incrementAndGet());
+        other.startup(() -> wakeupsOther.incrementAndGet());
+
+        channel1.publish();
+        assertEquals(0, wakeups1.get());
+        assertEquals(1, wakeups2.get());
+        assertEquals(0, wakeupsOther.get());
+
+        channel2.shutdown();
+        channel1.publish();
+        assertEquals(1, wakeups2.get());
+
+        channel1.shutdown();
+        other.shutdown();
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.persistent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.junit.Test;
+
+public class PostgreSQLQueueWakeupChannelTest {
+
+    /**
+     * Records the JDBC calls made on a connection and on the statements created from it.
+     */
+    static class RecordingConnection implements InvocationHandler {
+        final List<String> calls = new ArrayList<String>();
+
+        Connection create() {
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class }, this);
+        }
+
+        @Override
+        public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            calls.add(describe(method, args));
+            if (method.getName().equals("prepareStatement")) {
+                return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        synchronized (RecordingConnection.this) {
+                            calls.add("stmt." + describe(method, args));
+                        }
+                        return method.getReturnType() == boolean.class ? Boolean.TRUE : null;
+                    }
+                });
+            }
+            return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+        }
+
+        private static String describe(Method method, Object[] args) {
+            StringBuilder sb = new StringBuilder(method.getName());
+            if (args != null) {
+                for (Object arg : args) {
+                    sb.append(' ').append(arg);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    @Test
+    public void testPublishWithinTransaction() throws Exception {
+        final RecordingConnection connection = new RecordingConnection();
+        final PostgreSQLQueueWakeupChannel channel = new PostgreSQLQueueWakeupChannel(createUnusedDataSource());
+        channel.setChannelName("test_queue");
+
+        channel.publish(connection.create());
+
+        // neither committed nor closed, PostgreSQL sends the notification when the caller commits
+        assertEquals(5, connection.calls.size());
+        assertEquals("prepareStatement SELECT pg_notify(?, ?)", connection.calls.get(0));
+        assertEquals("stmt.setString 1 test_queue", connection.calls.get(1));
+        // no sender id, the listener of this engine must not ignore it
+        assertEquals("stmt.setString 2 ", connection.calls.get(2));
+        assertEquals("stmt.execute", connection.calls.get(3));
+        assertEquals("stmt.close", connection.calls.get(4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidChannelName() {
+        new PostgreSQLQueueWakeupChannel(createUnusedDataSource()).setChannelName("copper; DROP TABLE COP_WAIT");
+    }
+
+    private static DataSource createUnusedDataSource() {
+        return (DataSource) Proxy.newProxyInstance(PostgreSQLQueueWakeupChannelTest.class.getClassLoader(), new Class<?>[] { DataSource.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                throw new AssertionError("must use the caller's connection, not the data source");
+            }
+        });
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.persistent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PrefetchControllerTest {
+
+    @Test
+    public void testTargetBacklog() throws Exception {
+        PrefetchController controller = new PrefetchController(100);
+        long now = System.nanoTime();
+
+        // idle pool keeps the minimum
+        now += TimeUnit.SECONDS.toNanos(1);
+        assertEquals(100, controller.update(now, 100, 6000));
+
+        // 10000 per second with a dequeue latency of 50 msec requires about 1000 instances in memory
+        for (int i = 0; i < 20; i++) {
+            controller.dequeued(100, 100, TimeUnit.MILLISECONDS.toNanos(50));
+            for (int j = 0; j < 1000; j++) {
+                controller.processed();
+            }
+            now += TimeUnit.MILLISECONDS.toNanos(100);
+            controller.update(now, 100, 6000);
+        }
+        assertEquals(10000.0, controller.getProcessedPerSecond(), 100.0);
+        assertEquals(50.0, controller.getDequeueLatencyMSec(), 1.0);
+        int target = controller.getTargetBacklog();
+        assertTrue(target > 950 && target < 1050);
+        assertEquals(target - target / 4, controller.getRefillLevel());
+
+        // a dequeue blocking on an empty queue is no latency sample
+        controller.dequeued(100, 0, TimeUnit.SECONDS.toNanos(5));
+        assertEquals(50.0, controller.getDequeueLatencyMSec(), 1.0);
+
+        // the maximum applies
+        assertEquals(500, controller.update(now, 100, 500));
+    }
+
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.persistent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.copperengine.core.Acknowledge;
+import org.copperengine.core.Interrupt;
+import org.copperengine.core.Response;
+import org.copperengine.core.Workflow;
+import org.copperengine.core.batcher.BatchCommand;
+import org.copperengine.core.batcher.BatchExecutorBase;
+import org.copperengine.core.batcher.CommandCallback;
+import org.copperengine.core.instrument.Transformed;
+import org.copperengine.core.persistent.txn.DatabaseTransaction;
+import org.copperengine.core.persistent.txn.Transaction;
+import org.copperengine.core.persistent.txn.TransactionController;
+import org.junit.Test;
+
+public class ScottyDBStorageTest {
+
+    @Transformed
+    static class TestWorkflow extends Workflow<Void> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void main() throws Interrupt {
+        }
+    }
+
+    static class RecordingWakeupChannel implements QueueWakeupChannel {
+        final List<Connection> transactional = new ArrayList<Connection>();
+        int published;
+
+        @Override
+        public void startup(Listener listener) {
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public synchronized void publish() {
+            published++;
+        }
+
+        @Override
+        public synchronized void publish(Connection con) {
+            transactional.add(con);
+        }
+    }
+
+    /**
+     * In-memory stand-in for the dialect's queue, <code>dequeue</code> returns everything inserted before it was called.
+     */
+    static class QueueDialect implements InvocationHandler {
+        final List<Workflow<?>> queue = new ArrayList<Workflow<?>>();
+        volatile Runnable onDequeue;
+
+        @Override
+        public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("insert") && args[0] instanceof Workflow) {
+                queue.add((Workflow<?>) args[0]);
+            } else if (method.getName().equals("insert")) {
+                @SuppressWarnings("unchecked")
+                List<Workflow<?>> wfs = (List<Workflow<?>>) args[0];
+                queue.addAll(wfs);
+            } else if (method.getName().equals("dequeue")) {
+                List<Workflow<?>> ret = new ArrayList<Workflow<?>>(queue);
+                queue.clear();
+                // runs after the query saw the queue, i.e. anything enqueued here is missed by this dequeue
+                Runnable r = onDequeue;
+                onDequeue = null;
+                if (r != null) {
+                    r.run();
+                }
+                return ret;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Records the queue state updates, the first full and the first incremental update containing a correlation id
+     * enqueue <code>max</code> workflow instances. Notify commands complete without touching the database.
+     */
+    static class QueueStateDialect implements InvocationHandler {
+        final BlockingQueue<String> updates = new LinkedBlockingQueue<String>();
+        boolean fullUpdateSaturated;
+        boolean incrementalUpdateSaturated;
+
+        @Override
+        public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("updateQueueState") && args.length == 2) {
+                updates.add("full");
+                if (!fullUpdateSaturated) {
+                    fullUpdateSaturated = true;
+                    return args[0];
+                }
+            } else if (method.getName().equals("updateQueueState")) {
+                @SuppressWarnings("unchecked")
+                Collection<String> cids = (Collection<String>) args[0];
+                updates.add("incremental " + new TreeSet<String>(cids));
+                if (!cids.isEmpty() && !incrementalUpdateSaturated) {
+                    incrementalUpdateSaturated = true;
+                    return args[1];
+                }
+            } else if (method.getName().equals("createBatchCommand4Notify")) {
+                return createBatchCommand((Acknowledge) args[1]);
+            }
+            return method.getReturnType() == int.class ? Integer.valueOf(0) : method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+        }
+    }
+
+    private static BatchCommand<?, ?> createBatchCommand(final Acknowledge ack) {
+        final ClassLoader cl = ScottyDBStorageTest.class.getClassLoader();
+        final Object executor = Proxy.newProxyInstance(cl, new Class<?>[] { BatchExecutorBase.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                return null;
+            }
+        });
+        final Object callback = Proxy.newProxyInstance(cl, new Class<?>[] { CommandCallback.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("commandCompleted")) {
+                    ack.onSuccess();
+                } else {
+                    ack.onException((Exception) args[0]);
+                }
+                return null;
+            }
+        });
+        return (BatchCommand<?, ?>) Proxy.newProxyInstance(cl, new Class<?>[] { BatchCommand.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                return method.getName().equals("executor") ? executor : method.getName().equals("callback") ? callback : null;
+            }
+        });
+    }
+
+    private static ScottyDBStorage createStorage(InvocationHandler dialect, QueueWakeupChannel channel) {
+        ScottyDBStorage storage = new ScottyDBStorage();
+        storage.setDialect((DatabaseDialect) Proxy.newProxyInstance(ScottyDBStorageTest.class.getClassLoader(), new Class<?>[] { DatabaseDialect.class }, dialect));
+        storage.setTransactionController(new TransactionController() {
+            @Override
+            public <T> T run(DatabaseTransaction<T> txn) throws Exception {
+                return txn.run(createConnection());
+            }
+
+            @Override
+            public <T> T run(Transaction<T> txn) throws Exception {
+                return txn.run();
+            }
+        });
+        // long enough to fail the tests below when an enqueue is missed
+        storage.setWaitForEnqueueMSec(60000);
+        storage.setQueueWakeupChannel(channel);
+        return storage;
+    }
+
+    private static Connection createConnection() {
+        return (Connection) Proxy.newProxyInstance(ScottyDBStorageTest.class.getClassLoader(), new Class<?>[] { Connection.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testEnqueueWhileDequeueing() throws Exception {
+        final QueueDialect dialect = new QueueDialect();
+        final RecordingWakeupChannel channel = new RecordingWakeupChannel();
+        final ScottyDBStorage storage = createStorage(dialect, channel);
+        final Connection con = createConnection();
+        final AtomicInteger dequeueCalls = new AtomicInteger();
+        // the instance is enqueued after the dequeue read the enqueue generation, but before it waits
+        dialect.onDequeue = new Runnable() {
+            @Override
+            public void run() {
+                dequeueCalls.incrementAndGet();
+                dialect.onDequeue = new Runnable() {
+                    @Override
+                    public void run() {
+                        dequeueCalls.incrementAndGet();
+                    }
+                };
+                try {
+                    storage.insert(new TestWorkflow(), con);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        final long startTS = System.currentTimeMillis();
+        assertEquals(1, storage.dequeue("P#DEFAULT", 10).size());
+        assertTrue(System.currentTimeMillis() - startTS < 10000);
+
+        // the first dequeue misses the instance, the second one must not wait for it
+        assertEquals(2, dequeueCalls.get());
+        assertEquals(1, channel.transactional.size());
+        assertSame(con, channel.transactional.get(0));
+        assertEquals(0, channel.published);
+    }
+
+    @Test
+    public void testWaitForEnqueue() throws Exception {
+        final QueueDialect dialect = new QueueDialect();
+        final RecordingWakeupChannel channel = new RecordingWakeupChannel();
+        final ScottyDBStorage storage = createStorage(dialect, channel);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<Workflow<?>>> dequeued = executor.submit(() -> storage.dequeue("P#DEFAULT", 10));
+            Thread.sleep(200);
+            assertFalse(dequeued.isDone());
+
+            List<Workflow<?>> wfs = new ArrayList<Workflow<?>>();
+            wfs.add(new TestWorkflow());
+            wfs.add(new TestWorkflow());
+            storage.insert(wfs, createConnection());
+            assertEquals(wfs, dequeued.get(10, TimeUnit.SECONDS));
+            assertEquals(1, channel.transactional.size());
+            assertEquals(0, channel.published);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testQueueStateUpdateStoppedAtMax() throws Exception {
+        final QueueStateDialect dialect = new QueueStateDialect();
+        final ScottyDBStorage storage = createStorage(dialect, new RecordingWakeupChannel());
+        storage.setIncrementalQueueStateUpdate(true);
+        storage.startup();
+        try {
+            // the full update is repeated until it enqueues less than max
+            assertEquals("full", dialect.updates.poll(10, TimeUnit.SECONDS));
+            assertEquals("full", dialect.updates.poll(10, TimeUnit.SECONDS));
+            assertEquals("incremental []", dialect.updates.poll(10, TimeUnit.SECONDS));
+
+            final Acknowledge.DefaultAcknowledge ack = new Acknowledge.DefaultAcknowledge();
+            final Response<String> response = new Response<String>("c1", "r1", null);
+            response.setResponseId("response1");
+            storage.notify(response, ack);
+            ack.waitForAcknowledge();
+            String update;
+            do {
+                update = dialect.updates.poll(10, TimeUnit.SECONDS);
+            } while ("incremental []".equals(update));
+            assertEquals("incremental [c1]", update);
+            // the incremental update stopped at max, so c1 is checked again
+            assertEquals("incremental [c1]", dialect.updates.poll(10, TimeUnit.SECONDS));
+        } finally {
+            storage.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.persistent.lock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.copperengine.core.PersistentProcessingEngine;
+import org.copperengine.core.batcher.BatchCommand;
+import org.copperengine.core.batcher.BatchExecutor;
+import org.copperengine.core.batcher.Batcher;
+import org.copperengine.core.persistent.txn.DatabaseTransaction;
+import org.copperengine.core.persistent.txn.Transaction;
+import org.copperengine.core.persistent.txn.TransactionController;
+import org.junit.Test;
+
+public class WriteBehindPersistentLockManagerTest {
+
+    /**
+     * Queues the submitted commands, the test executes them.
+     */
+    static class QueueBatcher implements Batcher {
+        final BlockingQueue<BatchCommand<?, ?>> commands = new LinkedBlockingQueue<BatchCommand<?, ?>>();
+
+        @Override
+        public <E extends BatchExecutor<E, T>, T extends BatchCommand<E, T>> void submitBatchCommand(BatchCommand<E, T> cmd) {
+            commands.add(cmd);
+        }
+    }
+
+    /**
+     * Records the executed statements, <code>executeBatch</code> fails as long as <code>failing</code> is set.
+     */
+    static class TestDatabase implements InvocationHandler {
+        final List<String> executed = new ArrayList<String>();
+        volatile boolean failing;
+
+        Connection create() {
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (!method.getName().equals("prepareStatement"))
+                return null;
+            final String sql = (String) args[0];
+            return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+                int batched;
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getName().equals("addBatch")) {
+                        batched++;
+                    } else if (method.getName().equals("executeBatch")) {
+                        if (failing)
+                            throw new SQLException("TEST");
+                        synchronized (executed) {
+                            executed.add(sql.substring(0, 6) + " " + batched);
+                        }
+                        return new int[batched];
+                    } else if (method.getName().equals("executeQuery")) {
+                        return emptyResultSet();
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    private static ResultSet emptyResultSet() {
+        return (ResultSet) Proxy.newProxyInstance(WriteBehindPersistentLockManagerTest.class.getClassLoader(), new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+            }
+        });
+    }
+
+    private static PersistentProcessingEngine createEngine() {
+        return (PersistentProcessingEngine) Proxy.newProxyInstance(WriteBehindPersistentLockManagerTest.class.getClassLoader(), new Class<?>[] { PersistentProcessingEngine.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("createUUID"))
+                    return UUID.randomUUID().toString();
+                return null;
+            }
+        });
+    }
+
+    private static WriteBehindPersistentLockManager createLockManager(final TestDatabase db, QueueBatcher batcher) {
+        WriteBehindPersistentLockManager lockManager = new WriteBehindPersistentLockManager(createEngine(), new TransactionController() {
+            @Override
+            public <T> T run(DatabaseTransaction<T> txn) throws Exception {
+                return txn.run(db.create());
+            }
+
+            @Override
+            public <T> T run(Transaction<T> txn) throws Exception {
+                return txn.run();
+            }
+        }, batcher);
+        lockManager.setRetryDelayMSec(10);
+        lockManager.startup();
+        return lockManager;
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static void execute(BatchCommand cmd, Connection con) {
+        try {
+            ((BatchExecutor) cmd.executor()).doExec(Collections.singletonList(cmd), con);
+        } catch (Exception e) {
+            cmd.callback().unhandledException(e);
+            return;
+        }
+        cmd.callback().commandCompleted();
+    }
+
+    @Test
+    public void testRetryFailedWrite() throws Exception {
+        final TestDatabase db = new TestDatabase();
+        final QueueBatcher batcher = new QueueBatcher();
+        final WriteBehindPersistentLockManager lockManager = createLockManager(db, batcher);
+        try {
+            assertNull(lockManager.acquireLock("L1", "wf1"));
+            db.failing = true;
+            execute(batcher.commands.take(), db.create());
+            // resubmitted after the retry delay, failing again
+            BatchCommand<?, ?> retry = batcher.commands.poll(5, TimeUnit.SECONDS);
+            assertNotNull(retry);
+            execute(retry, db.create());
+            assertEquals(0, db.executed.size());
+
+            retry = batcher.commands.poll(5, TimeUnit.SECONDS);
+            assertNotNull(retry);
+            db.failing = false;
+            execute(retry, db.create());
+            assertEquals(1, db.executed.size());
+            assertEquals("INSERT 1", db.executed.get(0));
+            assertNull(batcher.commands.poll(100, TimeUnit.MILLISECONDS));
+        } finally {
+            lockManager.shutdown();
+        }
+    }
+
+    @Test
+    public void testNoRetryAfterShutdown() throws Exception {
+        final TestDatabase db = new TestDatabase();
+        final QueueBatcher batcher = new QueueBatcher();
+        final WriteBehindPersistentLockManager lockManager = createLockManager(db, batcher);
+        assertNull(lockManager.acquireLock("L1", "wf1"));
+        lockManager.shutdown();
+        db.failing = true;
+        execute(batcher.commands.take(), db.create());
+        assertNull(batcher.commands.poll(100, TimeUnit.MILLISECONDS));
+
+        // not in flight any more, the next change is written again
+        lockManager.releaseLock("L1", "wf1");
+        assertNotNull(batcher.commands.poll(5, TimeUnit.SECONDS));
+    }
+
+}
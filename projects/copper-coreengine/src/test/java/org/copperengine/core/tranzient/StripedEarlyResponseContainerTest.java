@@ -0,0 +1,99 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.core.tranzient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.copperengine.core.Response;
+import org.junit.Test;
+
+public class StripedEarlyResponseContainerTest {
+
+    @Test
+    public void testPutGet() {
+        StripedEarlyResponseContainer container = new StripedEarlyResponseContainer(3);
+        assertEquals(4, container.getNumberOfStripes());
+        container.put(new Response<String>("cid1", "a", null));
+        container.put(new Response<String>("cid1", "b", null));
+        container.put(new Response<String>("cid2", "c", null));
+        assertEquals(3, container.size());
+
+        List<Response<?>> responses = container.get("cid1");
+        assertEquals(2, responses.size());
+        assertEquals("a", responses.get(0).getResponse());
+        assertEquals("b", responses.get(1).getResponse());
+        assertTrue(container.get("cid1").isEmpty());
+        assertEquals(1, container.size());
+        assertEquals(1L, container.getHits());
+        assertEquals(1L, container.getMisses());
+    }
+
+    @Test
+    public void testOverflow() {
+        StripedEarlyResponseContainer container = new StripedEarlyResponseContainer(1);
+        container.setMaxResponses(10);
+        for (int i = 0; i < 15; i++) {
+            container.put(new Response<String>("cid" + i, "data", null));
+        }
+        assertEquals(10, container.size());
+        assertEquals(5L, container.getOverflows());
+        // the eldest responses are evicted
+        assertTrue(container.get("cid0").isEmpty());
+        assertEquals(1, container.get("cid14").size());
+
+        container.setMaxWeight(1000);
+        container.put(new Response<String>("large", new String(new char[1000]), null));
+        assertTrue(container.get("large").isEmpty());
+        assertEquals(6L, container.getOverflows());
+        container.put(new Response<String>("small", "data", null));
+        assertTrue(container.getWeight() <= 1000);
+        assertEquals(1, container.get("small").size());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        StripedEarlyResponseContainer container = new StripedEarlyResponseContainer(2);
+        container.setCheckInterval(10);
+        container.put(new Response<String>("cid1", "a", null, false, null, 20L, null));
+        container.put(new Response<String>("cid2", "b", null, false, null, 20L, null));
+        container.put(new Response<String>("cid3", "c", null));
+        Thread.sleep(50);
+        // expired responses are not returned, even if housekeeping did not remove them yet
+        assertTrue(container.get("cid1").isEmpty());
+        container.startup();
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (container.size() > 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, container.size());
+            assertEquals(2L, container.getExpirations());
+            assertEquals(1, container.get("cid3").size());
+        } finally {
+            container.shutdown();
+        }
+    }
+
+    @Test
+    public void testShutdownWithoutStartup() {
+        StripedEarlyResponseContainer container = new StripedEarlyResponseContainer(2);
+        container.shutdown();
+        container.shutdown();
+    }
+}
@@ -16,7 +16,11 @@
 package org.copperengine.core.tranzient;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+import org.copperengine.core.Response;
 import org.junit.Test;
 
 public class TransientScottyEngineTest {
@@ -38,4 +42,43 @@ public class TransientScottyEngineTest {
         }
     }
 
+    @Test
+    public void testNotifyBatchWithFailingResponse() throws Exception {
+        TransientEngineFactory factory = new TransientEngineFactory() {
+            @Override
+            protected File getWorkflowSourceDirectory() {
+                return new File("./src/test/workflow");
+            }
+        };
+        TransientScottyEngine engine = factory.create();
+        try {
+            final List<String> delivered = new ArrayList<String>();
+            engine.setEarlyResponseContainer(new EarlyResponseContainer() {
+                @Override
+                public void put(Response<?> response) {
+                    if ("bad".equals(response.getCorrelationId()))
+                        throw new RuntimeException("TEST");
+                    delivered.add(response.getCorrelationId());
+                }
+
+                @Override
+                public List<Response<?>> get(String correlationId) {
+                    return new ArrayList<Response<?>>();
+                }
+
+                @Override
+                public void startup() {
+                }
+
+                @Override
+                public void shutdown() {
+                }
+            });
+            engine.notify(Arrays.<Response<?>>asList(new Response<String>("good1"), new Response<String>("bad"), new Response<String>("good2")));
+            org.junit.Assert.assertEquals(Arrays.asList("good1", "good2"), delivered);
+        } finally {
+            engine.shutdown();
+        }
+    }
+
 }
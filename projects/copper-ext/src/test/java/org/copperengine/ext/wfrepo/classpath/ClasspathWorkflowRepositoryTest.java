@@ -17,13 +17,17 @@
 package org.copperengine.ext.wfrepo.classpath;
 
 import java.io.File;
+import java.nio.file.Files;
 import java.util.Collections;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import org.copperengine.core.Workflow;
 import org.copperengine.core.common.WorkflowRepository;
 import org.copperengine.core.tranzient.TransientEngineFactory;
 import org.copperengine.core.tranzient.TransientScottyEngine;
+import org.copperengine.core.util.FileUtil;
+import org.copperengine.core.wfrepo.InstrumentationCache;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -65,4 +69,41 @@ public class ClasspathWorkflowRepositoryTest {
             wfRepo.shutdown();
         }
     }
+
+    @Test
+    public void testInstrumentationCache() throws Exception {
+        assumeTrue(System.getProperty("jdk.module.path", "").isBlank());
+        final File cacheDir = Files.createTempDirectory("cpwfrepo-cache").toFile();
+        try {
+            final InstrumentationCache cache = new InstrumentationCache(cacheDir);
+            final long instrumented = startWithCache(cache);
+            Assert.assertTrue(instrumented > 0);
+            Assert.assertEquals(0L, cache.getHits());
+
+            // a restarted repository takes all instrumented classes from memory
+            Assert.assertEquals(0L, startWithCache(cache));
+            Assert.assertEquals(instrumented, cache.getHits());
+
+            // as does a repository in a restarted JVM from the cache directory
+            final InstrumentationCache restartedCache = new InstrumentationCache(cacheDir);
+            Assert.assertEquals(0L, startWithCache(restartedCache));
+            Assert.assertEquals(instrumented, restartedCache.getHits());
+        } finally {
+            FileUtil.deleteDirectory(cacheDir);
+        }
+    }
+
+    private static long startWithCache(InstrumentationCache cache) throws Exception {
+        final ClasspathWorkflowRepository wfRepo = new ClasspathWorkflowRepository(TESTWORKFLOWS_PACKAGE);
+        wfRepo.setInstrumentationCache(cache);
+        final long misses = cache.getMisses();
+        wfRepo.start();
+        try {
+            final Workflow<Object> wf = wfRepo.<Object> createWorkflowFactory("org.copperengine.ext.wfrepo.classpath.testworkflows.TestWorkflowThree").newInstance();
+            Assert.assertNotNull(wfRepo.getClassInfo(wf.getClass()));
+            return cache.getMisses() - misses;
+        } finally {
+            wfRepo.shutdown();
+        }
+    }
 }
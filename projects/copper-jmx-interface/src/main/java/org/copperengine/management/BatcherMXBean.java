@@ -15,6 +15,11 @@
  */
 package org.copperengine.management;
 
+import java.util.Collections;
+import java.util.List;
+
+import org.copperengine.management.model.BatchExecutorInfo;
+
 public interface BatcherMXBean {
 
     public String getDescription();
@@ -23,4 +28,64 @@ public interface BatcherMXBean {
 
     public void setNumThreads(int numThreads);
 
+    /**
+     * @return the number of commands waiting to be executed, or -1 if unknown
+     */
+    public default int getQueueSize() {
+        return -1;
+    }
+
+    /**
+     * @return true, if batch sizes, linger times and the number of threads are adjusted at runtime to meet the target
+     *         latency
+     */
+    public default boolean isAdaptive() {
+        return false;
+    }
+
+    public default void setAdaptive(boolean adaptive) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return the latency in milliseconds from submitting a command until its batch is executed, that the adaptive
+     *         batching aims for, or -1 if unknown
+     */
+    public default long getTargetLatencyMSec() {
+        return -1;
+    }
+
+    public default void setTargetLatencyMSec(long targetLatencyMSec) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return the minimum number of threads when batching adaptively, or -1 if unknown
+     */
+    public default int getMinThreads() {
+        return -1;
+    }
+
+    public default void setMinThreads(int minThreads) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return the maximum number of threads when batching adaptively, or -1 if unknown
+     */
+    public default int getMaxThreads() {
+        return -1;
+    }
+
+    public default void setMaxThreads(int maxThreads) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return the batching statistics and current batching parameters of each batch executor
+     */
+    public default List<BatchExecutorInfo> getBatchExecutorInfos() {
+        return Collections.emptyList();
+    }
+
 }
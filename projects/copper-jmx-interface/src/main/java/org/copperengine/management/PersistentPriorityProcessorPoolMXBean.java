@@ -37,6 +37,47 @@ public interface PersistentPriorityProcessorPoolMXBean extends ProcessorPoolMXBe
 
     public void setDequeueBulkSize(int dequeueBulkSize);
 
+    public default void setAdaptivePrefetch(boolean adaptivePrefetch) {
+        throw new UnsupportedOperationException();
+    }
+
+    public default boolean isAdaptivePrefetch() {
+        return false;
+    }
+
+    public default void setMinPrefetch(int minPrefetch) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return the minimum number of workflow instances dequeued at once when prefetching adaptively, or -1 if unknown
+     */
+    public default int getMinPrefetch() {
+        return -1;
+    }
+
+    /**
+     * @return the number of workflow instances the pool aims to hold in memory, derived from the processing rate and
+     *         the dequeue latency, or -1 if unknown. Compare with {@link #getMemoryQueueSize()} for the actual backlog.
+     */
+    public default int getTargetBacklog() {
+        return -1;
+    }
+
+    /**
+     * @return the smoothed number of workflow instances taken from the memory queue per second, or -1 if unknown
+     */
+    public default double getProcessingRate() {
+        return -1.0;
+    }
+
+    /**
+     * @return the smoothed latency of a dequeue from the storage in milliseconds, or -1 if unknown
+     */
+    public default double getDequeueLatencyMSec() {
+        return -1.0;
+    }
+
     /**
      * Suspends dequeuing of workflow instances from the storage.
      * Workflow instances that already reside in the transient queue are still processed, i.e.
@@ -93,4 +93,11 @@ public interface ProcessingEngineMXBean {
     public long getRunningCount();
     public long getFinishedCount();
     public long getWaitingCount();
+
+    /**
+     * @return the number of responses passed to this engine's notify methods since startup, or -1 if unknown
+     */
+    public default long getNotificationCount() {
+        return -1;
+    }
 }
\ No newline at end of file
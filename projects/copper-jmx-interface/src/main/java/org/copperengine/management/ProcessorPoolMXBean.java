@@ -34,6 +34,14 @@ public interface ProcessorPoolMXBean {
 
     public int getQueueSize();
 
+    /**
+     * @return the number of workflow instances taken from the memory queue by the processor threads of this pool since
+     *         startup, or -1 if unknown
+     */
+    public default long getProcessedCount() {
+        return -1;
+    }
+
     /**
      * Suspend processing of workflows.
      */
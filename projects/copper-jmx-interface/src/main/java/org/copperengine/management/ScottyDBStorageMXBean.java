@@ -19,4 +19,35 @@ public interface ScottyDBStorageMXBean extends DBStorageMXBean {
     public BatcherMXBean getBatcherMXBean();
 
     public DatabaseDialectMXBean getDatabaseDialectMXBean();
+
+    /**
+     * @return the number of responses in the cache of early responses, or -1 if unknown
+     */
+    public default int getEarlyResponseCacheSize() {
+        return -1;
+    }
+
+    /**
+     * @return the number of correlation ids found in the cache of early responses when registering a wait call, or -1
+     *         if unknown
+     */
+    public default long getEarlyResponseCacheHits() {
+        return -1;
+    }
+
+    /**
+     * @return the number of correlation ids not found in the cache of early responses when registering a wait call, or
+     *         -1 if unknown
+     */
+    public default long getEarlyResponseCacheMisses() {
+        return -1;
+    }
+
+    /**
+     * @return the number of responses removed from the cache of early responses because it was full, or -1 if
+     *         unknown
+     */
+    public default long getEarlyResponseCacheEvictions() {
+        return -1;
+    }
 }
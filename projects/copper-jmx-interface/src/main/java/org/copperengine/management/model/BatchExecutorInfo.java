@@ -0,0 +1,128 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.management.model;
+
+import java.beans.ConstructorProperties;
+import java.io.Serializable;
+
+/**
+ * Batching statistics and the current batching parameters of one batch executor.
+ */
+public class BatchExecutorInfo implements Serializable {
+
+    private static final long serialVersionUID = 4378195346570147352L;
+
+    private String id;
+    private int preferredBatchSize;
+    private int maximumBatchSize;
+    private long lingerMSec;
+    private double averageBatchSize;
+    private double averageWaitMSec;
+    private double averageExecutionMSec;
+    private double commandsPerSecond;
+
+    public BatchExecutorInfo() {
+    }
+
+    @ConstructorProperties({ "id", "preferredBatchSize", "maximumBatchSize", "lingerMSec", "averageBatchSize", "averageWaitMSec", "averageExecutionMSec", "commandsPerSecond" })
+    public BatchExecutorInfo(String id, int preferredBatchSize, int maximumBatchSize, long lingerMSec, double averageBatchSize, double averageWaitMSec, double averageExecutionMSec, double commandsPerSecond) {
+        this.id = id;
+        this.preferredBatchSize = preferredBatchSize;
+        this.maximumBatchSize = maximumBatchSize;
+        this.lingerMSec = lingerMSec;
+        this.averageBatchSize = averageBatchSize;
+        this.averageWaitMSec = averageWaitMSec;
+        this.averageExecutionMSec = averageExecutionMSec;
+        this.commandsPerSecond = commandsPerSecond;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    /**
+     * @return the number of commands that triggers the execution of a batch
+     */
+    public int getPreferredBatchSize() {
+        return preferredBatchSize;
+    }
+
+    public void setPreferredBatchSize(int preferredBatchSize) {
+        this.preferredBatchSize = preferredBatchSize;
+    }
+
+    public int getMaximumBatchSize() {
+        return maximumBatchSize;
+    }
+
+    public void setMaximumBatchSize(int maximumBatchSize) {
+        this.maximumBatchSize = maximumBatchSize;
+    }
+
+    /**
+     * @return the maximum time a command waits for further commands before its batch is executed, -1 if only the
+     *         target time of the commands applies
+     */
+    public long getLingerMSec() {
+        return lingerMSec;
+    }
+
+    public void setLingerMSec(long lingerMSec) {
+        this.lingerMSec = lingerMSec;
+    }
+
+    public double getAverageBatchSize() {
+        return averageBatchSize;
+    }
+
+    public void setAverageBatchSize(double averageBatchSize) {
+        this.averageBatchSize = averageBatchSize;
+    }
+
+    public double getAverageWaitMSec() {
+        return averageWaitMSec;
+    }
+
+    public void setAverageWaitMSec(double averageWaitMSec) {
+        this.averageWaitMSec = averageWaitMSec;
+    }
+
+    public double getAverageExecutionMSec() {
+        return averageExecutionMSec;
+    }
+
+    public void setAverageExecutionMSec(double averageExecutionMSec) {
+        this.averageExecutionMSec = averageExecutionMSec;
+    }
+
+    public double getCommandsPerSecond() {
+        return commandsPerSecond;
+    }
+
+    public void setCommandsPerSecond(double commandsPerSecond) {
+        this.commandsPerSecond = commandsPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchExecutorInfo [id=" + id + ", preferredBatchSize=" + preferredBatchSize + ", maximumBatchSize=" + maximumBatchSize + ", lingerMSec=" + lingerMSec + ", averageBatchSize=" + averageBatchSize + ", averageWaitMSec=" + averageWaitMSec + ", averageExecutionMSec=" + averageExecutionMSec + ", commandsPerSecond=" + commandsPerSecond + "]";
+    }
+
+}
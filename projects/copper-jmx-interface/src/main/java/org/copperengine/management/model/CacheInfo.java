@@ -0,0 +1,140 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.management.model;
+
+import java.beans.ConstructorProperties;
+import java.io.Serializable;
+
+/**
+ * Size, memory footprint and hit statistics of a cache.
+ */
+public class CacheInfo implements Serializable {
+
+    private static final long serialVersionUID = 6140285419761402217L;
+
+    private String name;
+    private int size;
+    private long weight;
+    private long maxWeight;
+    private long numberOfReads;
+    private long numberOfCacheHits;
+    private long numberOfCacheMisses;
+    private long numberOfEvictions;
+    private long numberOfRejections;
+
+    public CacheInfo() {
+    }
+
+    @ConstructorProperties({ "name", "size", "weight", "maxWeight", "numberOfReads", "numberOfCacheHits", "numberOfCacheMisses", "numberOfEvictions", "numberOfRejections" })
+    public CacheInfo(String name, int size, long weight, long maxWeight, long numberOfReads, long numberOfCacheHits, long numberOfCacheMisses, long numberOfEvictions, long numberOfRejections) {
+        this.name = name;
+        this.size = size;
+        this.weight = weight;
+        this.maxWeight = maxWeight;
+        this.numberOfReads = numberOfReads;
+        this.numberOfCacheHits = numberOfCacheHits;
+        this.numberOfCacheMisses = numberOfCacheMisses;
+        this.numberOfEvictions = numberOfEvictions;
+        this.numberOfRejections = numberOfRejections;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the number of cached entries
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    /**
+     * @return the estimated memory footprint of the cached entries in bytes
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    public void setWeight(long weight) {
+        this.weight = weight;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    public long getNumberOfReads() {
+        return numberOfReads;
+    }
+
+    public void setNumberOfReads(long numberOfReads) {
+        this.numberOfReads = numberOfReads;
+    }
+
+    public long getNumberOfCacheHits() {
+        return numberOfCacheHits;
+    }
+
+    public void setNumberOfCacheHits(long numberOfCacheHits) {
+        this.numberOfCacheHits = numberOfCacheHits;
+    }
+
+    public long getNumberOfCacheMisses() {
+        return numberOfCacheMisses;
+    }
+
+    public void setNumberOfCacheMisses(long numberOfCacheMisses) {
+        this.numberOfCacheMisses = numberOfCacheMisses;
+    }
+
+    public long getNumberOfEvictions() {
+        return numberOfEvictions;
+    }
+
+    public void setNumberOfEvictions(long numberOfEvictions) {
+        this.numberOfEvictions = numberOfEvictions;
+    }
+
+    /**
+     * @return the number of entries that were not cached because they exceed the memory budget on their own
+     */
+    public long getNumberOfRejections() {
+        return numberOfRejections;
+    }
+
+    public void setNumberOfRejections(long numberOfRejections) {
+        this.numberOfRejections = numberOfRejections;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheInfo [name=" + name + ", size=" + size + ", weight=" + weight + ", maxWeight=" + maxWeight + ", numberOfReads=" + numberOfReads + ", numberOfCacheHits=" + numberOfCacheHits + ", numberOfCacheMisses=" + numberOfCacheMisses + ", numberOfEvictions=" + numberOfEvictions + ", numberOfRejections=" + numberOfRejections + "]";
+    }
+
+}
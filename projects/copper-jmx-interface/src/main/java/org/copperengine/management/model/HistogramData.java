@@ -0,0 +1,115 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.management.model;
+
+import java.beans.ConstructorProperties;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Snapshot of a latency histogram. All values are in microseconds. <code>upperBounds[i]</code> is the inclusive upper
+ * bound of the bucket with <code>counts[i]</code> recorded values, only non-empty buckets are contained.
+ */
+public class HistogramData implements Serializable {
+
+    private static final long serialVersionUID = -6306514311409531706L;
+
+    private long count;
+    private long sum;
+    private long max;
+    private long[] upperBounds;
+    private long[] counts;
+
+    public HistogramData() {
+    }
+
+    @ConstructorProperties({ "count", "sum", "max", "upperBounds", "counts" })
+    public HistogramData(long count, long sum, long max, long[] upperBounds, long[] counts) {
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+        this.upperBounds = upperBounds;
+        this.counts = counts;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void setCount(long count) {
+        this.count = count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public void setSum(long sum) {
+        this.sum = sum;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public void setMax(long max) {
+        this.max = max;
+    }
+
+    public long[] getUpperBounds() {
+        return upperBounds;
+    }
+
+    public void setUpperBounds(long[] upperBounds) {
+        this.upperBounds = upperBounds;
+    }
+
+    public long[] getCounts() {
+        return counts;
+    }
+
+    public void setCounts(long[] counts) {
+        this.counts = counts;
+    }
+
+    /**
+     * @param percentile
+     *        the percentile, e.g. 99.0
+     * @return the upper bound of the bucket containing the given percentile, 0 if the histogram is empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0)
+            return 0;
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long cumulated = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulated += counts[i];
+            if (cumulated >= rank)
+                return Math.min(upperBounds[i], max);
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "HistogramData [count=" + count + ", sum=" + sum + ", max=" + max + ", upperBounds=" + Arrays.toString(upperBounds) + ", counts=" + Arrays.toString(counts) + "]";
+    }
+
+}
@@ -26,6 +26,12 @@ public class MeasurePointData implements Serializable {
     private long elementCount = 0L;
     private long elapsedTimeMicros = 0L;
     private long count = 0L;
+    private long p50Micros = 0L;
+    private long p99Micros = 0L;
+    private long p999Micros = 0L;
+    private long maxMicros = 0L;
+    private HistogramData histogram;
+    private HistogramData intervalHistogram;
 
     public MeasurePointData() {
     }
@@ -39,6 +45,17 @@ public class MeasurePointData implements Serializable {
         this.count = count;
     }
 
+    @ConstructorProperties({ "mpId", "elementCount", "elapsedTimeMicros", "count", "p50Micros", "p99Micros", "p999Micros", "maxMicros", "histogram", "intervalHistogram" })
+    public MeasurePointData(String mpId, long elementCount, long elapsedTimeMicros, long count, long p50Micros, long p99Micros, long p999Micros, long maxMicros, HistogramData histogram, HistogramData intervalHistogram) {
+        this(mpId, elementCount, elapsedTimeMicros, count);
+        this.p50Micros = p50Micros;
+        this.p99Micros = p99Micros;
+        this.p999Micros = p999Micros;
+        this.maxMicros = maxMicros;
+        this.histogram = histogram;
+        this.intervalHistogram = intervalHistogram;
+    }
+
     public String getMpId() {
         return mpId;
     }
@@ -71,4 +88,61 @@ public class MeasurePointData implements Serializable {
         this.count = count;
     }
 
+    /**
+     * @return the median of the elapsed times per execution since the last reset, 0 if not collected
+     */
+    public long getP50Micros() {
+        return p50Micros;
+    }
+
+    public void setP50Micros(long p50Micros) {
+        this.p50Micros = p50Micros;
+    }
+
+    public long getP99Micros() {
+        return p99Micros;
+    }
+
+    public void setP99Micros(long p99Micros) {
+        this.p99Micros = p99Micros;
+    }
+
+    public long getP999Micros() {
+        return p999Micros;
+    }
+
+    public void setP999Micros(long p999Micros) {
+        this.p999Micros = p999Micros;
+    }
+
+    public long getMaxMicros() {
+        return maxMicros;
+    }
+
+    public void setMaxMicros(long maxMicros) {
+        this.maxMicros = maxMicros;
+    }
+
+    /**
+     * @return the histogram of the elapsed times per execution since the last reset, null if not collected
+     */
+    public HistogramData getHistogram() {
+        return histogram;
+    }
+
+    public void setHistogram(HistogramData histogram) {
+        this.histogram = histogram;
+    }
+
+    /**
+     * @return the histogram of the elapsed times per execution of the last completed interval, null if not collected
+     */
+    public HistogramData getIntervalHistogram() {
+        return intervalHistogram;
+    }
+
+    public void setIntervalHistogram(HistogramData intervalHistogram) {
+        this.intervalHistogram = intervalHistogram;
+    }
+
 }
@@ -0,0 +1,8 @@
+module org.copperengine.metrics {
+    requires transitive org.copperengine.core;
+
+    requires jdk.httpserver;
+    requires org.slf4j;
+
+    exports org.copperengine.metrics;
+}
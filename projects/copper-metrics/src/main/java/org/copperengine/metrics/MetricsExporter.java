@@ -0,0 +1,462 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.copperengine.core.tranzient.TimeoutManager;
+import org.copperengine.management.BatcherMXBean;
+import org.copperengine.management.DBStorageMXBean;
+import org.copperengine.management.ProcessingEngineMXBean;
+import org.copperengine.management.ProcessorPoolMXBean;
+import org.copperengine.management.ScottyDBStorageMXBean;
+import org.copperengine.management.StatisticsCollectorMXBean;
+import org.copperengine.management.TicketPoolMXBean;
+import org.copperengine.management.model.BatchExecutorInfo;
+import org.copperengine.management.model.HistogramData;
+import org.copperengine.management.model.MeasurePointData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Publishes the runtime data of COPPER components as OpenMetrics text, e.g. to be scraped by Prometheus. Like the
+ * {@link org.copperengine.core.common.SimpleJmxExporter}, there is a setter for each kind of component - you don't
+ * have to set all of them, just the ones you are interested in. The name a component is added with is used as value
+ * of the label <code>name</code>.
+ * <p>
+ * {@link #startup()} starts an embedded HTTP server, that serves the metrics at {@link #setPath(String) path}. Without
+ * starting the server, the metrics can be written to an {@link OpenMetricsWriter} using {@link #collect}.
+ * <p>
+ * A scrape reads the getters of the components only, so it does not interfere with the engine, except for
+ * {@link ProcessorPoolMXBean#getQueueSize()}, which queries the database for persistent processor pools and is thus
+ * only called if {@link #setQueryQueueSize(boolean)} is enabled.
+ */
+public class MetricsExporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetricsExporter.class);
+
+    private static final String NAME = "name";
+    private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+    private static final String[] QUANTILE_LABELS = { "0.5", "0.99", "0.999" };
+
+    private Map<String, ProcessingEngineMXBean> processingEngineMXBeans = new LinkedHashMap<>();
+    private Map<String, ProcessorPoolMXBean> processorPoolMXBeans = new LinkedHashMap<>();
+    private Map<String, BatcherMXBean> batcherMXBeans = new LinkedHashMap<>();
+    private Map<String, DBStorageMXBean> dbStorageMXBeans = new LinkedHashMap<>();
+    private Map<String, TicketPoolMXBean> ticketPoolMXBeans = new LinkedHashMap<>();
+    private Map<String, StatisticsCollectorMXBean> statisticsCollectorMXBeans = new LinkedHashMap<>();
+    private Map<String, TimeoutManager> timeoutManagers = new LinkedHashMap<>();
+    private boolean queryQueueSize = false;
+
+    private String host = null;
+    private int port = 9404;
+    private String path = "/metrics";
+    private HttpServer server;
+    private ExecutorService executor;
+
+    // reused from scrape to scrape, guarded by scrapeLock
+    private final Object scrapeLock = new Object();
+    private final OpenMetricsWriter writer = new OpenMetricsWriter();
+    private final List<String> batchExecutorNames = new ArrayList<>();
+    private final List<BatchExecutorInfo> batchExecutorInfos = new ArrayList<>();
+    private final List<String> measurePointNames = new ArrayList<>();
+    private final List<MeasurePointData> measurePoints = new ArrayList<>();
+
+    public void addProcessingEngineMXBean(String name, ProcessingEngineMXBean processingEngineMXBean) {
+        processingEngineMXBeans.put(name, processingEngineMXBean);
+    }
+
+    public void setProcessingEngineMXBeans(Map<String, ProcessingEngineMXBean> processingEngineMXBeans) {
+        this.processingEngineMXBeans = processingEngineMXBeans;
+    }
+
+    public void addProcessorPoolMXBean(String name, ProcessorPoolMXBean processorPoolMXBean) {
+        processorPoolMXBeans.put(name, processorPoolMXBean);
+    }
+
+    public void setProcessorPoolMXBeans(Map<String, ProcessorPoolMXBean> processorPoolMXBeans) {
+        this.processorPoolMXBeans = processorPoolMXBeans;
+    }
+
+    public void addBatcherMXBean(String name, BatcherMXBean batcherMXBean) {
+        batcherMXBeans.put(name, batcherMXBean);
+    }
+
+    public void setBatcherMXBeans(Map<String, BatcherMXBean> batcherMXBeans) {
+        this.batcherMXBeans = batcherMXBeans;
+    }
+
+    public void addDBStorageMXBean(String name, DBStorageMXBean dbStorageMXBean) {
+        dbStorageMXBeans.put(name, dbStorageMXBean);
+    }
+
+    public void setDBStorageMXBeans(Map<String, DBStorageMXBean> dbStorageMXBeans) {
+        this.dbStorageMXBeans = dbStorageMXBeans;
+    }
+
+    public void addTicketPoolMXBean(String name, TicketPoolMXBean ticketPoolMXBean) {
+        ticketPoolMXBeans.put(name, ticketPoolMXBean);
+    }
+
+    public void setTicketPoolMXBeans(Map<String, TicketPoolMXBean> ticketPoolMXBeans) {
+        this.ticketPoolMXBeans = ticketPoolMXBeans;
+    }
+
+    public void addStatisticsCollectorMXBean(String name, StatisticsCollectorMXBean statisticsCollectorMXBean) {
+        statisticsCollectorMXBeans.put(name, statisticsCollectorMXBean);
+    }
+
+    public void setStatisticsCollectorMXBeans(Map<String, StatisticsCollectorMXBean> statisticsCollectorMXBeans) {
+        this.statisticsCollectorMXBeans = statisticsCollectorMXBeans;
+    }
+
+    public void addTimeoutManager(String name, TimeoutManager timeoutManager) {
+        timeoutManagers.put(name, timeoutManager);
+    }
+
+    public void setTimeoutManagers(Map<String, TimeoutManager> timeoutManagers) {
+        this.timeoutManagers = timeoutManagers;
+    }
+
+    /**
+     * If true, {@link ProcessorPoolMXBean#getQueueSize()} is published, which is a database query for persistent
+     * processor pools. Default is false.
+     */
+    public void setQueryQueueSize(boolean queryQueueSize) {
+        this.queryQueueSize = queryQueueSize;
+    }
+
+    /**
+     * Sets the host or address the HTTP server binds to. Default is null, i.e. all local addresses.
+     */
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    /**
+     * Sets the port of the HTTP server. 0 means an ephemeral port, see {@link #getPort()}. Default is 9404.
+     */
+    public void setPort(int port) {
+        if (port < 0 || port > 65535)
+            throw new IllegalArgumentException();
+        this.port = port;
+    }
+
+    /**
+     * @return the port the HTTP server is bound to once it is started, otherwise the configured port
+     */
+    public synchronized int getPort() {
+        return server != null ? server.getAddress().getPort() : port;
+    }
+
+    public void setPath(String path) {
+        if (path == null)
+            throw new NullPointerException();
+        if (!path.startsWith("/"))
+            throw new IllegalArgumentException("path must start with '/'");
+        this.path = path;
+    }
+
+    public synchronized void startup() throws IOException {
+        if (server != null)
+            throw new IllegalStateException("already started");
+        final InetSocketAddress address = host == null ? new InetSocketAddress(port) : new InetSocketAddress(host, port);
+        server = HttpServer.create(address, 0);
+        server.createContext(path, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        executor = Executors.newSingleThreadExecutor(r -> {
+            final Thread t = new Thread(r, "copper.MetricsExporter");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.start();
+        logger.info("serving metrics at http://{}:{}{}", host == null ? "*" : host, getPort(), path);
+    }
+
+    public synchronized void shutdown() {
+        if (server == null)
+            return;
+        server.stop(0);
+        executor.shutdown();
+        server = null;
+        executor = null;
+    }
+
+    /**
+     * Writes the current values of all metrics.
+     *
+     * @param w
+     *        the writer
+     */
+    public void collect(OpenMetricsWriter w) {
+        synchronized (scrapeLock) {
+            collectEngines(w);
+            collectProcessorPools(w);
+            collectBatchers(w);
+            collectDBStorages(w);
+            collectTicketPools(w);
+            collectTimeoutManagers(w);
+            collectStatistics(w);
+            batchExecutorInfos.clear();
+            measurePoints.clear();
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            final byte[] bytes;
+            final int length;
+            synchronized (scrapeLock) {
+                writer.reset();
+                collect(writer);
+                writer.eof();
+                length = writer.encode();
+                bytes = writer.getBytes();
+                exchange.getResponseHeaders().set("Content-Type", OpenMetricsWriter.CONTENT_TYPE);
+                if ("HEAD".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(200, -1);
+                } else {
+                    exchange.sendResponseHeaders(200, length);
+                    final OutputStream os = exchange.getResponseBody();
+                    os.write(bytes, 0, length);
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.error("scrape failed", e);
+            // too late for a 500 once the headers are sent, closing the exchange aborts the response then
+            if (exchange.getResponseCode() == -1) {
+                exchange.sendResponseHeaders(500, -1);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void collectEngines(OpenMetricsWriter w) {
+        if (processingEngineMXBeans.isEmpty())
+            return;
+        w.family("copper_engine_workflow_instances", OpenMetricsWriter.GAUGE, "Workflow instances held in memory by the engine");
+        for (Map.Entry<String, ProcessingEngineMXBean> e : processingEngineMXBeans.entrySet()) {
+            w.sample("copper_engine_workflow_instances", NAME, e.getKey(), e.getValue().getNumberOfWorkflowInstances());
+        }
+        w.family("copper_engine_notifications", OpenMetricsWriter.COUNTER, "Responses passed to the engine");
+        for (Map.Entry<String, ProcessingEngineMXBean> e : processingEngineMXBeans.entrySet()) {
+            sampleIfKnown(w, "copper_engine_notifications_total", e.getKey(), e.getValue().getNotificationCount());
+        }
+    }
+
+    private void collectProcessorPools(OpenMetricsWriter w) {
+        if (processorPoolMXBeans.isEmpty())
+            return;
+        w.family("copper_processorpool_memory_queue_size", OpenMetricsWriter.GAUGE, "Workflow instances ready for processing in memory");
+        for (Map.Entry<String, ProcessorPoolMXBean> e : processorPoolMXBeans.entrySet()) {
+            w.sample("copper_processorpool_memory_queue_size", NAME, e.getKey(), e.getValue().getMemoryQueueSize());
+        }
+        if (queryQueueSize) {
+            w.family("copper_processorpool_queue_size", OpenMetricsWriter.GAUGE, "Workflow instances ready for processing");
+            for (Map.Entry<String, ProcessorPoolMXBean> e : processorPoolMXBeans.entrySet()) {
+                w.sample("copper_processorpool_queue_size", NAME, e.getKey(), e.getValue().getQueueSize());
+            }
+        }
+        w.family("copper_processorpool_processed", OpenMetricsWriter.COUNTER, "Workflow instances dequeued for processing");
+        for (Map.Entry<String, ProcessorPoolMXBean> e : processorPoolMXBeans.entrySet()) {
+            sampleIfKnown(w, "copper_processorpool_processed_total", e.getKey(), e.getValue().getProcessedCount());
+        }
+        w.family("copper_processorpool_threads", OpenMetricsWriter.GAUGE, "Processor threads");
+        for (Map.Entry<String, ProcessorPoolMXBean> e : processorPoolMXBeans.entrySet()) {
+            w.sample("copper_processorpool_threads", NAME, e.getKey(), e.getValue().getNumberOfThreads());
+        }
+        w.family("copper_processorpool_active_threads", OpenMetricsWriter.GAUGE, "Processor threads currently processing a workflow instance");
+        for (Map.Entry<String, ProcessorPoolMXBean> e : processorPoolMXBeans.entrySet()) {
+            w.sample("copper_processorpool_active_threads", NAME, e.getKey(), e.getValue().getNumberOfActiveThreads());
+        }
+    }
+
+    private void collectBatchers(OpenMetricsWriter w) {
+        if (batcherMXBeans.isEmpty())
+            return;
+        w.family("copper_batcher_queue_size", OpenMetricsWriter.GAUGE, "Commands waiting to be executed");
+        for (Map.Entry<String, BatcherMXBean> e : batcherMXBeans.entrySet()) {
+            sampleIfKnown(w, "copper_batcher_queue_size", e.getKey(), e.getValue().getQueueSize());
+        }
+        w.family("copper_batcher_threads", OpenMetricsWriter.GAUGE, "Batcher threads");
+        for (Map.Entry<String, BatcherMXBean> e : batcherMXBeans.entrySet()) {
+            w.sample("copper_batcher_threads", NAME, e.getKey(), e.getValue().getNumThreads());
+        }
+
+        batchExecutorNames.clear();
+        batchExecutorInfos.clear();
+        for (Map.Entry<String, BatcherMXBean> e : batcherMXBeans.entrySet()) {
+            final List<BatchExecutorInfo> infos = e.getValue().getBatchExecutorInfos();
+            for (int i = 0; i < infos.size(); i++) {
+                batchExecutorNames.add(e.getKey());
+                batchExecutorInfos.add(infos.get(i));
+            }
+        }
+        if (batchExecutorInfos.isEmpty())
+            return;
+        w.family("copper_batcher_batch_size", OpenMetricsWriter.GAUGE, "Average number of commands per batch");
+        for (int i = 0; i < batchExecutorInfos.size(); i++) {
+            w.sample("copper_batcher_batch_size", NAME, batchExecutorNames.get(i), "executor", batchExecutorInfos.get(i).getId(), batchExecutorInfos.get(i).getAverageBatchSize());
+        }
+        w.family("copper_batcher_commands_per_second", OpenMetricsWriter.GAUGE, "Executed commands per second");
+        for (int i = 0; i < batchExecutorInfos.size(); i++) {
+            w.sample("copper_batcher_commands_per_second", NAME, batchExecutorNames.get(i), "executor", batchExecutorInfos.get(i).getId(), batchExecutorInfos.get(i).getCommandsPerSecond());
+        }
+        w.family("copper_batcher_wait_seconds", OpenMetricsWriter.GAUGE, "Average time a command waits in the queue");
+        for (int i = 0; i < batchExecutorInfos.size(); i++) {
+            w.sample("copper_batcher_wait_seconds", NAME, batchExecutorNames.get(i), "executor", batchExecutorInfos.get(i).getId(), batchExecutorInfos.get(i).getAverageWaitMSec() / 1000.0);
+        }
+        w.family("copper_batcher_execution_seconds", OpenMetricsWriter.GAUGE, "Average execution time of a batch");
+        for (int i = 0; i < batchExecutorInfos.size(); i++) {
+            w.sample("copper_batcher_execution_seconds", NAME, batchExecutorNames.get(i), "executor", batchExecutorInfos.get(i).getId(), batchExecutorInfos.get(i).getAverageExecutionMSec() / 1000.0);
+        }
+    }
+
+    private void collectDBStorages(OpenMetricsWriter w) {
+        boolean found = false;
+        for (DBStorageMXBean dbStorage : dbStorageMXBeans.values()) {
+            found |= dbStorage instanceof ScottyDBStorageMXBean;
+        }
+        if (!found)
+            return;
+        w.family("copper_dbstorage_early_response_cache_size", OpenMetricsWriter.GAUGE, "Correlation ids in the early response cache");
+        for (Map.Entry<String, DBStorageMXBean> e : dbStorageMXBeans.entrySet()) {
+            if (e.getValue() instanceof ScottyDBStorageMXBean) {
+                sampleIfKnown(w, "copper_dbstorage_early_response_cache_size", e.getKey(), ((ScottyDBStorageMXBean) e.getValue()).getEarlyResponseCacheSize());
+            }
+        }
+        w.family("copper_dbstorage_early_response_cache_hits", OpenMetricsWriter.COUNTER, "Early response cache hits");
+        for (Map.Entry<String, DBStorageMXBean> e : dbStorageMXBeans.entrySet()) {
+            if (e.getValue() instanceof ScottyDBStorageMXBean) {
+                sampleIfKnown(w, "copper_dbstorage_early_response_cache_hits_total", e.getKey(), ((ScottyDBStorageMXBean) e.getValue()).getEarlyResponseCacheHits());
+            }
+        }
+        w.family("copper_dbstorage_early_response_cache_misses", OpenMetricsWriter.COUNTER, "Early response cache misses");
+        for (Map.Entry<String, DBStorageMXBean> e : dbStorageMXBeans.entrySet()) {
+            if (e.getValue() instanceof ScottyDBStorageMXBean) {
+                sampleIfKnown(w, "copper_dbstorage_early_response_cache_misses_total", e.getKey(), ((ScottyDBStorageMXBean) e.getValue()).getEarlyResponseCacheMisses());
+            }
+        }
+        w.family("copper_dbstorage_early_response_cache_evictions", OpenMetricsWriter.COUNTER, "Early response cache evictions");
+        for (Map.Entry<String, DBStorageMXBean> e : dbStorageMXBeans.entrySet()) {
+            if (e.getValue() instanceof ScottyDBStorageMXBean) {
+                sampleIfKnown(w, "copper_dbstorage_early_response_cache_evictions_total", e.getKey(), ((ScottyDBStorageMXBean) e.getValue()).getEarlyResponseCacheEvictions());
+            }
+        }
+    }
+
+    private void collectTicketPools(OpenMetricsWriter w) {
+        if (ticketPoolMXBeans.isEmpty())
+            return;
+        w.family("copper_ticketpool_max_tickets", OpenMetricsWriter.GAUGE, "Capacity of the ticket pool");
+        for (Map.Entry<String, TicketPoolMXBean> e : ticketPoolMXBeans.entrySet()) {
+            w.sample("copper_ticketpool_max_tickets", NAME, e.getKey(), e.getValue().getMaxTickets());
+        }
+        w.family("copper_ticketpool_used_tickets", OpenMetricsWriter.GAUGE, "Tickets in use");
+        for (Map.Entry<String, TicketPoolMXBean> e : ticketPoolMXBeans.entrySet()) {
+            w.sample("copper_ticketpool_used_tickets", NAME, e.getKey(), e.getValue().getUsedTickets());
+        }
+        w.family("copper_ticketpool_waiting_threads", OpenMetricsWriter.GAUGE, "Threads waiting for a ticket");
+        for (Map.Entry<String, TicketPoolMXBean> e : ticketPoolMXBeans.entrySet()) {
+            w.sample("copper_ticketpool_waiting_threads", NAME, e.getKey(), e.getValue().getWaitingThreads());
+        }
+        w.family("copper_ticketpool_wait_seconds", OpenMetricsWriter.SUMMARY, "Time waited for a ticket");
+        for (Map.Entry<String, TicketPoolMXBean> e : ticketPoolMXBeans.entrySet()) {
+            final HistogramData h = e.getValue().getWaitTimeHistogram();
+            writeQuantiles(w, "copper_ticketpool_wait_seconds", e.getKey(), null, null, h);
+            w.sample("copper_ticketpool_wait_seconds_sum", NAME, e.getKey(), h.getSum() / 1000000.0);
+            w.sample("copper_ticketpool_wait_seconds_count", NAME, e.getKey(), h.getCount());
+        }
+    }
+
+    private void collectTimeoutManagers(OpenMetricsWriter w) {
+        if (timeoutManagers.isEmpty())
+            return;
+        w.family("copper_timeouts", OpenMetricsWriter.GAUGE, "Registered timeouts of waiting workflow instances");
+        for (Map.Entry<String, TimeoutManager> e : timeoutManagers.entrySet()) {
+            sampleIfKnown(w, "copper_timeouts", e.getKey(), e.getValue().getNumberOfTimeouts());
+        }
+    }
+
+    private void collectStatistics(OpenMetricsWriter w) {
+        if (statisticsCollectorMXBeans.isEmpty())
+            return;
+        measurePointNames.clear();
+        measurePoints.clear();
+        for (Map.Entry<String, StatisticsCollectorMXBean> e : statisticsCollectorMXBeans.entrySet()) {
+            final List<MeasurePointData> list = e.getValue().queryAll();
+            for (int i = 0; i < list.size(); i++) {
+                measurePointNames.add(e.getKey());
+                measurePoints.add(list.get(i));
+            }
+        }
+        if (measurePoints.isEmpty())
+            return;
+        w.family("copper_statement_duration_seconds", OpenMetricsWriter.SUMMARY, "Execution time per measure point, e.g. SQL statements");
+        for (int i = 0; i < measurePoints.size(); i++) {
+            final MeasurePointData mp = measurePoints.get(i);
+            if (mp.getHistogram() != null) {
+                writeQuantiles(w, "copper_statement_duration_seconds", measurePointNames.get(i), "measure_point", mp.getMpId(), mp.getHistogram());
+            }
+            w.sample("copper_statement_duration_seconds_sum", NAME, measurePointNames.get(i), "measure_point", mp.getMpId(), mp.getElapsedTimeMicros() / 1000000.0);
+            w.sample("copper_statement_duration_seconds_count", NAME, measurePointNames.get(i), "measure_point", mp.getMpId(), mp.getCount());
+        }
+        w.family("copper_statement_elements", OpenMetricsWriter.COUNTER, "Elements processed per measure point, e.g. rows");
+        for (int i = 0; i < measurePoints.size(); i++) {
+            final MeasurePointData mp = measurePoints.get(i);
+            w.sample("copper_statement_elements_total", NAME, measurePointNames.get(i), "measure_point", mp.getMpId(), mp.getElementCount());
+        }
+    }
+
+    /**
+     * Skips the sample if the value is negative, i.e. not provided by the implementation of the MXBean.
+     */
+    private static void sampleIfKnown(OpenMetricsWriter w, String family, String name, long value) {
+        if (value >= 0) {
+            w.sample(family, NAME, name, value);
+        }
+    }
+
+    private static void writeQuantiles(OpenMetricsWriter w, String family, String name, String label, String labelValue, HistogramData h) {
+        for (int q = 0; q < QUANTILES.length; q++) {
+            final double value = h.getCount() == 0 ? Double.NaN : h.getValueAtPercentile(QUANTILES[q] * 100.0) / 1000000.0;
+            if (label == null) {
+                w.sample(family, NAME, name, "quantile", QUANTILE_LABELS[q], value);
+            } else {
+                w.sample(family, NAME, name, label, labelValue, "quantile", QUANTILE_LABELS[q], value);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.metrics;
+
+/**
+ * Writes metrics in the OpenMetrics text format. The writer reuses its character and byte buffers from scrape to
+ * scrape instead of building a new response each time. It is not thread safe.
+ */
+public final class OpenMetricsWriter {
+
+    public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    public static final String COUNTER = "counter";
+    public static final String GAUGE = "gauge";
+    public static final String SUMMARY = "summary";
+
+    private final StringBuilder sb = new StringBuilder(16 * 1024);
+    private byte[] bytes = new byte[16 * 1024];
+
+    /**
+     * Discards everything written so far.
+     */
+    public void reset() {
+        sb.setLength(0);
+    }
+
+    /**
+     * Starts a metric family. All samples of a family have to be written before the next family starts.
+     *
+     * @param name
+     *        family name, e.g. <code>copper_processorpool_processed</code> for a counter with the sample
+     *        <code>copper_processorpool_processed_total</code>
+     * @param type
+     *        one of {@link #COUNTER}, {@link #GAUGE}, {@link #SUMMARY}
+     * @param help
+     *        short description
+     */
+    public void family(String name, String type, String help) {
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    }
+
+    public void sample(String name, String label, String labelValue, long value) {
+        startSample(name, label, labelValue);
+        sb.append('}').append(' ').append(value).append('\n');
+    }
+
+    public void sample(String name, String label, String labelValue, double value) {
+        startSample(name, label, labelValue);
+        sb.append('}').append(' ');
+        appendDouble(value);
+        sb.append('\n');
+    }
+
+    public void sample(String name, String label1, String labelValue1, String label2, String labelValue2, long value) {
+        startSample(name, label1, labelValue1);
+        appendLabel(label2, labelValue2);
+        sb.append('}').append(' ').append(value).append('\n');
+    }
+
+    public void sample(String name, String label1, String labelValue1, String label2, String labelValue2, double value) {
+        startSample(name, label1, labelValue1);
+        appendLabel(label2, labelValue2);
+        sb.append('}').append(' ');
+        appendDouble(value);
+        sb.append('\n');
+    }
+
+    public void sample(String name, String label1, String labelValue1, String label2, String labelValue2, String label3, String labelValue3, double value) {
+        startSample(name, label1, labelValue1);
+        appendLabel(label2, labelValue2);
+        appendLabel(label3, labelValue3);
+        sb.append('}').append(' ');
+        appendDouble(value);
+        sb.append('\n');
+    }
+
+    /**
+     * Terminates the exposition. Has to be called once after the last family.
+     */
+    public void eof() {
+        sb.append("# EOF\n");
+    }
+
+    /**
+     * Encodes everything written so far as UTF-8 into the internal buffer.
+     *
+     * @return the number of valid bytes in {@link #getBytes()}
+     */
+    public int encode() {
+        final int length = sb.length();
+        ensureCapacity(length * 3);
+        int pos = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = sb.charAt(i);
+            if (c < 0x80) {
+                bytes[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[pos++] = (byte) (0xC0 | (c >> 6));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(sb.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, sb.charAt(++i));
+                bytes[pos++] = (byte) (0xF0 | (cp >> 18));
+                bytes[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                bytes[pos++] = (byte) '?';
+            } else {
+                bytes[pos++] = (byte) (0xE0 | (c >> 12));
+                bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * @return the buffer filled by {@link #encode()}. Only valid until the next call of {@link #encode()}.
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (bytes.length < capacity) {
+            bytes = new byte[Math.max(capacity, bytes.length * 2)];
+        }
+    }
+
+    private void startSample(String name, String label, String labelValue) {
+        sb.append(name).append('{');
+        sb.append(label).append('=').append('"');
+        appendEscaped(labelValue);
+        sb.append('"');
+    }
+
+    private void appendLabel(String label, String labelValue) {
+        sb.append(',').append(label).append('=').append('"');
+        appendEscaped(labelValue);
+        sb.append('"');
+    }
+
+    private void appendEscaped(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '\\') {
+                sb.append("\\\\");
+            } else if (c == '"') {
+                sb.append("\\\"");
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private void appendDouble(double value) {
+        if (Double.isNaN(value)) {
+            sb.append("NaN");
+        } else if (Double.isInfinite(value)) {
+            sb.append(value > 0 ? "+Inf" : "-Inf");
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.copperengine.core.common.TicketPool;
+import org.copperengine.core.monitoring.HistogramStatisticsCollector;
+import org.copperengine.core.tranzient.TimingWheelTimeoutManager;
+import org.copperengine.core.tranzient.TransientPriorityProcessorPool;
+import org.copperengine.management.TicketPoolMXBean;
+import org.junit.Test;
+
+public class MetricsExporterTest {
+
+    @Test
+    public void testScrape() throws Exception {
+        TicketPool ticketPool = new TicketPool("T#DEFAULT", 10);
+        ticketPool.obtain();
+        HistogramStatisticsCollector statisticsCollector = new HistogramStatisticsCollector();
+        statisticsCollector.submit("DBStorage.insert", 10, 2, TimeUnit.MILLISECONDS);
+        statisticsCollector.submit("DBStorage \"quoted\"", 1, 1, TimeUnit.MILLISECONDS);
+        TimingWheelTimeoutManager timeoutManager = new TimingWheelTimeoutManager();
+        timeoutManager.registerTimeout(System.currentTimeMillis() + 60000, "cid1");
+        timeoutManager.registerTimeout(System.currentTimeMillis() + 60000, "cid2");
+
+        MetricsExporter exporter = new MetricsExporter();
+        exporter.addTicketPoolMXBean("T#DEFAULT", ticketPool);
+        exporter.addStatisticsCollectorMXBean("stats", statisticsCollector);
+        exporter.addTimeoutManager("tm", timeoutManager);
+        exporter.addProcessorPoolMXBean("P#DEFAULT", new TransientPriorityProcessorPool("P#DEFAULT", 2));
+        exporter.setHost("localhost");
+        exporter.setPort(0);
+        exporter.startup();
+        try {
+            HttpURLConnection con = (HttpURLConnection) new URL("http://localhost:" + exporter.getPort() + "/metrics").openConnection();
+            assertEquals(200, con.getResponseCode());
+            assertEquals(OpenMetricsWriter.CONTENT_TYPE, con.getContentType());
+            String body = read(con.getInputStream());
+
+            assertTrue(body, body.contains("# TYPE copper_ticketpool_used_tickets gauge\n"));
+            assertTrue(body, body.contains("copper_ticketpool_used_tickets{name=\"T#DEFAULT\"} 1\n"));
+            assertTrue(body, body.contains("copper_processorpool_processed_total{name=\"P#DEFAULT\"} 0\n"));
+            assertTrue(body, body.contains("copper_timeouts{name=\"tm\"} 2\n"));
+            assertTrue(body, body.contains("copper_statement_duration_seconds_count{name=\"stats\",measure_point=\"DBStorage.insert\"} 1\n"));
+            assertTrue(body, body.contains("copper_statement_duration_seconds{name=\"stats\",measure_point=\"DBStorage.insert\",quantile=\"0.99\"} 0.002"));
+            assertTrue(body, body.contains("copper_statement_elements_total{name=\"stats\",measure_point=\"DBStorage.insert\"} 10\n"));
+            assertTrue(body, body.contains("measure_point=\"DBStorage \\\"quoted\\\"\""));
+            assertTrue(body, body.endsWith("# EOF\n"));
+        } finally {
+            exporter.shutdown();
+        }
+    }
+
+    @Test
+    public void testScrapeFailure() throws Exception {
+        TicketPoolMXBean failing = (TicketPoolMXBean) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { TicketPoolMXBean.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                throw new IllegalStateException("TEST");
+            }
+        });
+        MetricsExporter exporter = new MetricsExporter();
+        exporter.addTicketPoolMXBean("T#DEFAULT", failing);
+        exporter.setHost("localhost");
+        exporter.setPort(0);
+        exporter.startup();
+        try {
+            HttpURLConnection con = (HttpURLConnection) new URL("http://localhost:" + exporter.getPort() + "/metrics").openConnection();
+            assertEquals(500, con.getResponseCode());
+        } finally {
+            exporter.shutdown();
+        }
+    }
+
+    private static String read(InputStream is) throws Exception {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int c;
+            while ((c = is.read(buffer)) != -1) {
+                bos.write(buffer, 0, c);
+            }
+            return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            is.close();
+        }
+    }
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.regtest.audit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.copperengine.core.audit.AbstractAuditTrail;
+import org.copperengine.core.audit.AsyncAuditTrail;
+import org.copperengine.core.audit.AuditTrailCallback;
+import org.copperengine.core.audit.AuditTrailEvent;
+import org.copperengine.core.audit.CompressedBase64PostProcessor;
+import org.junit.Test;
+
+public class AsyncAuditTrailTest extends AuditTrailTestBase {
+
+    @Override
+    AbstractAuditTrail getTestAuditTrail() throws Exception {
+        return new AsyncAuditTrail();
+    }
+
+    @Test
+    public void testAsynchLog() throws Exception {
+        final int n = 1000;
+        deleteAll();
+        final AsyncAuditTrail auditTrail = (AsyncAuditTrail) getAuditTrail();
+        auditTrail.setMessagePostProcessor(new CompressedBase64PostProcessor());
+        auditTrail.setBatchSize(100);
+        auditTrail.setNumberOfWriterThreads(2);
+        auditTrail.startup();
+        try {
+            final CountDownLatch done = new CountDownLatch(n);
+            final AtomicInteger errors = new AtomicInteger();
+            for (int i = 0; i < n; i++) {
+                auditTrail.asynchLog(createEvent("message" + i), new AuditTrailCallback() {
+                    @Override
+                    public void done() {
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void error(Exception e) {
+                        errors.incrementAndGet();
+                        done.countDown();
+                    }
+                });
+            }
+            auditTrail.synchLog(createEvent("last"));
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            assertEquals(0, errors.get());
+            assertEquals(n + 1, auditTrail.getWrittenEvents());
+            assertEquals(n + 1, count());
+        } finally {
+            auditTrail.shutdown();
+        }
+    }
+
+    @Test
+    public void testDropPolicy() throws Exception {
+        deleteAll();
+        final AsyncAuditTrail auditTrail = (AsyncAuditTrail) getAuditTrail();
+        auditTrail.setCapacity(1);
+        auditTrail.setOverflowPolicy(AsyncAuditTrail.OverflowPolicy.DROP);
+        auditTrail.startup();
+        try {
+            for (int i = 0; i < 1000; i++) {
+                auditTrail.asynchLog(createEvent("message" + i));
+            }
+            auditTrail.synchLog(createEvent("last"));
+        } finally {
+            auditTrail.shutdown();
+        }
+        assertEquals(1001, auditTrail.getWrittenEvents() + auditTrail.getDroppedEvents());
+        assertEquals(auditTrail.getWrittenEvents(), count());
+    }
+
+    @Test
+    public void testFailingEvents() throws Exception {
+        deleteAll();
+        final AsyncAuditTrail auditTrail = (AsyncAuditTrail) getAuditTrail();
+        auditTrail.setMessagePostProcessor(new CompressedBase64PostProcessor() {
+            @Override
+            public String serialize(String msg) {
+                if (msg.startsWith("fail")) {
+                    throw new IllegalArgumentException(msg);
+                }
+                return super.serialize(msg);
+            }
+        });
+        auditTrail.startup();
+        try {
+            final List<AuditTrailEvent> events = new ArrayList<AuditTrailEvent>();
+            final CountDownLatch done = new CountDownLatch(4);
+            final AtomicInteger errors = new AtomicInteger();
+            for (String message : new String[] { "message0", "fail1", "message2", "fail3" }) {
+                final AuditTrailEvent event = createEvent(message);
+                events.add(event);
+                auditTrail.asynchLog(event, new AuditTrailCallback() {
+                    @Override
+                    public void done() {
+                        done.countDown();
+                        // must not stop the writer
+                        throw new RuntimeException("TEST");
+                    }
+
+                    @Override
+                    public void error(Exception e) {
+                        errors.incrementAndGet();
+                        done.countDown();
+                        throw new RuntimeException("TEST");
+                    }
+                });
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            assertEquals(2, errors.get());
+
+            auditTrail.synchLog(createEvent("last"));
+            assertEquals(3, auditTrail.getWrittenEvents());
+            assertEquals(2, auditTrail.getFailedEvents());
+            assertEquals(3, count());
+            // the events passed in keep their message
+            assertEquals("message0", events.get(0).getMessage());
+            assertEquals("message2", events.get(2).getMessage());
+        } finally {
+            auditTrail.shutdown();
+        }
+    }
+
+    private AuditTrailEvent createEvent(String message) {
+        return new AuditTrailEvent(1, new Date(), "conversationId", "context", "instanceId", "correlationId", "transactionId", message, "messageType", null);
+    }
+
+    private void deleteAll() throws Exception {
+        try (Connection con = ds.getConnection(); Statement stmt = con.createStatement()) {
+            stmt.execute("DELETE FROM COP_AUDIT_TRAIL_EVENT");
+            con.commit();
+        }
+    }
+
+    private int count() throws Exception {
+        try (Connection con = ds.getConnection(); Statement stmt = con.createStatement(); ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM COP_AUDIT_TRAIL_EVENT")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+}
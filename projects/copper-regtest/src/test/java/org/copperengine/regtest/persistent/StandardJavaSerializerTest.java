@@ -16,11 +16,25 @@
 package org.copperengine.regtest.persistent;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
 
 import org.copperengine.core.Workflow;
 import org.copperengine.core.WorkflowFactory;
 import org.copperengine.core.common.JdkRandomUUIDFactory;
+import org.copperengine.core.persistent.BinarySerializer;
+import org.copperengine.core.persistent.CompressionCodec;
+import org.copperengine.core.persistent.DeflateCompressionCodec;
+import org.copperengine.core.persistent.DictionaryCompressionCodec;
 import org.copperengine.core.persistent.SerializedWorkflow;
 import org.copperengine.core.persistent.Serializer;
 import org.copperengine.core.persistent.StandardJavaSerializer;
@@ -59,4 +73,101 @@ public class StandardJavaSerializerTest {
         assertEquals(wf.getData(), wf2.getData());
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testBinary() throws Exception {
+        FileBasedWorkflowRepository repo = new FileBasedWorkflowRepository();
+        repo.addSourceDir("src/workflow/java");
+        repo.setTargetDir("build/compiled_workflow");
+        repo.start();
+        WorkflowFactory<String> wfFactory = repo.createWorkflowFactory("org.copperengine.regtest.test.PersistentSpock2GTestWF");
+        BinarySerializer serializer = new StandardJavaSerializer();
+
+        for (int size : new int[] { 10, 20 * 1024 }) {
+            StringBuilder dataSB = new StringBuilder(size);
+            for (int i = 0; i < size; i++) {
+                dataSB.append((char) ('a' + (i % 26)));
+            }
+            Workflow<String> wf = wfFactory.newInstance();
+            wf.setId(new JdkRandomUUIDFactory().createId());
+            wf.setData(dataSB.toString());
+            wf.setProcessorPoolId("P#DEFAULT");
+
+            SerializedWorkflow sw = serializer.serializeWorkflowBinary(wf);
+            assertTrue(sw.isBinary());
+            assertNull(sw.getData());
+            assertNull(sw.getObjectState());
+            Workflow<String> wf2 = (Workflow<String>) serializer.deserializeWorkflow(sw, repo);
+            assertEquals(wf.getData(), wf2.getData());
+
+            // the text format stays readable
+            SerializedWorkflow textSW = serializer.serializeWorkflow(wf);
+            assertFalse(textSW.isBinary());
+            assertEquals(wf.getData(), ((Workflow<String>) serializer.deserializeWorkflow(textSW, repo)).getData());
+            assertTrue(sw.getBinaryObjectState().length < textSW.getObjectState().length());
+        }
+    }
+
+    @Test
+    public void testCompressionCodecs() throws Exception {
+        StandardJavaSerializer fast = new StandardJavaSerializer();
+        fast.setCompressionCodec(new DeflateCompressionCodec(Deflater.BEST_SPEED));
+
+        // larger than compressorMaxSize, so only compressed when using a codec
+        String large = createData(300 * 1024);
+        String compressed = fast.serializeObject(large);
+        assertEquals('C', compressed.charAt(0));
+        assertEquals('U', new StandardJavaSerializer().serializeObject(large).charAt(0));
+        assertEquals(large, new StandardJavaSerializer().deserializeObject(compressed));
+        byte[] binary = fast.serializeObjectBinary(large);
+        assertEquals('C', binary[0]);
+        assertEquals(large, new StandardJavaSerializer().deserializeObject(binary));
+
+        StandardJavaSerializer uncompressed = new StandardJavaSerializer();
+        uncompressed.setCompress(false);
+        List<byte[]> samples = new ArrayList<byte[]>();
+        for (int i = 0; i < 10; i++) {
+            samples.add(uncompressed.serializeObjectBinary(createState(i)));
+        }
+        StandardJavaSerializer dict = new StandardJavaSerializer();
+        dict.setCompressionCodec(new DictionaryCompressionCodec(Deflater.BEST_SPEED, Collections.singletonList(DictionaryCompressionCodec.trainDictionary(samples))));
+        ArrayList<String> state = createState(42);
+        byte[] withDict = dict.serializeObjectBinary(state);
+        assertEquals('D', withDict[0]);
+        assertTrue(withDict.length < fast.serializeObjectBinary(state).length);
+        assertEquals(state, dict.deserializeObject(withDict));
+        assertEquals(state, dict.deserializeObject(dict.serializeObject(state)));
+
+        // data written with another codec requires that codec to be registered
+        try {
+            fast.deserializeObject(withDict);
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        fast.setReadableCompressionCodecs(Arrays.<CompressionCodec> asList(dict.getCompressionCodec()));
+        assertEquals(state, fast.deserializeObject(withDict));
+
+        // a new dictionary still reads data compressed with the old one
+        byte[] newDictionary = DictionaryCompressionCodec.trainDictionary(samples.subList(0, 5));
+        dict.setCompressionCodec(new DictionaryCompressionCodec(Deflater.BEST_SPEED, Arrays.asList(newDictionary, DictionaryCompressionCodec.trainDictionary(samples))));
+        assertEquals(state, dict.deserializeObject(withDict));
+    }
+
+    private static String createData(int size) {
+        StringBuilder sb = new StringBuilder(size);
+        for (int i = 0; i < size; i++) {
+            sb.append((char) ('a' + (int) (Math.random() * 26.0)));
+        }
+        return sb.toString();
+    }
+
+    private static ArrayList<String> createState(int seed) {
+        ArrayList<String> state = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            state.add("orderId=" + (seed * 100 + i) + ";customer=Customer " + seed + ";status=PROCESSING");
+        }
+        return state;
+    }
+
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.regtest.test.persistent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.copperengine.core.Acknowledge;
+import org.copperengine.core.Response;
+import org.copperengine.core.db.utility.RetryingTransaction;
+import org.copperengine.core.persistent.AbstractSqlDialect;
+import org.copperengine.core.persistent.DatabaseDialect;
+import org.copperengine.core.persistent.H2Dialect;
+import org.copperengine.core.persistent.PersistentScottyEngine;
+import org.copperengine.regtest.test.backchannel.BackChannelQueue;
+import org.copperengine.regtest.test.backchannel.WorkflowResult;
+import org.junit.Test;
+
+public class H2BinaryWorkflowStateTest extends SpringlessBasePersistentWorkflowTest {
+
+    private static final DataSourceType DS_CONTEXT = DataSourceType.H2;
+
+    private volatile AbstractSqlDialect dialect;
+
+    @Override
+    void cleanDB(DataSource ds) throws Exception {
+        H2Dialect.checkAndCreateSchema(ds);
+        super.cleanDB(ds);
+    }
+
+    @Override
+    protected PersistentEngineTestContext createContext(DataSourceType dsType) {
+        return createContext(dsType, true);
+    }
+
+    private PersistentEngineTestContext createContext(DataSourceType dsType, final boolean binaryWorkflowState) {
+        PersistentEngineTestContext ctx = new PersistentEngineTestContext(dsType, true) {
+            @Override
+            protected void configureDatabaseDialect(DatabaseDialect dialect) {
+                H2BinaryWorkflowStateTest.this.dialect = (AbstractSqlDialect) dialect;
+                H2BinaryWorkflowStateTest.this.dialect.setBinaryWorkflowState(binaryWorkflowState);
+            }
+        };
+        ctx.startup();
+        return ctx;
+    }
+
+    @Test
+    public void testAsynchResponse() throws Exception {
+        super.testAsynchResponse(DS_CONTEXT);
+    }
+
+    @Test
+    public void testWithConnection() throws Exception {
+        super.testWithConnection(DS_CONTEXT);
+    }
+
+    @Test
+    public void testWithConnectionBulkInsert() throws Exception {
+        super.testWithConnectionBulkInsert(DS_CONTEXT);
+    }
+
+    @Test
+    public void testTimeouts() throws Exception {
+        super.testTimeouts(DS_CONTEXT);
+    }
+
+    @Test
+    public void testParentChildWorkflow() throws Exception {
+        super.testParentChildWorkflow(DS_CONTEXT);
+    }
+
+    /**
+     * Workflow instances persisted in text form ('C'/'U' prefixed Base64) before the switch to binary workflow state
+     * must still be readable and continue afterwards.
+     */
+    @Test
+    public void testReadTextRowsInBinaryMode() throws Exception {
+        final int NUMB = 10;
+        final PersistentEngineTestContext context = createContext(DS_CONTEXT, false);
+        final PersistentScottyEngine engine = context.getEngine();
+        final BackChannelQueue backChannelQueue = context.getBackChannelQueue();
+        try {
+            final Set<String> expectedData = new HashSet<String>();
+            for (int i = 0; i < NUMB; i++) {
+                // short data is stored uncompressed ('U'), data above the compress threshold compressed ('C')
+                final String data = i % 2 == 0 ? "short#" + i : createTestData(1000);
+                expectedData.add(data);
+                engine.run(WaitForEverTestWF_NAME, data);
+            }
+
+            final List<String> cids = waitForCorrelationIds(context.getDataSource(), NUMB);
+
+            final Set<Character> prefixes = new HashSet<Character>();
+            new RetryingTransaction<Void>(context.getDataSource()) {
+                @Override
+                protected Void execute() throws Exception {
+                    Statement stmt = getConnection().createStatement();
+                    ResultSet rs = stmt.executeQuery("SELECT DATA, OBJECT_STATE, DATA_BIN, OBJECT_STATE_BIN FROM COP_WORKFLOW_INSTANCE");
+                    while (rs.next()) {
+                        prefixes.add(rs.getString(1).charAt(0));
+                        prefixes.add(rs.getString(2).charAt(0));
+                        assertNull(rs.getBytes(3));
+                        assertNull(rs.getBytes(4));
+                    }
+                    rs.close();
+                    stmt.close();
+                    return null;
+                }
+            }.run();
+            assertTrue(prefixes.contains('C'));
+            assertTrue(prefixes.contains('U'));
+
+            dialect.setBinaryWorkflowState(true);
+
+            for (String cid : cids) {
+                Acknowledge.DefaultAcknowledge ack = new Acknowledge.DefaultAcknowledge();
+                engine.notify(new Response<String>(cid, "done", null), ack);
+                ack.waitForAcknowledge();
+            }
+
+            final Set<Object> actualData = new HashSet<Object>();
+            for (int i = 0; i < NUMB; i++) {
+                WorkflowResult x = backChannelQueue.dequeue(60, TimeUnit.SECONDS);
+                assertNotNull(x);
+                assertNull(x.getException());
+                actualData.add(x.getResult());
+            }
+            assertEquals(expectedData, actualData);
+        } finally {
+            closeContext(context);
+        }
+        assertEquals(0, engine.getNumberOfWorkflowInstances());
+    }
+
+    private List<String> waitForCorrelationIds(final DataSource ds, final int expected) throws Exception {
+        final List<String> cids = new ArrayList<String>();
+        for (int i = 0; i < 100 && cids.size() < expected; i++) {
+            Thread.sleep(100);
+            cids.clear();
+            new RetryingTransaction<Void>(ds) {
+                @Override
+                protected Void execute() throws Exception {
+                    Statement stmt = getConnection().createStatement();
+                    ResultSet rs = stmt.executeQuery("SELECT CORRELATION_ID FROM COP_WAIT");
+                    while (rs.next()) {
+                        cids.add(rs.getString(1));
+                    }
+                    rs.close();
+                    stmt.close();
+                    return null;
+                }
+            }.run();
+        }
+        assertEquals(expected, cids.size());
+        return cids;
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.regtest.test.persistent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.copperengine.core.Workflow;
+import org.copperengine.core.db.utility.RetryingTransaction;
+import org.copperengine.core.persistent.H2Dialect;
+import org.copperengine.core.persistent.PersistentPriorityProcessorPool;
+import org.copperengine.core.persistent.PersistentProcessorPool;
+import org.copperengine.core.persistent.PersistentScottyEngine;
+import org.copperengine.regtest.test.backchannel.BackChannelQueue;
+import org.copperengine.regtest.test.backchannel.WorkflowResult;
+import org.junit.Test;
+
+public class H2GroupCommitWorkflowTest extends SpringlessBasePersistentWorkflowTest {
+
+    private static final DataSourceType DS_CONTEXT = DataSourceType.H2;
+    private static final int GROUP_COMMIT_SIZE = 100;
+
+    private volatile PersistentPriorityProcessorPool pool;
+
+    @Override
+    void cleanDB(DataSource ds) throws Exception {
+        H2Dialect.checkAndCreateSchema(ds);
+        super.cleanDB(ds);
+    }
+
+    @Override
+    protected PersistentEngineTestContext createContext(DataSourceType dsType) {
+        PersistentEngineTestContext ctx = new PersistentEngineTestContext(dsType, true) {
+            @Override
+            protected void configureProcessorPool(PersistentProcessorPool processorPool) {
+                pool = (PersistentPriorityProcessorPool) processorPool;
+                pool.setGroupCommitSize(GROUP_COMMIT_SIZE);
+                // a single processor takes everything in the memory queue into its group
+                pool.setNumberOfThreads(1);
+            }
+        };
+        ctx.startup();
+        return ctx;
+    }
+
+    @Test
+    public void testAsynchResponse() throws Exception {
+        super.testAsynchResponse(DS_CONTEXT);
+    }
+
+    @Test
+    public void testWithConnectionBulkInsert() throws Exception {
+        super.testWithConnectionBulkInsert(DS_CONTEXT);
+    }
+
+    @Test
+    public void testTimeouts() throws Exception {
+        super.testTimeouts(DS_CONTEXT);
+    }
+
+    @Test
+    public void testParentChildWorkflow() throws Exception {
+        super.testParentChildWorkflow(DS_CONTEXT);
+    }
+
+    /**
+     * Workflow instances failing within a group must be stored as erroneous, the other instances of the group must
+     * complete.
+     */
+    @Test
+    public void testErrorInGroup() throws Exception {
+        final int NUMB = 20;
+        final PersistentEngineTestContext context = createContext(DS_CONTEXT);
+        final PersistentScottyEngine engine = context.getEngine();
+        final BackChannelQueue backChannelQueue = context.getBackChannelQueue();
+        try {
+            pool.suspend();
+
+            final List<Workflow<?>> list = new ArrayList<Workflow<?>>();
+            for (int i = 0; i < NUMB; i++) {
+                final String wfName = i % 4 == 0 ? "org.copperengine.regtest.test.persistent.ExceptionThrowingPersistentUnitTestWorkflow" : PersistentUnitTestWorkflow_NAME;
+                list.add(engine.createWorkflowFactory(wfName).newInstance());
+            }
+            engine.run(list);
+            final Set<String> failingIds = new HashSet<String>();
+            for (int i = 0; i < NUMB; i += 4) {
+                failingIds.add(list.get(i).getId());
+            }
+
+            // all instances are in the memory queue before the processor starts its group
+            for (int i = 0; i < 100 && pool.getMemoryQueueSize() < NUMB; i++) {
+                Thread.sleep(100);
+            }
+            assertEquals(NUMB, pool.getMemoryQueueSize());
+            pool.resume();
+
+            for (int i = 0; i < NUMB - failingIds.size(); i++) {
+                WorkflowResult x = backChannelQueue.dequeue(60, TimeUnit.SECONDS);
+                assertNotNull(x);
+                assertNull(x.getException());
+            }
+
+            final Set<String> erroneousIds = new HashSet<String>();
+            for (int i = 0; i < 100 && erroneousIds.size() < failingIds.size(); i++) {
+                Thread.sleep(100);
+                erroneousIds.clear();
+                new RetryingTransaction<Void>(context.getDataSource()) {
+                    @Override
+                    protected Void execute() throws Exception {
+                        Statement stmt = getConnection().createStatement();
+                        ResultSet rs = stmt.executeQuery("SELECT WORKFLOW_INSTANCE_ID FROM COP_WORKFLOW_INSTANCE_ERROR");
+                        while (rs.next()) {
+                            erroneousIds.add(rs.getString(1));
+                        }
+                        rs.close();
+                        stmt.close();
+                        return null;
+                    }
+                }.run();
+            }
+            assertEquals(failingIds, erroneousIds);
+        } finally {
+            closeContext(context);
+        }
+    }
+
+}
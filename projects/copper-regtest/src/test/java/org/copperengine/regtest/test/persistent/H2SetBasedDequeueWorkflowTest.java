@@ -0,0 +1,82 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.regtest.test.persistent;
+
+import javax.sql.DataSource;
+
+import org.copperengine.core.persistent.AbstractSqlDialect;
+import org.copperengine.core.persistent.DatabaseDialect;
+import org.copperengine.core.persistent.H2Dialect;
+import org.junit.Test;
+
+public class H2SetBasedDequeueWorkflowTest extends SpringlessBasePersistentWorkflowTest {
+
+    private static final DataSourceType DS_CONTEXT = DataSourceType.H2;
+
+    @Override
+    void cleanDB(DataSource ds) throws Exception {
+        H2Dialect.checkAndCreateSchema(ds);
+        super.cleanDB(ds);
+    }
+
+    @Override
+    protected PersistentEngineTestContext createContext(DataSourceType dsType) {
+        PersistentEngineTestContext ctx = new PersistentEngineTestContext(dsType, true) {
+            @Override
+            protected void configureDatabaseDialect(DatabaseDialect dialect) {
+                ((AbstractSqlDialect) dialect).setSetBasedDequeue(true);
+            }
+        };
+        ctx.startup();
+        return ctx;
+    }
+
+    @Test
+    public void testAsynchResponse() throws Exception {
+        super.testAsynchResponse(DS_CONTEXT);
+    }
+
+    @Test
+    public void testWithConnection() throws Exception {
+        super.testWithConnection(DS_CONTEXT);
+    }
+
+    @Test
+    public void testTimeouts() throws Exception {
+        super.testTimeouts(DS_CONTEXT);
+    }
+
+    @Test
+    public void testMulipleResponsesForSameCidPersistentTestWorkflow() throws Exception {
+        super.testMulipleResponsesForSameCidPersistentTestWorkflow(DS_CONTEXT);
+    }
+
+    @Test
+    public void testNotifyWithoutEarlyResponseHandling() throws Exception {
+        super.testNotifyWithoutEarlyResponseHandling(DS_CONTEXT);
+    }
+
+    @Test
+    public void testWithConnectionBulkInsert() throws Exception {
+        super.testWithConnectionBulkInsert(DS_CONTEXT);
+    }
+
+    @Test
+    public void testParentChildWorkflow() throws Exception {
+        super.testParentChildWorkflow(DS_CONTEXT);
+    }
+
+}
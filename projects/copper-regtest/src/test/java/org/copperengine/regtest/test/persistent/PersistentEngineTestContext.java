@@ -26,12 +26,16 @@ import org.copperengine.core.DependencyInjector;
 import org.copperengine.core.ProcessingEngine;
 import org.copperengine.core.audit.BatchingAuditTrail;
 import org.copperengine.core.batcher.impl.BatcherImpl;
+import org.copperengine.core.common.ProcessorPoolManager;
 import org.copperengine.core.common.WorkflowRepository;
 import org.copperengine.core.db.utility.RetryingTransaction;
 import org.copperengine.core.persistent.AbstractSqlDialect;
 import org.copperengine.core.persistent.DatabaseDialect;
 import org.copperengine.core.persistent.OracleDialect;
+import org.copperengine.core.persistent.PersistentProcessorPool;
 import org.copperengine.core.persistent.PersistentScottyEngine;
+import org.copperengine.core.persistent.ScottyDBStorage;
+import org.copperengine.core.persistent.ScottyDBStorageInterface;
 import org.copperengine.core.persistent.lock.PersistentLockManager;
 import org.copperengine.core.persistent.lock.PersistentLockManagerDialectPostgres;
 import org.copperengine.core.persistent.lock.PersistentLockManagerDialectSQL;
@@ -273,6 +277,23 @@ public class PersistentEngineTestContext extends TestContext {
                         throw new RuntimeException("Unexpected DatabaseDialect: " + x.getClass().getName());
                     }
                 }
+                configureDatabaseDialect(x);
+                return x;
+            }
+
+            @Override
+            protected ScottyDBStorageInterface createDBStorage() {
+                ScottyDBStorageInterface x = super.createDBStorage();
+                configureDBStorage((ScottyDBStorage) x);
+                return x;
+            }
+
+            @Override
+            protected ProcessorPoolManager<PersistentProcessorPool> createProcessorPoolManager() {
+                ProcessorPoolManager<PersistentProcessorPool> x = super.createProcessorPoolManager();
+                for (PersistentProcessorPool pool : x.processorPools()) {
+                    configureProcessorPool(pool);
+                }
                 return x;
             }
 
@@ -289,6 +310,15 @@ public class PersistentEngineTestContext extends TestContext {
         return x;
     }
 
+    protected void configureDBStorage(ScottyDBStorage dbStorage) {
+    }
+
+    protected void configureDatabaseDialect(DatabaseDialect dialect) {
+    }
+
+    protected void configureProcessorPool(PersistentProcessorPool processorPool) {
+    }
+
     @Override
     public void startup() {
         super.startup();
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.regtest.test.persistent;
+
+import org.copperengine.core.persistent.PostgreSQLQueueWakeupChannel;
+import org.copperengine.core.persistent.ScottyDBStorage;
+import org.junit.Test;
+
+/**
+ * Runs with a {@link PostgreSQLQueueWakeupChannel} and a poll interval far above the test timeouts, so the workflow
+ * instances only make progress when the wakeups are delivered, including those published within the caller's
+ * transaction by <code>run(wf, con)</code>.
+ */
+public class PostgreSQLQueueWakeupChannelWorkflowTest extends SpringlessBasePersistentWorkflowTest {
+
+    private static final DataSourceType DS_CONTEXT = DataSourceType.Postgres;
+
+    private static boolean dbmsAvailable = false;
+    static {
+        dbmsAvailable = new PersistentEngineTestContext(DS_CONTEXT, false).isDbmsAvailable();
+    }
+
+    @Override
+    protected boolean skipTests() {
+        return !dbmsAvailable;
+    }
+
+    @Override
+    protected PersistentEngineTestContext createContext(DataSourceType dsType) {
+        PersistentEngineTestContext ctx = new PersistentEngineTestContext(dsType, true) {
+            @Override
+            protected void configureDBStorage(ScottyDBStorage dbStorage) {
+                dbStorage.setQueueWakeupChannel(new PostgreSQLQueueWakeupChannel(getDataSource()));
+                dbStorage.setWaitForEnqueueMSec(600000);
+            }
+        };
+        ctx.startup();
+        return ctx;
+    }
+
+    @Test
+    public void testAsynchResponse() throws Exception {
+        super.testAsynchResponse(DS_CONTEXT);
+    }
+
+    @Test
+    public void testWithConnection() throws Exception {
+        super.testWithConnection(DS_CONTEXT);
+    }
+
+    @Test
+    public void testWithConnectionBulkInsert() throws Exception {
+        super.testWithConnectionBulkInsert(DS_CONTEXT);
+    }
+
+}
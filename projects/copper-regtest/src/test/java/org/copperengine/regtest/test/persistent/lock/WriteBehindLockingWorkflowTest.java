@@ -0,0 +1,86 @@
+/*
+ * Copyright 2002-2015 SCOOP Software GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.copperengine.regtest.test.persistent.lock;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.copperengine.core.PersistentProcessingEngine;
+import org.copperengine.core.WorkflowInstanceDescr;
+import org.copperengine.core.persistent.lock.PersistentLockManager;
+import org.copperengine.core.persistent.lock.WriteBehindPersistentLockManager;
+import org.copperengine.core.persistent.txn.CopperTransactionController;
+import org.copperengine.core.util.Backchannel;
+import org.copperengine.regtest.test.persistent.DataSourceType;
+import org.copperengine.regtest.test.persistent.PersistentEngineTestContext;
+import org.junit.Test;
+
+public class WriteBehindLockingWorkflowTest {
+
+    @Test
+    public void testH2() throws Exception {
+        final WriteBehindPersistentLockManager[] lockManagerHolder = new WriteBehindPersistentLockManager[1];
+        try (PersistentEngineTestContext ctx = new PersistentEngineTestContext(DataSourceType.H2, true) {
+            @Override
+            protected PersistentLockManager createPersistentLockManager(DataSourceType dataSourceType) {
+                WriteBehindPersistentLockManager lockManager = new WriteBehindPersistentLockManager(getEngine(), new CopperTransactionController(dataSource.get()), engineFactoryRed.get().getBatcher());
+                lockManager.startup();
+                lockManagerHolder[0] = lockManager;
+                return lockManager;
+            }
+        }) {
+            ctx.startup();
+            try {
+                PersistentProcessingEngine engine = ctx.getEngine();
+                Backchannel backchannel = ctx.getBackchannel();
+
+                List<WorkflowInstanceDescr<?>> wfid = new ArrayList<WorkflowInstanceDescr<?>>();
+                for (int i = 0; i < 10; i++) {
+                    String wfId = engine.createUUID();
+                    wfid.add(new WorkflowInstanceDescr<String>("org.copperengine.regtest.test.persistent.lock.LockingWorkflow", "COPPER", wfId, null, null));
+                }
+                engine.runBatch(wfid);
+
+                for (WorkflowInstanceDescr<?> x : wfid) {
+                    Boolean res = (Boolean) backchannel.wait(x.getId(), 30, TimeUnit.SECONDS);
+                    org.junit.Assert.assertNotNull(res);
+                    org.junit.Assert.assertTrue(res);
+                }
+
+                org.junit.Assert.assertEquals(0, lockManagerHolder[0].getNumberOfLocks());
+                // the lock table is written behind
+                for (int i = 0; i < 50 && countLocks(ctx) > 0; i++) {
+                    Thread.sleep(100);
+                }
+                org.junit.Assert.assertEquals(0, countLocks(ctx));
+            } finally {
+                lockManagerHolder[0].shutdown();
+            }
+        }
+    }
+
+    private int countLocks(PersistentEngineTestContext ctx) throws Exception {
+        try (Connection con = ctx.getDataSource().getConnection()) {
+            ResultSet rs = con.createStatement().executeQuery("SELECT COUNT(*) FROM COP_LOCK");
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+}
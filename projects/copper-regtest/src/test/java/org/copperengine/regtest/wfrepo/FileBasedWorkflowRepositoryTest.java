@@ -15,6 +15,10 @@
  */
 package org.copperengine.regtest.wfrepo;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.List;
 
 import org.copperengine.core.WorkflowFactory;
@@ -72,4 +76,57 @@ public class FileBasedWorkflowRepositoryTest {
         }
 
     }
+
+    @Test
+    public void testIncrementalRedeploy() throws Exception {
+        final File sourceDir = new File("build/incremental_workflow_src");
+        final File pkgDir = new File(sourceDir, "org/copperengine/regtest/incremental");
+        pkgDir.mkdirs();
+        writeSource(new File(pkgDir, "Helper.java"), "package org.copperengine.regtest.incremental;\n" +
+                "public class Helper { public static String value() { return \"v1\"; } }\n");
+        writeSource(new File(pkgDir, "UsingWorkflow.java"), "package org.copperengine.regtest.incremental;\n" +
+                "public class UsingWorkflow extends org.copperengine.core.Workflow<String> {\n" +
+                "  private static final long serialVersionUID = 1L;\n" +
+                "  public String describe() { return \"\" + Helper.value(); }\n" +
+                "  public void main() throws org.copperengine.core.Interrupt { }\n" +
+                "}\n");
+        writeSource(new File(pkgDir, "OtherWorkflow.java"), "package org.copperengine.regtest.incremental;\n" +
+                "public class OtherWorkflow extends org.copperengine.core.Workflow<String> {\n" +
+                "  private static final long serialVersionUID = 1L;\n" +
+                "  public void main() throws org.copperengine.core.Interrupt { }\n" +
+                "}\n");
+
+        FileBasedWorkflowRepository repo = new FileBasedWorkflowRepository();
+        repo.addSourceDir(sourceDir.getPath());
+        repo.setTargetDir("build/compiled_incremental_workflow");
+        repo.setCheckIntervalMSec(50);
+        repo.start();
+        try {
+            Assert.assertEquals("v1", describe(repo));
+            final Class<?> otherWorkflowClass = repo.createWorkflowFactory("org.copperengine.regtest.incremental.OtherWorkflow").newInstance().getClass();
+
+            // changes the signature of Helper.value(), so UsingWorkflow has to be recompiled as well
+            final File helper = new File(pkgDir, "Helper.java");
+            writeSource(helper, "package org.copperengine.regtest.incremental;\n" +
+                    "public class Helper { public static Object value() { return \"v2\"; } }\n");
+            helper.setLastModified(helper.lastModified() + 10000);
+            final long deadline = System.currentTimeMillis() + 30000;
+            while (otherWorkflowClass == repo.createWorkflowFactory("org.copperengine.regtest.incremental.OtherWorkflow").newInstance().getClass() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Assert.assertEquals("v2", describe(repo));
+            Assert.assertNull(repo.getLastBuildResults());
+        } finally {
+            repo.shutdown();
+        }
+    }
+
+    private static String describe(FileBasedWorkflowRepository repo) throws Exception {
+        final Object wf = repo.createWorkflowFactory("org.copperengine.regtest.incremental.UsingWorkflow").newInstance();
+        return (String) wf.getClass().getMethod("describe").invoke(wf);
+    }
+
+    private static void writeSource(File file, String source) throws IOException {
+        Files.write(file.toPath(), source.getBytes(StandardCharsets.UTF_8));
+    }
 }
@@ -26,6 +26,8 @@ import org.copperengine.management.DatabaseDialectMXBean;
 import org.copperengine.management.ProcessingEngineMXBean;
 import org.copperengine.management.ProcessorPoolMXBean;
 import org.copperengine.management.StatisticsCollectorMXBean;
+import org.copperengine.management.StorageCacheMXBean;
+import org.copperengine.management.TicketPoolMXBean;
 import org.copperengine.management.WorkflowRepositoryMXBean;
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
@@ -91,4 +93,14 @@ public class JmxExporter extends AbstractJmxExporter implements ApplicationConte
         return applicationContext.getBeansOfType(AuditTrailQueryMXBean.class);
     }
 
+    @Override
+    protected Map<String, TicketPoolMXBean> getTicketPoolMXBeans() {
+        return applicationContext.getBeansOfType(TicketPoolMXBean.class);
+    }
+
+    @Override
+    protected Map<String, StorageCacheMXBean> getStorageCacheMXBeans() {
+        return applicationContext.getBeansOfType(StorageCacheMXBean.class);
+    }
+
 }